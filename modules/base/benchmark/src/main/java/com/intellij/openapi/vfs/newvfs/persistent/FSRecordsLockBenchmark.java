@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The single global VFS lock against the striped one under the indexing-like mix of per-file reads and writes: attribute / content
+ * writers and readers working on unrelated files, with a rare structural record allocation. Lives in the package of the lock since
+ * {@link FSRecordsLock} is not a public API.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+public class FSRecordsLockBenchmark {
+  private static final int FILES = 100_000;
+  // roughly the cost of a mapped records read / an attribute storage append, so that the lock is not the only work done
+  private static final int READ_WORK = 50;
+  private static final int WRITE_WORK = 500;
+
+  @Param({"1", "64"})
+  public int stripes;
+
+  @Param({"20"})
+  public int writePercent;
+
+  private FSRecordsLock myLock;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    myLock = stripes > 1 ? FSRecordsLock.striped(stripes) : FSRecordsLock.global();
+  }
+
+  @Benchmark
+  public void mixed() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int fileId = 1 + random.nextInt(FILES - 1);
+    int op = random.nextInt(1000);
+    if (op == 0) {
+      myLock.lockExclusive();
+      myLock.unlockExclusive();
+    }
+    else if (op < writePercent * 10) {
+      myLock.lockWrite(fileId);
+      try {
+        Blackhole.consumeCPU(WRITE_WORK);
+      }
+      finally {
+        myLock.unlockWrite(fileId);
+      }
+    }
+    else {
+      myLock.lockRead(fileId);
+      try {
+        Blackhole.consumeCPU(READ_WORK);
+      }
+      finally {
+        myLock.unlockRead(fileId);
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lookups of known and absent keys and of values by ids in {@link PersistentBTreeEnumerator} by 1, 4 and 16 readers while a background
+ * thread keeps adding new keys at a steady rate, with the storage lock and with the optimistic lock-free reads. Lives in the package of
+ * the enumerator to switch the package-private optimistic mode per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PersistentBTreeEnumeratorConcurrentReadBenchmark {
+  private static final int KEYS = 100_000;
+  private static final long WRITE_INTERVAL_NS = TimeUnit.MICROSECONDS.toNanos(20);
+
+  @Param({"false", "true"})
+  public boolean optimistic;
+
+  private File myDir;
+  private PersistentBTreeEnumerator<String> myEnumerator;
+  private int[] myIds;
+  private final AtomicInteger myNextNewKey = new AtomicInteger();
+  private volatile boolean myStopWriter;
+  private volatile Throwable myWriterFailure;
+  private Thread myWriter;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("enumerator", "benchmark");
+    myEnumerator = new PersistentBTreeEnumerator<>(new File(myDir, "names"), EnumeratorStringDescriptor.INSTANCE, 4096);
+    myEnumerator.myOptimisticReads = optimistic;
+    myIds = new int[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      myIds[i] = myEnumerator.enumerate(key(i));
+    }
+    myNextNewKey.set(KEYS);
+
+    myStopWriter = false;
+    myWriter = new Thread(() -> {
+      try {
+        while (!myStopWriter) {
+          myEnumerator.enumerate(key(myNextNewKey.getAndIncrement()));
+          LockSupport.parkNanos(WRITE_INTERVAL_NS);
+        }
+      }
+      catch (Throwable e) {
+        myWriterFailure = e;
+      }
+    }, "enumerator writer");
+    myWriter.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    myStopWriter = true;
+    myWriter.join();
+    myEnumerator.close();
+    FileUtil.delete(myDir);
+    if (myWriterFailure != null) throw new IllegalStateException("The writer failed", myWriterFailure);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int tryEnumerate1Thread() throws IOException {
+    return doTryEnumerate();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int tryEnumerate4Threads() throws IOException {
+    return doTryEnumerate();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public int tryEnumerate16Threads() throws IOException {
+    return doTryEnumerate();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String valueOf1Thread() throws IOException {
+    return doValueOf();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String valueOf4Threads() throws IOException {
+    return doValueOf();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public String valueOf16Threads() throws IOException {
+    return doValueOf();
+  }
+
+  private int doTryEnumerate() throws IOException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int i = random.nextInt(KEYS);
+    // every other lookup misses
+    return myEnumerator.tryEnumerate(random.nextBoolean() ? key(i) : "absent" + i);
+  }
+
+  private String doValueOf() throws IOException {
+    return myEnumerator.valueOf(myIds[ThreadLocalRandom.current().nextInt(KEYS)]);
+  }
+
+  private static String key(int i) {
+    return "key" + i;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.benchmark.application;
+
+import com.intellij.openapi.application.impl.ReadMostlyRWLock;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read actions of 1000 threads with {@link ReadMostlyRWLock}, with registered readers (the default) and with striped readers.
+ * Readers use {@link ReadMostlyRWLock#tryReadLock()} since a blocking read lock needs the progress manager of a running application;
+ * the writer of the second group pays for the scan of all reader threads which ever took the lock in the default mode.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+public class ReadMostlyRWLockBenchmark {
+  @Param({"false", "true"})
+  public boolean stripedReaders;
+
+  private ReadMostlyRWLock myLock;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    myLock = new ReadMostlyRWLock(stripedReaders);
+  }
+
+  @Benchmark
+  @Group("readers")
+  @GroupThreads(1000)
+  public boolean read(Blackhole blackhole) {
+    return doRead(blackhole);
+  }
+
+  @Benchmark
+  @Group("readersAndWriter")
+  @GroupThreads(999)
+  public boolean readWhileWriting(Blackhole blackhole) {
+    return doRead(blackhole);
+  }
+
+  @Benchmark
+  @Group("readersAndWriter")
+  @GroupThreads(1)
+  public void write() {
+    myLock.writeIntentLock();
+    try {
+      myLock.writeLock();
+      myLock.writeUnlock();
+    }
+    finally {
+      myLock.writeIntentUnlock();
+    }
+  }
+
+  private boolean doRead(Blackhole blackhole) {
+    if (!myLock.tryReadLock()) return false;
+    try {
+      Blackhole.consumeCPU(16); // a short read action
+      blackhole.consume(myLock);
+    }
+    finally {
+      myLock.readUnlock();
+    }
+    return true;
+  }
+}
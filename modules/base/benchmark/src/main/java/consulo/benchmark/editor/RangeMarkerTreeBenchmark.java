@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.benchmark.editor;
+
+import com.intellij.openapi.editor.RangeMarker;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Range marker tree of a {@link DocumentImpl}: mass insert of markers, shifting markers on edits, and overlap queries of a screenful of text,
+ * alone and from several threads while another thread edits the document.
+ * Queries of an unmodified tree are served from its lock-free snapshot; run with
+ * {@code -jvmArgsAppend -Didea.interval.tree.snapshots=false} to measure the locked tree walk instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RangeMarkerTreeBenchmark {
+  private static final int LINE_LENGTH = 80;
+  private static final int LINE_COUNT = 12_500;
+  private static final int QUERY_LENGTH = 50 * LINE_LENGTH;
+  private static final int MAX_MARKER_LENGTH = 40;
+
+  @Param({"10000", "100000"})
+  public int markerCount;
+
+  private CharSequence myText;
+  private DocumentImpl myDocument;
+  // the tree references markers weakly
+  private RangeMarker[] myMarkers;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    StringBuilder text = new StringBuilder(LINE_COUNT * LINE_LENGTH);
+    for (int i = 0; i < LINE_COUNT; i++) {
+      for (int j = 0; j < LINE_LENGTH - 1; j++) {
+        text.append((char)('a' + (i + j) % 26));
+      }
+      text.append('\n');
+    }
+    myText = text.toString();
+    myDocument = new DocumentImpl(myText, true);
+    myMarkers = createMarkers(myDocument, new Random(42));
+  }
+
+  private RangeMarker[] createMarkers(DocumentImpl document, Random random) {
+    RangeMarker[] markers = new RangeMarker[markerCount];
+    int length = document.getTextLength();
+    for (int i = 0; i < markers.length; i++) {
+      int start = random.nextInt(length - MAX_MARKER_LENGTH);
+      markers[i] = document.createRangeMarker(start, start + random.nextInt(MAX_MARKER_LENGTH));
+    }
+    return markers;
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public RangeMarker[] massInsert() {
+    return createMarkers(new DocumentImpl(myText, true), ThreadLocalRandom.current());
+  }
+
+  @Benchmark
+  public void shiftOnEdit() {
+    edit();
+  }
+
+  @Benchmark
+  public void overlapQuery(Blackhole blackhole) {
+    query(blackhole);
+  }
+
+  @Benchmark
+  public void editThenOverlapQuery(Blackhole blackhole) {
+    edit();
+    query(blackhole);
+  }
+
+  @Benchmark
+  @Group("queriesWhileEditing")
+  @GroupThreads(3)
+  public void concurrentOverlapQuery(Blackhole blackhole) {
+    query(blackhole);
+  }
+
+  @Benchmark
+  @Group("queriesWhileEditing")
+  @GroupThreads(1)
+  public void concurrentEdit() {
+    edit();
+    // let several queries run between edits, like repaints between keystrokes
+    Blackhole.consumeCPU(10_000);
+  }
+
+  private void edit() {
+    int offset = ThreadLocalRandom.current().nextInt(myDocument.getTextLength());
+    myDocument.insertString(offset, "x");
+    myDocument.deleteString(offset, offset + 1);
+  }
+
+  private void query(Blackhole blackhole) {
+    int start = ThreadLocalRandom.current().nextInt(myDocument.getTextLength() - QUERY_LENGTH);
+    myDocument.processRangeMarkersOverlappingWith(start, start + QUERY_LENGTH, marker -> {
+      blackhole.consume(marker);
+      return true;
+    });
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.benchmark.lang;
+
+import com.intellij.lang.*;
+import com.intellij.lang.impl.PsiBuilderImpl;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.openapi.util.Ref;
+import com.intellij.psi.FileViewProvider;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.TokenType;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IFileElementType;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.util.diff.FlyweightCapableTreeStructure;
+import consulo.lang.LanguageVersion;
+import org.openjdk.jmh.annotations.*;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a large C-like file with {@link PsiBuilderImpl} into a light tree, including a walk over the whole tree.
+ * The parser marks every statement, expression and bracketed group and backtracks on every call-like expression,
+ * so markers are allocated, dropped and rolled back at roughly the rate of real-world parsers.
+ * Pass a real file with {@code -p file=/path/to/Large.java} and add {@code -prof gc} to see allocation per parse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PsiBuilderBenchmark {
+  private static final IElementType ROOT = new IElementType("ROOT", Language.ANY);
+  private static final IElementType IDENTIFIER = new IElementType("IDENTIFIER", Language.ANY);
+  private static final IElementType NUMBER = new IElementType("NUMBER", Language.ANY);
+  private static final IElementType COMMENT = new IElementType("COMMENT", Language.ANY);
+  private static final IElementType LBRACE = new IElementType("LBRACE", Language.ANY);
+  private static final IElementType RBRACE = new IElementType("RBRACE", Language.ANY);
+  private static final IElementType LPARENTH = new IElementType("LPARENTH", Language.ANY);
+  private static final IElementType RPARENTH = new IElementType("RPARENTH", Language.ANY);
+  private static final IElementType SEMICOLON = new IElementType("SEMICOLON", Language.ANY);
+  private static final IElementType OPERATOR = new IElementType("OPERATOR", Language.ANY);
+
+  private static final IElementType BLOCK = new IElementType("BLOCK", Language.ANY);
+  private static final IElementType STATEMENT = new IElementType("STATEMENT", Language.ANY);
+  private static final IElementType CALL = new IElementType("CALL", Language.ANY);
+  private static final IElementType ARGUMENTS = new IElementType("ARGUMENTS", Language.ANY);
+  private static final IElementType REFERENCE = new IElementType("REFERENCE", Language.ANY);
+  private static final IElementType LITERAL = new IElementType("LITERAL", Language.ANY);
+
+  private static final LanguageVersion LANGUAGE_VERSION = new LanguageVersion("DEFAULT", "DEFAULT", Language.ANY);
+
+  /**
+   * A file to parse instead of the generated text.
+   */
+  @Param({""})
+  public String file;
+
+  @Param({"2000000"})
+  public int generatedLength;
+
+  private CharSequence myText;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myText = file.isEmpty() ? generateText(generatedLength) : new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+  }
+
+  private static CharSequence generateText(int length) {
+    Random random = new Random(42);
+    StringBuilder text = new StringBuilder(length + 100);
+    int depth = 0;
+    while (text.length() < length) {
+      switch (random.nextInt(8)) {
+        case 0:
+          text.append("// comment ").append(random.nextInt(1000)).append('\n');
+          break;
+        case 1:
+          if (depth < 10) {
+            text.append("if (a").append(random.nextInt(100)).append(") {\n");
+            depth++;
+          }
+          break;
+        case 2:
+          if (depth > 0) {
+            text.append("}\n");
+            depth--;
+          }
+          break;
+        case 3:
+          text.append("call").append(random.nextInt(100)).append("(x, ").append(random.nextInt(1000)).append(", y(z));\n");
+          break;
+        default:
+          text.append("value").append(random.nextInt(100)).append(" = value + ").append(random.nextInt(1000)).append(" * factor;\n");
+      }
+    }
+    while (depth-- > 0) text.append("}\n");
+    return text;
+  }
+
+  @Benchmark
+  public int parseLightTree() {
+    PsiBuilderImpl builder = new PsiBuilderImpl(null, null, new MyParserDefinition(), new MyLexer(), LANGUAGE_VERSION, null, myText, null, null);
+    PsiBuilder.Marker root = builder.mark();
+    while (!builder.eof()) {
+      parseStatement(builder);
+    }
+    root.done(ROOT);
+    FlyweightCapableTreeStructure<LighterASTNode> tree = builder.getLightTree();
+    return countNodes(tree, tree.getRoot());
+  }
+
+  private static int countNodes(FlyweightCapableTreeStructure<LighterASTNode> tree, LighterASTNode node) {
+    Ref<LighterASTNode[]> children = Ref.create();
+    int count = tree.getChildren(tree.prepareForGetChildren(node), children);
+    int result = 1;
+    LighterASTNode[] nodes = children.get();
+    for (int i = 0; i < count; i++) {
+      result += countNodes(tree, nodes[i]);
+    }
+    tree.disposeChildren(nodes, count);
+    return result;
+  }
+
+  private static void parseStatement(PsiBuilder builder) {
+    IElementType type = builder.getTokenType();
+    if (type == LBRACE) {
+      PsiBuilder.Marker block = builder.mark();
+      builder.advanceLexer();
+      while (!builder.eof() && builder.getTokenType() != RBRACE) {
+        parseStatement(builder);
+      }
+      if (!builder.eof()) builder.advanceLexer();
+      block.done(BLOCK);
+      return;
+    }
+    if (type == RBRACE) {
+      builder.error("unexpected brace");
+      builder.advanceLexer();
+      return;
+    }
+
+    PsiBuilder.Marker statement = builder.mark();
+    while (!builder.eof() && builder.getTokenType() != SEMICOLON && builder.getTokenType() != LBRACE && builder.getTokenType() != RBRACE) {
+      parseExpression(builder);
+    }
+    if (builder.getTokenType() == SEMICOLON) builder.advanceLexer();
+    statement.done(STATEMENT);
+  }
+
+  private static void parseExpression(PsiBuilder builder) {
+    IElementType type = builder.getTokenType();
+    if (type == IDENTIFIER) {
+      PsiBuilder.Marker call = builder.mark();
+      builder.advanceLexer();
+      if (builder.getTokenType() == LPARENTH) {
+        PsiBuilder.Marker arguments = builder.mark();
+        builder.advanceLexer();
+        while (!builder.eof() && builder.getTokenType() != RPARENTH && builder.getTokenType() != SEMICOLON) {
+          parseExpression(builder);
+        }
+        if (builder.getTokenType() == RPARENTH) {
+          builder.advanceLexer();
+          arguments.done(ARGUMENTS);
+          call.done(CALL);
+          return;
+        }
+        arguments.drop();
+      }
+      // not a call: backtrack and parse as a reference
+      call.rollbackTo();
+      PsiBuilder.Marker reference = builder.mark();
+      builder.advanceLexer();
+      reference.done(REFERENCE);
+    }
+    else if (type == NUMBER) {
+      PsiBuilder.Marker literal = builder.mark();
+      builder.advanceLexer();
+      literal.done(LITERAL);
+    }
+    else {
+      builder.advanceLexer();
+    }
+  }
+
+  private static class MyParserDefinition implements ParserDefinition {
+    @Nonnull
+    @Override
+    public Lexer createLexer(@Nonnull LanguageVersion languageVersion) {
+      return new MyLexer();
+    }
+
+    @Nonnull
+    @Override
+    public PsiParser createParser(@Nonnull LanguageVersion languageVersion) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Nonnull
+    @Override
+    public IFileElementType getFileNodeType() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Nonnull
+    @Override
+    public TokenSet getWhitespaceTokens(@Nonnull LanguageVersion languageVersion) {
+      return TokenSet.WHITE_SPACE;
+    }
+
+    @Nonnull
+    @Override
+    public TokenSet getCommentTokens(@Nonnull LanguageVersion languageVersion) {
+      return TokenSet.create(COMMENT);
+    }
+
+    @Nonnull
+    @Override
+    public TokenSet getStringLiteralElements(@Nonnull LanguageVersion languageVersion) {
+      return TokenSet.EMPTY;
+    }
+
+    @Override
+    public PsiFile createFile(@Nonnull FileViewProvider viewProvider) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class MyLexer extends LexerBase {
+    private CharSequence myBuffer;
+    private int myEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private IElementType myTokenType;
+
+    @Override
+    public void start(@Nonnull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myEnd = endOffset;
+      myTokenEnd = startOffset;
+      advance();
+    }
+
+    @Override
+    public int getState() {
+      return 0;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      myTokenStart = myTokenEnd;
+      if (myTokenStart >= myEnd) {
+        myTokenType = null;
+        return;
+      }
+      char c = myBuffer.charAt(myTokenStart);
+      int end = myTokenStart + 1;
+      if (Character.isWhitespace(c)) {
+        while (end < myEnd && Character.isWhitespace(myBuffer.charAt(end))) end++;
+        myTokenType = TokenType.WHITE_SPACE;
+      }
+      else if (Character.isJavaIdentifierStart(c)) {
+        while (end < myEnd && Character.isJavaIdentifierPart(myBuffer.charAt(end))) end++;
+        myTokenType = IDENTIFIER;
+      }
+      else if (Character.isDigit(c)) {
+        while (end < myEnd && Character.isDigit(myBuffer.charAt(end))) end++;
+        myTokenType = NUMBER;
+      }
+      else if (c == '/' && end < myEnd && myBuffer.charAt(end) == '/') {
+        while (end < myEnd && myBuffer.charAt(end) != '\n') end++;
+        myTokenType = COMMENT;
+      }
+      else {
+        myTokenType = c == '{' ? LBRACE : c == '}' ? RBRACE : c == '(' ? LPARENTH : c == ')' ? RPARENTH : c == ';' ? SEMICOLON : OPERATOR;
+      }
+      myTokenEnd = end;
+    }
+
+    @Nonnull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEnd;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.benchmark.storage;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.CompressedAppendableFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends to {@link CompressedAppendableFile} and random reads of the records appended once per trial, {@code recordCount} records of
+ * the given size distribution prefixed with their length. The records are made of a small alphabet, so that they compress about as
+ * well as index data does, random bytes wouldn't compress at all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CompressedAppendableFileBenchmark {
+  @Param({"100000", "1000000"})
+  public int recordCount;
+
+  @Param({"SMALL", "MIXED"})
+  public ValueSizeDistribution valueSize;
+
+  private File myDir;
+  private CompressedAppendableFile myFile;
+  private long[] myAddresses;
+  // records are shared by the threads, the benchmark measures the file and not the generation of the records
+  private byte[][] myRecords;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("compressed", "benchmark");
+    myFile = new CompressedAppendableFile(new File(myDir, "file"));
+
+    Random random = new Random(42);
+    myRecords = new byte[1024][];
+    for (int i = 0; i < myRecords.length; i++) {
+      byte[] value = new byte[valueSize.nextSize(random)];
+      for (int j = 0; j < value.length; j++) {
+        value[j] = (byte)('a' + random.nextInt(16));
+      }
+      myRecords[i] = ByteBuffer.allocate(4 + value.length).putInt(value.length).put(value).array();
+    }
+
+    myAddresses = new long[recordCount];
+    long address = 0;
+    for (int i = 0; i < recordCount; i++) {
+      byte[] record = myRecords[i % myRecords.length];
+      myAddresses[i] = address;
+      myFile.append(record, record.length);
+      address += record.length;
+    }
+    myFile.force();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    myFile.dispose();
+    FileUtil.delete(myDir);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void append() throws IOException {
+    doAppend();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void appendConcurrently() throws IOException {
+    doAppend();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void appendConcurrently16() throws IOException {
+    doAppend();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] read() throws IOException {
+    return doRead();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] readConcurrently() throws IOException {
+    return doRead();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public byte[] readConcurrently16() throws IOException {
+    return doRead();
+  }
+
+  private void doAppend() throws IOException {
+    byte[] record = myRecords[ThreadLocalRandom.current().nextInt(myRecords.length)];
+    myFile.append(record, record.length);
+  }
+
+  private byte[] doRead() throws IOException {
+    long address = myAddresses[ThreadLocalRandom.current().nextInt(recordCount)];
+    try (DataInputStream stream = myFile.getStream(address)) {
+      byte[] value = new byte[stream.readInt()];
+      stream.readFully(value);
+      return value;
+    }
+  }
+}
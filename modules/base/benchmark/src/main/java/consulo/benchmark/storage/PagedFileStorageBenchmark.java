@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.benchmark.storage;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.PagedFileStorage;
+import com.intellij.util.io.ResizeableMappedFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random int and bulk accesses of {@link PagedFileStorage} and appends to {@link ResizeableMappedFile}, all of them under
+ * the storage lock as the persistent maps do. The file holds {@code keyCount} records of 8 bytes, so that larger counts don't fit
+ * the page cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PagedFileStorageBenchmark {
+  private static final int RECORD_SIZE = 8;
+  private static final int BULK_SIZE = 4096;
+
+  @Param({"1000000", "10000000", "50000000"})
+  public int keyCount;
+
+  private File myDir;
+  private PagedFileStorage.StorageLockContext myLockContext;
+  private PagedFileStorage myStorage;
+  private ResizeableMappedFile myAppendFile;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("paged", "benchmark");
+    myLockContext = new PagedFileStorage.StorageLockContext(true);
+
+    myStorage = new PagedFileStorage(new File(myDir, "storage"), myLockContext, PagedFileStorage.MB, true, true);
+    myAppendFile = new ResizeableMappedFile(new File(myDir, "append"), PagedFileStorage.MB, myLockContext, PagedFileStorage.MB, true);
+    myLockContext.lock();
+    try {
+      myStorage.resize((long)keyCount * RECORD_SIZE);
+      for (int i = 0; i < keyCount; i++) {
+        myStorage.putInt((long)i * RECORD_SIZE, i);
+      }
+      myStorage.force();
+    }
+    finally {
+      myLockContext.unlock();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    myLockContext.lock();
+    try {
+      myStorage.close();
+      myAppendFile.close();
+    }
+    finally {
+      myLockContext.unlock();
+    }
+    FileUtil.delete(myDir);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int getInt() {
+    return doGetInt();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int getIntConcurrently() {
+    return doGetInt();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public int getIntConcurrently16() {
+    return doGetInt();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void putInt() {
+    long address = (long)ThreadLocalRandom.current().nextInt(keyCount) * RECORD_SIZE + 4;
+    myLockContext.lock();
+    try {
+      myStorage.putInt(address, (int)address);
+    }
+    finally {
+      myLockContext.unlock();
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] bulkGet() {
+    return doBulkGet();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] bulkGetConcurrently() {
+    return doBulkGet();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public byte[] bulkGetConcurrently16() {
+    return doBulkGet();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void append() {
+    myLockContext.lock();
+    try {
+      myAppendFile.putLong(myAppendFile.length(), System.nanoTime());
+    }
+    finally {
+      myLockContext.unlock();
+    }
+  }
+
+  private int doGetInt() {
+    long address = (long)ThreadLocalRandom.current().nextInt(keyCount) * RECORD_SIZE;
+    myLockContext.lock();
+    try {
+      return myStorage.getInt(address);
+    }
+    finally {
+      myLockContext.unlock();
+    }
+  }
+
+  private byte[] doBulkGet() {
+    byte[] buffer = new byte[BULK_SIZE];
+    long address = (long)ThreadLocalRandom.current().nextInt(keyCount - BULK_SIZE / RECORD_SIZE) * RECORD_SIZE;
+    myLockContext.lock();
+    try {
+      myStorage.get(address, buffer, 0, BULK_SIZE);
+    }
+    finally {
+      myLockContext.unlock();
+    }
+    return buffer;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.benchmark.storage;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.PersistentBTreeEnumerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Name enumeration with {@link PersistentBTreeEnumerator}: lookups of known names, which is the most frequent operation during
+ * indexing, and enumeration of new ones. The enumerator is filled with {@code keyCount} names once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PersistentBTreeEnumeratorBenchmark {
+  @Param({"1000000", "10000000", "50000000"})
+  public int keyCount;
+
+  private File myDir;
+  private PersistentBTreeEnumerator<String> myEnumerator;
+  private final AtomicInteger myNextNewKey = new AtomicInteger();
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("enumerator", "benchmark");
+    myEnumerator = new PersistentBTreeEnumerator<>(new File(myDir, "names"), EnumeratorStringDescriptor.INSTANCE, 4096);
+    for (int i = 0; i < keyCount; i++) {
+      myEnumerator.enumerate(name(i));
+    }
+    myEnumerator.force();
+    myNextNewKey.set(keyCount);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    myEnumerator.close();
+    FileUtil.delete(myDir);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int enumerateExisting() throws IOException {
+    return myEnumerator.enumerate(randomName());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int enumerateExistingConcurrently() throws IOException {
+    return myEnumerator.enumerate(randomName());
+  }
+
+  @Benchmark
+  @Threads(16)
+  public int enumerateExistingConcurrently16() throws IOException {
+    return myEnumerator.enumerate(randomName());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int tryEnumerate() throws IOException {
+    return myEnumerator.tryEnumerate(randomName());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int tryEnumerateConcurrently() throws IOException {
+    return myEnumerator.tryEnumerate(randomName());
+  }
+
+  @Benchmark
+  @Threads(16)
+  public int tryEnumerateConcurrently16() throws IOException {
+    return myEnumerator.tryEnumerate(randomName());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int enumerateNew() throws IOException {
+    return myEnumerator.enumerate(name(myNextNewKey.getAndIncrement()));
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String valueOf() throws IOException {
+    return myEnumerator.valueOf(1 + ThreadLocalRandom.current().nextInt(myEnumerator.getLargestId()));
+  }
+
+  private String randomName() {
+    return name(ThreadLocalRandom.current().nextInt(keyCount));
+  }
+
+  // identifiers of a typical code base: a few common prefixes followed by a number
+  private static String name(int i) {
+    return (i % 3 == 0 ? "get" : i % 3 == 1 ? "myField" : "Class") + i;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.benchmark.storage;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point operations of {@link PersistentHashMap} with integer keys, which use the inline key mapping of the b-tree enumerator, as the
+ * file based indices do. The map is filled with {@code keyCount} values of the given size distribution once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PersistentHashMapBenchmark {
+  @Param({"1000000", "10000000", "50000000"})
+  public int keyCount;
+
+  @Param({"SMALL", "MIXED"})
+  public ValueSizeDistribution valueSize;
+
+  private File myDir;
+  private PersistentHashMap<Integer, byte[]> myMap;
+  // values are shared by the threads, the benchmark measures the map and not the generation of the values
+  private byte[][] myValues;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("persistent", "benchmark");
+    myMap = new PersistentHashMap<>(new File(myDir, "map"), EnumeratorIntegerDescriptor.INSTANCE, ByteArrayExternalizer.INSTANCE);
+
+    Random random = new Random(42);
+    myValues = new byte[1024][];
+    for (int i = 0; i < myValues.length; i++) {
+      myValues[i] = valueSize.nextValue(random);
+    }
+    for (int key = 1; key <= keyCount; key++) {
+      myMap.put(key, myValues[key % myValues.length]);
+    }
+    myMap.force();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    myMap.close();
+    FileUtil.delete(myDir);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] get() throws IOException {
+    return myMap.get(randomKey());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] getConcurrently() throws IOException {
+    return myMap.get(randomKey());
+  }
+
+  @Benchmark
+  @Threads(16)
+  public byte[] getConcurrently16() throws IOException {
+    return myMap.get(randomKey());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean containsMapping() throws IOException {
+    return myMap.containsMapping(randomKey());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void put() throws IOException {
+    int key = randomKey();
+    myMap.put(key, myValues[key % myValues.length]);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void putConcurrently() throws IOException {
+    int key = randomKey();
+    myMap.put(key, myValues[key % myValues.length]);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void putConcurrently16() throws IOException {
+    int key = randomKey();
+    myMap.put(key, myValues[key % myValues.length]);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void appendData() throws IOException {
+    int key = randomKey();
+    myMap.appendData(key, out -> out.writeInt(key));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void appendDataConcurrently() throws IOException {
+    int key = randomKey();
+    myMap.appendData(key, out -> out.writeInt(key));
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void appendDataConcurrently16() throws IOException {
+    int key = randomKey();
+    myMap.appendData(key, out -> out.writeInt(key));
+  }
+
+  private int randomKey() {
+    return 1 + ThreadLocalRandom.current().nextInt(keyCount);
+  }
+}
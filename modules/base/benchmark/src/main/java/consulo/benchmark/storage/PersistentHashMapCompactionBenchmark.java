@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.benchmark.storage;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to compact a {@link PersistentHashMap} with {@code keyCount} keys whose values were overwritten or appended to once,
+ * so that about a half of the values file is garbage. Every iteration compacts a freshly filled map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PersistentHashMapCompactionBenchmark {
+  @Param({"1000000", "10000000"})
+  public int keyCount;
+
+  @Param({"SMALL", "MIXED"})
+  public ValueSizeDistribution valueSize;
+
+  @Param({"1000"})
+  public int incrementalBatchSize;
+
+  private File myDir;
+  private PersistentHashMap<Integer, byte[]> myMap;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("compaction", "benchmark");
+    myMap = new PersistentHashMap<>(new File(myDir, "map"), EnumeratorIntegerDescriptor.INSTANCE, ByteArrayExternalizer.INSTANCE);
+
+    Random random = new Random(42);
+    for (int key = 1; key <= keyCount; key++) {
+      myMap.put(key, valueSize.nextValue(random));
+    }
+    for (int key = 1; key <= keyCount; key++) {
+      if (key % 2 == 0) {
+        myMap.put(key, valueSize.nextValue(random));
+      }
+      else {
+        int appended = key;
+        myMap.appendData(key, out -> out.writeInt(appended));
+      }
+    }
+    myMap.force();
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    myMap.close();
+    FileUtil.delete(myDir);
+  }
+
+  @Benchmark
+  public void compact() throws IOException {
+    myMap.compact();
+  }
+
+  @Benchmark
+  public void compactIncrementally() throws IOException {
+    //noinspection StatementWithEmptyBody
+    while (!myMap.compactIncrementally(incrementalBatchSize)) ;
+  }
+}
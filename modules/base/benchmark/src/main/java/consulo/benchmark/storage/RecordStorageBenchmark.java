@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.benchmark.storage;
+
+import com.intellij.openapi.util.io.ByteArraySequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.storage.RefCountingStorage;
+import com.intellij.util.io.storage.Storage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Variable size records: whole record reads and writes of the zipped {@link RefCountingStorage}, which keeps file contents,
+ * and appends to records of {@link Storage}, which keeps attributes. Record counts are smaller than the key counts of the other
+ * benchmarks since every record takes a records table entry and at least one value of the given size distribution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RecordStorageBenchmark {
+  @Param({"100000", "1000000"})
+  public int recordCount;
+
+  @Param({"SMALL", "MIXED", "LARGE"})
+  public ValueSizeDistribution valueSize;
+
+  private File myDir;
+  private RefCountingStorage myContents;
+  private Storage myAttributes;
+  private int[] myContentRecords;
+  private int[] myAttributeRecords;
+  private byte[][] myValues;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("records", "benchmark");
+    myContents = new RefCountingStorage(new File(myDir, "contents").getPath());
+    myAttributes = new Storage(new File(myDir, "attributes").getPath());
+
+    Random random = new Random(42);
+    myValues = new byte[256][];
+    for (int i = 0; i < myValues.length; i++) {
+      myValues[i] = valueSize.nextValue(random);
+    }
+
+    myContentRecords = new int[recordCount];
+    myAttributeRecords = new int[recordCount];
+    for (int i = 0; i < recordCount; i++) {
+      myContentRecords[i] = myContents.createNewRecord();
+      myContents.writeBytes(myContentRecords[i], new ByteArraySequence(myValues[i % myValues.length]), false);
+      myAttributeRecords[i] = myAttributes.createNewRecord();
+      myAttributes.writeBytes(myAttributeRecords[i], new ByteArraySequence(myValues[i % myValues.length]), false);
+    }
+    myContents.force();
+    myAttributes.force();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    myContents.dispose();
+    myAttributes.dispose();
+    FileUtil.delete(myDir);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int readContent() throws IOException {
+    return doReadContent();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int readContentConcurrently() throws IOException {
+    return doReadContent();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public int readContentConcurrently16() throws IOException {
+    return doReadContent();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void writeContent() throws IOException {
+    int i = ThreadLocalRandom.current().nextInt(recordCount);
+    myContents.writeBytes(myContentRecords[i], new ByteArraySequence(myValues[i % myValues.length]), false);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void appendAttribute() throws IOException {
+    doAppendAttribute();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void appendAttributeConcurrently() throws IOException {
+    doAppendAttribute();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void appendAttributeConcurrently16() throws IOException {
+    doAppendAttribute();
+  }
+
+  private int doReadContent() throws IOException {
+    int record = myContentRecords[ThreadLocalRandom.current().nextInt(recordCount)];
+    try (DataInputStream in = myContents.readStream(record)) {
+      byte[] buffer = new byte[4096];
+      int read = 0;
+      int count;
+      while ((count = in.read(buffer)) > 0) {
+        read += count;
+      }
+      return read;
+    }
+  }
+
+  private void doAppendAttribute() throws IOException {
+    int i = ThreadLocalRandom.current().nextInt(recordCount);
+    try (DataOutputStream out = myAttributes.appendStream(myAttributeRecords[i])) {
+      out.writeInt(i);
+    }
+  }
+}
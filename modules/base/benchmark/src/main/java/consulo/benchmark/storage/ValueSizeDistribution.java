@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.benchmark.storage;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+/**
+ * Sizes of the values written by the benchmarks, in bytes.
+ */
+public enum ValueSizeDistribution {
+  /**
+   * Ids and short id lists, as forward index and stub index values.
+   */
+  SMALL {
+    @Override
+    public int nextSize(@Nonnull Random random) {
+      return 4 + random.nextInt(60);
+    }
+  },
+  /**
+   * Mostly small values with a long tail, as inverted index value containers: 90% up to 64 bytes, 9% up to 4K, 1% up to 64K.
+   */
+  MIXED {
+    @Override
+    public int nextSize(@Nonnull Random random) {
+      int p = random.nextInt(100);
+      if (p < 90) return SMALL.nextSize(random);
+      if (p < 99) return 64 + random.nextInt(4096 - 64);
+      return 4096 + random.nextInt(65536 - 4096);
+    }
+  },
+  /**
+   * File contents.
+   */
+  LARGE {
+    @Override
+    public int nextSize(@Nonnull Random random) {
+      return 4096 + random.nextInt(65536 - 4096);
+    }
+  };
+
+  public abstract int nextSize(@Nonnull Random random);
+
+  @Nonnull
+  public byte[] nextValue(@Nonnull Random random) {
+    byte[] value = new byte[nextSize(random)];
+    random.nextBytes(value);
+    return value;
+  }
+}
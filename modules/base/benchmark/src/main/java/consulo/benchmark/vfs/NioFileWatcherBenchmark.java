@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package consulo.benchmark.vfs;
+
+import com.intellij.notification.NotificationListener;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.impl.local.NioFileWatcherImpl;
+import com.intellij.openapi.vfs.local.FileWatcherNotificationSink;
+import org.openjdk.jmh.annotations.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link NioFileWatcherImpl}, from a file write to the notification of the sink, and the time of watching
+ * a tree of {@code fileCount} files from scratch. Add {@code -prof perfnorm} on Linux to see the CPU time per operation,
+ * including the watcher thread. A trial fails if the watcher reports a failure or roots it can't watch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NioFileWatcherBenchmark {
+  private static final int FILES_PER_DIRECTORY = 100;
+  private static final int DIRECTORIES_PER_DIRECTORY = 20;
+
+  @Param({"50000", "500000"})
+  public int fileCount;
+
+  private File myRoot;
+  private File[] myFiles;
+  private NioFileWatcherImpl myWatcher;
+  private volatile String myLastPath;
+  private volatile String myFailure;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myRoot = FileUtil.createTempDirectory("watcher", "benchmark");
+    myFiles = new File[fileCount];
+    for (int i = 0; i < fileCount; i++) {
+      File dir = directoryOf(i / FILES_PER_DIRECTORY);
+      if (i % FILES_PER_DIRECTORY == 0 && !dir.mkdirs() && !dir.isDirectory()) {
+        throw new IOException("Cannot create " + dir);
+      }
+      myFiles[i] = new File(dir, "file" + i + ".txt");
+      Files.write(myFiles[i].toPath(), Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    myWatcher = new NioFileWatcherImpl();
+    myWatcher.initialize(new RecordingSink());
+    myWatcher.startup();
+    myWatcher.setWatchRoots(Collections.singletonList(myRoot.getPath()), Collections.emptyList());
+    checkNoFailure();
+  }
+
+  private File directoryOf(int index) {
+    StringBuilder path = new StringBuilder();
+    for (int i = index; ; i /= DIRECTORIES_PER_DIRECTORY) {
+      path.insert(0, File.separatorChar + "d" + i % DIRECTORIES_PER_DIRECTORY);
+      if (i < DIRECTORIES_PER_DIRECTORY) break;
+    }
+    return new File(myRoot, path.toString());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    myWatcher.shutdown();
+    FileUtil.delete(myRoot);
+  }
+
+  private void checkNoFailure() {
+    String failure = myFailure;
+    if (failure != null) throw new IllegalStateException(failure);
+  }
+
+  @Benchmark
+  public String changeLatency() throws IOException {
+    File file = myFiles[ThreadLocalRandom.current().nextInt(fileCount)];
+    String path = file.getPath();
+    myLastPath = null;
+    Files.write(file.toPath(), path.getBytes(StandardCharsets.UTF_8));
+    while (!path.equals(myLastPath)) {
+      // otherwise an unwatched file would never be reported
+      checkNoFailure();
+      Thread.yield();
+    }
+    return path;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void watchTree() {
+    List<String> root = Collections.singletonList(myRoot.getPath());
+    myWatcher.setWatchRoots(Collections.emptyList(), Collections.emptyList());
+    myWatcher.setWatchRoots(root, Collections.emptyList());
+    checkNoFailure();
+  }
+
+  private class RecordingSink implements FileWatcherNotificationSink {
+    @Override
+    public void notifyManualWatchRoots(@Nonnull Collection<String> roots) {
+      if (!roots.isEmpty()) myFailure = "Not watched: " + roots;
+    }
+
+    @Override
+    public void notifyMapping(@Nonnull Collection<? extends Pair<String, String>> mapping) {
+    }
+
+    @Override
+    public void notifyDirtyPath(@Nonnull String path) {
+      myLastPath = path;
+    }
+
+    @Override
+    public void notifyPathCreatedOrDeleted(@Nonnull String path) {
+      myLastPath = path;
+    }
+
+    @Override
+    public void notifyDirtyDirectory(@Nonnull String path) {
+    }
+
+    @Override
+    public void notifyDirtyPathRecursive(@Nonnull String path) {
+    }
+
+    @Override
+    public void notifyReset(@Nullable String path) {
+    }
+
+    @Override
+    public void notifyUserOnFailure(@Nonnull String cause, @Nullable NotificationListener listener) {
+      myFailure = cause;
+    }
+  }
+}
@@ -37,7 +37,9 @@ import com.intellij.psi.tree.*;
 import com.intellij.util.*;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.Convertor;
+import com.intellij.util.containers.IntArrayList;
 import com.intellij.util.containers.LimitedPool;
+import com.intellij.util.containers.Queue;
 import com.intellij.util.containers.Stack;
 import com.intellij.util.diff.DiffTreeChangeBuilder;
 import com.intellij.util.diff.FlyweightCapableTreeStructure;
@@ -78,7 +80,9 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
   private IElementType[] myLexTypes;
   private int myCurrentLexeme;
 
-  private final MyList myProduction = new MyList();
+  // markers in the order of production: a start marker or an error item is stored as its id, a done marker as the negated id of its start
+  private final IntArrayList myProduction = new IntArrayList(256);
+  private final MarkerPool myPool = new MarkerPool(this);
 
   private final Lexer myLexer;
   private final TokenSet myWhitespaces;
@@ -102,32 +106,6 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
 
   private final TIntObjectHashMap<LazyParseableToken> myChameleonCache = new TIntObjectHashMap<>();
 
-  private final LimitedPool<StartMarker> START_MARKERS = new LimitedPool<>(2000, new LimitedPool.ObjectFactory<StartMarker>() {
-    @Nonnull
-    @Override
-    public StartMarker create() {
-      return new StartMarker();
-    }
-
-    @Override
-    public void cleanup(@Nonnull final StartMarker startMarker) {
-      startMarker.clean();
-    }
-  });
-
-  private final LimitedPool<DoneMarker> DONE_MARKERS = new LimitedPool<>(2000, new LimitedPool.ObjectFactory<DoneMarker>() {
-    @Nonnull
-    @Override
-    public DoneMarker create() {
-      return new DoneMarker();
-    }
-
-    @Override
-    public void cleanup(@Nonnull final DoneMarker doneMarker) {
-      doneMarker.clean();
-    }
-  });
-
   public static void registerWhitespaceToken(@Nonnull IElementType type) {
     ourAnyLanguageWhitespaceTokens = TokenSet.orSet(ourAnyLanguageWhitespaceTokens, TokenSet.create(type));
   }
@@ -318,23 +296,49 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
   public LighterASTNode getLatestDoneMarker() {
     int index = myProduction.size() - 1;
     while (index >= 0) {
-      ProductionMarker marker = myProduction.get(index);
-      if (marker instanceof DoneMarker) return ((DoneMarker)marker).myStart;
+      int id = myProduction.get(index);
+      if (id < 0) return myPool.get(-id);
       --index;
     }
     return null;
   }
 
+  private int getLexemeIndexAt(int productionIndex) {
+    int id = myProduction.get(productionIndex);
+    return id > 0 ? myPool.get(id).myLexemeIndex : ((StartMarker)myPool.get(-id)).myDoneLexemeIndex;
+  }
+
+  private void setLexemeIndexAt(int productionIndex, int lexemeIndex) {
+    int id = myProduction.get(productionIndex);
+    if (id > 0) {
+      myPool.get(id).myLexemeIndex = lexemeIndex;
+    }
+    else {
+      ((StartMarker)myPool.get(-id)).myDoneLexemeIndex = lexemeIndex;
+    }
+  }
+
+  @Nonnull
+  private WhitespacesAndCommentsBinder getEdgeTokenBinderAt(int productionIndex) {
+    int id = myProduction.get(productionIndex);
+    return id > 0 ? myPool.get(id).myEdgeTokenBinder : ((StartMarker)myPool.get(-id)).myDoneEdgeTokenBinder;
+  }
+
   private abstract static class Node implements LighterASTNode {
     public abstract int hc();
   }
 
   public abstract static class ProductionMarker extends Node {
+    protected final int myId;
     protected int myLexemeIndex;
     protected WhitespacesAndCommentsBinder myEdgeTokenBinder;
     protected ProductionMarker myParent;
     protected ProductionMarker myNext;
 
+    ProductionMarker(int id) {
+      myId = id;
+    }
+
     public void clean() {
       myLexemeIndex = 0;
       myParent = myNext = null;
@@ -356,13 +360,21 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
   private static class StartMarker extends ProductionMarker implements Marker {
     private PsiBuilderImpl myBuilder;
     private IElementType myType;
-    private DoneMarker myDoneMarker;
+    // the done part of the marker, kept here instead of a separate production object
+    private int myDoneLexemeIndex = -1;
+    private WhitespacesAndCommentsBinder myDoneEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+    private boolean myCollapse;
+    private boolean myDoneWithError;
+    private String myErrorMessage;
     private Throwable myDebugAllocationPosition;
     private ProductionMarker myFirstChild;
     private ProductionMarker myLastChild;
     private int myHC = -1;
+    // see MarkerPool#isAlive
+    private int myGeneration;
 
-    private StartMarker() {
+    private StartMarker(int id) {
+      super(id);
       myEdgeTokenBinder = WhitespacesBinders.DEFAULT_LEFT_BINDER;
     }
 
@@ -371,13 +383,21 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
       super.clean();
       myBuilder = null;
       myType = null;
-      myDoneMarker = null;
+      myDoneLexemeIndex = -1;
+      myDoneEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+      myCollapse = false;
+      myDoneWithError = false;
+      myErrorMessage = null;
       myDebugAllocationPosition = null;
       myFirstChild = myLastChild = null;
       myHC = -1;
       myEdgeTokenBinder = WhitespacesBinders.DEFAULT_LEFT_BINDER;
     }
 
+    private boolean isDone() {
+      return myDoneLexemeIndex >= 0;
+    }
+
     @Override
     public int hc() {
       if (myHC == -1) {
@@ -396,12 +416,12 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
           lexIdx = lastLeaf;
           hc += child.hc();
           if (child instanceof StartMarker) {
-            lexIdx = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+            lexIdx = ((StartMarker)child).myDoneLexemeIndex;
           }
           child = child.myNext;
         }
 
-        for (int i = builder.myLexStarts[lexIdx]; i < builder.myLexStarts[myDoneMarker.myLexemeIndex]; i++) {
+        for (int i = builder.myLexStarts[lexIdx]; i < builder.myLexStarts[myDoneLexemeIndex]; i++) {
           hc += bufArray != null ? bufArray[i] : buf.charAt(i);
         }
 
@@ -418,12 +438,12 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
 
     @Override
     public int getEndOffset() {
-      return myBuilder.myLexStarts[myDoneMarker.myLexemeIndex] + myBuilder.myOffset;
+      return myBuilder.myLexStarts[myDoneLexemeIndex] + myBuilder.myOffset;
     }
 
     @Override
     public int getEndIndex() {
-      return myDoneMarker.myLexemeIndex;
+      return myDoneLexemeIndex;
     }
 
     public void addChild(@Nonnull ProductionMarker node) {
@@ -474,7 +494,9 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     @Override
     public void doneBefore(@Nonnull final IElementType type, @Nonnull final Marker before, final String errorMessage) {
       StartMarker marker = (StartMarker)before;
-      myBuilder.myProduction.add(myBuilder.myProduction.lastIndexOf(marker), new ErrorItem(myBuilder, errorMessage, marker.myLexemeIndex));
+      if (myBuilder.myPool.isAlive(marker)) {
+        myBuilder.myProduction.add(myBuilder.myProduction.lastIndexOf(marker.myId), myBuilder.createErrorItem(errorMessage, marker.myLexemeIndex).myId);
+      }
       doneBefore(type, before);
     }
 
@@ -508,15 +530,15 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
       }
 
       if (right != null) {
-        if (myDoneMarker == null) throw new IllegalArgumentException("Cannot set right-edge processor for unclosed marker");
-        myDoneMarker.myEdgeTokenBinder = right;
+        if (!isDone()) throw new IllegalArgumentException("Cannot set right-edge processor for unclosed marker");
+        myDoneEdgeTokenBinder = right;
       }
     }
 
     @Override
     public String toString() {
       if (myBuilder == null) return "<dropped>";
-      boolean isDone = myDoneMarker != null;
+      boolean isDone = isDone();
       CharSequence originalText = myBuilder.getOriginalText();
       int startOffset = getStartOffset() - myBuilder.myOffset;
       int endOffset = isDone ? getEndOffset() - myBuilder.myOffset : myBuilder.getCurrentOffset();
@@ -527,12 +549,13 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
 
   @Nonnull
   private Marker precede(final StartMarker marker) {
-    int idx = myProduction.lastIndexOf(marker);
+    // a dropped or rolled back marker isn't in the production
+    int idx = myPool.isAlive(marker) ? myProduction.lastIndexOf(marker.myId) : -1;
     if (idx < 0) {
       LOG.error("Cannot precede dropped or rolled-back marker");
     }
     StartMarker pre = createMarker(marker.myLexemeIndex);
-    myProduction.add(idx, pre);
+    myProduction.add(idx, pre.myId);
     return pre;
   }
 
@@ -662,72 +685,13 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     }
   }
 
-  private static class DoneMarker extends ProductionMarker {
-    private StartMarker myStart;
-    private boolean myCollapse;
-
-    DoneMarker() {
-      myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
-    }
-
-    DoneMarker(final StartMarker marker, final int currentLexeme) {
-      this();
-      myLexemeIndex = currentLexeme;
-      myStart = marker;
-    }
-
-    @Override
-    public void clean() {
-      super.clean();
-      myStart = null;
-      myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
-    }
-
-    @Override
-    public int hc() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @Nonnull
-    @Override
-    public IElementType getTokenType() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @Override
-    public int getEndOffset() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @Override
-    public int getStartOffset() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-  }
-
-  private static class DoneWithErrorMarker extends DoneMarker {
-    private String myMessage;
-
-    private DoneWithErrorMarker(@Nonnull StartMarker marker, final int currentLexeme, final String message) {
-      super(marker, currentLexeme);
-      myMessage = message;
-    }
-
-    @Override
-    public void clean() {
-      super.clean();
-      myMessage = null;
-    }
-  }
-
   private static class ErrorItem extends ProductionMarker {
     private final PsiBuilderImpl myBuilder;
     private String myMessage;
 
-    ErrorItem(final PsiBuilderImpl builder, final String message, final int idx) {
+    ErrorItem(int id, final PsiBuilderImpl builder) {
+      super(id);
       myBuilder = builder;
-      myMessage = message;
-      myLexemeIndex = idx;
       myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
     }
 
@@ -926,13 +890,13 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     }
     StartMarker marker = createMarker(myCurrentLexeme);
 
-    myProduction.add(marker);
+    myProduction.add(marker.myId);
     return marker;
   }
 
   @Nonnull
   private StartMarker createMarker(final int lexemeIndex) {
-    StartMarker marker = START_MARKERS.alloc();
+    StartMarker marker = myPool.allocateStartMarker();
     marker.myLexemeIndex = lexemeIndex;
     marker.myBuilder = this;
 
@@ -942,6 +906,14 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     return marker;
   }
 
+  @Nonnull
+  private ErrorItem createErrorItem(String message, int lexemeIndex) {
+    ErrorItem item = myPool.allocateErrorItem();
+    item.myMessage = message;
+    item.myLexemeIndex = lexemeIndex;
+    return item;
+  }
+
   @Override
   public final boolean eof() {
     if (!myTokenTypeChecked) {
@@ -952,14 +924,23 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
   }
 
   private void rollbackTo(@Nonnull Marker marker) {
+    if (!myPool.isAlive((StartMarker)marker)) {
+      LOG.error("The marker must be added before rolled back to.");
+      return;
+    }
     myCurrentLexeme = ((StartMarker)marker).myLexemeIndex;
     myTokenTypeChecked = true;
-    int idx = myProduction.lastIndexOf(marker);
+    int idx = myProduction.lastIndexOf(((StartMarker)marker).myId);
     if (idx < 0) {
       LOG.error("The marker must be added before rolled back to.");
     }
+    for (int i = idx; i < myProduction.size(); i++) {
+      int id = myProduction.get(i);
+      if (id > 0) {
+        myPool.release(myPool.get(id));
+      }
+    }
     myProduction.removeRange(idx, myProduction.size());
-    START_MARKERS.recycle((StartMarker)marker);
     clearCachedTokenType();
   }
 
@@ -968,13 +949,13 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
    */
   public boolean hasErrorsAfter(@Nonnull Marker marker) {
     assert marker instanceof StartMarker;
-    int idx = myProduction.lastIndexOf(marker);
+    int idx = myProduction.lastIndexOf(((StartMarker)marker).myId);
     if (idx < 0) {
       LOG.error("The marker must be added before checked for errors.");
     }
     for (int i = idx + 1; i < myProduction.size(); ++i) {
-      ProductionMarker m = myProduction.get(i);
-      if (m instanceof ErrorItem || m instanceof DoneWithErrorMarker) {
+      int id = myProduction.get(i);
+      if (id > 0 ? myPool.get(id) instanceof ErrorItem : ((StartMarker)myPool.get(-id)).myDoneWithError) {
         return true;
       }
     }
@@ -982,68 +963,73 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
   }
 
   public void drop(@Nonnull Marker marker) {
-    final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
-    if (doneMarker != null) {
-      myProduction.remove(myProduction.lastIndexOf(doneMarker));
-      DONE_MARKERS.recycle(doneMarker);
+    final StartMarker startMarker = (StartMarker)marker;
+    if (!myPool.isAlive(startMarker)) {
+      // dropped or rolled back already
+      LOG.error("The marker must be added before it is dropped.");
+      return;
     }
-    final boolean removed = myProduction.remove(myProduction.lastIndexOf(marker)) == marker;
+    if (startMarker.isDone()) {
+      myProduction.remove(myProduction.lastIndexOf(-startMarker.myId));
+    }
+    int idx = myProduction.lastIndexOf(startMarker.myId);
+    final boolean removed = idx >= 0 && myProduction.remove(idx) == startMarker.myId;
     if (!removed) {
       LOG.error("The marker must be added before it is dropped.");
     }
-    START_MARKERS.recycle((StartMarker)marker);
+    myPool.release(startMarker);
   }
 
   public void error(@Nonnull Marker marker, String message) {
-    doValidityChecks(marker, null);
+    if (!doValidityChecks(marker, null)) return;
 
-    DoneWithErrorMarker doneMarker = new DoneWithErrorMarker((StartMarker)marker, myCurrentLexeme, message);
-    boolean tieToTheLeft = isEmpty(((StartMarker)marker).myLexemeIndex, myCurrentLexeme);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+    StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexemeIndex = myCurrentLexeme;
+    startMarker.myDoneWithError = true;
+    startMarker.myErrorMessage = message;
+    boolean tieToTheLeft = isEmpty(startMarker.myLexemeIndex, myCurrentLexeme);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(doneMarker);
+    myProduction.add(-startMarker.myId);
   }
 
   private void errorBefore(@Nonnull Marker marker, String message, @Nonnull Marker before) {
-    doValidityChecks(marker, before);
+    if (!doValidityChecks(marker, before)) return;
 
-    @SuppressWarnings("SuspiciousMethodCalls") int beforeIndex = myProduction.lastIndexOf(before);
+    int beforeIndex = myProduction.lastIndexOf(((StartMarker)before).myId);
 
-    DoneWithErrorMarker doneMarker = new DoneWithErrorMarker((StartMarker)marker, ((StartMarker)before).myLexemeIndex, message);
-    boolean tieToTheLeft = isEmpty(((StartMarker)marker).myLexemeIndex, ((StartMarker)before).myLexemeIndex);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+    StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexemeIndex = ((StartMarker)before).myLexemeIndex;
+    startMarker.myDoneWithError = true;
+    startMarker.myErrorMessage = message;
+    boolean tieToTheLeft = isEmpty(startMarker.myLexemeIndex, ((StartMarker)before).myLexemeIndex);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(beforeIndex, doneMarker);
+    myProduction.add(beforeIndex, -startMarker.myId);
   }
 
   public void done(@Nonnull Marker marker) {
-    doValidityChecks(marker, null);
+    if (!doValidityChecks(marker, null)) return;
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
-    doneMarker.myStart = (StartMarker)marker;
-    doneMarker.myLexemeIndex = myCurrentLexeme;
-    boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() && isEmpty(((StartMarker)marker).myLexemeIndex, myCurrentLexeme);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+    StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexemeIndex = myCurrentLexeme;
+    boolean tieToTheLeft = startMarker.myType.isLeftBound() && isEmpty(startMarker.myLexemeIndex, myCurrentLexeme);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(doneMarker);
+    myProduction.add(-startMarker.myId);
   }
 
   public void doneBefore(@Nonnull Marker marker, @Nonnull Marker before) {
-    doValidityChecks(marker, before);
+    if (!doValidityChecks(marker, before)) return;
 
-    @SuppressWarnings("SuspiciousMethodCalls") int beforeIndex = myProduction.lastIndexOf(before);
+    int beforeIndex = myProduction.lastIndexOf(((StartMarker)before).myId);
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
-    doneMarker.myLexemeIndex = ((StartMarker)before).myLexemeIndex;
-    doneMarker.myStart = (StartMarker)marker;
-    boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() && isEmpty(((StartMarker)marker).myLexemeIndex, ((StartMarker)before).myLexemeIndex);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+    StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexemeIndex = ((StartMarker)before).myLexemeIndex;
+    boolean tieToTheLeft = startMarker.myType.isLeftBound() && isEmpty(startMarker.myLexemeIndex, ((StartMarker)before).myLexemeIndex);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(beforeIndex, doneMarker);
+    myProduction.add(beforeIndex, -startMarker.myId);
   }
 
   private boolean isEmpty(final int startIdx, final int endIdx) {
@@ -1056,27 +1042,32 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
 
   public void collapse(@Nonnull Marker marker) {
     done(marker);
-    ((StartMarker)marker).myDoneMarker.myCollapse = true;
+    ((StartMarker)marker).myCollapse = true;
   }
 
   @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
-  private void doValidityChecks(@Nonnull Marker marker, @Nullable final Marker before) {
-    final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
-    if (doneMarker != null) {
+  /**
+   * @return false if the marker or the one it is done before has been dropped or rolled back
+   */
+  private boolean doValidityChecks(@Nonnull Marker marker, @Nullable final Marker before) {
+    if (!myPool.isAlive((StartMarker)marker) || before != null && !myPool.isAlive((StartMarker)before)) {
+      LOG.error("Marker was dropped or rolled back.");
+      return false;
+    }
+    if (((StartMarker)marker).isDone()) {
       LOG.error("Marker already done.");
     }
 
-    if (!myDebugMode) return;
+    if (!myDebugMode) return true;
 
-    int idx = myProduction.lastIndexOf(marker);
+    int idx = myProduction.lastIndexOf(((StartMarker)marker).myId);
     if (idx < 0) {
       LOG.error("Marker has never been added.");
     }
 
     int endIdx = myProduction.size();
     if (before != null) {
-      //noinspection SuspiciousMethodCalls
-      endIdx = myProduction.lastIndexOf(before);
+      endIdx = myProduction.lastIndexOf(((StartMarker)before).myId);
       if (endIdx < 0) {
         LOG.error("'Before' marker has never been added.");
       }
@@ -1086,10 +1077,10 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     }
 
     for (int i = endIdx - 1; i > idx; i--) {
-      Object item = myProduction.get(i);
-      if (item instanceof StartMarker) {
-        StartMarker otherMarker = (StartMarker)item;
-        if (otherMarker.myDoneMarker == null) {
+      int id = myProduction.get(i);
+      if (id > 0 && myPool.get(id) instanceof StartMarker) {
+        StartMarker otherMarker = (StartMarker)myPool.get(id);
+        if (!otherMarker.isDone()) {
           final Throwable debugAllocOther = otherMarker.myDebugAllocationPosition;
           final Throwable debugAllocThis = ((StartMarker)marker).myDebugAllocationPosition;
           if (debugAllocOther != null) {
@@ -1101,15 +1092,16 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
         }
       }
     }
+    return true;
   }
 
   @Override
   public void error(String messageText) {
-    final ProductionMarker lastMarker = myProduction.get(myProduction.size() - 1);
-    if (lastMarker instanceof ErrorItem && lastMarker.myLexemeIndex == myCurrentLexeme) {
+    final int lastId = myProduction.get(myProduction.size() - 1);
+    if (lastId > 0 && myPool.get(lastId) instanceof ErrorItem && myPool.get(lastId).myLexemeIndex == myCurrentLexeme) {
       return;
     }
-    myProduction.add(new ErrorItem(this, messageText, myCurrentLexeme));
+    myProduction.add(createErrorItem(messageText, myCurrentLexeme).myId);
   }
 
   @Override
@@ -1210,7 +1202,7 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
       LOG.error("Parser produced no markers. Text:\n" + myText);
     }
     // build tree only once to avoid threading issues in read-only PSI
-    StartMarker rootMarker = (StartMarker)myProduction.get(0);
+    StartMarker rootMarker = (StartMarker)myPool.get(myProduction.get(0));
     if (rootMarker.myFirstChild != null) return rootMarker;
 
     myTokenTypeChecked = true;
@@ -1225,10 +1217,18 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     int maxDepth = 0;
     int curDepth = 0;
     for (int i = 1; i < myProduction.size(); i++) {
-      final ProductionMarker item = myProduction.get(i);
+      final int id = myProduction.get(i);
 
       if (curNode == null) LOG.error("Unexpected end of the production");
 
+      if (id < 0) {
+        assertMarkersBalanced(myPool.get(-id) == curNode, getLexemeIndexAt(i));
+        curNode = nodes.pop();
+        curDepth--;
+        continue;
+      }
+
+      final ProductionMarker item = myPool.get(id);
       item.myParent = curNode;
       if (item instanceof StartMarker) {
         final StartMarker marker = (StartMarker)item;
@@ -1239,11 +1239,6 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
         curDepth++;
         if (curDepth > maxDepth) maxDepth = curDepth;
       }
-      else if (item instanceof DoneMarker) {
-        assertMarkersBalanced(((DoneMarker)item).myStart == curNode, item);
-        curNode = nodes.pop();
-        curDepth--;
-      }
       else if (item instanceof ErrorItem) {
         int curToken = item.myLexemeIndex;
         if (curToken == lastErrorIndex) continue;
@@ -1257,8 +1252,8 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
       LOG.error("Tokens " + missed + " were not inserted into the tree. " + (myFile != null ? myFile.getLanguage() + ", " : "") + "Text:\n" + myText);
     }
 
-    if (rootMarker.myDoneMarker.myLexemeIndex < myLexemeCount) {
-      final List<IElementType> missed = ContainerUtil.newArrayList(myLexTypes, rootMarker.myDoneMarker.myLexemeIndex, myLexemeCount);
+    if (rootMarker.myDoneLexemeIndex < myLexemeCount) {
+      final List<IElementType> missed = ContainerUtil.newArrayList(myLexTypes, rootMarker.myDoneLexemeIndex, myLexemeCount);
       LOG.error("Tokens " + missed + " are outside of root element \"" + rootMarker.myType + "\". Text:\n" + myText);
     }
 
@@ -1270,7 +1265,7 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     myLexStarts[myCurrentLexeme + 1] = 0;
     myLexTypes[myCurrentLexeme] = null;
 
-    assertMarkersBalanced(curNode == rootMarker, curNode);
+    assertMarkersBalanced(curNode == rootMarker, curNode != null ? curNode.myLexemeIndex : -1);
 
     checkTreeDepth(maxDepth, rootMarker.getTokenType() instanceof IFileElementType);
 
@@ -1278,10 +1273,10 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     return rootMarker;
   }
 
-  private void assertMarkersBalanced(boolean condition, @Nullable ProductionMarker marker) {
+  private void assertMarkersBalanced(boolean condition, int lexemeIndex) {
     if (condition) return;
 
-    int index = marker != null ? marker.getStartIndex() + 1 : myLexStarts.length;
+    int index = lexemeIndex >= 0 ? lexemeIndex + 1 : myLexStarts.length;
     CharSequence context = index < myLexStarts.length ? myText.subSequence(Math.max(0, myLexStarts[index] - 1000), myLexStarts[index]) : "<none>";
     String language = myFile != null ? myFile.getLanguage() + ", " : "";
     LOG.error(UNBALANCED_MESSAGE + "\n" + "language: " + language + "\n" + "context: '" + context + "'");
@@ -1293,28 +1288,31 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     int lastIndex = 0;
 
     for (int i = 1, size = myProduction.size() - 1; i < size; i++) {
-      ProductionMarker item = myProduction.get(i);
-      if (item instanceof StartMarker) {
-        assertMarkersBalanced(((StartMarker)item).myDoneMarker != null, item);
+      int id = myProduction.get(i);
+      if (id > 0 && myPool.get(id) instanceof StartMarker) {
+        StartMarker marker = (StartMarker)myPool.get(id);
+        assertMarkersBalanced(marker.isDone(), marker.myLexemeIndex);
       }
 
-      boolean recursive = item.myEdgeTokenBinder instanceof WhitespacesAndCommentsBinder.RecursiveBinder;
-      int prevProductionLexIndex = recursive ? 0 : myProduction.get(i - 1).myLexemeIndex;
-      int wsStartIndex = Math.max(item.myLexemeIndex, lastIndex);
+      int lexemeIndex = getLexemeIndexAt(i);
+      WhitespacesAndCommentsBinder edgeTokenBinder = getEdgeTokenBinderAt(i);
+      boolean recursive = edgeTokenBinder instanceof WhitespacesAndCommentsBinder.RecursiveBinder;
+      int prevProductionLexIndex = recursive ? 0 : getLexemeIndexAt(i - 1);
+      int wsStartIndex = Math.max(lexemeIndex, lastIndex);
       while (wsStartIndex > prevProductionLexIndex && whitespaceOrComment(myLexTypes[wsStartIndex - 1])) wsStartIndex--;
-      int wsEndIndex = item.myLexemeIndex;
+      int wsEndIndex = lexemeIndex;
       while (wsEndIndex < myLexemeCount && whitespaceOrComment(myLexTypes[wsEndIndex])) wsEndIndex++;
 
       if (wsStartIndex != wsEndIndex) {
         wsTokens.configure(wsStartIndex, wsEndIndex);
         tokenTextGetter.configure(wsStartIndex);
         boolean atEnd = wsStartIndex == 0 || wsEndIndex == myLexemeCount;
-        item.myLexemeIndex = wsStartIndex + item.myEdgeTokenBinder.getEdgePosition(wsTokens, atEnd, tokenTextGetter);
+        lexemeIndex = wsStartIndex + edgeTokenBinder.getEdgePosition(wsTokens, atEnd, tokenTextGetter);
+        setLexemeIndexAt(i, lexemeIndex);
         if (recursive) {
           for (int k = i - 1; k > 1; k--) {
-            ProductionMarker prev = myProduction.get(k);
-            if (prev.myLexemeIndex >= item.myLexemeIndex) {
-              prev.myLexemeIndex = item.myLexemeIndex;
+            if (getLexemeIndexAt(k) >= lexemeIndex) {
+              setLexemeIndexAt(k, lexemeIndex);
             }
             else {
               break;
@@ -1322,11 +1320,12 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
           }
         }
       }
-      else if (item.myLexemeIndex < wsStartIndex) {
-        item.myLexemeIndex = wsStartIndex;
+      else if (lexemeIndex < wsStartIndex) {
+        lexemeIndex = wsStartIndex;
+        setLexemeIndexAt(i, lexemeIndex);
       }
 
-      lastIndex = item.myLexemeIndex;
+      lastIndex = lexemeIndex;
     }
   }
 
@@ -1383,22 +1382,32 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     CompositeElement curNode = rootNode;
 
     int lexIndex = rootMarker.myLexemeIndex;
-    ProductionMarker item = rootMarker.myFirstChild != null ? rootMarker.myFirstChild : rootMarker.myDoneMarker;
+    ProductionMarker item = rootMarker.myFirstChild;
     while (true) {
-      lexIndex = insertLeaves(lexIndex, item.myLexemeIndex, curNode);
+      if (item == null) {
+        // the done part of the current marker
+        lexIndex = insertLeaves(lexIndex, curMarker.myDoneLexemeIndex, curNode);
+
+        if (curMarker == rootMarker) break;
 
-      if (item == rootMarker.myDoneMarker) break;
+        item = curMarker.myNext;
+        curMarker = (StartMarker)curMarker.myParent;
+        curNode = curNode.getTreeParent();
+        continue;
+      }
+
+      lexIndex = insertLeaves(lexIndex, item.myLexemeIndex, curNode);
 
       if (item instanceof StartMarker) {
         final StartMarker marker = (StartMarker)item;
-        if (!marker.myDoneMarker.myCollapse) {
+        if (!marker.myCollapse) {
           curMarker = marker;
 
           final CompositeElement childNode = createComposite(marker);
           curNode.rawAddChildrenWithoutNotifications(childNode);
           curNode = childNode;
 
-          item = marker.myFirstChild != null ? marker.myFirstChild : marker.myDoneMarker;
+          item = marker.myFirstChild;
           continue;
         }
         else {
@@ -1409,13 +1418,8 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
         final CompositeElement errorElement = Factory.createErrorElement(((ErrorItem)item).myMessage);
         curNode.rawAddChildrenWithoutNotifications(errorElement);
       }
-      else if (item instanceof DoneMarker) {
-        curMarker = (StartMarker)((DoneMarker)item).myStart.myParent;
-        curNode = curNode.getTreeParent();
-        item = ((DoneMarker)item).myStart;
-      }
 
-      item = item.myNext != null ? item.myNext : curMarker.myDoneMarker;
+      item = item.myNext;
     }
   }
 
@@ -1438,16 +1442,16 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
 
   private int collapseLeaves(@Nonnull CompositeElement ast, @Nonnull StartMarker startMarker) {
     final int start = myLexStarts[startMarker.myLexemeIndex];
-    final int end = myLexStarts[startMarker.myDoneMarker.myLexemeIndex];
+    final int end = myLexStarts[startMarker.myDoneLexemeIndex];
     final IElementType markerType = startMarker.myType;
     final TreeElement leaf = createLeaf(markerType, start, end);
     if (markerType instanceof ILazyParseableElementType &&
         ((ILazyParseableElementType)markerType).reuseCollapsedTokens() &&
-        startMarker.myLexemeIndex < startMarker.myDoneMarker.myLexemeIndex) {
-      final int length = startMarker.myDoneMarker.myLexemeIndex - startMarker.myLexemeIndex;
+        startMarker.myLexemeIndex < startMarker.myDoneLexemeIndex) {
+      final int length = startMarker.myDoneLexemeIndex - startMarker.myLexemeIndex;
       final int[] relativeStarts = new int[length + 1];
       final IElementType[] types = new IElementType[length];
-      for (int i = startMarker.myLexemeIndex; i < startMarker.myDoneMarker.myLexemeIndex; i++) {
+      for (int i = startMarker.myLexemeIndex; i < startMarker.myDoneLexemeIndex; i++) {
         relativeStarts[i - startMarker.myLexemeIndex] = myLexStarts[i] - start;
         types[i - startMarker.myLexemeIndex] = myLexTypes[i];
       }
@@ -1455,14 +1459,14 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
       leaf.putUserData(LAZY_PARSEABLE_TOKENS, new LazyParseableTokensCache(relativeStarts, types));
     }
     ast.rawAddChildrenWithoutNotifications(leaf);
-    return startMarker.myDoneMarker.myLexemeIndex;
+    return startMarker.myDoneLexemeIndex;
   }
 
   @Nonnull
   private static CompositeElement createComposite(@Nonnull StartMarker marker) {
     final IElementType type = marker.myType;
     if (type == TokenType.ERROR_ELEMENT) {
-      String message = marker.myDoneMarker instanceof DoneWithErrorMarker ? ((DoneWithErrorMarker)marker.myDoneMarker).myMessage : null;
+      String message = marker.myDoneWithError ? marker.myErrorMessage : null;
       return Factory.createErrorElement(message);
     }
 
@@ -1478,8 +1482,8 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     if (node instanceof ErrorItem) return ((ErrorItem)node).myMessage;
     if (node instanceof StartMarker) {
       final StartMarker marker = (StartMarker)node;
-      if (marker.myType == TokenType.ERROR_ELEMENT && marker.myDoneMarker instanceof DoneWithErrorMarker) {
-        return ((DoneWithErrorMarker)marker.myDoneMarker).myMessage;
+      if (marker.myType == TokenType.ERROR_ELEMENT && marker.myDoneWithError) {
+        return marker.myErrorMessage;
       }
     }
 
@@ -1682,8 +1686,8 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
       while (child != null) {
         lexIndex = insertLeaves(lexIndex, child.myLexemeIndex, marker.myBuilder, marker);
 
-        if (child instanceof StartMarker && ((StartMarker)child).myDoneMarker.myCollapse) {
-          int lastIndex = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+        if (child instanceof StartMarker && ((StartMarker)child).myCollapse) {
+          int lastIndex = ((StartMarker)child).myDoneLexemeIndex;
           insertLeaf(child.getTokenType(), marker.myBuilder, child.myLexemeIndex, lastIndex, true, marker);
         }
         else {
@@ -1692,12 +1696,12 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
         }
 
         if (child instanceof StartMarker) {
-          lexIndex = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+          lexIndex = ((StartMarker)child).myDoneLexemeIndex;
         }
         child = child.myNext;
       }
 
-      insertLeaves(lexIndex, marker.myDoneMarker.myLexemeIndex, marker.myBuilder, marker);
+      insertLeaves(lexIndex, marker.myDoneLexemeIndex, marker.myBuilder, marker);
       into.set(nodes == null ? LighterASTNode.EMPTY_ARRAY : nodes);
       nodes = null;
 
@@ -1890,15 +1894,67 @@ public class PsiBuilderImpl extends UnprotectedUserDataHolder implements PsiBuil
     }
   }
 
-  private static class MyList extends ArrayList<ProductionMarker> {
-    // make removeRange method available.
-    @Override
-    protected void removeRange(final int fromIndex, final int toIndex) {
-      super.removeRange(fromIndex, toIndex);
-    }
+  /**
+   * Markers of a builder by their ids. Dropped and rolled back markers are reused with their ids, so the pool grows with the live
+   * production rather than with the number of attempts of backtracking parsers. Error items are reused right away. Start markers may
+   * still be held by parsers: they are reused in the order of release, after {@link #START_MARKER_REUSE_DELAY} more were released,
+   * and until then a released marker is not {@link #isAlive alive} since its generation is behind the one of its id.
+   */
+  private static class MarkerPool extends ArrayList<ProductionMarker> {
+    private static final int START_MARKER_REUSE_DELAY = 256;
+
+    private final PsiBuilderImpl myBuilder;
+    private final IntArrayList myFreeErrorItems = new IntArrayList();
+    private final Queue<StartMarker> myFreeStartMarkers = new Queue<>(START_MARKER_REUSE_DELAY + 1);
+    // by id, the generation of the start marker while it is alive; incremented when the marker is released
+    private final IntArrayList myGenerations = new IntArrayList(256);
 
-    private MyList() {
+    private MarkerPool(@Nonnull PsiBuilderImpl builder) {
       super(256);
+      myBuilder = builder;
+      add(null); // 0 can't be negated to denote a done marker
+      myGenerations.add(0);
+    }
+
+    @Nonnull
+    private StartMarker allocateStartMarker() {
+      if (myFreeStartMarkers.size() > START_MARKER_REUSE_DELAY) {
+        StartMarker marker = myFreeStartMarkers.pullFirst();
+        marker.clean();
+        marker.myGeneration = myGenerations.get(marker.myId);
+        return marker;
+      }
+      StartMarker marker = new StartMarker(size());
+      add(marker);
+      myGenerations.add(0);
+      return marker;
+    }
+
+    @Nonnull
+    private ErrorItem allocateErrorItem() {
+      if (!myFreeErrorItems.isEmpty()) {
+        return (ErrorItem)get(myFreeErrorItems.remove(myFreeErrorItems.size() - 1));
+      }
+      ErrorItem item = new ErrorItem(size(), myBuilder);
+      add(item);
+      myGenerations.add(0);
+      return item;
+    }
+
+    private void release(@Nonnull ProductionMarker marker) {
+      if (marker instanceof ErrorItem) {
+        marker.clean();
+        myFreeErrorItems.add(marker.myId);
+      }
+      else {
+        // cleaned only when reused: a parser holding it still reaches the builder, which reports it
+        myGenerations.set(marker.myId, myGenerations.get(marker.myId) + 1);
+        myFreeStartMarkers.addLast((StartMarker)marker);
+      }
+    }
+
+    private boolean isAlive(@Nonnull StartMarker marker) {
+      return marker.myGeneration == myGenerations.get(marker.myId);
     }
   }
 
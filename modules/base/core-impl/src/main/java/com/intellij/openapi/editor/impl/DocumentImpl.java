@@ -78,9 +78,16 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
   private final Object myLineSetLock = new String("line set lock");
   private volatile LineSet myLineSet;
   private volatile ImmutableCharSequence myText;
-  private volatile SoftReference<String> myTextString;
+  private volatile Reference<String> myTextString;
   private volatile FrozenDocument myFrozen;
 
+  /**
+   * {@link #getText()} of longer documents is cached weakly only: a softly reachable copy of a huge text would double the memory taken
+   * by it until the next GC under memory pressure, while callers asking for the text repeatedly still get the same copy until it's
+   * collected. Use {@link #getImmutableCharSequence()} to avoid creating the string at all.
+   */
+  static final int MAX_SOFTLY_CACHED_TEXT_LENGTH = 4 * 1024 * 1024;
+
   private boolean myIsReadOnly;
   private volatile boolean isStripTrailingSpacesEnabled = true;
   private volatile long myModificationStamp;
@@ -912,11 +919,17 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
   private String doGetText() {
     String s = SoftReference.dereference(myTextString);
     if (s == null) {
-      myTextString = new SoftReference<>(s = myText.toString());
+      s = myText.toString();
+      myTextString = createTextReference(s);
     }
     return s;
   }
 
+  @Nonnull
+  static Reference<String> createTextReference(@Nonnull String text) {
+    return text.length() <= MAX_SOFTLY_CACHED_TEXT_LENGTH ? new SoftReference<>(text) : new WeakReference<>(text);
+  }
+
   @Nonnull
   @Override
   public String getText(@Nonnull final TextRange range) {
@@ -14,6 +14,7 @@ import com.intellij.util.Processor;
 import com.intellij.util.text.ImmutableCharSequence;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.lang.ref.Reference;
 
 /**
  * @author peter
@@ -23,13 +24,13 @@ public class FrozenDocument implements DocumentEx {
   @Nullable
   private volatile SoftReference<LineSet> myLineSet;
   private final long myStamp;
-  private volatile SoftReference<String> myTextString;
+  private volatile Reference<String> myTextString;
 
   FrozenDocument(@Nonnull ImmutableCharSequence text, @Nullable LineSet lineSet, long stamp, @Nullable String textString) {
     myText = text;
     myLineSet = lineSet == null ? null : new SoftReference<>(lineSet);
     myStamp = stamp;
-    myTextString = textString == null ? null : new SoftReference<>(textString);
+    myTextString = textString == null ? null : DocumentImpl.createTextReference(textString);
   }
 
   @Nonnull
@@ -95,7 +96,8 @@ public class FrozenDocument implements DocumentEx {
   public String getText() {
     String s = SoftReference.dereference(myTextString);
     if (s == null) {
-      myTextString = new SoftReference<>(s = myText.toString());
+      s = myText.toString();
+      myTextString = DocumentImpl.createTextReference(s);
     }
     return s;
   }
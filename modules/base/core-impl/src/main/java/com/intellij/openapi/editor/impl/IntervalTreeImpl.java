@@ -9,11 +9,13 @@ import com.intellij.openapi.util.Getter;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.WalkingState;
 import com.intellij.util.concurrency.AtomicFieldUpdater;
 import consulo.logging.Logger;
 import gnu.trove.TLongHashSet;
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.TestOnly;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -35,6 +37,19 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
   private int keySize; // number of all intervals, counting all duplicates, some of them maybe gced
   final ReadWriteLock l = new ReentrantReadWriteLock();
 
+  // queries of trees with at least SNAPSHOT_MIN_SIZE keys which stay unmodified long enough are served from a lock-free snapshot, see getSnapshot()
+  private static final boolean USE_SNAPSHOTS = SystemProperties.getBooleanProperty("idea.interval.tree.snapshots", true);
+  private static final int SNAPSHOT_MIN_SIZE = 1024;
+  // a snapshot copies all keys, so it's taken after one query per SNAPSHOT_KEYS_PER_QUERY keys without modifications, times the backoff
+  private static final int SNAPSHOT_KEYS_PER_QUERY = 64;
+  private static final int MAX_SNAPSHOT_BACKOFF = 64;
+  private volatile IntervalTreeSnapshot<T> mySnapshot;
+  private volatile int myQueriesSinceModification;
+  // doubled every time a snapshot is dropped before it has served as many queries as it was waited for, reset when it has
+  private int mySnapshotBackoff = 1;
+  // the thread which modified the tree last, so that a snapshot query can tell a modification from its own processor from a concurrent one
+  private volatile Thread myLastModifier;
+
   protected abstract int compareEqualStartIntervals(@Nonnull IntervalNode<T> i1, @Nonnull IntervalNode<T> i2);
 
   private final ReferenceQueue<T> myReferenceQueue = new ReferenceQueue<>();
@@ -422,8 +437,63 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
     return (IntervalNode<T>)root;
   }
 
+  // called under the write lock
+  @Override
+  void incModCount() {
+    super.incModCount();
+    myLastModifier = Thread.currentThread();
+    IntervalTreeSnapshot<T> snapshot = mySnapshot;
+    if (snapshot != null) {
+      mySnapshot = null;
+      mySnapshotBackoff = snapshot.queries < snapshotThreshold(snapshot.size()) ? Math.min(mySnapshotBackoff * 2, MAX_SNAPSHOT_BACKOFF) : 1;
+    }
+    myQueriesSinceModification = 0;
+  }
+
+  private int snapshotThreshold(int size) {
+    return size / SNAPSHOT_KEYS_PER_QUERY * mySnapshotBackoff;
+  }
+
+  boolean isModifiedByCurrentThread(int modCountBefore) {
+    return getModCount() != modCountBefore && myLastModifier == Thread.currentThread();
+  }
+
+  /**
+   * @return a snapshot of the current tree state if it's worth querying instead of the tree itself: the tree is large and
+   * has been queried without modifications often enough to pay off copying its keys
+   */
+  @Nullable
+  private IntervalTreeSnapshot<T> getSnapshot() {
+    if (!USE_SNAPSHOTS || ((ReentrantReadWriteLock)l).isWriteLockedByCurrentThread()) return null;
+    IntervalTreeSnapshot<T> snapshot = mySnapshot;
+    if (snapshot != null && snapshot.modCount == getModCount()) {
+      snapshot.queries++;
+      return snapshot;
+    }
+    int size = keySize;
+    //noinspection NonAtomicOperationOnVolatileField
+    if (size < SNAPSHOT_MIN_SIZE || ++myQueriesSinceModification < snapshotThreshold(size)) return null;
+    l.readLock().lock();
+    try {
+      snapshot = new IntervalTreeSnapshot<>(this, getRoot(), keySize, getModCount());
+    }
+    finally {
+      l.readLock().unlock();
+    }
+    mySnapshot = snapshot;
+    return snapshot;
+  }
+
+  @TestOnly
+  boolean hasSnapshot() {
+    IntervalTreeSnapshot<T> snapshot = mySnapshot;
+    return snapshot != null && snapshot.modCount == getModCount();
+  }
+
   @Override
   public boolean processAll(@Nonnull Processor<? super T> processor) {
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.processAll(processor);
     try {
       l.readLock().lock();
       checkMax(true);
@@ -447,6 +517,8 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
 
   @Override
   public boolean processOverlappingWith(int start, int end, @Nonnull Processor<? super T> processor) {
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.processOverlappingWith(start, end, processor);
     try {
       l.readLock().lock();
       checkMax(true);
@@ -486,6 +558,8 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
 
   @Override
   public boolean processOverlappingWithOutside(int start, int end, @Nonnull Processor<? super T> processor) {
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.processOverlappingWithOutside(start, end, processor);
     try {
       l.readLock().lock();
       checkMax(true);
@@ -523,6 +597,8 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
 
   @Override
   public boolean processContaining(int offset, @Nonnull Processor<? super T> processor) {
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.processContaining(offset, processor);
     try {
       l.readLock().lock();
       checkMax(true);
@@ -562,6 +638,9 @@ abstract class IntervalTreeImpl<T> extends RedBlackTree<T> implements IntervalTr
 
   @Nonnull
   MarkupIterator<T> overlappingIterator(@Nonnull final TextRangeInterval rangeInterval, @Nullable Predicate<IntervalNode<T>> nodeFilter) {
+    // node filters look at the mutable nodes and prune whole subtrees, so they need the tree itself
+    IntervalTreeSnapshot<T> snapshot = nodeFilter == null ? getSnapshot() : null;
+    if (snapshot != null) return snapshot.overlappingIterator(rangeInterval);
     l.readLock().lock();
 
     try {
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.ex.MarkupIterator;
+import com.intellij.openapi.util.Getter;
+import com.intellij.util.IncorrectOperationException;
+import com.intellij.util.Processor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable copy of an {@link IntervalTreeImpl} taken at some modification count, which can be queried without locking.
+ * Keys are stored in the tree order in flat arrays with absolute offsets; the array is treated as an implicit balanced search tree
+ * where the element in the middle of every range is the root of that range and {@link #myMaxEnds} keeps the max end of the range,
+ * so overlap queries visit the same keys in the same order as the tree does.
+ * <p>
+ * Only the offsets and the keys' getters are copied, no nodes, so a snapshot doesn't see later changes of the tree and doesn't prevent
+ * weakly referenced markers from being collected. As with the tree walk, a {@link ConcurrentModificationException} is thrown
+ * when a processor modifies the tree; modifications from other threads don't affect queries of a snapshot taken before.
+ */
+final class IntervalTreeSnapshot<T> {
+  final int modCount;
+  // number of queries served, only used to decide whether snapshots pay off, so racy updates are fine
+  int queries;
+  @Nonnull
+  private final IntervalTreeImpl<T> myTree;
+  private int mySize;
+  private int[] myStarts;
+  private int[] myEnds;
+  private int[] myMaxEnds;
+  private Getter<T>[] myKeys;
+
+  // must be called under the tree read lock
+  @SuppressWarnings("unchecked")
+  IntervalTreeSnapshot(@Nonnull IntervalTreeImpl<T> tree, @Nullable IntervalTreeImpl.IntervalNode<T> root, int expectedSize, int modCount) {
+    myTree = tree;
+    this.modCount = modCount;
+    int capacity = Math.max(expectedSize, 16);
+    myStarts = new int[capacity];
+    myEnds = new int[capacity];
+    myKeys = new Getter[capacity];
+    collect(root, 0);
+    myMaxEnds = new int[mySize];
+    computeMaxEnds(0, mySize);
+  }
+
+  private void collect(@Nullable IntervalTreeImpl.IntervalNode<T> root, int deltaUpToRootExclusive) {
+    if (root == null) return;
+    int delta = deltaUpToRootExclusive + root.delta;
+    collect(root.getLeft(), delta);
+    int start = root.intervalStart() + delta;
+    int end = root.intervalEnd() + delta;
+    for (Getter<T> key : root.intervals) {
+      if (mySize == myStarts.length) {
+        int capacity = mySize * 3 / 2 + 1;
+        myStarts = Arrays.copyOf(myStarts, capacity);
+        myEnds = Arrays.copyOf(myEnds, capacity);
+        myKeys = Arrays.copyOf(myKeys, capacity);
+      }
+      myStarts[mySize] = start;
+      myEnds[mySize] = end;
+      myKeys[mySize] = key;
+      mySize++;
+    }
+    collect(root.getRight(), delta);
+  }
+
+  private int computeMaxEnds(int lo, int hi) {
+    if (lo >= hi) return Integer.MIN_VALUE;
+    int mid = (lo + hi) >>> 1;
+    int maxEnd = Math.max(myEnds[mid], Math.max(computeMaxEnds(lo, mid), computeMaxEnds(mid + 1, hi)));
+    myMaxEnds[mid] = maxEnd;
+    return maxEnd;
+  }
+
+  int size() {
+    return mySize;
+  }
+
+  private boolean process(int i, @Nonnull Processor<? super T> processor) {
+    T key = myKeys[i].get();
+    if (key == null) return true;
+    if (!processor.process(key)) return false;
+    checkNotModifiedByCurrentThread();
+    return true;
+  }
+
+  private void checkNotModifiedByCurrentThread() {
+    if (myTree.isModifiedByCurrentThread(modCount)) throw new ConcurrentModificationException();
+  }
+
+  boolean processAll(@Nonnull Processor<? super T> processor) {
+    for (int i = 0; i < mySize; i++) {
+      if (!process(i, processor)) return false;
+    }
+    return true;
+  }
+
+  boolean processOverlappingWith(int start, int end, @Nonnull Processor<? super T> processor) {
+    return processOverlappingWith(0, mySize, start, end, processor);
+  }
+
+  private boolean processOverlappingWith(int lo, int hi, int start, int end, @Nonnull Processor<? super T> processor) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (start > myMaxEnds[mid]) return true; // right of the rightmost interval in the range
+      if (!processOverlappingWith(lo, mid, start, end, processor)) return false;
+      int myStartOffset = myStarts[mid];
+      if (Math.max(myStartOffset, start) <= Math.min(myEnds[mid], end) && !process(mid, processor)) return false;
+      if (end < myStartOffset) return true; // left of the middle, can't be in the right half
+      lo = mid + 1;
+    }
+    return true;
+  }
+
+  boolean processOverlappingWithOutside(int start, int end, @Nonnull Processor<? super T> processor) {
+    return processOverlappingWithOutside(0, mySize, start, end, processor);
+  }
+
+  private boolean processOverlappingWithOutside(int lo, int hi, int start, int end, @Nonnull Processor<? super T> processor) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (!processOverlappingWithOutside(lo, mid, start, end, processor)) return false;
+      int myStartOffset = myStarts[mid];
+      if ((myStartOffset < start || myEnds[mid] > end) && !process(mid, processor)) return false;
+      if (myStartOffset >= start && myMaxEnds[mid] <= end) return true; // can't intersect outside
+      lo = mid + 1;
+    }
+    return true;
+  }
+
+  boolean processContaining(int offset, @Nonnull Processor<? super T> processor) {
+    return processContaining(0, mySize, offset, processor);
+  }
+
+  private boolean processContaining(int lo, int hi, int offset, @Nonnull Processor<? super T> processor) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (offset > myMaxEnds[mid]) return true; // right of the rightmost interval in the range
+      if (!processContaining(lo, mid, offset, processor)) return false;
+      int myStartOffset = myStarts[mid];
+      if (myStartOffset <= offset && offset < myEnds[mid] && !process(mid, processor)) return false;
+      if (offset < myStartOffset) return true; // left of the middle, can't be in the right half
+      lo = mid + 1;
+    }
+    return true;
+  }
+
+  @Nonnull
+  MarkupIterator<T> overlappingIterator(@Nonnull TextRangeInterval rangeInterval) {
+    IntArrayBuilder found = new IntArrayBuilder();
+    collectOverlapping(0, mySize, rangeInterval, found);
+    if (found.size == 0) {
+      //noinspection unchecked
+      return MarkupIterator.EMPTY;
+    }
+    int[] indices = found.array;
+    int size = found.size;
+    return new MarkupIterator<T>() {
+      private int myNext;
+      private T myCurrent;
+
+      @Override
+      public boolean hasNext() {
+        if (myCurrent != null) return true;
+        checkNotModifiedByCurrentThread();
+        while (myCurrent == null && myNext < size) {
+          myCurrent = myKeys[indices[myNext++]].get();
+        }
+        return myCurrent != null;
+      }
+
+      @Override
+      public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        T t = myCurrent;
+        myCurrent = null;
+        return t;
+      }
+
+      @Override
+      public T peek() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return myCurrent;
+      }
+
+      @Override
+      public void remove() {
+        throw new IncorrectOperationException();
+      }
+
+      @Override
+      public void dispose() {
+      }
+    };
+  }
+
+  private void collectOverlapping(int lo,
+                                  int hi,
+                                  @Nonnull TextRangeInterval rangeInterval,
+                                  @Nonnull IntArrayBuilder result) {
+    int start = rangeInterval.getStartOffset();
+    int end = rangeInterval.getEndOffset();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (start > myMaxEnds[mid]) return;
+      collectOverlapping(lo, mid, rangeInterval, result);
+      int myStartOffset = myStarts[mid];
+      if (rangeInterval.intersects(myStartOffset, myEnds[mid])) {
+        result.add(mid);
+      }
+      if (end < myStartOffset) return;
+      lo = mid + 1;
+    }
+  }
+
+  private static class IntArrayBuilder {
+    private int[] array = new int[16];
+    private int size;
+
+    private void add(int value) {
+      if (size == array.length) {
+        array = Arrays.copyOf(array, size * 2);
+      }
+      array[size++] = value;
+    }
+  }
+}
@@ -22,29 +22,38 @@ import com.intellij.util.BitUtil;
 import com.intellij.util.containers.IntArrayList;
 import com.intellij.util.text.CharArrayUtil;
 import com.intellij.util.text.MergingCharSequence;
-import gnu.trove.TByteArrayList;
 import gnu.trove.TIntArrayList;
 import javax.annotation.Nonnull;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Data structure specialized for working with document text lines, i.e. stores information about line mapping to document
  * offsets and provides convenient ways to work with that information like retrieving target line by document offset etc.
  * <p/>
+ * Lines are kept in blocks of about {@link #BLOCK_SIZE} lines with starts relative to the block, so an update copies only the blocks
+ * around the changed lines and the per-block arrays, and a huge document doesn't copy the whole line index on every keystroke.
+ * <p/>
  * Immutable.
  */
 public class LineSet {
   private static final int MODIFIED_MASK = 0x4;
   private static final int SEPARATOR_MASK = 0x3;
+  static final int BLOCK_SIZE = 4096;
 
-  private final int[] myStarts;
-  private final byte[] myFlags; // MODIFIED_MASK bit is for is/setModified(line); SEPARATOR_MASK 2 bits stores line separator length: 0..2
+  private final int[][] myStarts; // line starts relative to the start of the first line of the block
+  private final byte[][] myFlags; // MODIFIED_MASK bit is for is/setModified(line); SEPARATOR_MASK 2 bits stores line separator length: 0..2
+  private final int[] myBlockStarts; // start offset of the first line of each block
+  private final int[] myBlockFirstLines; // index of the first line of each block, followed by the number of stored lines
   private final int myLength;
 
-  private LineSet(int[] starts, byte[] flags, int length) {
+  private LineSet(int[][] starts, byte[][] flags, int[] blockStarts, int[] blockFirstLines, int length) {
     myStarts = starts;
     myFlags = flags;
+    myBlockStarts = blockStarts;
+    myBlockFirstLines = blockFirstLines;
     myLength = length;
   }
 
@@ -54,16 +63,13 @@ public class LineSet {
 
   @Nonnull
   private static LineSet createLineSet(@Nonnull CharSequence text, boolean markModified) {
-    TIntArrayList starts = new TIntArrayList();
-    TByteArrayList flags = new TByteArrayList();
-
+    Builder builder = new Builder(1);
     LineTokenizer lineTokenizer = new LineTokenizer(text);
     while (!lineTokenizer.atEnd()) {
-      starts.add(lineTokenizer.getOffset());
-      flags.add((byte)(lineTokenizer.getLineSeparatorLength() | (markModified ? MODIFIED_MASK : 0)));
+      builder.addLine(lineTokenizer.getOffset(), (byte)(lineTokenizer.getLineSeparatorLength() | (markModified ? MODIFIED_MASK : 0)));
       lineTokenizer.advance();
     }
-    return new LineSet(starts.toNativeArray(), flags.toNativeArray(), text.length());
+    return builder.build(text.length());
   }
 
   @Nonnull
@@ -102,14 +108,9 @@ public class LineSet {
 
   @Nonnull
   private LineSet updateInsideOneLine(int line, int lengthDelta) {
-    int[] starts = myStarts.clone();
-    for (int i = line + 1; i < starts.length; i++) {
-      starts[i] += lengthDelta;
-    }
-
-    byte[] flags = myFlags.clone();
-    flags[line] |= MODIFIED_MASK;
-    return new LineSet(starts, flags, myLength + lengthDelta);
+    int[] starts = {getStartUnsafe(line)};
+    byte[] flags = {(byte)(getFlagsUnsafe(line) | MODIFIED_MASK)};
+    return replaceLines(line, line + 1, starts, flags, 1, lengthDelta);
   }
 
   private LineSet genericUpdate(int startOffset, int endOffset, CharSequence replacement) {
@@ -117,55 +118,94 @@ public class LineSet {
     int endLine = findLineIndex(endOffset);
 
     LineSet patch = createLineSet(replacement, true);
+    int patchLineCount = patch.getStoredLineCount();
 
     int lengthShift = patch.myLength - (endOffset - startOffset);
 
     int startLineStart = getLineStart(startLine);
-    boolean addStartLine = startOffset - startLineStart > 0 || patch.myStarts.length > 0 || endOffset < myLength;
-    boolean addEndLine = endOffset < myLength && patch.myLength > 0 && patch.getSeparatorLength(patch.myStarts.length - 1) > 0;
-    int newLineCount = startLine + (addStartLine ? 1 : 0) + Math.max(patch.myStarts.length - 1, 0) + (addEndLine ? 1 : 0) + Math.max(myStarts.length - endLine - 1, 0);
+    boolean addStartLine = startOffset - startLineStart > 0 || patchLineCount > 0 || endOffset < myLength;
+    boolean addEndLine = endOffset < myLength && patch.myLength > 0 && patch.getSeparatorLength(patchLineCount - 1) > 0;
+
+    // the line before the change is replaced too, as it may get the flags of the end line
+    int fromLine = Math.max(startLine - 1, 0);
+    int toLine = Math.min(endLine + 1, getStoredLineCount());
+    int newLineCount = (startLine - fromLine) + (addStartLine ? 1 : 0) + Math.max(patchLineCount - 1, 0) + (addEndLine ? 1 : 0);
 
     int[] starts = new int[newLineCount];
     byte[] flags = new byte[newLineCount];
 
-    if (startLine > 0) {
-      System.arraycopy(myStarts, 0, starts, 0, startLine);
-      System.arraycopy(myFlags, 0, flags, 0, startLine);
+    int toIndex = 0;
+    if (fromLine < startLine) {
+      starts[toIndex] = getStartUnsafe(fromLine);
+      flags[toIndex] = getFlagsUnsafe(fromLine);
+      toIndex++;
     }
 
-    int toIndex = startLine;
     if (addStartLine) {
       starts[toIndex] = startLineStart;
-      flags[toIndex] = patch.myStarts.length > 0 ? patch.myFlags[0] : MODIFIED_MASK;
+      flags[toIndex] = patchLineCount > 0 ? patch.getFlagsUnsafe(0) : MODIFIED_MASK;
       toIndex++;
     }
 
-    toIndex = patch.shiftData(starts, flags, 1, toIndex, patch.myStarts.length - 1, startOffset);
+    for (int i = 1; i < patchLineCount; i++) {
+      starts[toIndex] = patch.getStartUnsafe(i) + startOffset;
+      flags[toIndex] = patch.getFlagsUnsafe(i);
+      toIndex++;
+    }
 
     if (endOffset < myLength) {
       if (addEndLine) {
         starts[toIndex] = endOffset + lengthShift;
-        flags[toIndex] = (byte)(myFlags[endLine] | MODIFIED_MASK);
+        flags[toIndex] = (byte)(getFlagsUnsafe(endLine) | MODIFIED_MASK);
         toIndex++;
       }
       else if (toIndex > 0) {
-        flags[toIndex - 1] = (byte)(myFlags[endLine] | MODIFIED_MASK);
+        flags[toIndex - 1] = (byte)(getFlagsUnsafe(endLine) | MODIFIED_MASK);
       }
     }
 
-    shiftData(starts, flags, endLine + 1, toIndex, myStarts.length - (endLine + 1), lengthShift);
-
-    return new LineSet(starts, flags, myLength + lengthShift);
+    return replaceLines(fromLine, toLine, starts, flags, toIndex, lengthShift);
   }
 
-  private int shiftData(int[] dstStarts, byte[] dstFlags, int srcOffset, int dstOffset, int count, int offsetDelta) {
-    if (count < 0) return dstOffset;
+  /**
+   * Replaces the stored lines {@code [fromLine, toLine)} with the given ones and shifts the following lines by {@code lengthShift}.
+   * Only the blocks containing the replaced lines are rebuilt, the rest are shared with this set.
+   */
+  @Nonnull
+  private LineSet replaceLines(int fromLine, int toLine, int[] starts, byte[] flags, int count, int lengthShift) {
+    int blockCount = myStarts.length;
+    int firstBlock = getBlockUnsafe(fromLine);
+    int lastBlock = getBlockUnsafe(toLine - 1);
+    int rebuiltLineCount = count + (myBlockFirstLines[lastBlock + 1] - myBlockFirstLines[firstBlock]) - (toLine - fromLine);
+    // join blocks which became too small with a neighbour
+    while (rebuiltLineCount < BLOCK_SIZE / 2 && (firstBlock > 0 || lastBlock < blockCount - 1)) {
+      int block = lastBlock < blockCount - 1 ? ++lastBlock : --firstBlock;
+      rebuiltLineCount += myStarts[block].length;
+    }
+
+    Builder builder = new Builder(blockCount + 1);
+    for (int block = 0; block < firstBlock; block++) {
+      builder.addBlock(myStarts[block], myFlags[block], myBlockStarts[block]);
+    }
 
-    System.arraycopy(myFlags, srcOffset, dstFlags, dstOffset, count);
+    int pieces = (rebuiltLineCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    builder.myBlockSize = pieces == 0 ? BLOCK_SIZE : (rebuiltLineCount + pieces - 1) / pieces;
+    for (int line = myBlockFirstLines[firstBlock]; line < fromLine; line++) {
+      builder.addLine(getStartUnsafe(line), getFlagsUnsafe(line));
+    }
     for (int i = 0; i < count; i++) {
-      dstStarts[dstOffset + i] = myStarts[srcOffset + i] + offsetDelta;
+      builder.addLine(starts[i], flags[i]);
+    }
+    for (int line = toLine; line < myBlockFirstLines[lastBlock + 1]; line++) {
+      builder.addLine(getStartUnsafe(line) + lengthShift, getFlagsUnsafe(line));
+    }
+    builder.finishBlock();
+    builder.myBlockSize = BLOCK_SIZE;
+
+    for (int block = lastBlock + 1; block < blockCount; block++) {
+      builder.addBlock(myStarts[block], myFlags[block], myBlockStarts[block] + lengthShift);
     }
-    return dstOffset + count;
+    return builder.build(myLength + lengthShift);
   }
 
   public int findLineIndex(int offset) {
@@ -175,8 +215,13 @@ public class LineSet {
     if (myLength == 0) return 0;
     if (offset == myLength) return getLineCount() - 1;
 
-    int bsResult = Arrays.binarySearch(myStarts, offset);
-    return bsResult >= 0 ? bsResult : -bsResult - 2;
+    int block = 0;
+    if (myStarts.length > 1) {
+      int bsResult = Arrays.binarySearch(myBlockStarts, offset);
+      block = bsResult >= 0 ? bsResult : -bsResult - 2;
+    }
+    int bsResult = Arrays.binarySearch(myStarts[block], offset - myBlockStarts[block]);
+    return myBlockFirstLines[block] + (bsResult >= 0 ? bsResult : -bsResult - 2);
   }
 
   @Nonnull
@@ -186,11 +231,11 @@ public class LineSet {
 
   public final int getLineStart(int index) {
     checkLineIndex(index);
-    return isLastEmptyLine(index) ? myLength : myStarts[index];
+    return isLastEmptyLine(index) ? myLength : getStartUnsafe(index);
   }
 
   private boolean isLastEmptyLine(int index) {
-    return index == myFlags.length && hasEol(index - 1);
+    return index == getStoredLineCount() && hasEol(index - 1);
   }
 
   private boolean hasEol(int lineIndex) {
@@ -199,7 +244,7 @@ public class LineSet {
 
   public final int getLineEnd(int index) {
     checkLineIndex(index);
-    return index >= myStarts.length - 1 ? myLength : myStarts[index + 1];
+    return index >= getStoredLineCount() - 1 ? myLength : getStartUnsafe(index + 1);
   }
 
   private void checkLineIndex(int index) {
@@ -210,7 +255,7 @@ public class LineSet {
 
   final boolean isModified(int index) {
     checkLineIndex(index);
-    return !isLastEmptyLine(index) && BitUtil.isSet(myFlags[index], MODIFIED_MASK);
+    return !isLastEmptyLine(index) && BitUtil.isSet(getFlagsUnsafe(index), MODIFIED_MASK);
   }
 
   @Nonnull
@@ -223,12 +268,17 @@ public class LineSet {
       if (isLastEmptyLine(index) || isModified(index)) return this;
     }
 
-    byte[] flags = myFlags.clone();
+    byte[][] flags = myFlags.clone();
     for (int i = 0; i < indices.size(); i++) {
       int index = indices.get(i);
-      flags[index] |= MODIFIED_MASK;
+      if (isLastEmptyLine(index)) continue;
+      int block = getBlockUnsafe(index);
+      if (flags[block] == myFlags[block]) {
+        flags[block] = flags[block].clone();
+      }
+      flags[block][index - myBlockFirstLines[block]] |= MODIFIED_MASK;
     }
-    return new LineSet(myStarts, flags, myLength);
+    return new LineSet(myStarts, flags, myBlockStarts, myBlockFirstLines, myLength);
   }
 
   @Nonnull
@@ -242,11 +292,16 @@ public class LineSet {
     if (isLastEmptyLine(endLine - 1)) endLine--;
     if (startLine >= endLine) return this;
 
-    byte[] flags = myFlags.clone();
-    for (int i = startLine; i < endLine; i++) {
-      flags[i] &= ~MODIFIED_MASK;
+    byte[][] flags = myFlags.clone();
+    for (int block = getBlockUnsafe(startLine); block < flags.length && myBlockFirstLines[block] < endLine; block++) {
+      int firstLine = myBlockFirstLines[block];
+      byte[] blockFlags = flags[block] = flags[block].clone();
+      int end = Math.min(endLine - firstLine, blockFlags.length);
+      for (int i = Math.max(startLine - firstLine, 0); i < end; i++) {
+        blockFlags[i] &= ~MODIFIED_MASK;
+      }
     }
-    return new LineSet(myStarts, flags, myLength);
+    return new LineSet(myStarts, flags, myBlockStarts, myBlockFirstLines, myLength);
   }
 
   @Nonnull
@@ -260,14 +315,101 @@ public class LineSet {
   }
 
   private int getSeparatorLengthUnsafe(int index) {
-    return index < myFlags.length ? myFlags[index] & SEPARATOR_MASK : 0;
+    return index < getStoredLineCount() ? getFlagsUnsafe(index) & SEPARATOR_MASK : 0;
+  }
+
+  private int getBlockUnsafe(int line) {
+    int blockCount = myStarts.length;
+    if (blockCount == 1) return 0;
+    int bsResult = Arrays.binarySearch(myBlockFirstLines, 0, blockCount, line);
+    return bsResult >= 0 ? bsResult : -bsResult - 2;
+  }
+
+  private int getStartUnsafe(int line) {
+    int block = getBlockUnsafe(line);
+    return myBlockStarts[block] + myStarts[block][line - myBlockFirstLines[block]];
+  }
+
+  private byte getFlagsUnsafe(int line) {
+    int block = getBlockUnsafe(line);
+    return myFlags[block][line - myBlockFirstLines[block]];
+  }
+
+  private int getStoredLineCount() {
+    return myBlockFirstLines[myStarts.length];
   }
 
   final int getLineCount() {
-    return myStarts.length + (isLastEmptyLine(myStarts.length) ? 1 : 0);
+    int storedLineCount = getStoredLineCount();
+    return storedLineCount + (isLastEmptyLine(storedLineCount) ? 1 : 0);
   }
 
   int getLength() {
     return myLength;
   }
+
+  private static class Builder {
+    private final List<int[]> myStarts;
+    private final List<byte[]> myFlags;
+    private final TIntArrayList myBlockStarts;
+    private final TIntArrayList myBlockFirstLines;
+    private int myBlockSize = BLOCK_SIZE;
+    private int myLineCount;
+
+    private int[] myBlock;
+    private byte[] myBlockFlags;
+    private int myBlockLineCount;
+    private int myBlockStart;
+
+    private Builder(int expectedBlockCount) {
+      myStarts = new ArrayList<>(expectedBlockCount);
+      myFlags = new ArrayList<>(expectedBlockCount);
+      myBlockStarts = new TIntArrayList(expectedBlockCount);
+      myBlockFirstLines = new TIntArrayList(expectedBlockCount + 1);
+    }
+
+    private void addLine(int start, byte flags) {
+      if (myBlock == null) {
+        myBlock = new int[Math.min(myBlockSize, 16)];
+        myBlockFlags = new byte[myBlock.length];
+        myBlockStart = start;
+      }
+      else if (myBlockLineCount == myBlock.length) {
+        int capacity = Math.min(myBlockSize, myBlockLineCount * 2);
+        myBlock = Arrays.copyOf(myBlock, capacity);
+        myBlockFlags = Arrays.copyOf(myBlockFlags, capacity);
+      }
+      myBlock[myBlockLineCount] = start - myBlockStart;
+      myBlockFlags[myBlockLineCount] = flags;
+      if (++myBlockLineCount == myBlockSize) {
+        finishBlock();
+      }
+    }
+
+    private void finishBlock() {
+      if (myBlock == null) return;
+      int[] starts = myBlockLineCount == myBlock.length ? myBlock : Arrays.copyOf(myBlock, myBlockLineCount);
+      byte[] flags = myBlockLineCount == myBlockFlags.length ? myBlockFlags : Arrays.copyOf(myBlockFlags, myBlockLineCount);
+      myBlock = null;
+      myBlockFlags = null;
+      myBlockLineCount = 0;
+      addBlock(starts, flags, myBlockStart);
+    }
+
+    private void addBlock(int[] starts, byte[] flags, int blockStart) {
+      assert myBlock == null : "unfinished block";
+      myStarts.add(starts);
+      myFlags.add(flags);
+      myBlockStarts.add(blockStart);
+      myBlockFirstLines.add(myLineCount);
+      myLineCount += starts.length;
+    }
+
+    @Nonnull
+    private LineSet build(int length) {
+      finishBlock();
+      myBlockFirstLines.add(myLineCount);
+      return new LineSet(myStarts.toArray(new int[0][]), myFlags.toArray(new byte[0][]), myBlockStarts.toNativeArray(), myBlockFirstLines.toNativeArray(), length);
+    }
+  }
 }
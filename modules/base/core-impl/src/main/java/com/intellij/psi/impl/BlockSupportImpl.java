@@ -29,6 +29,7 @@ import com.intellij.psi.util.PsiUtilCore;
 import com.intellij.testFramework.LightVirtualFile;
 import com.intellij.util.CharTable;
 import com.intellij.util.IncorrectOperationException;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.diff.DiffTree;
 import com.intellij.util.diff.DiffTreeChangeBuilder;
 import com.intellij.util.diff.FlyweightCapableTreeStructure;
@@ -41,6 +42,11 @@ import javax.annotation.Nullable;
 @Singleton
 public class BlockSupportImpl extends BlockSupport {
   private static final Logger LOG = Logger.getInstance(BlockSupportImpl.class);
+  /**
+   * After comparing that many nodes of the old and the new tree, the remaining changed subtrees are replaced as a whole.
+   * Otherwise a full reparse of a big file after e.g. an unbalanced brace would diff the whole file on every keystroke.
+   */
+  private static final int MAX_NODES_TO_DIFF = SystemProperties.getIntProperty("idea.reparse.max.nodes.to.diff", 500_000);
 
   @Override
   public void reparseRange(@Nonnull PsiFile file, int startOffset, int endOffset, @Nonnull CharSequence newText) throws IncorrectOperationException {
@@ -366,7 +372,7 @@ public class BlockSupportImpl extends BlockSupport {
                                    @Nonnull final FlyweightCapableTreeStructure<T> newTreeStructure,
                                    @Nonnull ProgressIndicator indicator,
                                    @Nonnull CharSequence lastCommittedText) {
-    DiffTree.diff(createInterruptibleASTStructure(oldRoot, indicator), newTreeStructure, comparator, builder, lastCommittedText);
+    DiffTree.diff(createInterruptibleASTStructure(oldRoot, indicator), newTreeStructure, comparator, builder, lastCommittedText, MAX_NODES_TO_DIFF);
   }
 
   private static ASTStructure createInterruptibleASTStructure(@Nonnull final ASTNode oldRoot, @Nonnull final ProgressIndicator indicator) {
@@ -9,6 +9,7 @@ import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.EventDispatcher;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.MultiMap;
 import com.intellij.util.lang.CompoundRuntimeException;
@@ -27,6 +28,7 @@ import java.lang.reflect.Proxy;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author max
@@ -34,8 +36,13 @@ import java.util.concurrent.ConcurrentMap;
 public class MessageBusImpl implements MessageBus, Disposable {
   private static final Logger LOG = Logger.getInstance(MessageBusImpl.class);
   private static final Comparator<MessageBusImpl> MESSAGE_BUS_COMPARATOR = (bus1, bus2) -> ArrayUtil.lexicographicCompare(bus1.myOrder, bus2.myOrder);
+  private static final MessageBusConnectionImpl[] EMPTY_CONNECTIONS = new MessageBusConnectionImpl[0];
+  /**
+   * Delivery jobs of this bus: each job takes two elements, the subscribed connection followed by the message,
+   * so that posting a message doesn't allocate a job object per subscriber
+   */
   @SuppressWarnings("SSBasedInspection")
-  private final ThreadLocal<Queue<DeliveryJob>> myMessageQueue = createThreadLocalQueue();
+  private final ThreadLocal<Queue<Object>> myMessageQueue = createThreadLocalQueue();
 
   /**
    * Root's order is empty
@@ -54,7 +61,7 @@ public class MessageBusImpl implements MessageBus, Disposable {
   /**
    * Caches subscribers for this bus and its children or parent, depending on the topic's broadcast policy
    */
-  private final Map<Topic<?>, List<MessageBusConnectionImpl>> mySubscriberCache = new ConcurrentHashMap<>();
+  private final Map<Topic<?>, MessageBusConnectionImpl[]> mySubscriberCache = new ConcurrentHashMap<>();
   private final List<MessageBusImpl> myChildBuses = ContainerUtil.createLockFreeCopyOnWriteList();
 
   @Nonnull
@@ -138,21 +145,6 @@ public class MessageBusImpl implements MessageBus, Disposable {
     LOG.assertTrue(removed);
   }
 
-  private static final class DeliveryJob {
-    DeliveryJob(@Nonnull MessageBusConnectionImpl connection, @Nonnull Message message) {
-      this.connection = connection;
-      this.message = message;
-    }
-
-    public final MessageBusConnectionImpl connection;
-    public final Message message;
-
-    @Override
-    public String toString() {
-      return "{ DJob connection:" + connection + "; message: " + message + " }";
-    }
-  }
-
   @Override
   @Nonnull
   public MessageBusConnectionImpl connect() {
@@ -252,7 +244,7 @@ public class MessageBusImpl implements MessageBus, Disposable {
     }
 
     Disposer.dispose(myConnectionDisposable);
-    Queue<DeliveryJob> jobs = myMessageQueue.get();
+    Queue<Object> jobs = myMessageQueue.get();
     if (!jobs.isEmpty()) {
       LOG.error("Not delivered events in the queue: " + jobs);
     }
@@ -322,22 +314,32 @@ public class MessageBusImpl implements MessageBus, Disposable {
 
   private void postMessage(@Nonnull Message message) {
     checkNotDisposed();
-    List<MessageBusConnectionImpl> topicSubscribers = getTopicSubscribers(message.getTopic());
-    if (!topicSubscribers.isEmpty()) {
-      for (MessageBusConnectionImpl subscriber : topicSubscribers) {
-        subscriber.getBus().myMessageQueue.get().offer(new DeliveryJob(subscriber, message));
-        subscriber.getBus().notifyPendingJobChange(1);
-        subscriber.scheduleMessageDelivery(message);
+    // subscribers of one bus come in a row, so the pending job count is updated once per bus
+    MessageBusImpl pendingBus = null;
+    int pendingJobs = 0;
+    for (MessageBusConnectionImpl subscriber : getTopicSubscribers(message.getTopic())) {
+      MessageBusImpl bus = subscriber.getBus();
+      Queue<Object> queue = bus.myMessageQueue.get();
+      queue.offer(subscriber);
+      queue.offer(message);
+      subscriber.scheduleMessageDelivery(message);
+      if (bus != pendingBus) {
+        if (pendingBus != null) pendingBus.notifyPendingJobChange(pendingJobs);
+        pendingBus = bus;
+        pendingJobs = 0;
       }
+      pendingJobs++;
     }
+    if (pendingBus != null) pendingBus.notifyPendingJobChange(pendingJobs);
   }
 
   @Nonnull
-  private List<MessageBusConnectionImpl> getTopicSubscribers(@Nonnull Topic<?> topic) {
-    List<MessageBusConnectionImpl> topicSubscribers = mySubscriberCache.get(topic);
+  private MessageBusConnectionImpl[] getTopicSubscribers(@Nonnull Topic<?> topic) {
+    MessageBusConnectionImpl[] topicSubscribers = mySubscriberCache.get(topic);
     if (topicSubscribers == null) {
-      topicSubscribers = new ArrayList<>();
-      calcSubscribers(topic, topicSubscribers);
+      List<MessageBusConnectionImpl> subscribers = new ArrayList<>();
+      calcSubscribers(topic, subscribers);
+      topicSubscribers = subscribers.isEmpty() ? EMPTY_CONNECTIONS : subscribers.toArray(EMPTY_CONNECTIONS);
       mySubscriberCache.put(topic, topicSubscribers);
       myRootBus.myClearedSubscribersCache = false;
     }
@@ -366,6 +368,9 @@ public class MessageBusImpl implements MessageBus, Disposable {
   }
 
   private void sendMessage(@Nonnull Message message) {
+    if (myRootBus.myCollectStatistics) {
+      myRootBus.getTopicStatistics(message.getTopic()).myPublishedMessages.increment();
+    }
     pumpMessages();
     postMessage(message);
     pumpMessages();
@@ -427,14 +432,15 @@ public class MessageBusImpl implements MessageBus, Disposable {
 
   @Nonnull
   private List<Throwable> doPumpMessages() {
-    Queue<DeliveryJob> queue = myMessageQueue.get();
+    Queue<Object> queue = myMessageQueue.get();
     List<Throwable> exceptions = Collections.emptyList();
     do {
-      DeliveryJob job = queue.poll();
-      if (job == null) break;
+      MessageBusConnectionImpl connection = (MessageBusConnectionImpl)queue.poll();
+      if (connection == null) break;
+      Message message = (Message)queue.poll();
       notifyPendingJobChange(-1);
       try {
-        job.connection.deliverMessage(job.message);
+        connection.deliverMessage(message);
       }
       catch (Throwable e) {
         if (exceptions == Collections.<Throwable>emptyList()) {
@@ -474,22 +480,29 @@ public class MessageBusImpl implements MessageBus, Disposable {
     if (myDisposed) return;
     myRootBus.clearSubscriberCache();
 
-    final Iterator<DeliveryJob> i = myMessageQueue.get().iterator();
-    while (i.hasNext()) {
-      final DeliveryJob job = i.next();
-      if (job.connection == connection) {
-        i.remove();
+    Queue<Object> queue = myMessageQueue.get();
+    if (queue.isEmpty()) return;
+    Object[] jobs = queue.toArray();
+    queue.clear();
+    for (int i = 0; i < jobs.length; i += 2) {
+      if (jobs[i] == connection) {
         notifyPendingJobChange(-1);
       }
+      else {
+        queue.offer(jobs[i]);
+        queue.offer(jobs[i + 1]);
+      }
     }
   }
 
   void deliverSingleMessage() {
     checkNotDisposed();
-    final DeliveryJob job = myMessageQueue.get().poll();
-    if (job == null) return;
+    Queue<Object> queue = myMessageQueue.get();
+    final MessageBusConnectionImpl connection = (MessageBusConnectionImpl)queue.poll();
+    if (connection == null) return;
+    final Message message = (Message)queue.poll();
     notifyPendingJobChange(-1);
-    job.connection.deliverMessage(job.message);
+    connection.deliverMessage(message);
   }
 
   @Nonnull
@@ -508,14 +521,65 @@ public class MessageBusImpl implements MessageBus, Disposable {
   void invokeListener(@Nonnull Message message, Object handler) throws IllegalAccessException, InvocationTargetException {
     Method method = message.getListenerMethod();
     MessageDeliveryListener listener = myMessageDeliveryListener;
-    if (listener == null) {
+    boolean collectStatistics = myRootBus.myCollectStatistics;
+    if (listener == null && !collectStatistics) {
       method.invoke(handler, message.getArgs());
       return;
     }
 
     long startTime = System.nanoTime();
     method.invoke(handler, message.getArgs());
-    listener.messageDelivered(message.getTopic(), method.getName(), handler, System.nanoTime() - startTime);
+    long duration = System.nanoTime() - startTime;
+    if (collectStatistics) {
+      TopicStatistics statistics = myRootBus.getTopicStatistics(message.getTopic());
+      statistics.myHandlerInvocations.increment();
+      statistics.myHandlerTimeNanos.add(duration);
+    }
+    if (listener != null) {
+      listener.messageDelivered(message.getTopic(), method.getName(), handler, duration);
+    }
+  }
+
+  /**
+   * Enables collecting of {@link #getTopicStatistics() per-topic statistics} for the whole bus hierarchy.
+   * Collecting is also enabled by {@code -Didea.message.bus.statistics=true}.
+   */
+  public void setCollectStatistics(boolean collectStatistics) {
+    myRootBus.myCollectStatistics = collectStatistics;
+  }
+
+  /**
+   * @return statistics of the topics published in the whole bus hierarchy while collecting was enabled
+   */
+  @Nonnull
+  public Map<Topic<?>, TopicStatistics> getTopicStatistics() {
+    return Collections.unmodifiableMap(myRootBus.myTopicStatistics);
+  }
+
+  public static final class TopicStatistics {
+    private final LongAdder myPublishedMessages = new LongAdder();
+    private final LongAdder myHandlerInvocations = new LongAdder();
+    private final LongAdder myHandlerTimeNanos = new LongAdder();
+
+    public long getPublishedMessages() {
+      return myPublishedMessages.sum();
+    }
+
+    /**
+     * Handlers invoked through a topic's listener interface, not counting default {@link com.intellij.util.messages.MessageHandler}s
+     */
+    public long getHandlerInvocations() {
+      return myHandlerInvocations.sum();
+    }
+
+    public long getHandlerTimeNanos() {
+      return myHandlerTimeNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+      return "published: " + getPublishedMessages() + "; handlers invoked: " + getHandlerInvocations() + " in " + getHandlerTimeNanos() / 1000000 + "ms";
+    }
   }
 
   static final class RootBus extends MessageBusImpl {
@@ -530,6 +594,15 @@ public class MessageBusImpl implements MessageBus, Disposable {
 
     private volatile boolean myClearedSubscribersCache;
 
+    private volatile boolean myCollectStatistics = SystemProperties.getBooleanProperty("idea.message.bus.statistics", false);
+    private final ConcurrentMap<Topic<?>, TopicStatistics> myTopicStatistics = new ConcurrentHashMap<>();
+
+    @Nonnull
+    private TopicStatistics getTopicStatistics(@Nonnull Topic<?> topic) {
+      TopicStatistics statistics = myTopicStatistics.get(topic);
+      return statistics != null ? statistics : ConcurrencyUtil.cacheOrGet(myTopicStatistics, topic, new TopicStatistics());
+    }
+
     @Override
     void clearSubscriberCache() {
       if (myClearedSubscribersCache) return;
@@ -151,6 +151,12 @@ public class LayeredLexerEditorHighlighter extends LexerEditorHighlighter {
     };
   }
 
+  @Override
+  protected boolean canRelexInBackground() {
+    // layer tokens are kept in MappingSegments, which are updated along with the base segments and not replaced in background
+    return false;
+  }
+
   protected boolean updateLayers() {
     return false;
   }
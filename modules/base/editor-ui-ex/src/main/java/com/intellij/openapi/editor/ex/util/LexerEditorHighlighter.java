@@ -6,6 +6,7 @@ import com.intellij.lexer.Lexer;
 import com.intellij.lexer.RestartableLexer;
 import com.intellij.lexer.TokenIterator;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.colors.EditorColorsScheme;
 import com.intellij.openapi.editor.colors.TextAttributesKey;
@@ -22,9 +23,12 @@ import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Comparing;
+import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.text.ImmutableCharSequence;
 import com.intellij.util.text.SingleCharSequence;
 import com.intellij.util.ui.UIUtil;
@@ -32,24 +36,53 @@ import consulo.logging.Logger;
 import consulo.logging.attachment.Attachment;
 import consulo.logging.attachment.AttachmentFactory;
 import consulo.logging.attachment.ExceptionWithAttachments;
+import org.jetbrains.annotations.TestOnly;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDocumentListener {
   private static final Logger LOG = Logger.getInstance(LexerEditorHighlighter.class);
   private static final int LEXER_INCREMENTALITY_THRESHOLD = 200;
   private static final Set<Class<?>> ourNonIncrementalLexers = new HashSet<>();
+
+  /**
+   * When a document change makes the lexer re-lex more tokens than this after the changed text without converging with the old ones,
+   * the old tokens are kept as they are and the rest of the text is re-lexed in background, slice by slice.
+   * Every slice replaces the stale tokens it covers in EDT as soon as it is lexed: not under a write action, which would cancel
+   * every read action, but in a copy of the segments swapped in under the highlighter lock, so that iterators keep the segments
+   * they were created with. A slice covers a fraction of the whole segments at least, which bounds the copying.
+   */
+  private static final int MAX_TOKENS_TO_RELEX_SYNCHRONOUSLY = 20_000;
+  private static final int RELEXING_SLICE_TOKENS = 10_000;
+  private static final int RELEXING_SLICES_PER_SEGMENTS = 16;
+  private static boolean ourBackgroundRelexing = SystemProperties.getBooleanProperty("idea.lexer.highlighter.background.relexing", true);
+  private static final ExecutorService ourRelexingExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("LexerEditorHighlighter Relexing", 1);
+
   private HighlighterClient myEditor;
   private final Lexer myLexer;
   private final Map<IElementType, TextAttributes> myAttributesMap = new HashMap<>();
-  private SegmentArrayWithData mySegments;
+  // replaced with a copy when a re-lexed slice is applied, read it once per iterator
+  private volatile SegmentArrayWithData mySegments;
   private final SyntaxHighlighter myHighlighter;
   @Nonnull
   private EditorColorsScheme myScheme;
   private final int myInitialState;
   protected CharSequence myText;
+  // start of the tokens which weren't re-lexed after a change yet, or -1; the tokens before it are up to date
+  private int myStaleStart = -1;
+  // whether the lexer can be restarted at myStaleStart, otherwise re-lexing starts from the last restartable token before it
+  private boolean myStaleStartRestartable;
+  // not less than the start of any stale token clipped by a change or a re-lexed slice: the stale tokens before and after a clipped one
+  // aren't lexed one after another, so re-lexed tokens can converge with stale ones only after it
+  private int myStaleEnd;
+  // the slice of the stale tokens being re-lexed in background
+  private RelexingSlice myRelexingSlice;
+  // background re-lexing needs a lexer of its own, null if the syntax highlighter doesn't create a new one every time
+  private Lexer myRelexingLexer;
+  private boolean myRelexingLexerCreated;
 
   public LexerEditorHighlighter(@Nonnull SyntaxHighlighter highlighter, @Nonnull EditorColorsScheme scheme) {
     myScheme = scheme;
@@ -171,6 +204,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       if (document.isInBulkUpdate()) {
         myText = null;
         mySegments.removeAll();
+        segmentsReset();
         return;
       }
 
@@ -180,157 +214,480 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       }
 
       myText = text;
-      int oldStartOffset = e.getOffset();
-
-      final int segmentIndex = mySegments.findSegmentIndex(oldStartOffset) - 2;
-      final int oldStartIndex = Math.max(0, segmentIndex);
-      int startIndex = oldStartIndex;
-
-      int data;
-      do {
-        data = mySegments.getSegmentData(startIndex);
-        if (isInitialState(data) || startIndex == 0) break;
-        startIndex--;
+      TextRange changedRange = updateSegments(text, e.getOffset(), e.getOldLength(), e.getNewLength());
+      if (myStaleStart >= 0 && (myRelexingSlice == null || myRelexingSlice.myCancelled)) {
+        scheduleRelexing();
       }
-      while (true);
+      if (changedRange != null) {
+        myEditor.repaint(changedRange.getStartOffset(), changedRange.getEndOffset());
+      }
+    }
+    catch (ProcessCanceledException ex) {
+      myText = null;
+      mySegments.removeAll();
+      segmentsReset();
+      throw ex;
+    }
+    catch (RuntimeException ex) {
+      throw new InvalidStateException(this, "Error updating  after " + e, ex);
+    }
+  }
+
+  /**
+   * Re-lexes the text from a restartable token before the change until the tokens converge with the old ones.
+   *
+   * @return the range to repaint, or null if nothing has changed
+   */
+  @Nullable
+  private TextRange updateSegments(@Nonnull CharSequence text, int oldStartOffset, int oldLength, int newLength) {
+    final int segmentIndex = mySegments.findSegmentIndex(oldStartOffset) - 2;
+    final int oldStartIndex = Math.max(0, segmentIndex);
+    int startIndex = oldStartIndex;
+
+    int data;
+    do {
+      data = mySegments.getSegmentData(startIndex);
+      if (isInitialState(data) || startIndex == 0) break;
+      startIndex--;
+    }
+    while (true);
 
-      int startOffset = mySegments.getSegmentStart(startIndex);
+    int startOffset = mySegments.getSegmentStart(startIndex);
 
-      int initialState;
-      int textLength = text.length();
-      if (startOffset == 0 && myLexer instanceof RestartableLexer) {
-        initialState = ((RestartableLexer)myLexer).getStartState();
-        myLexer.start(text, startOffset, text.length(), initialState);
+    int initialState;
+    int textLength = text.length();
+    if (startOffset == 0 && myLexer instanceof RestartableLexer) {
+      initialState = ((RestartableLexer)myLexer).getStartState();
+      myLexer.start(text, startOffset, text.length(), initialState);
+    }
+    else {
+      if (myLexer instanceof RestartableLexer) {
+        initialState = mySegments.unpackStateFromData(mySegments.getSegmentData(startIndex));
+        ((RestartableLexer)myLexer).start(text, startOffset, text.length(), initialState, createTokenIterator(startIndex));
       }
       else {
-        if (myLexer instanceof RestartableLexer) {
-          initialState = mySegments.unpackStateFromData(mySegments.getSegmentData(startIndex));
-          ((RestartableLexer)myLexer).start(text, startOffset, text.length(), initialState, createTokenIterator(startIndex));
-        }
-        else {
-          initialState = myInitialState;
-          myLexer.start(text, startOffset, text.length(), initialState);
-        }
+        initialState = myInitialState;
+        myLexer.start(text, startOffset, text.length(), initialState);
       }
+    }
 
-      Lexer lexerWrapper = new ValidatingLexerWrapper(myLexer);
-      for (IElementType tokenType = lexerWrapper.getTokenType(); tokenType != null; tokenType = lexerWrapper.getTokenType()) {
-        if (startIndex >= oldStartIndex) break;
+    Lexer lexerWrapper = new ValidatingLexerWrapper(myLexer);
+    for (IElementType tokenType = lexerWrapper.getTokenType(); tokenType != null; tokenType = lexerWrapper.getTokenType()) {
+      if (startIndex >= oldStartIndex) break;
 
-        int lexerState = lexerWrapper.getState();
-        int tokenStart = lexerWrapper.getTokenStart();
-        int tokenEnd = lexerWrapper.getTokenEnd();
+      int lexerState = lexerWrapper.getState();
+      int tokenStart = lexerWrapper.getTokenStart();
+      int tokenEnd = lexerWrapper.getTokenEnd();
 
-        data = mySegments.packData(tokenType, lexerState, canRestart(lexerState));
-        if (mySegments.getSegmentStart(startIndex) != tokenStart || mySegments.getSegmentEnd(startIndex) != tokenEnd || mySegments.getSegmentData(startIndex) != data) {
-          break;
-        }
-        startIndex++;
-        lexerWrapper.advance();
+      data = mySegments.packData(tokenType, lexerState, canRestart(lexerState));
+      if (mySegments.getSegmentStart(startIndex) != tokenStart || mySegments.getSegmentEnd(startIndex) != tokenEnd || mySegments.getSegmentData(startIndex) != data) {
+        break;
       }
+      startIndex++;
+      lexerWrapper.advance();
+    }
 
-      /*
-        Highlighting lexer is expected to periodically return to its "initial state" and
-        so to denote valid starting points for incremental highlighting.
+    /*
+      Highlighting lexer is expected to periodically return to its "initial state" and
+      so to denote valid starting points for incremental highlighting.
 
-        If this requirement is unfulfiled, document has to be always re-analyzed from the beginning
-        up to the point of modification,  which can hog CPU and make typing / editing very sluggish,
-        especially at large offsets (with at least O(n) time complexity).
+      If this requirement is unfulfiled, document has to be always re-analyzed from the beginning
+      up to the point of modification,  which can hog CPU and make typing / editing very sluggish,
+      especially at large offsets (with at least O(n) time complexity).
 
-        As the faulty lexer implementations otherwise behave normally, it's often hard to spot the problem in the wild.
-        Despite additng LexerTestCase.checkCorrectRestart and LexerTestCase.checkZeroState checks and fixing many lexers,
-        it's still not so unusual to discover a further broken lexer through pure luck.
+      As the faulty lexer implementations otherwise behave normally, it's often hard to spot the problem in the wild.
+      Despite additng LexerTestCase.checkCorrectRestart and LexerTestCase.checkZeroState checks and fixing many lexers,
+      it's still not so unusual to discover a further broken lexer through pure luck.
 
-        The following runtime check reports cases when document has to be re-analyzed from 0 offset and
-        the number of traversed tokens is greater than a predefined threshold.
+      The following runtime check reports cases when document has to be re-analyzed from 0 offset and
+      the number of traversed tokens is greater than a predefined threshold.
 
-        Because many highlighting lexers are implemented via the LayeredLexer which forces non-initial state
-        (and thus suppresses incrementality) within layers, some false-positivess are probable.
-        For example, it's possible to trigger the warning by creating a file with a really large comment
-        right at the beginning, and then to modify text at the end of that comment.
-        However, this seems to be a rather unusual use case, so that the gain from detecting faulty
-        lexers (including third-party ones) justifies the check.
+      Because many highlighting lexers are implemented via the LayeredLexer which forces non-initial state
+      (and thus suppresses incrementality) within layers, some false-positivess are probable.
+      For example, it's possible to trigger the warning by creating a file with a really large comment
+      right at the beginning, and then to modify text at the end of that comment.
+      However, this seems to be a rather unusual use case, so that the gain from detecting faulty
+      lexers (including third-party ones) justifies the check.
 
-        In a sense, the warning is always righteous, as even with proper layered lexers there really is
-        no incrementality within layers, which might lead to performance problem in corresponding cases.
-       */
-      if (ApplicationManager.getApplication().isInternal() && startOffset == 0 && startIndex > LEXER_INCREMENTALITY_THRESHOLD) {
+      In a sense, the warning is always righteous, as even with proper layered lexers there really is
+      no incrementality within layers, which might lead to performance problem in corresponding cases.
+     */
+    if (ApplicationManager.getApplication().isInternal() && startOffset == 0 && startIndex > LEXER_INCREMENTALITY_THRESHOLD) {
 
-        Class lexerClass = myLexer.getClass();
+      Class lexerClass = myLexer.getClass();
 
-        if (!ourNonIncrementalLexers.contains(lexerClass)) {
-          LOG.warn(String.format("%s is probably not incremental: no initial state throughout %d tokens", lexerClass.getName(), startIndex));
+      if (!ourNonIncrementalLexers.contains(lexerClass)) {
+        LOG.warn(String.format("%s is probably not incremental: no initial state throughout %d tokens", lexerClass.getName(), startIndex));
 
-          ourNonIncrementalLexers.add(lexerClass);
-        }
+        ourNonIncrementalLexers.add(lexerClass);
       }
+    }
 
-      startOffset = mySegments.getSegmentStart(startIndex);
-      SegmentArrayWithData insertSegments = new SegmentArrayWithData(mySegments.createStorage());
-
-      int repaintEnd = -1;
-      int insertSegmentCount = 0;
-      int oldEndIndex = -1;
-      int shift = e.getNewLength() - e.getOldLength();
-      int newEndOffset = e.getOffset() + e.getNewLength();
-      for (IElementType tokenType = lexerWrapper.getTokenType(); tokenType != null; tokenType = lexerWrapper.getTokenType()) {
-        int lexerState = lexerWrapper.getState();
-        int tokenStart = lexerWrapper.getTokenStart();
-        int tokenEnd = lexerWrapper.getTokenEnd();
-
-        data = mySegments.packData(tokenType, lexerState, canRestart(lexerState));
-        if (tokenStart >= newEndOffset && canRestart(lexerState)) {
-          int shiftedTokenStart = tokenStart - shift;
-          int index = mySegments.findSegmentIndex(shiftedTokenStart);
-          if (mySegments.getSegmentStart(index) == shiftedTokenStart && mySegments.getSegmentData(index) == data) {
-            repaintEnd = tokenStart;
-            oldEndIndex = index;
-            break;
-          }
+    startOffset = mySegments.getSegmentStart(startIndex);
+    SegmentArrayWithData insertSegments = new SegmentArrayWithData(mySegments.createStorage());
+
+    int repaintEnd = -1;
+    int insertSegmentCount = 0;
+    int oldEndIndex = -1;
+    int shift = newLength - oldLength;
+    int newEndOffset = oldStartOffset + newLength;
+    boolean mayRelexInBackground = mayRelexInBackground();
+    int staleStart = -1;
+    for (IElementType tokenType = lexerWrapper.getTokenType(); tokenType != null; tokenType = lexerWrapper.getTokenType()) {
+      int lexerState = lexerWrapper.getState();
+      int tokenStart = lexerWrapper.getTokenStart();
+      int tokenEnd = lexerWrapper.getTokenEnd();
+
+      data = mySegments.packData(tokenType, lexerState, canRestart(lexerState));
+      if (tokenStart >= newEndOffset && canRestart(lexerState)) {
+        int shiftedTokenStart = tokenStart - shift;
+        int index = mySegments.findSegmentIndex(shiftedTokenStart);
+        if (mySegments.getSegmentStart(index) == shiftedTokenStart && mySegments.getSegmentData(index) == data) {
+          repaintEnd = tokenStart;
+          oldEndIndex = index;
+          break;
         }
-        insertSegments.setElementAt(insertSegmentCount, tokenStart, tokenEnd, data, null);
+      }
+      if (mayRelexInBackground &&
+          insertSegmentCount >= MAX_TOKENS_TO_RELEX_SYNCHRONOUSLY &&
+          tokenStart >= newEndOffset &&
+          canRestart(lexerState) &&
+          getRelexingLexer() != null) {
+        staleStart = tokenStart;
+        break;
+      }
+      insertSegments.setElementAt(insertSegmentCount, tokenStart, tokenEnd, data, null);
+      insertSegmentCount++;
+      lexerWrapper.advance();
+    }
+
+    if (staleStart >= 0) {
+      // keep the old tokens after the re-lexed text until they are re-lexed in background, clipping the one the re-lexed text ends in
+      int oldOffset = staleStart - shift;
+      oldEndIndex = mySegments.findSegmentIndex(oldOffset);
+      if (mySegments.getSegmentStart(oldEndIndex) < oldOffset) {
+        // not a lexer result, so it must not be restarted from or converged with
+        IElementType oldTokenType = mySegments.unpackTokenFromData(mySegments.getSegmentData(oldEndIndex));
+        data = mySegments.packData(oldTokenType, myInitialState, false);
+        insertSegments.setElementAt(insertSegmentCount, staleStart, mySegments.getSegmentEnd(oldEndIndex) + shift, data, null);
         insertSegmentCount++;
-        lexerWrapper.advance();
+        oldEndIndex++;
       }
+    }
 
-      if (repaintEnd > 0) {
-        while (insertSegmentCount > 0 && oldEndIndex > startIndex) {
-          if (!segmentsEqual(mySegments, oldEndIndex - 1, insertSegments, insertSegmentCount - 1, shift) || hasAdditionalData(oldEndIndex - 1)) {
-            break;
-          }
-          insertSegmentCount--;
-          oldEndIndex--;
-          repaintEnd = insertSegments.getSegmentStart(insertSegmentCount);
-          insertSegments.remove(insertSegmentCount, insertSegmentCount + 1);
+    if (repaintEnd > 0) {
+      while (insertSegmentCount > 0 && oldEndIndex > startIndex) {
+        if (!segmentsEqual(mySegments, oldEndIndex - 1, insertSegments, insertSegmentCount - 1, shift) || hasAdditionalData(oldEndIndex - 1)) {
+          break;
         }
+        insertSegmentCount--;
+        oldEndIndex--;
+        repaintEnd = insertSegments.getSegmentStart(insertSegmentCount);
+        insertSegments.remove(insertSegmentCount, insertSegmentCount + 1);
       }
+    }
 
-      if (repaintEnd == -1) {
-        repaintEnd = textLength;
+    if (repaintEnd == -1) {
+      repaintEnd = textLength;
+    }
+
+    if (oldEndIndex < 0) {
+      oldEndIndex = mySegments.getSegmentCount();
+    }
+    // the range of the old text whose tokens are replaced
+    int changedStart = Math.min(oldStartOffset, mySegments.getSegmentStart(startIndex));
+    int changedEnd = Math.max(oldStartOffset + oldLength, oldEndIndex < mySegments.getSegmentCount() ? mySegments.getSegmentStart(oldEndIndex) : textLength - shift);
+    mySegments.shiftSegments(oldEndIndex, shift);
+    mySegments.replace(startIndex, oldEndIndex, insertSegments);
+    updateStaleTokens(changedStart, changedEnd, shift, staleStart);
+
+    if (insertSegmentCount == 0 || oldEndIndex == startIndex + 1 && insertSegmentCount == 1 && data == mySegments.getSegmentData(startIndex)) {
+      return null;
+    }
+
+    return new TextRange(startOffset, repaintEnd);
+  }
+
+  /**
+   * Whether a change may leave the text after the changed part to be re-lexed in background.
+   * Not supported for {@link RestartableLexer}s, which tell restartable tokens by their state, so a clipped old token can't be marked
+   * as non-restartable, for custom data storages, which may keep more than the token type and restartability, and for custom segments,
+   * which can't be copied.
+   */
+  protected boolean canRelexInBackground() {
+    return !(myLexer instanceof RestartableLexer) &&
+           mySegments.getClass() == SegmentArrayWithData.class &&
+           mySegments.createStorage().getClass() == ShortBasedStorage.class;
+  }
+
+  private boolean mayRelexInBackground() {
+    return ourBackgroundRelexing && myEditor != null && canRelexInBackground();
+  }
+
+  @Nullable
+  private Lexer getRelexingLexer() {
+    if (!myRelexingLexerCreated) {
+      myRelexingLexerCreated = true;
+      Lexer lexer = myHighlighter.getHighlightingLexer();
+      myRelexingLexer = lexer != myLexer ? lexer : null;
+    }
+    return myRelexingLexer;
+  }
+
+  private void segmentsReset() {
+    myStaleStart = -1;
+    cancelRelexing();
+  }
+
+  /**
+   * Called after a change has replaced the tokens in the given range of the old text.
+   *
+   * @param staleStart start of the tokens the change has left stale, or -1
+   */
+  private void updateStaleTokens(int changedStart, int changedEnd, int shift, int staleStart) {
+    if (myStaleStart >= 0) {
+      int staleEnd = myStaleEnd;
+      if (changedEnd <= myStaleEnd) {
+        myStaleEnd += shift;
+      }
+      if (changedStart < myStaleStart && changedEnd > myStaleStart) {
+        // re-lexed from an up to date token over the stale start until it converged with a stale token or stopped at a new stale start
+        cancelRelexing();
+        if (staleStart < 0 && changedEnd >= staleEnd) {
+          myStaleStart = -1;
+        }
+        else {
+          myStaleStart = changedEnd + shift;
+          myStaleStartRestartable = true;
+        }
+      }
+      else {
+        if (changedEnd <= myStaleStart) {
+          myStaleStart += shift;
+        }
+        if (myRelexingSlice != null) {
+          myRelexingSlice.segmentsChanged(changedStart, changedEnd, shift);
+        }
       }
+    }
+    if (staleStart >= 0) {
+      myStaleEnd = myStaleStart < 0 ? staleStart : Math.max(myStaleEnd, staleStart);
+      if (myStaleStart < 0 || staleStart <= myStaleStart) {
+        myStaleStart = staleStart;
+        myStaleStartRestartable = true;
+        cancelRelexing();
+      }
+    }
+  }
+
+  private void cancelRelexing() {
+    if (myRelexingSlice != null) {
+      myRelexingSlice.myCancelled = true;
+      myRelexingSlice = null;
+    }
+  }
+
+  /**
+   * Re-lexes the next slice of the stale tokens in background, from the last restartable token at or before the stale start.
+   */
+  private void scheduleRelexing() {
+    cancelRelexing();
+    if (myStaleStart >= myText.length()) {
+      myStaleStart = -1;
+      return;
+    }
+    int startIndex = mySegments.findSegmentIndex(myStaleStart);
+    while (startIndex > 0) {
+      int start = mySegments.getSegmentStart(startIndex);
+      if (start < myStaleStart ? isInitialState(mySegments.getSegmentData(startIndex)) : start == myStaleStart && myStaleStartRestartable) break;
+      startIndex--;
+    }
+    Lexer lexer = getRelexingLexer();
+    assert lexer != null;
+    int sliceTokens = Math.max(RELEXING_SLICE_TOKENS, mySegments.getSegmentCount() / RELEXING_SLICES_PER_SEGMENTS);
+    myRelexingSlice = new RelexingSlice(lexer, myText, new SegmentArrayWithData(mySegments.createStorage()), mySegments.getSegmentStart(startIndex), myStaleStart,
+                                        sliceTokens, ModalityState.defaultModalityState());
+    ourRelexingExecutor.execute(myRelexingSlice::run);
+  }
 
-      if (oldEndIndex < 0) {
-        oldEndIndex = mySegments.getSegmentCount();
+  /**
+   * Replaces the tokens from the given one with the tokens re-lexed in background, up to where they converge with the stale tokens,
+   * in a copy of the segments which then replaces them.
+   *
+   * @param endOffset the start of the restartable token the re-lexed ones end at
+   */
+  private void replaceStaleTokens(int startIndex, @Nonnull SegmentArrayWithData newSegments, int endOffset) {
+    SegmentArrayWithData segments = mySegments.copy();
+    int count = newSegments.getSegmentCount();
+    int oldEndIndex = -1;
+    for (int i = 0; i < count; i++) {
+      int tokenStart = newSegments.getSegmentStart(i);
+      int data = newSegments.getSegmentData(i);
+      if (tokenStart >= myStaleEnd && isInitialState(data)) {
+        int index = segments.findSegmentIndex(tokenStart);
+        if (segments.getSegmentStart(index) == tokenStart && segments.getSegmentData(index) == data) {
+          newSegments.remove(i, count);
+          oldEndIndex = index;
+          endOffset = tokenStart;
+          break;
+        }
+      }
+    }
+    boolean upToDate = oldEndIndex >= 0 || endOffset >= myText.length();
+    if (oldEndIndex < 0) {
+      oldEndIndex = segments.getSegmentCount();
+      if (endOffset < myText.length()) {
+        oldEndIndex = segments.findSegmentIndex(endOffset);
+        if (segments.getSegmentStart(oldEndIndex) < endOffset) {
+          // clipped the same way as the stale tokens a change leaves
+          IElementType oldTokenType = segments.unpackTokenFromData(segments.getSegmentData(oldEndIndex));
+          int data = segments.packData(oldTokenType, myInitialState, false);
+          newSegments.setElementAt(newSegments.getSegmentCount(), endOffset, segments.getSegmentEnd(oldEndIndex), data, null);
+          oldEndIndex++;
+        }
       }
-      mySegments.shiftSegments(oldEndIndex, shift);
-      mySegments.replace(startIndex, oldEndIndex, insertSegments);
+    }
+    int startOffset = segments.getSegmentStart(startIndex);
+    segments.replace(startIndex, oldEndIndex, newSegments);
+    mySegments = segments;
+    myStaleStart = upToDate ? -1 : endOffset;
+    myStaleStartRestartable = true;
+    myStaleEnd = Math.max(myStaleEnd, endOffset);
+    myEditor.repaint(startOffset, endOffset);
+  }
+
+  /**
+   * Re-lexes a snapshot of the text from a restartable token, at least the given number of tokens and past the stale start,
+   * up to the next restartable token. Changes made meanwhile before the slice only shift it, the ones after its end don't affect it either,
+   * so the slice is thrown away only if a change has touched the text it has lexed.
+   */
+  private class RelexingSlice {
+    private final Lexer myRelexer;
+    private final CharSequence myTextSnapshot;
+    private final SegmentArrayWithData myNewSegments;
+    private final int myStartOffset;
+    private final int myStaleOffset;
+    private final int mySliceTokens;
+    // the modality of the editor's changes, so that the slice isn't applied under a modal dialog opened later
+    private final ModalityState myModality;
+    // the following are in EDT under the highlighter lock: the shift of the slice by later changes before it,
+    // and the first offset in the snapshot changed after it was taken
+    private int myShift;
+    private int myDirtyFrom = Integer.MAX_VALUE;
+    private volatile boolean myCancelled;
+
+    private RelexingSlice(@Nonnull Lexer lexer,
+                          @Nonnull CharSequence text,
+                          @Nonnull SegmentArrayWithData newSegments,
+                          int startOffset,
+                          int staleStart,
+                          int sliceTokens,
+                          @Nonnull ModalityState modality) {
+      myRelexer = lexer;
+      myTextSnapshot = text;
+      myNewSegments = newSegments;
+      myStartOffset = startOffset;
+      myStaleOffset = staleStart;
+      mySliceTokens = sliceTokens;
+      myModality = modality;
+    }
 
-      if (insertSegmentCount == 0 || oldEndIndex == startIndex + 1 && insertSegmentCount == 1 && data == mySegments.getSegmentData(startIndex)) {
+    private void segmentsChanged(int changedStart, int changedEnd, int shift) {
+      if (changedEnd <= myStartOffset + myShift) {
+        myShift += shift;
         return;
       }
+      // offsets before the first changed one are the same in the snapshot, except for the shift
+      myDirtyFrom = Math.min(myDirtyFrom, changedStart - myShift);
+      if (myDirtyFrom <= myStaleOffset) {
+        // the slice ends after the stale start, so it can't be applied anyway
+        cancelRelexing();
+      }
+    }
 
-      myEditor.repaint(startOffset, repaintEnd);
+    private void run() {
+      if (myCancelled) return;
+      int endOffset = myTextSnapshot.length();
+      try {
+        myRelexer.start(myTextSnapshot, myStartOffset, myTextSnapshot.length(), myInitialState);
+        Lexer lexerWrapper = new ValidatingLexerWrapper(myRelexer);
+        int count = 0;
+        for (IElementType tokenType = lexerWrapper.getTokenType(); tokenType != null; tokenType = lexerWrapper.getTokenType()) {
+          if (count % 1024 == 0 && myCancelled) return;
+          int lexerState = lexerWrapper.getState();
+          int tokenStart = lexerWrapper.getTokenStart();
+          if (count >= mySliceTokens && tokenStart > myStaleOffset && canRestart(lexerState)) {
+            endOffset = tokenStart;
+            break;
+          }
+          myNewSegments.setElementAt(count, tokenStart, lexerWrapper.getTokenEnd(), myNewSegments.packData(tokenType, lexerState, canRestart(lexerState)), null);
+          count++;
+          lexerWrapper.advance();
+        }
+      }
+      catch (ProcessCanceledException e) {
+        // not a lexer failure, the slice is lexed again
+        ApplicationManager.getApplication().invokeLater(this::restart, myModality);
+        return;
+      }
+      catch (RuntimeException e) {
+        // the stale tokens stay until the next change
+        myCancelled = true;
+        LOG.error("Error re-lexing with " + myRelexer.getClass().getName() + " in background", e);
+        return;
+      }
+      int sliceEnd = endOffset;
+      ApplicationManager.getApplication().invokeLater(() -> apply(sliceEnd), myModality);
     }
-    catch (ProcessCanceledException ex) {
-      myText = null;
-      mySegments.removeAll();
-      throw ex;
+
+    private void restart() {
+      synchronized (LexerEditorHighlighter.this) {
+        if (!myCancelled && myRelexingSlice == this) {
+          scheduleRelexing();
+        }
+      }
     }
-    catch (RuntimeException ex) {
-      throw new InvalidStateException(this, "Error updating  after " + e, ex);
+
+    private void apply(int endOffset) {
+      synchronized (LexerEditorHighlighter.this) {
+        if (myCancelled) return;
+        myRelexingSlice = null;
+        // the last token may depend on the character after it
+        if (myDirtyFrom > endOffset) {
+          int startOffset = myStartOffset + myShift;
+          int startIndex = mySegments.findSegmentIndex(startOffset);
+          if (mySegments.getSegmentStart(startIndex) == startOffset) {
+            myNewSegments.shiftSegments(0, myShift);
+            replaceStaleTokens(startIndex, myNewSegments, endOffset + myShift);
+          }
+        }
+        if (myStaleStart >= 0) {
+          scheduleRelexing();
+        }
+      }
     }
   }
 
+  /**
+   * @return whether background re-lexing was enabled before
+   */
+  @TestOnly
+  public static boolean setBackgroundRelexing(boolean enabled) {
+    boolean old = ourBackgroundRelexing;
+    ourBackgroundRelexing = enabled;
+    return old;
+  }
+
+  @TestOnly
+  public synchronized boolean hasStaleTokens() {
+    return myStaleStart >= 0;
+  }
+
+  @TestOnly
+  public synchronized int getStaleTokensStart() {
+    return myStaleStart;
+  }
+
   @Nonnull
   private TokenIterator createTokenIterator(int start) {
     return new TokenIterator() {
@@ -448,6 +805,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     myText = text;
     mySegments = tempSegments;
+    segmentsReset();
     processor.finish();
 
     if (textLength > 0 && (mySegments.mySegmentCount == 0 || mySegments.myEnds[mySegments.mySegmentCount - 1] != textLength)) {
@@ -602,6 +960,8 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   }
 
   public class HighlighterIteratorImpl implements HighlighterIterator {
+    // the segments as of the iterator creation: re-lexed slices are applied to a copy of them
+    private final SegmentArrayWithData mySegments = LexerEditorHighlighter.this.mySegments;
     private int mySegmentIndex;
 
     HighlighterIteratorImpl(int startOffset) {
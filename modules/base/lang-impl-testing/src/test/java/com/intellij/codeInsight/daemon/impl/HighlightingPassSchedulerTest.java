@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon.impl;
+
+import com.intellij.codeInsight.daemon.impl.HighlightingPassScheduler.Lane;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.util.AbstractProgressIndicatorBase;
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lane ordering, cancellation and worker handoff of {@link HighlightingPassScheduler}. Workers are started on a manual executor,
+ * so the test decides when and on which thread they run.
+ */
+public class HighlightingPassSchedulerTest extends TestCase {
+  private final Deque<Runnable> myWorkers = new ArrayDeque<>();
+  private final Executor myExecutor = myWorkers::add;
+  private final AbstractProgressIndicatorBase mySession = new AbstractProgressIndicatorBase();
+  private final List<String> myLog = Collections.synchronizedList(new ArrayList<>());
+
+  public void testLaneOrder() {
+    HighlightingPassScheduler scheduler = new HighlightingPassScheduler(myExecutor, 1);
+    scheduler.schedule(Lane.BACKGROUND, mySession, log("background 1"));
+    scheduler.schedule(Lane.FOCUSED_FILE, mySession, log("focused file 1"));
+    scheduler.schedule(Lane.FOCUSED_VISIBLE, mySession, log("focused visible"));
+    scheduler.schedule(Lane.BACKGROUND, mySession, log("background 2"));
+    scheduler.schedule(Lane.FOCUSED_FILE, mySession, log("focused file 2"));
+    assertEquals(1, myWorkers.size());
+
+    runWorkers();
+    assertEquals(Arrays.asList("focused visible", "focused file 1", "focused file 2", "background 1", "background 2"), myLog);
+  }
+
+  public void testCancelRemovesQueuedTask() throws Exception {
+    HighlightingPassScheduler scheduler = new HighlightingPassScheduler(myExecutor, 1);
+    HighlightingPassScheduler.Task first = scheduler.schedule(Lane.FOCUSED_VISIBLE, mySession, log("first"));
+    HighlightingPassScheduler.Task second = scheduler.schedule(Lane.FOCUSED_VISIBLE, mySession, log("second"));
+
+    first.cancel();
+    assertTrue(first.isCanceled());
+    // nobody will run a removed task, so it's done right away and waiting for it doesn't hang
+    assertTrue(first.isDone());
+    first.waitForCompletion(0);
+    assertFalse(second.isDone());
+
+    runWorkers();
+    assertEquals(Collections.singletonList("second"), myLog);
+    assertTrue(second.isDone());
+  }
+
+  public void testCanceledSessionSkipsTasks() throws Exception {
+    HighlightingPassScheduler scheduler = new HighlightingPassScheduler(myExecutor, 1);
+    AbstractProgressIndicatorBase otherSession = new AbstractProgressIndicatorBase();
+    HighlightingPassScheduler.Task canceled = scheduler.schedule(Lane.FOCUSED_VISIBLE, mySession, log("canceled session"));
+    HighlightingPassScheduler.Task alive = scheduler.schedule(Lane.BACKGROUND, otherSession, log("other session"));
+
+    mySession.cancel();
+    runWorkers();
+    assertEquals(Collections.singletonList("other session"), myLog);
+    assertTrue(canceled.isDone());
+    canceled.waitForCompletion(0);
+    assertTrue(alive.isDone());
+  }
+
+  public void testCancelWhileRunning() throws Exception {
+    HighlightingPassScheduler scheduler = new HighlightingPassScheduler(myExecutor, 1);
+    AtomicInteger runs = new AtomicInteger();
+    HighlightingPassScheduler.Task[] task = new HighlightingPassScheduler.Task[1];
+    task[0] = scheduler.schedule(Lane.FOCUSED_VISIBLE, mySession, () -> {
+      runs.incrementAndGet();
+      task[0].cancel();
+      // the running pass notices the cancellation itself
+      assertFalse(task[0].isDone());
+      throw new ProcessCanceledException();
+    });
+
+    runWorkers();
+    assertEquals(1, runs.get());
+    assertTrue(task[0].isDone());
+    task[0].waitForCompletion(0);
+  }
+
+  public void testWorkersAreBounded() {
+    HighlightingPassScheduler scheduler = new HighlightingPassScheduler(myExecutor, 2);
+    for (int i = 0; i < 5; i++) {
+      scheduler.schedule(Lane.BACKGROUND, mySession, log("task " + i));
+    }
+    assertEquals(2, myWorkers.size());
+
+    // the first worker drains the queue, the second one finds nothing and exits
+    myWorkers.poll().run();
+    assertEquals(5, myLog.size());
+    myWorkers.poll().run();
+    assertEquals(5, myLog.size());
+    assertTrue(myWorkers.isEmpty());
+
+    // both workers are gone, so a new task starts a new one
+    scheduler.schedule(Lane.BACKGROUND, mySession, log("task 5"));
+    assertEquals(1, myWorkers.size());
+    runWorkers();
+    assertEquals(6, myLog.size());
+  }
+
+  public void testTaskScheduledByRunningTask() {
+    HighlightingPassScheduler scheduler = new HighlightingPassScheduler(myExecutor, 1);
+    scheduler.schedule(Lane.BACKGROUND, mySession, () -> {
+      myLog.add("outer");
+      // all workers are busy: the running worker takes the new task when it polls again
+      scheduler.schedule(Lane.FOCUSED_VISIBLE, mySession, log("inner"));
+      assertEquals(0, myWorkers.size());
+    });
+
+    assertEquals(1, myWorkers.size());
+    myWorkers.poll().run();
+    assertEquals(Arrays.asList("outer", "inner"), myLog);
+    assertTrue(myWorkers.isEmpty());
+  }
+
+  public void testConcurrentSchedulingRunsEverything() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      HighlightingPassScheduler scheduler = new HighlightingPassScheduler(pool, 3);
+      AtomicInteger runs = new AtomicInteger();
+      List<HighlightingPassScheduler.Task> tasks = Collections.synchronizedList(new ArrayList<>());
+      List<Thread> schedulers = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        Lane lane = Lane.values()[t % Lane.values().length];
+        Thread thread = new Thread(() -> {
+          for (int i = 0; i < 2000; i++) {
+            tasks.add(scheduler.schedule(lane, mySession, runs::incrementAndGet));
+          }
+        });
+        schedulers.add(thread);
+        thread.start();
+      }
+      for (Thread thread : schedulers) {
+        thread.join();
+      }
+
+      // a task queued while the last worker was leaving must not be stranded
+      for (HighlightingPassScheduler.Task task : tasks) {
+        task.waitForCompletion(10_000);
+      }
+      assertEquals(tasks.size(), runs.get());
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private void runWorkers() {
+    Runnable worker;
+    while ((worker = myWorkers.poll()) != null) {
+      worker.run();
+    }
+  }
+
+  private Runnable log(String name) {
+    return () -> myLog.add(name);
+  }
+}
@@ -197,6 +197,107 @@ public class PsiBuilderQuickTest extends MockApplicationTestCase {
        "    PsiElement(DIGIT)('1')\n");
   }
 
+  public void testErrorItemsReusedAfterRollbackAndDrop() {
+    doTest("a1b2", new Parser() {
+      @Override
+      public void parse(PsiBuilder builder) {
+        IElementType tokenType;
+        while ((tokenType = builder.getTokenType()) != null) {
+          final PsiBuilder.Marker attempt = builder.mark();
+          builder.mark().done(OTHER);
+          builder.error("attempt failed");
+          builder.advanceLexer();
+          assertTrue(((PsiBuilderImpl)builder).hasErrorsAfter(attempt));
+          attempt.rollbackTo();
+
+          builder.mark().drop();
+          final PsiBuilder.Marker marker = builder.mark();
+          builder.advanceLexer();
+          assertFalse(((PsiBuilderImpl)builder).hasErrorsAfter(marker));
+          marker.done(tokenType);
+        }
+      }
+    }, "Element(ROOT)\n" +
+       "  Element(LETTER)\n" +
+       "    PsiElement(LETTER)('a')\n" +
+       "  Element(DIGIT)\n" +
+       "    PsiElement(DIGIT)('1')\n" +
+       "  Element(LETTER)\n" +
+       "    PsiElement(LETTER)('b')\n" +
+       "  Element(DIGIT)\n" +
+       "    PsiElement(DIGIT)('2')\n");
+  }
+
+  public void testStartMarkersReusedAfterManyRollbacks() {
+    doTest("a1b2", new Parser() {
+      @Override
+      public void parse(PsiBuilder builder) {
+        IElementType tokenType;
+        while ((tokenType = builder.getTokenType()) != null) {
+          // enough released markers for them to be reused, done ones included
+          for (int i = 0; i < 300; i++) {
+            final PsiBuilder.Marker attempt = builder.mark();
+            builder.mark().done(OTHER);
+            builder.advanceLexer();
+            attempt.rollbackTo();
+          }
+          final PsiBuilder.Marker marker = builder.mark();
+          builder.advanceLexer();
+          marker.done(tokenType);
+        }
+      }
+    }, "Element(ROOT)\n" +
+       "  Element(LETTER)\n" +
+       "    PsiElement(LETTER)('a')\n" +
+       "  Element(DIGIT)\n" +
+       "    PsiElement(DIGIT)('1')\n" +
+       "  Element(LETTER)\n" +
+       "    PsiElement(LETTER)('b')\n" +
+       "  Element(DIGIT)\n" +
+       "    PsiElement(DIGIT)('2')\n");
+  }
+
+  public void testRolledBackMarkerIsNotReused() {
+    doFailTest("a", new Parser() {
+      @Override
+      public void parse(PsiBuilder builder) {
+        final PsiBuilder.Marker outer = builder.mark();
+        final PsiBuilder.Marker inner = builder.mark();
+        builder.advanceLexer();
+        outer.rollbackTo();
+        assertNotSame(inner, builder.mark());
+        inner.done(LETTER);
+      }
+    }, "Marker was dropped or rolled back.");
+  }
+
+  public void testDroppedMarkerIsNotReused() {
+    doFailTest("a", new Parser() {
+      @Override
+      public void parse(PsiBuilder builder) {
+        final PsiBuilder.Marker dropped = builder.mark();
+        dropped.drop();
+        final PsiBuilder.Marker marker = builder.mark();
+        assertNotSame(dropped, marker);
+        builder.advanceLexer();
+        dropped.done(LETTER);
+      }
+    }, "Marker was dropped or rolled back.");
+  }
+
+  public void testStaleMarkerDoesNotDropMarkerWithItsId() {
+    doFailTest("a", new Parser() {
+      @Override
+      public void parse(PsiBuilder builder) {
+        final PsiBuilder.Marker dropped = builder.mark();
+        dropped.drop();
+        // the dropped marker isn't reused right away, so the new one has another id
+        builder.mark();
+        dropped.drop();
+      }
+    }, "The marker must be added before it is dropped.");
+  }
+
   public void testValidityChecksOnDone() {
     doFailTest("a", new Parser() {
       @Override
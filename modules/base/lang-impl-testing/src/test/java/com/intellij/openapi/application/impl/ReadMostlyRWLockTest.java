@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.application.impl;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reader/writer exclusion and nested reads of {@link ReadMostlyRWLock}, with and without striped readers. Readers use
+ * {@link ReadMostlyRWLock#tryReadLock()}, since a blocking read lock checks for cancellation and needs a running application.
+ */
+public class ReadMostlyRWLockTest extends TestCase {
+  public void testReaderHoldsOffWriter() throws Exception {
+    doTestReaderHoldsOffWriter(false);
+    doTestReaderHoldsOffWriter(true);
+  }
+
+  private static void doTestReaderHoldsOffWriter(boolean striped) throws Exception {
+    ReadMostlyRWLock lock = new ReadMostlyRWLock(striped);
+    assertTrue(lock.tryReadLock());
+
+    CountDownLatch writeLocked = new CountDownLatch(1);
+    Thread writer = startWriter(lock, () -> writeLocked.countDown());
+    assertFalse(writeLocked.await(200, TimeUnit.MILLISECONDS));
+    assertFalse(lock.isWriteLocked());
+    assertTrue(lock.isReadLockedByThisThread());
+
+    lock.readUnlock();
+    assertTrue(writeLocked.await(10, TimeUnit.SECONDS));
+    writer.join(10_000);
+    assertFalse(writer.isAlive());
+  }
+
+  public void testWriterHoldsOffReaders() throws Exception {
+    doTestWriterHoldsOffReaders(false);
+    doTestWriterHoldsOffReaders(true);
+  }
+
+  private static void doTestWriterHoldsOffReaders(boolean striped) throws Exception {
+    ReadMostlyRWLock lock = new ReadMostlyRWLock(striped);
+    CountDownLatch writeLocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread writer = startWriter(lock, () -> {
+      writeLocked.countDown();
+      await(release);
+    });
+    assertTrue(writeLocked.await(10, TimeUnit.SECONDS));
+    assertTrue(lock.isWriteLocked());
+
+    assertFalse(lock.tryReadLock());
+    assertFalse(lock.isReadLockedByThisThread());
+    AtomicBoolean locked = new AtomicBoolean(true);
+    Thread reader = new Thread(() -> locked.set(lock.tryReadLock()));
+    reader.start();
+    reader.join(10_000);
+    assertFalse(locked.get());
+
+    release.countDown();
+    writer.join(10_000);
+    assertFalse(writer.isAlive());
+    assertTrue(lock.tryReadLock());
+    lock.readUnlock();
+  }
+
+  public void testNestedRead() throws Exception {
+    doTestNestedRead(false);
+    doTestNestedRead(true);
+  }
+
+  private static void doTestNestedRead(boolean striped) throws Exception {
+    ReadMostlyRWLock lock = new ReadMostlyRWLock(striped);
+    assertTrue(lock.tryReadLock());
+    assertTrue(lock.tryReadLock());
+    assertTrue(lock.isReadLockedByThisThread());
+
+    // a read lock isn't counted: the first unlock releases it, in both modes, so a writer doesn't wait for a lock nobody holds
+    lock.readUnlock();
+    assertFalse(lock.isReadLockedByThisThread());
+    CountDownLatch writeLocked = new CountDownLatch(1);
+    Thread writer = startWriter(lock, () -> writeLocked.countDown());
+    assertTrue(writeLocked.await(10, TimeUnit.SECONDS));
+    writer.join(10_000);
+    assertFalse(writer.isAlive());
+
+    assertTrue(lock.tryReadLock());
+    lock.readUnlock();
+  }
+
+  public void testReadFromWriteThread() throws Exception {
+    doTestReadFromWriteThread(false);
+    doTestReadFromWriteThread(true);
+  }
+
+  private static void doTestReadFromWriteThread(boolean striped) throws Exception {
+    ReadMostlyRWLock lock = new ReadMostlyRWLock(striped);
+    AtomicReference<Throwable> error = new AtomicReference<>();
+    Thread writer = startWriter(lock, () -> {
+      try {
+        lock.tryReadLock();
+      }
+      catch (Throwable e) {
+        error.set(e);
+      }
+    });
+    writer.join(10_000);
+    assertTrue(String.valueOf(error.get()), error.get() instanceof IllegalStateException);
+    assertFalse(lock.isWriteLocked());
+  }
+
+  public void testDeadReadersDontHoldOffWriter() throws Exception {
+    doTestDeadReadersDontHoldOffWriter(false);
+    doTestDeadReadersDontHoldOffWriter(true);
+  }
+
+  private static void doTestDeadReadersDontHoldOffWriter(boolean striped) throws Exception {
+    ReadMostlyRWLock lock = new ReadMostlyRWLock(striped);
+    for (int i = 0; i < 100; i++) {
+      Thread reader = new Thread(() -> {
+        assertTrue(lock.tryReadLock());
+        lock.readUnlock();
+      });
+      reader.start();
+      reader.join(10_000);
+    }
+
+    CountDownLatch writeLocked = new CountDownLatch(1);
+    Thread writer = startWriter(lock, () -> writeLocked.countDown());
+    assertTrue(writeLocked.await(10, TimeUnit.SECONDS));
+    writer.join(10_000);
+    assertFalse(writer.isAlive());
+  }
+
+  public void testConcurrentReadersAndWriter() throws Exception {
+    doTestConcurrentReadersAndWriter(false);
+    doTestConcurrentReadersAndWriter(true);
+  }
+
+  private static void doTestConcurrentReadersAndWriter(boolean striped) throws Exception {
+    ReadMostlyRWLock lock = new ReadMostlyRWLock(striped);
+    AtomicInteger activeReaders = new AtomicInteger();
+    AtomicBoolean writing = new AtomicBoolean();
+    AtomicInteger violations = new AtomicInteger();
+    AtomicInteger reads = new AtomicInteger();
+    AtomicBoolean stop = new AtomicBoolean();
+
+    List<Thread> readers = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      Thread reader = new Thread(() -> {
+        while (!stop.get()) {
+          if (!lock.tryReadLock()) {
+            Thread.yield();
+            continue;
+          }
+          try {
+            activeReaders.incrementAndGet();
+            if (writing.get()) violations.incrementAndGet();
+            reads.incrementAndGet();
+            activeReaders.decrementAndGet();
+          }
+          finally {
+            lock.readUnlock();
+          }
+        }
+      });
+      readers.add(reader);
+      reader.start();
+    }
+    // short-living readers, which are what the striped mode is for
+    Thread spawner = new Thread(() -> {
+      while (!stop.get()) {
+        Thread reader = new Thread(() -> {
+          if (lock.tryReadLock()) {
+            try {
+              if (writing.get()) violations.incrementAndGet();
+            }
+            finally {
+              lock.readUnlock();
+            }
+          }
+        });
+        reader.start();
+        try {
+          reader.join();
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+      }
+    });
+    spawner.start();
+
+    AtomicInteger writes = new AtomicInteger();
+    Thread writer = new Thread(() -> {
+      lock.writeIntentLock();
+      try {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < deadline) {
+          lock.writeLock();
+          try {
+            writing.set(true);
+            if (activeReaders.get() != 0) violations.incrementAndGet();
+            writes.incrementAndGet();
+            writing.set(false);
+          }
+          finally {
+            lock.writeUnlock();
+          }
+        }
+      }
+      finally {
+        lock.writeIntentUnlock();
+      }
+    });
+    writer.start();
+    writer.join(30_000);
+    assertFalse(writer.isAlive());
+    stop.set(true);
+    spawner.join(10_000);
+    for (Thread reader : readers) {
+      reader.join(10_000);
+    }
+
+    assertEquals(0, violations.get());
+    assertTrue(writes.get() > 0);
+    assertTrue(reads.get() > 0);
+  }
+
+  private static Thread startWriter(ReadMostlyRWLock lock, Runnable underWriteLock) {
+    Thread writer = new Thread(() -> {
+      lock.writeIntentLock();
+      try {
+        lock.writeLock();
+        try {
+          underWriteLock.run();
+        }
+        finally {
+          lock.writeUnlock();
+        }
+      }
+      finally {
+        lock.writeIntentUnlock();
+      }
+    });
+    writer.start();
+    return writer;
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
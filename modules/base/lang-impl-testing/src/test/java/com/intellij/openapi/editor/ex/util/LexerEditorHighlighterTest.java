@@ -0,0 +1,386 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.highlighter.HighlighterClient;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.util.ui.UIUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A change which makes {@link LexerEditorHighlighter} re-lex too many tokens leaves the rest to be re-lexed in background, slice by slice:
+ * meanwhile the highlighter keeps returning real tokens covering the whole text, and once the background re-lexing is applied
+ * the tokens are the same as after lexing the text from scratch.
+ */
+public class LexerEditorHighlighterTest extends LightPlatformTestCase {
+  private static final IElementType STRING = new IElementType("STRING", Language.ANY);
+  private static final IElementType WORD = new IElementType("WORD", Language.ANY);
+  private static final IElementType SPACE = new IElementType("SPACE", Language.ANY);
+  private static final IElementType OTHER = new IElementType("OTHER", Language.ANY);
+
+  private static final int GATE_PERMITS = 1_000_000;
+
+  private Document myDocument;
+  private LexerEditorHighlighter myHighlighter;
+  // taken by every background re-lexing slice before it starts
+  private final Semaphore myGate = new Semaphore(GATE_PERMITS);
+  private boolean myOldBackgroundRelexing;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myOldBackgroundRelexing = LexerEditorHighlighter.setBackgroundRelexing(true);
+    StringBuilder text = new StringBuilder();
+    // 4 tokens each, so that changing the parity of quotes re-lexes more tokens than is done synchronously, and in several slices
+    for (int i = 0; i < 20_000; i++) {
+      text.append("\"x\" y ");
+    }
+    myDocument = new DocumentImpl(text);
+    myHighlighter = new LexerEditorHighlighter(new TestSyntaxHighlighter(myGate), EditorColorsManager.getInstance().getGlobalScheme());
+    myHighlighter.setEditor(new HighlighterClient() {
+      @Override
+      public Project getProject() {
+        return LexerEditorHighlighterTest.this.getProject();
+      }
+
+      @Override
+      public void repaint(int start, int end) {
+      }
+
+      @Override
+      public Document getDocument() {
+        return myDocument;
+      }
+    });
+    myHighlighter.setText(myDocument.getImmutableCharSequence());
+    myDocument.addDocumentListener(myHighlighter);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myDocument.removeDocumentListener(myHighlighter);
+      myGate.release(GATE_PERMITS);
+      waitForRelexing();
+    }
+    finally {
+      LexerEditorHighlighter.setBackgroundRelexing(myOldBackgroundRelexing);
+      myDocument = null;
+      myHighlighter = null;
+      super.tearDown();
+    }
+  }
+
+  public void testStaleTokensAreReplacedInBackground() throws Exception {
+    insert(0, "\"");
+    assertTrue(myHighlighter.hasStaleTokens());
+    checkTokensCoverText();
+    // the tokens up to the stale ones are re-lexed synchronously
+    List<Token> expected = lex();
+    List<Token> actual = tokens();
+    for (int i = 0; i < 20_000; i++) {
+      assertEquals(expected.get(i), actual.get(i));
+    }
+
+    waitForRelexing();
+    assertFalse(myHighlighter.hasStaleTokens());
+    assertEquals(lex(), tokens());
+  }
+
+  public void testChangesWhileTokensAreStale() throws Exception {
+    insert(0, "\"");
+    assertTrue(myHighlighter.hasStaleTokens());
+    // before the stale tokens, inside them and at the end of the text
+    insert(10, "\"");
+    insert(myDocument.getTextLength() / 2, "z \"");
+    insert(myDocument.getTextLength(), "\" w");
+    checkTokensCoverText();
+
+    waitForRelexing();
+    assertFalse(myHighlighter.hasStaleTokens());
+    assertEquals(lex(), tokens());
+  }
+
+  public void testChangeReplacingStaleTokens() throws Exception {
+    insert(0, "\"");
+    assertTrue(myHighlighter.hasStaleTokens());
+    // restores the parity of quotes, so the stale tokens are right again and the change converges with them
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> myDocument.deleteString(0, 1));
+    checkTokensCoverText();
+
+    waitForRelexing();
+    assertFalse(myHighlighter.hasStaleTokens());
+    assertEquals(lex(), tokens());
+  }
+
+  public void testTypingDuringRelexing() throws Exception {
+    myGate.drainPermits();
+    insert(0, "\"");
+    int staleStart = myHighlighter.getStaleTokensStart();
+    assertTrue(staleStart > 0);
+
+    // typing before the slice being re-lexed only shifts it, typing far after it doesn't affect it
+    for (int i = 0; i < 10; i++) {
+      insert(4, "z");
+      insert(myDocument.getTextLength() - 1, "w");
+      checkTokensCoverText();
+    }
+    int shiftedStaleStart = staleStart + 10;
+    assertEquals(shiftedStaleStart, myHighlighter.getStaleTokensStart());
+
+    // just one slice is let through, so the stale tokens move only if the slice wasn't restarted
+    myGate.release();
+    waitFor(() -> myHighlighter.getStaleTokensStart() != shiftedStaleStart);
+    int sliceEnd = myHighlighter.getStaleTokensStart();
+    assertTrue(sliceEnd > shiftedStaleStart);
+    checkTokensCoverText();
+    List<Token> expected = lex();
+    List<Token> actual = tokens();
+    for (int i = 0; expected.get(i).start < sliceEnd; i++) {
+      assertEquals(expected.get(i), actual.get(i));
+    }
+
+    // typing inside the next slice makes it re-lexed again
+    insert(sliceEnd + 5, "z");
+    checkTokensCoverText();
+    myGate.release(GATE_PERMITS);
+    waitForRelexing();
+    assertFalse(myHighlighter.hasStaleTokens());
+    assertEquals(lex(), tokens());
+  }
+
+  public void testIteratorKeepsItsSegmentsWhenSliceIsApplied() throws Exception {
+    myGate.drainPermits();
+    insert(0, "\"");
+    List<Token> stale = tokens();
+    HighlighterIterator iterator = myHighlighter.createIterator(0);
+
+    // the slice isn't applied under a write action, so a reader may be using an iterator meanwhile
+    myGate.release();
+    int staleStart = myHighlighter.getStaleTokensStart();
+    waitFor(() -> myHighlighter.getStaleTokensStart() != staleStart);
+
+    List<Token> iterated = new ArrayList<>();
+    for (; !iterator.atEnd(); iterator.advance()) {
+      iterated.add(new Token(iterator.getStart(), iterator.getEnd(), iterator.getTokenType()));
+    }
+    assertEquals(stale, iterated);
+    assertFalse(stale.equals(tokens()));
+  }
+
+  private void insert(int offset, @Nonnull String text) {
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> myDocument.insertString(offset, text));
+  }
+
+  private void waitForRelexing() throws InterruptedException {
+    waitFor(() -> !myHighlighter.hasStaleTokens());
+  }
+
+  private static void waitFor(@Nonnull BooleanSupplier condition) throws InterruptedException {
+    // slices are applied in EDT, which is this thread
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+      UIUtil.dispatchAllInvocationEvents();
+      Thread.sleep(10);
+    }
+  }
+
+  private void checkTokensCoverText() {
+    int offset = 0;
+    for (Token token : tokens()) {
+      assertEquals(offset, token.start);
+      assertTrue(token.type == STRING || token.type == WORD || token.type == SPACE || token.type == OTHER);
+      offset = token.end;
+    }
+    assertEquals(myDocument.getTextLength(), offset);
+  }
+
+  @Nonnull
+  private List<Token> tokens() {
+    List<Token> tokens = new ArrayList<>();
+    for (HighlighterIterator iterator = myHighlighter.createIterator(0); !iterator.atEnd(); iterator.advance()) {
+      tokens.add(new Token(iterator.getStart(), iterator.getEnd(), iterator.getTokenType()));
+    }
+    return tokens;
+  }
+
+  @Nonnull
+  private List<Token> lex() {
+    List<Token> tokens = new ArrayList<>();
+    Lexer lexer = new TestLexer(null);
+    lexer.start(myDocument.getImmutableCharSequence());
+    for (; lexer.getTokenType() != null; lexer.advance()) {
+      tokens.add(new Token(lexer.getTokenStart(), lexer.getTokenEnd(), lexer.getTokenType()));
+    }
+    return tokens;
+  }
+
+  private static class Token {
+    private final int start;
+    private final int end;
+    private final IElementType type;
+
+    private Token(int start, int end, IElementType type) {
+      this.start = start;
+      this.end = end;
+      this.type = type;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Token)) return false;
+      Token token = (Token)o;
+      return start == token.start && end == token.end && type == token.type;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * start + end;
+    }
+
+    @Override
+    public String toString() {
+      return type + "[" + start + ", " + end + ")";
+    }
+  }
+
+  private static class TestSyntaxHighlighter extends SyntaxHighlighterBase {
+    private final Semaphore myGate;
+
+    private TestSyntaxHighlighter(@Nonnull Semaphore gate) {
+      myGate = gate;
+    }
+
+    @Nonnull
+    @Override
+    public Lexer getHighlightingLexer() {
+      return new TestLexer(myGate);
+    }
+
+    @Nonnull
+    @Override
+    public TextAttributesKey[] getTokenHighlights(@Nonnull IElementType tokenType) {
+      return new TextAttributesKey[0];
+    }
+  }
+
+  /**
+   * Strings from a quote to the next one or the end of the text, words, spaces and single other characters; always in the initial state.
+   */
+  private static class TestLexer extends LexerBase {
+    // background re-lexing waits for a permit of it
+    @Nullable
+    private final Semaphore myGate;
+    private CharSequence myBuffer;
+    private int myEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private IElementType myTokenType;
+
+    private TestLexer(@Nullable Semaphore gate) {
+      myGate = gate;
+    }
+
+    @Override
+    public void start(@Nonnull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      if (myGate != null && !ApplicationManager.getApplication().isDispatchThread()) {
+        myGate.acquireUninterruptibly();
+      }
+      myBuffer = buffer;
+      myEnd = endOffset;
+      myTokenEnd = startOffset;
+      advance();
+    }
+
+    @Override
+    public int getState() {
+      return 0;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      myTokenStart = myTokenEnd;
+      if (myTokenStart >= myEnd) {
+        myTokenType = null;
+        return;
+      }
+      char c = myBuffer.charAt(myTokenStart);
+      int end = myTokenStart + 1;
+      if (c == '"') {
+        while (end < myEnd && myBuffer.charAt(end) != '"') end++;
+        if (end < myEnd) end++;
+        myTokenType = STRING;
+      }
+      else if (Character.isLetter(c)) {
+        while (end < myEnd && Character.isLetter(myBuffer.charAt(end))) end++;
+        myTokenType = WORD;
+      }
+      else if (c == ' ') {
+        while (end < myEnd && myBuffer.charAt(end) == ' ') end++;
+        myTokenType = SPACE;
+      }
+      else {
+        myTokenType = OTHER;
+      }
+      myTokenEnd = end;
+    }
+
+    @Nonnull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEnd;
+    }
+  }
+}
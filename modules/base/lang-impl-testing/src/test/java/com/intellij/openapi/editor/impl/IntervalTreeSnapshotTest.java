@@ -0,0 +1,300 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.ex.MarkupIterator;
+import com.intellij.util.Processor;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Queries of a large {@link IntervalTreeImpl} which are served from an {@link IntervalTreeSnapshot} must find the same keys
+ * as a plain scan of all intervals, before and after modifications.
+ */
+public class IntervalTreeSnapshotTest extends TestCase {
+  private static final int SIZE = 4096;
+  private static final int TEXT_LENGTH = 100_000;
+
+  private final Random myRandom = new Random(42);
+  private final TestTree myTree = new TestTree();
+  // the tree keeps keys on weak references
+  private final List<Interval> myIntervals = new ArrayList<>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    for (int i = 0; i < SIZE; i++) {
+      addRandomInterval();
+    }
+  }
+
+  public void testSnapshotIsTakenOnlyAfterEnoughQueries() {
+    for (int i = 0; i < 10; i++) {
+      query(0, 100);
+      assertFalse("a snapshot after " + (i + 1) + " queries doesn't pay off", myTree.hasSnapshot());
+    }
+    warmUp();
+    assertTrue(myTree.hasSnapshot());
+
+    addRandomInterval();
+    assertFalse(myTree.hasSnapshot());
+  }
+
+  public void testQueriesMatchScan() {
+    warmUp();
+    assertTrue(myTree.hasSnapshot());
+    checkQueries();
+  }
+
+  public void testQueriesMatchScanAfterModification() {
+    warmUp();
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 10; i++) {
+        addRandomInterval();
+      }
+      checkQueries();
+      warmUp();
+      assertTrue(myTree.hasSnapshot());
+      checkQueries();
+    }
+  }
+
+  public void testCollectedKeysAreSkipped() {
+    warmUp();
+    assertTrue(myTree.hasSnapshot());
+    List<Interval> alive = new ArrayList<>(myIntervals.subList(0, SIZE / 2));
+    WeakReference<Interval> dropped = new WeakReference<>(myIntervals.get(SIZE - 1));
+    myIntervals.clear();
+    myIntervals.addAll(alive);
+    for (int i = 0; i < 10 && dropped.get() != null; i++) {
+      System.gc();
+    }
+    // the snapshot doesn't keep keys alive
+    assertNull(dropped.get());
+    assertTrue(myTree.hasSnapshot());
+
+    Set<Interval> found = new HashSet<>();
+    myTree.processAll(found::add);
+    assertTrue(found.containsAll(alive));
+  }
+
+  public void testModificationFromProcessorIsDetected() {
+    warmUp();
+    assertTrue(myTree.hasSnapshot());
+    assertThrowsCme(() -> myTree.processAll(interval -> {
+      addRandomInterval();
+      return true;
+    }));
+
+    warmUp();
+    assertTrue(myTree.hasSnapshot());
+    assertThrowsCme(() -> myTree.processOverlappingWith(0, TEXT_LENGTH, interval -> {
+      addRandomInterval();
+      return true;
+    }));
+
+    warmUp();
+    assertTrue(myTree.hasSnapshot());
+    MarkupIterator<Interval> iterator = myTree.overlappingIterator(new TextRangeInterval(0, TEXT_LENGTH), null);
+    try {
+      assertTrue(iterator.hasNext());
+      iterator.next();
+      addRandomInterval();
+      assertThrowsCme(iterator::hasNext);
+    }
+    finally {
+      iterator.dispose();
+    }
+  }
+
+  public void testNodeFilterIsAppliedToTree() {
+    warmUp();
+    assertTrue(myTree.hasSnapshot());
+    // a filter which rejects every node prunes the whole tree
+    MarkupIterator<Interval> iterator = myTree.overlappingIterator(new TextRangeInterval(0, TEXT_LENGTH), node -> false);
+    try {
+      assertFalse(iterator.hasNext());
+    }
+    finally {
+      iterator.dispose();
+    }
+  }
+
+  public void testQueriesWhileOtherThreadModifies() throws Exception {
+    warmUp();
+    AtomicBoolean stop = new AtomicBoolean();
+    AtomicReference<Throwable> error = new AtomicReference<>();
+    List<Thread> readers = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread reader = new Thread(() -> {
+        Random random = new Random();
+        try {
+          while (!stop.get()) {
+            int start = random.nextInt(TEXT_LENGTH);
+            int end = start + random.nextInt(1000);
+            // keys found must really overlap: the intervals never move in this test
+            myTree.processOverlappingWith(start, end, interval -> {
+              assertTrue(Math.max(interval.start, start) <= Math.min(interval.end, end));
+              return true;
+            });
+          }
+        }
+        catch (Throwable e) {
+          error.compareAndSet(null, e);
+        }
+      });
+      readers.add(reader);
+      reader.start();
+    }
+    for (int i = 0; i < 200; i++) {
+      addRandomInterval();
+      Thread.sleep(1);
+    }
+    stop.set(true);
+    for (Thread reader : readers) {
+      reader.join(10_000);
+    }
+    if (error.get() != null) throw new AssertionError(error.get());
+    checkQueries();
+  }
+
+  private void warmUp() {
+    for (int i = 0; i < 10_000 && !myTree.hasSnapshot(); i++) {
+      query(0, 100);
+    }
+  }
+
+  private void checkQueries() {
+    assertEquals(sorted(myIntervals), sorted(collect(myTree::processAll)));
+    for (int i = 0; i < 200; i++) {
+      int start = myRandom.nextInt(TEXT_LENGTH);
+      int end = start + myRandom.nextInt(i % 2 == 0 ? 100 : 10_000);
+      int offset = myRandom.nextInt(TEXT_LENGTH);
+
+      assertEquals(sorted(scan(interval -> Math.max(interval.start, start) <= Math.min(interval.end, end))),
+                   sorted(collect(processor -> myTree.processOverlappingWith(start, end, processor))));
+      assertEquals(sorted(scan(interval -> interval.start < start || interval.end > end)),
+                   sorted(collect(processor -> myTree.processOverlappingWithOutside(start, end, processor))));
+      assertEquals(sorted(scan(interval -> interval.start <= offset && offset < interval.end)),
+                   sorted(collect(processor -> myTree.processContaining(offset, processor))));
+
+      TextRangeInterval range = new TextRangeInterval(start, end);
+      List<Interval> iterated = new ArrayList<>();
+      MarkupIterator<Interval> iterator = myTree.overlappingIterator(range, null);
+      try {
+        while (iterator.hasNext()) {
+          iterated.add(iterator.next());
+        }
+      }
+      finally {
+        iterator.dispose();
+      }
+      assertEquals(sorted(scan(interval -> range.intersects(interval.start, interval.end))), sorted(iterated));
+    }
+  }
+
+  private void query(int start, int end) {
+    myTree.processOverlappingWith(start, end, interval -> true);
+  }
+
+  @Nonnull
+  private List<Interval> scan(@Nonnull Predicate<Interval> condition) {
+    List<Interval> result = new ArrayList<>();
+    for (Interval interval : myIntervals) {
+      if (condition.test(interval)) result.add(interval);
+    }
+    return result;
+  }
+
+  @Nonnull
+  private static List<Interval> collect(@Nonnull Consumer<Processor<Interval>> query) {
+    List<Interval> result = new ArrayList<>();
+    query.accept(interval -> {
+      result.add(interval);
+      return true;
+    });
+    return result;
+  }
+
+  @Nonnull
+  private static List<Integer> sorted(@Nonnull List<Interval> intervals) {
+    List<Integer> ids = new ArrayList<>();
+    for (Interval interval : intervals) {
+      ids.add(interval.id);
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+
+  private Interval addRandomInterval() {
+    int start = myRandom.nextInt(TEXT_LENGTH);
+    Interval interval = new Interval(myIntervals.size(), start, start + myRandom.nextInt(200));
+    myIntervals.add(interval);
+    myTree.addInterval(interval, interval.start, interval.end, false, false, false, 0);
+    return interval;
+  }
+
+  private static void assertThrowsCme(@Nonnull Runnable runnable) {
+    try {
+      runnable.run();
+      fail("ConcurrentModificationException expected");
+    }
+    catch (ConcurrentModificationException ignored) {
+    }
+  }
+
+  private static class Interval {
+    private final int id;
+    private final int start;
+    private final int end;
+    private IntervalTreeImpl.IntervalNode<Interval> node;
+
+    private Interval(int id, int start, int end) {
+      this.id = id;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private static class TestTree extends IntervalTreeImpl<Interval> {
+    @Override
+    protected int compareEqualStartIntervals(@Nonnull IntervalNode<Interval> i1, @Nonnull IntervalNode<Interval> i2) {
+      return Integer.compare(i1.intervalEnd(), i2.intervalEnd());
+    }
+
+    @Override
+    protected IntervalNode<Interval> createNewNode(@Nonnull Interval key, int start, int end, boolean greedyToLeft, boolean greedyToRight, boolean stickingToRight, int layer) {
+      return new IntervalNode<>(this, key, start, end);
+    }
+
+    @Override
+    protected IntervalNode<Interval> lookupNode(@Nonnull Interval key) {
+      return key.node;
+    }
+
+    @Override
+    protected void setNode(@Nonnull Interval key, IntervalNode<Interval> node) {
+      key.node = node;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class LineSetTest extends TestCase {
+  public void testRandomUpdatesOfManyBlocks() {
+    Random random = new Random(42);
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < LineSet.BLOCK_SIZE * 5; i++) {
+      builder.append(randomText(random, random.nextInt(5), false)).append(random.nextInt(10) == 0 ? "\r\n" : "\n");
+    }
+    String text = builder.toString();
+    LineSet lineSet = LineSet.createLineSet(text);
+    for (int i = 0; i < 500; i++) {
+      int start = random.nextInt(text.length() + 1);
+      // mostly small edits, sometimes removing whole blocks of lines
+      int end = Math.min(text.length(), start + (random.nextInt(50) == 0 ? random.nextInt(LineSet.BLOCK_SIZE * 4) : random.nextInt(10)));
+      String replacement = randomText(random, random.nextInt(50) == 0 ? random.nextInt(LineSet.BLOCK_SIZE * 3) : random.nextInt(5), true);
+
+      lineSet = lineSet.update(text, start, end, replacement, false);
+      text = text.substring(0, start) + replacement + text.substring(end);
+
+      assertSameLines(LineSet.createLineSet(text), lineSet);
+      int line = lineSet.findLineIndex(start);
+      assertTrue(lineSet.isModified(line) || lineSet.getLineStart(line) == text.length());
+    }
+
+    lineSet = lineSet.clearModificationFlags();
+    for (int line = 0; line < lineSet.getLineCount(); line++) {
+      assertFalse(lineSet.isModified(line));
+    }
+  }
+
+  private static void assertSameLines(LineSet expected, LineSet actual) {
+    assertEquals(expected.getLength(), actual.getLength());
+    assertEquals(expected.getLineCount(), actual.getLineCount());
+    for (int line = 0; line < expected.getLineCount(); line++) {
+      assertEquals(expected.getLineStart(line), actual.getLineStart(line));
+      assertEquals(expected.getLineEnd(line), actual.getLineEnd(line));
+      assertEquals(expected.getSeparatorLength(line), actual.getSeparatorLength(line));
+    }
+    for (int offset = 0; offset <= expected.getLength(); offset += 7) {
+      assertEquals(expected.findLineIndex(offset), actual.findLineIndex(offset));
+    }
+  }
+
+  private static String randomText(Random random, int length, boolean withLineBreaks) {
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      int c = random.nextInt(6);
+      builder.append(withLineBreaks && c == 0 ? '\n' : withLineBreaks && c == 1 ? '\r' : (char)('a' + c));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl.view;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.editor.ex.util.EmptyEditorHighlighter;
+import com.intellij.openapi.editor.impl.AbstractEditorTest;
+import com.intellij.openapi.editor.impl.DesktopEditorImpl;
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.util.ui.UIUtil;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Background layout of {@link TextLayoutCache} is applied only if nothing it depends on has changed meanwhile.
+ */
+public class TextLayoutCacheTest extends AbstractEditorTest {
+  private static final int LINES = 20;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < LINES; i++) {
+      text.append("line ").append(i).append("\tsome text\n");
+    }
+    initText(text.toString());
+  }
+
+  public void testPrecomputedLayoutIsApplied() throws Exception {
+    TextLayoutCache cache = precompute(myEditor);
+    UIUtil.dispatchAllInvocationEvents();
+    for (int line = 0; line < 10; line++) {
+      assertTrue("line " + line, isLaidOut(cache, line));
+    }
+  }
+
+  public void testPrecomputedLayoutIsDiscardedOnDocumentChange() throws Exception {
+    TextLayoutCache cache = precompute(myEditor);
+    // the change doesn't touch the precomputed lines
+    runWriteCommand(() -> myEditor.getDocument().insertString(myEditor.getDocument().getTextLength(), "more"));
+    UIUtil.dispatchAllInvocationEvents();
+    assertNotLaidOut(cache);
+  }
+
+  public void testPrecomputedLayoutIsDiscardedOnHighlighterChange() throws Exception {
+    TextLayoutCache cache = precompute(myEditor);
+    ((EditorEx)myEditor).setHighlighter(new EmptyEditorHighlighter(new TextAttributes()));
+    UIUtil.dispatchAllInvocationEvents();
+    assertNotLaidOut(cache);
+  }
+
+  public void testPrecomputedLayoutIsDiscardedOnSchemeChange() throws Exception {
+    TextLayoutCache cache = precompute(myEditor);
+    ((EditorEx)myEditor).setColorsScheme(EditorColorsManager.getInstance().getGlobalScheme());
+    UIUtil.dispatchAllInvocationEvents();
+    assertNotLaidOut(cache);
+  }
+
+  public void testPrecomputedLayoutIsDiscardedOnInvalidation() throws Exception {
+    TextLayoutCache cache = precompute(myEditor);
+    // e.g. a highlighter changing the font style of some other line
+    cache.invalidateLines(LINES - 1, LINES - 1);
+    UIUtil.dispatchAllInvocationEvents();
+    assertNotLaidOut(cache);
+  }
+
+  public void testDisposeRemovesOnlyOwnChunks() throws Exception {
+    TextLayoutCache cache = precompute(myEditor);
+    UIUtil.dispatchAllInvocationEvents();
+    int chunkCount = cache.getLaidOutChunkCount();
+    assertTrue(chunkCount > 0);
+
+    Document document = EditorFactory.getInstance().createDocument(myEditor.getDocument().getImmutableCharSequence());
+    Editor otherEditor = EditorFactory.getInstance().createEditor(document);
+    try {
+      TextLayoutCache otherCache = precompute(otherEditor);
+      UIUtil.dispatchAllInvocationEvents();
+      assertTrue(otherCache.getLaidOutChunkCount() > 0);
+    }
+    finally {
+      EditorFactory.getInstance().releaseEditor(otherEditor);
+    }
+    assertEquals(chunkCount, cache.getLaidOutChunkCount());
+    for (int line = 0; line < 10; line++) {
+      assertTrue("line " + line, isLaidOut(cache, line));
+    }
+  }
+
+  @Nonnull
+  private static TextLayoutCache precompute(@Nonnull Editor editor) throws Exception {
+    TextLayoutCache cache = ((DesktopEditorImpl)editor).myView.getTextLayoutCache();
+    cache.invalidateLines(0, editor.getDocument().getLineCount() - 1);
+    cache.precomputeLayout(0, 9);
+    assertTrue(cache.waitForPrecomputation(10_000));
+    return cache;
+  }
+
+  private static void assertNotLaidOut(@Nonnull TextLayoutCache cache) {
+    for (int line = 0; line < 10; line++) {
+      assertFalse("line " + line, isLaidOut(cache, line));
+    }
+  }
+
+  private static boolean isLaidOut(@Nonnull TextLayoutCache cache, int line) {
+    List<LineLayout.Chunk> chunks = cache.getLineLayout(line).getChunksInLogicalOrder().collect(Collectors.toList());
+    assertFalse(chunks.isEmpty());
+    return chunks.stream().allMatch(cache::isLaidOut);
+  }
+}
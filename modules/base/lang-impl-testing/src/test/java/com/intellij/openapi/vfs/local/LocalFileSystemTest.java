@@ -349,6 +349,31 @@ public abstract class LocalFileSystemTest extends PlatformLangTestCase {
     checkChildCount(virtualDir, 2);
   }
 
+  public void testRefreshOfUnchangedDirectorySeesChangedFiles() throws Exception {
+    File testDir = FileUtil.createTempDirectory("RefreshChildrenTest." + getName(), null);
+    File file = new File(testDir, "Foo.java");
+    FileUtil.writeToFile(file, "");
+    long dirTimeStamp = System.currentTimeMillis() - 10000;
+    assertTrue(testDir.setLastModified(dirTimeStamp));
+
+    VirtualFile virtualDir = myFS.findFileByIoFile(testDir);
+    assert virtualDir != null : testDir;
+    virtualDir.getChildren();
+    virtualDir.refresh(false, true);
+    checkChildCount(virtualDir, 1);
+
+    // the directory is remembered as unchanged, but its files are still checked
+    FileUtil.writeToFile(file, "class Foo {}");
+    assertTrue(testDir.setLastModified(dirTimeStamp));
+    virtualDir.refresh(false, true);
+    checkChildCount(virtualDir, 1);
+    assertEquals(file.length(), virtualDir.getChildren()[0].getLength());
+
+    FileUtil.writeToFile(new File(testDir, "Bar.java"), "");
+    virtualDir.refresh(false, true);
+    checkChildCount(virtualDir, 2);
+  }
+
   private static void checkChildCount(VirtualFile virtualDir, int expectedCount) {
     VirtualFile[] children = virtualDir.getChildren();
     if (children.length != expectedCount) {
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.local;
+
+import com.intellij.notification.NotificationListener;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.impl.local.NioFileWatcherImpl;
+import com.intellij.util.TimeoutUtil;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NioFileWatcherTest extends TestCase {
+  private static final int TIMEOUT = 10000;
+
+  private final List<String> myEvents = Collections.synchronizedList(new ArrayList<>());
+  private final List<Collection<String>> myManualRoots = Collections.synchronizedList(new ArrayList<>());
+  private NioFileWatcherImpl myWatcher;
+  private File myRoot;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRoot = FileUtil.createTempDirectory("nio", "watcher");
+    myWatcher = new NioFileWatcherImpl();
+    myWatcher.initialize(new FileWatcherNotificationSink() {
+      @Override
+      public void notifyManualWatchRoots(@Nonnull Collection<String> roots) {
+        myManualRoots.add(new ArrayList<>(roots));
+      }
+
+      @Override
+      public void notifyMapping(@Nonnull Collection<? extends Pair<String, String>> mapping) {
+      }
+
+      @Override
+      public void notifyDirtyPath(@Nonnull String path) {
+        myEvents.add("dirty:" + path);
+      }
+
+      @Override
+      public void notifyPathCreatedOrDeleted(@Nonnull String path) {
+        myEvents.add("created/deleted:" + path);
+      }
+
+      @Override
+      public void notifyDirtyDirectory(@Nonnull String path) {
+        myEvents.add("dirty dir:" + path);
+      }
+
+      @Override
+      public void notifyDirtyPathRecursive(@Nonnull String path) {
+        myEvents.add("dirty recursive:" + path);
+      }
+
+      @Override
+      public void notifyReset(@Nullable String path) {
+        myEvents.add("reset:" + path);
+      }
+
+      @Override
+      public void notifyUserOnFailure(@Nonnull String cause, @Nullable NotificationListener listener) {
+        fail(cause);
+      }
+    });
+    myWatcher.startup();
+    assertTrue(myWatcher.isOperational());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myWatcher.shutdown();
+      assertFalse(myWatcher.isOperational());
+      FileUtil.delete(myRoot);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testRecursiveRootWatchesNewDirectories() throws Exception {
+    File nested = new File(myRoot, "a/b");
+    assertTrue(nested.mkdirs());
+    File missing = new File(myRoot.getParentFile(), myRoot.getName() + "-missing");
+    myWatcher.setWatchRoots(Arrays.asList(myRoot.getPath(), missing.getPath()), Collections.emptyList());
+    assertEquals(Collections.singletonList(Collections.singletonList(missing.getPath())), myManualRoots);
+
+    File file = new File(nested, "file.txt");
+    FileUtil.writeToFile(file, "text");
+    waitForEvent("created/deleted:" + file.getPath());
+
+    File newDir = new File(nested, "c");
+    assertTrue(newDir.mkdir());
+    waitForEvent("created/deleted:" + newDir.getPath());
+
+    File newFile = new File(newDir, "new.txt");
+    FileUtil.writeToFile(newFile, "text");
+    waitForEvent("created/deleted:" + newFile.getPath());
+  }
+
+  public void testFlatRootIgnoresSubdirectories() throws Exception {
+    File subDir = new File(myRoot, "sub");
+    assertTrue(subDir.mkdir());
+    myWatcher.setWatchRoots(Collections.emptyList(), Collections.singletonList(myRoot.getPath()));
+
+    FileUtil.writeToFile(new File(subDir, "ignored.txt"), "text");
+    File file = new File(myRoot, "file.txt");
+    FileUtil.writeToFile(file, "text");
+    waitForEvent("created/deleted:" + file.getPath());
+    assertFalse(myEvents.toString(), myEvents.contains("created/deleted:" + new File(subDir, "ignored.txt").getPath()));
+  }
+
+  public void testContinuousWritesAreReported() throws Exception {
+    File log = new File(myRoot, "build.log");
+    FileUtil.writeToFile(log, "");
+    myWatcher.setWatchRoots(Collections.singletonList(myRoot.getPath()), Collections.emptyList());
+
+    // writes come faster than the coalescing delay, so a batch is never closed by a quiet period
+    AtomicBoolean stop = new AtomicBoolean();
+    Thread writer = new Thread(() -> {
+      long end = System.currentTimeMillis() + TIMEOUT;
+      try {
+        while (!stop.get() && System.currentTimeMillis() < end) {
+          FileUtil.writeToFile(log, "line\n", true);
+          TimeoutUtil.sleep(2);
+        }
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }, "continuous writer");
+    writer.start();
+    try {
+      waitForEvent("dirty:" + log.getPath());
+      assertTrue("reported only after the writes stopped", writer.isAlive());
+    }
+    finally {
+      stop.set(true);
+      writer.join();
+    }
+  }
+
+  private void waitForEvent(String event) {
+    long start = System.currentTimeMillis();
+    while (!myEvents.contains(event)) {
+      if (System.currentTimeMillis() - start > TIMEOUT) {
+        fail(event + " not reported in " + myEvents);
+      }
+      TimeoutUtil.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.impl;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DirectoryDataAdoptedNamesTest extends TestCase {
+  public void testFewNamesOfCaseSensitiveDirectory() {
+    VfsData.DirectoryData data = new VfsData.DirectoryData();
+    data.addAdoptedName("a.txt", true);
+    data.addAdoptedName("b.txt", true);
+    data.addAdoptedName("a.txt", true);
+    assertEquals(Arrays.asList("a.txt", "b.txt"), data.getAdoptedNames());
+    assertTrue(data.isAdoptedName("a.txt"));
+    assertFalse(data.isAdoptedName("A.txt"));
+
+    data.removeAdoptedName("a.txt");
+    assertFalse(data.isAdoptedName("a.txt"));
+    data.removeAdoptedName("b.txt");
+    assertEquals(0, data.getAdoptedNames().size());
+  }
+
+  public void testManyNamesOfCaseSensitiveDirectory() {
+    VfsData.DirectoryData data = new VfsData.DirectoryData();
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      names.add("file" + i);
+      data.addAdoptedName("file" + i, true);
+    }
+    data.addAdoptedNames(Arrays.asList("file0", "file20"), true);
+    names.add("file20");
+    for (String name : names) {
+      assertTrue(name, data.isAdoptedName(name));
+    }
+    assertEquals(names.size(), data.getAdoptedNames().size());
+    assertFalse(data.isAdoptedName("FILE0"));
+
+    for (String name : names) {
+      data.removeAdoptedName(name);
+    }
+    assertEquals(0, data.getAdoptedNames().size());
+  }
+
+  public void testCaseInsensitiveDirectory() {
+    VfsData.DirectoryData data = new VfsData.DirectoryData();
+    data.addAdoptedName("a.txt", false);
+    assertTrue(data.isAdoptedName("A.TXT"));
+    data.removeAdoptedName("A.txt");
+    assertFalse(data.isAdoptedName("a.txt"));
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.text.StringUtil;
+import junit.framework.TestCase;
+
+import java.io.*;
+
+public class FileLocalStringEnumeratorTest extends TestCase {
+  public void testStringsAreReadLazily() throws IOException {
+    String[] strings = {"getName", "", "\u0437\u043d\u0430\u0447\u0435\u043d\u0438\u0435", StringUtil.repeat("long", 100), "myField", "x"};
+
+    FileLocalStringEnumerator writer = new FileLocalStringEnumerator(true);
+    int[] ids = new int[strings.length];
+    for (int i = 0; i < strings.length; i++) {
+      ids[i] = writer.enumerate(strings[i]);
+    }
+    assertEquals(ids[0], writer.enumerate("getName"));
+    assertEquals(0, writer.enumerate(null));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    writer.write(new DataOutputStream(bytes));
+
+    int[] interned = new int[1];
+    FileLocalStringEnumerator reader = new FileLocalStringEnumerator(false);
+    FileLocalStringEnumerator.readEnumeratedStrings(reader, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), s -> {
+      interned[0]++;
+      return s;
+    });
+    assertEquals(2, interned[0]); // only the strings which can't be kept as ASCII bytes
+
+    for (int i = strings.length - 1; i >= 0; i--) {
+      assertEquals(strings[i], reader.valueOf(ids[i]));
+    }
+    assertEquals(strings[0], reader.valueOf(ids[0]));
+    assertNull(reader.valueOf(0));
+  }
+}
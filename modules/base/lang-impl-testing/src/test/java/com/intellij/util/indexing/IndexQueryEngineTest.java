@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Condition;
+import com.intellij.util.indexing.containers.IntIdsIterator;
+import com.intellij.util.indexing.containers.RoaringIdSet;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class IndexQueryEngineTest extends TestCase {
+  private static final Runnable NOT_CANCELLED = () -> {
+  };
+
+  private ExecutorService myExecutor;
+  private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newFixedThreadPool(3);
+    myLock.readLock().lock();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myLock.readLock().unlock();
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testSameResultsAsSequentialQuery() throws StorageException {
+    Random random = new Random(42);
+    IndexQueryEngine engine = new IndexQueryEngine(myExecutor, 4, NOT_CANCELLED);
+    for (int round = 0; round < 200; round++) {
+      TestIndex index = new TestIndex();
+      List<String> keys = new ArrayList<>();
+      for (int k = 0; k < 2 + random.nextInt(6); k++) {
+        String key = "key" + k;
+        keys.add(key);
+        // dense enough for the intersection of several keys to be non-empty now and then
+        index.put(key, randomIds(random, random.nextInt(3) == 0 ? 30_000 : 300, 50_000));
+      }
+      Condition<Integer> valueChecker = round % 3 == 0 ? value -> value % 2 == 0 : null;
+      ValueContainer.IntPredicate idChecker = round % 4 == 0 ? id -> id % 3 != 0 : null;
+
+      TIntHashSet expected = InvertedIndexUtil.collectInputIdsContainingAllKeys(index, keys, null, valueChecker, idChecker);
+      TIntHashSet actual = engine.collectInputIdsContainingAllKeys(index, keys, myLock.readLock(), null, valueChecker, idChecker);
+      assertEquals(expected, actual);
+    }
+  }
+
+  public void testEmptyContainerEndsQuery() throws StorageException {
+    TestIndex index = new TestIndex();
+    index.put("a", ids(1, 2, 3));
+    index.put("b", ids());
+    index.put("c", ids(2, 3));
+    IndexQueryEngine engine = new IndexQueryEngine(myExecutor, 4, NOT_CANCELLED);
+
+    assertTrue(engine.collectInputIdsContainingAllKeys(index, Arrays.asList("a", "b", "c"), myLock.readLock(), null, null, null).isEmpty());
+  }
+
+  public void testKeysRejectedByKeyCheckerDontEndQuery() throws StorageException {
+    TestIndex index = new TestIndex();
+    index.put("a", ids(1, 2, 3));
+    index.put("b", ids());
+    index.put("c", ids(2, 3, 4));
+    IndexQueryEngine engine = new IndexQueryEngine(myExecutor, 4, NOT_CANCELLED);
+
+    TIntHashSet result =
+      engine.collectInputIdsContainingAllKeys(index, Arrays.asList("a", "b", "c"), myLock.readLock(), key -> !key.equals("b"), null, null);
+    assertEquals(new TIntHashSet(new int[]{2, 3}), result);
+    assertFalse(index.myReadKeys.contains("b"));
+
+    assertTrue(engine.collectInputIdsContainingAllKeys(index, Arrays.asList("a", "c"), myLock.readLock(), key -> false, null, null).isEmpty());
+  }
+
+  public void testCancellationIsCheckedForEveryContainer() throws StorageException {
+    TestIndex index = new TestIndex();
+    List<String> keys = new ArrayList<>();
+    for (int k = 0; k < 10; k++) {
+      keys.add("key" + k);
+      index.put("key" + k, ids(1, 2, 3));
+    }
+
+    // helpers can't take the read lock while the write lock is held, so the caller reads all the containers
+    ReentrantReadWriteLock busyLock = new ReentrantReadWriteLock();
+    busyLock.writeLock().lock();
+
+    AtomicInteger checks = new AtomicInteger();
+    IndexQueryEngine engine = new IndexQueryEngine(myExecutor, 4, checks::incrementAndGet);
+    engine.collectInputIdsContainingAllKeys(index, keys, busyLock.readLock(), null, null, null);
+    assertTrue(String.valueOf(checks.get()), checks.get() >= 2 * keys.size());
+
+    index.myReadKeys.clear();
+    AtomicInteger remaining = new AtomicInteger(3);
+    IndexQueryEngine cancelled = new IndexQueryEngine(myExecutor, 4, () -> {
+      if (remaining.decrementAndGet() < 0) throw new ProcessCanceledException();
+    });
+    try {
+      cancelled.collectInputIdsContainingAllKeys(index, keys, busyLock.readLock(), null, null, null);
+      fail("the query must be cancelled");
+    }
+    catch (ProcessCanceledException ignored) {
+    }
+    assertTrue(index.myReadKeys.toString(), index.myReadKeys.size() < keys.size());
+  }
+
+  public void testHelpersDontBargeAheadOfQueuedWriter() throws Exception {
+    TestIndex index = new TestIndex();
+    List<String> keys = new ArrayList<>();
+    for (int k = 0; k < 10; k++) {
+      keys.add("key" + k);
+      index.put("key" + k, ids(1, 2, 3));
+    }
+
+    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    lock.readLock().lock();
+    Thread writer = new Thread(() -> {
+      lock.writeLock().lock();
+      lock.writeLock().unlock();
+    });
+    try {
+      writer.start();
+      while (!lock.hasQueuedThread(writer)) Thread.yield();
+
+      IndexQueryEngine engine = new IndexQueryEngine(myExecutor, 4, NOT_CANCELLED);
+      assertEquals(new TIntHashSet(new int[]{1, 2, 3}), engine.collectInputIdsContainingAllKeys(index, keys, lock.readLock(), null, null, null));
+      // Lock#tryLock() would have let the helpers in ahead of the writer
+      assertEquals(Collections.singleton(Thread.currentThread()), index.myReaderThreads);
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+    writer.join();
+  }
+
+  public void testReadErrorIsRethrown() {
+    TestIndex index = new TestIndex();
+    index.put("a", ids(1, 2));
+    index.put("b", ids(1, 2));
+    index.myFailingKey = "b";
+    IndexQueryEngine engine = new IndexQueryEngine(myExecutor, 4, NOT_CANCELLED);
+
+    try {
+      engine.collectInputIdsContainingAllKeys(index, Arrays.asList("a", "b"), myLock.readLock(), null, null, null);
+      fail("the storage error must be rethrown");
+    }
+    catch (StorageException e) {
+      assertEquals("b", e.getMessage());
+    }
+  }
+
+  private static RoaringIdSet randomIds(Random random, int count, int range) {
+    RoaringIdSet ids = new RoaringIdSet();
+    for (int i = 0; i < count; i++) ids.add(1 + random.nextInt(range));
+    return ids;
+  }
+
+  private static RoaringIdSet ids(int... ids) {
+    RoaringIdSet set = new RoaringIdSet();
+    for (int id : ids) set.add(id);
+    return set;
+  }
+
+  // every key maps its ids to two values: the ids themselves split by parity
+  private static class TestIndex implements InvertedIndex<String, Integer, Void> {
+    private final Map<String, RoaringIdSet> myData = new HashMap<>();
+    private final Set<String> myReadKeys = Collections.synchronizedSet(new HashSet<>());
+    private final Set<Thread> myReaderThreads = Collections.synchronizedSet(new HashSet<>());
+    private volatile String myFailingKey;
+
+    void put(String key, RoaringIdSet ids) {
+      myData.put(key, ids);
+    }
+
+    @Nonnull
+    @Override
+    public ValueContainer<Integer> getData(@Nonnull String key) throws StorageException {
+      myReadKeys.add(key);
+      myReaderThreads.add(Thread.currentThread());
+      if (key.equals(myFailingKey)) throw new StorageException(key);
+      RoaringIdSet even = new RoaringIdSet();
+      RoaringIdSet odd = new RoaringIdSet();
+      for (IntIdsIterator iterator = myData.get(key).intIterator(); iterator.hasNext(); ) {
+        int id = iterator.next();
+        (id % 2 == 0 ? even : odd).add(id);
+      }
+      return new TestContainer(even, odd);
+    }
+
+    @Nonnull
+    @Override
+    public Computable<Boolean> update(int inputId, @Nullable Void content) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void clear() {
+    }
+
+    @Override
+    public void dispose() {
+    }
+  }
+
+  private static class TestContainer extends ValueContainer<Integer> {
+    private final RoaringIdSet[] myIds;
+
+    TestContainer(RoaringIdSet even, RoaringIdSet odd) {
+      myIds = new RoaringIdSet[]{even, odd};
+    }
+
+    @Nonnull
+    @Override
+    public ValueIterator<Integer> getValueIterator() {
+      return new ValueIterator<Integer>() {
+        private int myNext;
+
+        @Nonnull
+        @Override
+        public IntIterator getInputIdsIterator() {
+          return myIds[myNext - 1].intIterator();
+        }
+
+        @Override
+        public IntPredicate getValueAssociationPredicate() {
+          return myIds[myNext - 1]::contains;
+        }
+
+        @Override
+        public boolean hasNext() {
+          return myNext < myIds.length;
+        }
+
+        @Override
+        public Integer next() {
+          if (!hasNext()) throw new NoSuchElementException();
+          return myNext++;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return myIds.length;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.containers;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Random;
+import java.util.TreeSet;
+
+public class RoaringIdSetTest extends TestCase {
+  public void testRandomOperations() throws IOException {
+    Random random = new Random(42);
+    for (int round = 0; round < 100; round++) {
+      // alternate sparse sets spanning several chunks with dense sets of one or two chunks
+      int range = 1 + random.nextInt(round % 2 == 0 ? 300000 : 70000);
+      int count = random.nextInt(20000);
+
+      RoaringIdSet first = new RoaringIdSet();
+      RoaringIdSet second = new RoaringIdSet();
+      TreeSet<Integer> expectedFirst = new TreeSet<>();
+      TreeSet<Integer> expectedSecond = new TreeSet<>();
+      for (int i = 0; i < count; i++) {
+        int id = 1 + random.nextInt(range);
+        assertEquals(expectedFirst.add(id), first.add(id));
+        id = 1 + random.nextInt(range);
+        assertEquals(expectedSecond.add(id), second.add(id));
+      }
+      for (int i = 0; i < count / 2; i++) {
+        int id = 1 + random.nextInt(range);
+        assertEquals(expectedFirst.remove(id), first.remove(id));
+      }
+      assertSameIds(expectedFirst, first);
+      assertSameIds(expectedSecond, second);
+
+      TreeSet<Integer> expectedAnd = new TreeSet<>(expectedFirst);
+      expectedAnd.retainAll(expectedSecond);
+      assertSameIds(expectedAnd, RoaringIdSet.and(first, second));
+
+      TreeSet<Integer> expectedOr = new TreeSet<>(expectedFirst);
+      expectedOr.addAll(expectedSecond);
+      assertSameIds(expectedOr, RoaringIdSet.or(first, second));
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      first.writeTo(new DataOutputStream(bytes));
+      assertSameIds(expectedFirst, RoaringIdSet.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+      assertSameIds(expectedFirst, first.clone());
+    }
+  }
+
+  public void testDenseChunkConversions() {
+    RoaringIdSet set = new RoaringIdSet();
+    for (int id = 1; id <= 10000; id++) set.add(id);
+    for (int id = 1; id <= 10000; id += 2) assertTrue(set.remove(id));
+    for (int id = 2; id <= 10000; id += 4) assertTrue(set.remove(id));
+
+    TreeSet<Integer> expected = new TreeSet<>();
+    for (int id = 4; id <= 10000; id += 4) expected.add(id);
+    assertSameIds(expected, set);
+    assertFalse(set.contains(3));
+    assertTrue(set.contains(400));
+  }
+
+  public void testBackingSetOfIterator() {
+    RoaringIdSet set = new RoaringIdSet(new int[]{3, 1, 2}, 3);
+    assertSame(set, RoaringIdSet.getBackingSet(set.intIterator()));
+    assertNull(RoaringIdSet.getBackingSet(new SortedIdSet(new int[]{1, 2, 3}, 3).intIterator()));
+  }
+
+  private static void assertSameIds(TreeSet<Integer> expected, RoaringIdSet actual) {
+    assertEquals(expected.size(), actual.size());
+    IntIdsIterator iterator = actual.intIterator();
+    for (int id : expected) {
+      assertTrue(iterator.hasNext());
+      assertEquals(id, iterator.next());
+      assertTrue(actual.contains(id));
+    }
+    assertFalse(iterator.hasNext());
+  }
+}
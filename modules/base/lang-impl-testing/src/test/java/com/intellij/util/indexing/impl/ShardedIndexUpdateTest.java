@@ -0,0 +1,463 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.impl;
+
+import com.intellij.openapi.util.io.ByteArraySequence;
+import com.intellij.util.indexing.*;
+import com.intellij.util.indexing.impl.forward.ForwardIndex;
+import com.intellij.util.indexing.impl.forward.MapForwardIndexAccessor;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Updates of a {@link MapReduceIndex} with a {@link ShardedIndexStorage} and a {@link ShardedReadWriteLock}: storages record every
+ * access which overlaps with a modification.
+ */
+public class ShardedIndexUpdateTest extends TestCase {
+  private static final int SHARDS = 4;
+
+  public void testLocks() throws Exception {
+    ShardedReadWriteLock lock = new ShardedReadWriteLock(SHARDS);
+
+    // queries run concurrently with each other, but not with a shard or forward index writer
+    assertTrue(runInOtherThread(() -> lock.readLock().tryLock(), lock.readLock()));
+    for (Lock writerLock : Arrays.asList(lock.getShardWriteLock(SHARDS - 1), lock.getForwardIndexLock())) {
+      lock.getUpdateLock().lock();
+      writerLock.lock();
+      try {
+        assertFalse(runInOtherThread(() -> lock.readLock().tryLock(), lock.readLock()));
+      }
+      finally {
+        writerLock.unlock();
+        lock.getUpdateLock().unlock();
+      }
+    }
+
+    // a failed query tryLock() releases what it has taken, so a whole index writer isn't blocked by it
+    assertTrue(runInOtherThread(() -> lock.writeLock().tryLock(), lock.writeLock()));
+
+    // updates of different shards run concurrently, the whole index write lock excludes them
+    lock.getUpdateLock().lock();
+    lock.getShardWriteLock(0).lock();
+    try {
+      assertTrue(runInOtherThread(() -> lock.getUpdateLock().tryLock() && lock.getShardWriteLock(1).tryLock(), lock.getShardWriteLock(1), lock.getUpdateLock()));
+      assertFalse(runInOtherThread(() -> lock.writeLock().tryLock(), lock.writeLock()));
+    }
+    finally {
+      lock.getShardWriteLock(0).unlock();
+      lock.getUpdateLock().unlock();
+    }
+    lock.writeLock().lock();
+    try {
+      assertFalse(runInOtherThread(() -> lock.getUpdateLock().tryLock(), lock.getUpdateLock()));
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void testWriteLockConditions() throws Exception {
+    ShardedReadWriteLock lock = new ShardedReadWriteLock(SHARDS);
+    Condition condition = lock.writeLock().newCondition();
+    AtomicBoolean signalled = new AtomicBoolean();
+    Thread signaller = new Thread(() -> {
+      lock.writeLock().lock();
+      try {
+        signalled.set(true);
+        condition.signalAll();
+      }
+      finally {
+        lock.writeLock().unlock();
+      }
+    });
+
+    lock.writeLock().lock();
+    try {
+      signaller.start();
+      while (!signalled.get()) {
+        assertTrue(condition.await(10, TimeUnit.SECONDS) || signalled.get());
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+    signaller.join();
+
+    try {
+      lock.readLock().newCondition();
+      fail("read locks don't support conditions, as ReentrantReadWriteLock's one");
+    }
+    catch (UnsupportedOperationException ignored) {
+    }
+  }
+
+  public void testWriteLockHoldsOffShardedUpdates() throws Exception {
+    TestIndex index = new TestIndex();
+    index.getWriteLock().lock();
+    Thread updater;
+    try {
+      updater = new Thread(() -> index.update(1, Collections.singletonMap("key", "value")).compute());
+      updater.start();
+      updater.join(200);
+      assertTrue(updater.isAlive());
+      assertEquals(0, index.myForwardIndex.myData.size());
+    }
+    finally {
+      index.getWriteLock().unlock();
+    }
+    updater.join();
+    assertEquals(Collections.singleton(1), index.inputsOf("key"));
+  }
+
+  public void testConcurrentUpdatesAndQueries() throws Exception {
+    TestIndex index = new TestIndex();
+    int inputs = 64;
+    int keys = 32;
+    Map<Integer, Map<String, String>> lastData = Collections.synchronizedMap(new HashMap<>());
+    AtomicBoolean stop = new AtomicBoolean();
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch start = new CountDownLatch(1);
+
+    List<Thread> updaters = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int first = t;
+      updaters.add(new Thread(() -> {
+        try {
+          start.await();
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          for (int round = 0; round < 300; round++) {
+            // every thread updates its own inputs, so the final data of an input is known
+            int inputId = 1 + first + 4 * random.nextInt(inputs / 4);
+            Map<String, String> data = new HashMap<>();
+            for (int i = random.nextInt(6); i > 0; i--) {
+              data.put("key" + random.nextInt(keys), "value" + random.nextInt(3));
+            }
+            assertTrue(index.update(inputId, data).compute());
+            lastData.put(inputId, data);
+          }
+        }
+        catch (Throwable e) {
+          errors.add(e);
+        }
+      }));
+    }
+    Thread query = new Thread(() -> {
+      try {
+        start.await();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (!stop.get()) {
+          index.getReadLock().lock();
+          try {
+            index.getData("key" + random.nextInt(keys)).forEach((id, value) -> true);
+          }
+          finally {
+            index.getReadLock().unlock();
+          }
+        }
+      }
+      catch (Throwable e) {
+        errors.add(e);
+      }
+    });
+
+    for (Thread updater : updaters) updater.start();
+    query.start();
+    start.countDown();
+    for (Thread updater : updaters) updater.join();
+    stop.set(true);
+    query.join();
+
+    assertTrue(errors.toString(), errors.isEmpty());
+    assertEquals(0, index.myViolations.get());
+    for (int k = 0; k < keys; k++) {
+      String key = "key" + k;
+      Set<Integer> expected = new HashSet<>();
+      synchronized (lastData) {
+        for (Map.Entry<Integer, Map<String, String>> entry : lastData.entrySet()) {
+          if (entry.getValue().containsKey(key)) expected.add(entry.getKey());
+        }
+      }
+      assertEquals(key, expected, index.inputsOf(key));
+    }
+  }
+
+  private static boolean runInOtherThread(@Nonnull java.util.concurrent.Callable<Boolean> action, @Nonnull Lock... toUnlock) throws Exception {
+    boolean[] result = new boolean[1];
+    Throwable[] error = new Throwable[1];
+    Thread thread = new Thread(() -> {
+      try {
+        result[0] = action.call();
+        if (result[0]) {
+          for (Lock lock : toUnlock) lock.unlock();
+        }
+      }
+      catch (Throwable e) {
+        error[0] = e;
+      }
+    });
+    thread.start();
+    thread.join();
+    if (error[0] != null) throw new AssertionError(error[0]);
+    return result[0];
+  }
+
+  // counts accesses overlapping with a modification
+  private static class AccessTracker {
+    private final AtomicInteger myReaders = new AtomicInteger();
+    private final AtomicInteger myWriters = new AtomicInteger();
+    private final AtomicInteger myViolations;
+
+    AccessTracker(AtomicInteger violations) {
+      myViolations = violations;
+    }
+
+    void startRead() {
+      myReaders.incrementAndGet();
+      if (myWriters.get() != 0) myViolations.incrementAndGet();
+      Thread.yield();
+    }
+
+    void endRead() {
+      myReaders.decrementAndGet();
+    }
+
+    void startWrite() {
+      if (myWriters.incrementAndGet() != 1 || myReaders.get() != 0) myViolations.incrementAndGet();
+      Thread.yield();
+    }
+
+    void endWrite() {
+      myWriters.decrementAndGet();
+    }
+  }
+
+  private static class TrackingStorage implements IndexStorage<String, String> {
+    private final Map<String, ValueContainerImpl<String>> myData = new HashMap<>();
+    private final AccessTracker myTracker;
+
+    TrackingStorage(AtomicInteger violations) {
+      myTracker = new AccessTracker(violations);
+    }
+
+    @Override
+    public void addValue(String key, int inputId, String value) {
+      myTracker.startWrite();
+      try {
+        myData.computeIfAbsent(key, __ -> new ValueContainerImpl<>()).addValue(inputId, value);
+      }
+      finally {
+        myTracker.endWrite();
+      }
+    }
+
+    @Override
+    public void removeAllValues(@Nonnull String key, int inputId) {
+      myTracker.startWrite();
+      try {
+        ValueContainerImpl<String> container = myData.get(key);
+        if (container != null) container.removeAssociatedValue(inputId);
+      }
+      finally {
+        myTracker.endWrite();
+      }
+    }
+
+    @Nonnull
+    @Override
+    public ValueContainer<String> read(String key) {
+      myTracker.startRead();
+      try {
+        ValueContainerImpl<String> container = myData.get(key);
+        return container != null ? container : new ValueContainerImpl<>();
+      }
+      finally {
+        myTracker.endRead();
+      }
+    }
+
+    @Override
+    public void clear() {
+      myData.clear();
+    }
+
+    @Override
+    public void clearCaches() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void flush() {
+    }
+  }
+
+  private static class TrackingForwardIndex implements ForwardIndex {
+    private final Map<Integer, ByteArraySequence> myData = new HashMap<>();
+    private final AccessTracker myTracker;
+
+    TrackingForwardIndex(AtomicInteger violations) {
+      myTracker = new AccessTracker(violations);
+    }
+
+    @Nullable
+    @Override
+    public ByteArraySequence get(@Nonnull Integer key) {
+      myTracker.startRead();
+      try {
+        return myData.get(key);
+      }
+      finally {
+        myTracker.endRead();
+      }
+    }
+
+    @Override
+    public void put(@Nonnull Integer key, @Nullable ByteArraySequence value) {
+      myTracker.startWrite();
+      try {
+        if (value == null) myData.remove(key);
+        // serialized values may live in a reused thread-local buffer, keep a copy like a persistent map would
+        else myData.put(key, new ByteArraySequence(Arrays.copyOfRange(value.getBytes(), value.getOffset(), value.getOffset() + value.getLength())));
+      }
+      finally {
+        myTracker.endWrite();
+      }
+    }
+
+    @Override
+    public void clear() {
+      myData.clear();
+    }
+
+    @Override
+    public void force() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static class MapExternalizer implements DataExternalizer<Map<String, String>> {
+    @Override
+    public void save(@Nonnull DataOutput out, Map<String, String> value) throws IOException {
+      DataInputOutputUtil.writeINT(out, value.size());
+      for (Map.Entry<String, String> entry : value.entrySet()) {
+        EnumeratorStringDescriptor.INSTANCE.save(out, entry.getKey());
+        EnumeratorStringDescriptor.INSTANCE.save(out, entry.getValue());
+      }
+    }
+
+    @Override
+    public Map<String, String> read(@Nonnull DataInput in) throws IOException {
+      Map<String, String> map = new HashMap<>();
+      for (int i = DataInputOutputUtil.readINT(in); i > 0; i--) {
+        map.put(EnumeratorStringDescriptor.INSTANCE.read(in), EnumeratorStringDescriptor.INSTANCE.read(in));
+      }
+      return map;
+    }
+  }
+
+  private static class TestExtension extends IndexExtension<String, String, Map<String, String>> {
+    @Nonnull
+    @Override
+    public IndexId<String, String> getName() {
+      return IndexId.create("sharded.test");
+    }
+
+    @Nonnull
+    @Override
+    public DataIndexer<String, String, Map<String, String>> getIndexer() {
+      return data -> data;
+    }
+
+    @Nonnull
+    @Override
+    public KeyDescriptor<String> getKeyDescriptor() {
+      return EnumeratorStringDescriptor.INSTANCE;
+    }
+
+    @Nonnull
+    @Override
+    public DataExternalizer<String> getValueExternalizer() {
+      return EnumeratorStringDescriptor.INSTANCE;
+    }
+
+    @Override
+    public int getVersion() {
+      return 0;
+    }
+  }
+
+  private static class TestIndex extends MapReduceIndex<String, String, Map<String, String>> {
+    private final AtomicInteger myViolations;
+    private final TrackingForwardIndex myForwardIndex;
+
+    TestIndex() {
+      this(new AtomicInteger());
+    }
+
+    private TestIndex(AtomicInteger violations) {
+      this(violations, new TrackingForwardIndex(violations));
+    }
+
+    private TestIndex(AtomicInteger violations, TrackingForwardIndex forwardIndex) {
+      super(new TestExtension(), createStorage(violations), forwardIndex, new MapForwardIndexAccessor<>(new MapExternalizer()), new ShardedReadWriteLock(SHARDS));
+      myViolations = violations;
+      myForwardIndex = forwardIndex;
+    }
+
+    private static ShardedIndexStorage<String, String> createStorage(AtomicInteger violations) {
+      List<TrackingStorage> shards = new ArrayList<>();
+      for (int i = 0; i < SHARDS; i++) shards.add(new TrackingStorage(violations));
+      return new ShardedIndexStorage<>(shards, EnumeratorStringDescriptor.INSTANCE);
+    }
+
+    Set<Integer> inputsOf(String key) throws StorageException {
+      Set<Integer> inputs = new HashSet<>();
+      getData(key).forEach((id, value) -> inputs.add(id));
+      return inputs;
+    }
+
+    @Override
+    public void checkCanceled() {
+    }
+
+    @Override
+    protected void requestRebuild(@Nonnull Throwable e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.impl;
+
+import com.intellij.util.IntIntFunction;
+import com.intellij.util.indexing.containers.ChangeBufferingList;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.TreeSet;
+
+public class ValueContainerImplSerializationTest extends TestCase {
+  private static final String VALUE = "value";
+
+  public void testSmallSetKeepsDeltaEncoding() throws IOException {
+    TreeSet<Integer> ids = ids(1, 100, 3);
+    byte[] bytes = save(container(ids));
+
+    assertEquals(-ids.size(), readFirstIdCount(bytes));
+    assertEquals(1, readFirstId(bytes));
+    assertEquals(ids, load(bytes));
+  }
+
+  public void testLargeSetRoundTrip() throws IOException {
+    TreeSet<Integer> ids = ids(7, 200_000, 5);
+    byte[] bytes = save(container(ids));
+
+    assertEquals(-ids.size(), readFirstIdCount(bytes));
+    if (ChangeBufferingList.COMPRESSED_ID_SETS) assertEquals(0, readFirstId(bytes));
+    assertEquals(ids, load(bytes));
+  }
+
+  public void testShrunkLargeSetKeepsDeltaEncoding() throws IOException {
+    TreeSet<Integer> ids = ids(1, 100_000, 2);
+    ValueContainerImpl<String> container = container(ids);
+    // 12500 ids are left, less than a set has to have to be kept compressed
+    for (int id = 1; id < 100_000; id += 2) {
+      if (id % 8 == 3) continue;
+      container.removeAssociatedValue(id);
+      ids.remove(id);
+    }
+    byte[] bytes = save(container);
+
+    assertEquals(-ids.size(), readFirstIdCount(bytes));
+    assertEquals(ids.first().intValue(), readFirstId(bytes));
+    assertEquals(ids, load(bytes));
+  }
+
+  public void testLargeSetInDeltaEncodingIsRead() throws IOException {
+    TreeSet<Integer> ids = ids(3, 100_000, 3);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    DataInputOutputUtil.writeINT(out, 1);
+    EnumeratorStringDescriptor.INSTANCE.save(out, VALUE);
+    DataInputOutputUtil.writeINT(out, -ids.size());
+    int prev = 0;
+    for (int id : ids) {
+      DataInputOutputUtil.writeINT(out, id - prev);
+      prev = id;
+    }
+
+    assertEquals(ids, load(bytes.toByteArray()));
+  }
+
+  private static TreeSet<Integer> ids(int from, int to, int step) {
+    TreeSet<Integer> ids = new TreeSet<>();
+    for (int id = from; id < to; id += step) ids.add(id);
+    return ids;
+  }
+
+  private static ValueContainerImpl<String> container(TreeSet<Integer> ids) {
+    ValueContainerImpl<String> container = new ValueContainerImpl<>();
+    for (int id : ids) container.addValue(id, VALUE);
+    return container;
+  }
+
+  private static byte[] save(ValueContainerImpl<String> container) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    container.saveTo(new DataOutputStream(bytes), EnumeratorStringDescriptor.INSTANCE);
+    return bytes.toByteArray();
+  }
+
+  private static TreeSet<Integer> load(byte[] bytes) throws IOException {
+    ValueContainerImpl<String> container = new ValueContainerImpl<>();
+    container.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)), EnumeratorStringDescriptor.INSTANCE, IntIntFunction.IDENTITY);
+    TreeSet<Integer> ids = new TreeSet<>();
+    container.forEach((id, value) -> {
+      assertEquals(VALUE, value);
+      assertTrue(ids.add(id));
+      return true;
+    });
+    return ids;
+  }
+
+  private static DataInputStream skipToIds(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    assertEquals(1, DataInputOutputUtil.readINT(in));
+    assertEquals(VALUE, EnumeratorStringDescriptor.INSTANCE.read(in));
+    return in;
+  }
+
+  private static int readFirstIdCount(byte[] bytes) throws IOException {
+    return DataInputOutputUtil.readINT(skipToIds(bytes));
+  }
+
+  private static int readFirstId(byte[] bytes) throws IOException {
+    DataInputStream in = skipToIds(bytes);
+    DataInputOutputUtil.readINT(in);
+    return DataInputOutputUtil.readINT(in);
+  }
+}
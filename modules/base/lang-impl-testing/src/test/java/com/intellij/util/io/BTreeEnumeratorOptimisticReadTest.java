@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Optimistic lock-free lookups of {@link PersistentBTreeEnumerator} must give the same answers as the locked ones, also while the
+ * tree, the collision lists and the key storage are modified concurrently.
+ */
+public class BTreeEnumeratorOptimisticReadTest extends TestCase {
+  private static final String COLLISION_1 = "";
+  private static final String COLLISION_2 = "\u0000";
+  private static final int KEYS = 20_000;
+
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("persistent", "btree");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testOptimisticReadsAreOffByDefault() throws IOException {
+    PersistentBTreeEnumerator<String> enumerator = createEnumerator("default");
+    try {
+      assertFalse(enumerator.myOptimisticReads);
+    }
+    finally {
+      enumerator.close();
+    }
+  }
+
+  public void testSameResultsAsLockedLookups() throws IOException {
+    PersistentBTreeEnumerator<String> enumerator = createEnumerator("names");
+    try {
+      int[] ids = new int[KEYS];
+      for (int i = 0; i < KEYS; i++) {
+        ids[i] = enumerator.enumerate(key(i));
+      }
+      int collision1 = enumerator.enumerate(COLLISION_1);
+      int collision2 = enumerator.enumerate(COLLISION_2);
+
+      for (boolean optimistic : new boolean[]{false, true}) {
+        enumerator.myOptimisticReads = optimistic;
+        for (int i = 0; i < KEYS; i++) {
+          assertEquals(ids[i], enumerator.tryEnumerate(key(i)));
+          assertEquals(ids[i], enumerator.enumerate(key(i)));
+          assertEquals(key(i), enumerator.valueOf(ids[i]));
+          assertEquals(PersistentEnumeratorBase.NULL_ID, enumerator.tryEnumerate(absentKey(i)));
+        }
+        assertEquals(collision1, enumerator.tryEnumerate(COLLISION_1));
+        assertEquals(collision2, enumerator.tryEnumerate(COLLISION_2));
+      }
+
+      // a missing key is still added by enumerate()
+      int added = enumerator.enumerate(absentKey(0));
+      assertEquals(added, enumerator.tryEnumerate(absentKey(0)));
+      assertEquals(absentKey(0), enumerator.valueOf(added));
+    }
+    finally {
+      enumerator.close();
+    }
+  }
+
+  public void testLookupsWhileKeysAreAdded() throws Exception {
+    PersistentBTreeEnumerator<String> enumerator = createEnumerator("concurrent");
+    try {
+      enumerator.myOptimisticReads = true;
+      int[] ids = new int[KEYS];
+      for (int i = 0; i < KEYS; i++) {
+        ids[i] = enumerator.enumerate(key(i));
+      }
+
+      int added = 4 * KEYS;
+      // ids of the keys added concurrently, published after enumerate() returned
+      AtomicIntegerArray addedIds = new AtomicIntegerArray(added);
+      AtomicInteger addedCount = new AtomicInteger();
+      AtomicBoolean stop = new AtomicBoolean();
+      CountDownLatch start = new CountDownLatch(1);
+      List<Throwable> errors = new ArrayList<>();
+
+      Thread writer = new Thread(() -> {
+        try {
+          start.await();
+          for (int i = 0; i < added && !stop.get(); i++) {
+            addedIds.set(i, enumerator.enumerate(key(KEYS + i)));
+            addedCount.set(i + 1);
+          }
+        }
+        catch (Throwable e) {
+          synchronized (errors) {
+            errors.add(e);
+          }
+        }
+      }, "writer");
+
+      List<Thread> readers = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        readers.add(new Thread(() -> {
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          try {
+            start.await();
+            for (int i = 0; i < 100_000 && errors.isEmpty(); i++) {
+              int k = random.nextInt(KEYS);
+              assertEquals(ids[k], enumerator.tryEnumerate(key(k)));
+              assertEquals(key(k), enumerator.valueOf(ids[k]));
+              assertEquals(PersistentEnumeratorBase.NULL_ID, enumerator.tryEnumerate(absentKey(k)));
+
+              int published = addedCount.get();
+              if (published > 0) {
+                int a = random.nextInt(published);
+                assertEquals(addedIds.get(a), enumerator.tryEnumerate(key(KEYS + a)));
+                assertEquals(key(KEYS + a), enumerator.valueOf(addedIds.get(a)));
+              }
+            }
+          }
+          catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }, "reader " + t));
+      }
+
+      writer.start();
+      for (Thread reader : readers) {
+        reader.start();
+      }
+      start.countDown();
+      for (Thread reader : readers) {
+        reader.join();
+      }
+      stop.set(true);
+      writer.join();
+
+      assertTrue(errors.toString(), errors.isEmpty());
+      for (int i = 0; i < addedCount.get(); i++) {
+        assertEquals(key(KEYS + i), enumerator.valueOf(addedIds.get(i)));
+      }
+    }
+    finally {
+      enumerator.close();
+    }
+  }
+
+  public void testOptimisticLookupsTakeNoLocks() throws Exception {
+    PersistentBTreeEnumerator<String> enumerator = createEnumerator("monitor");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      enumerator.myOptimisticReads = true;
+      int[] ids = new int[KEYS];
+      for (int i = 0; i < KEYS; i++) {
+        ids[i] = enumerator.enumerate(key(i));
+      }
+
+      // neither the monitor of the enumerator nor the storage lock is needed while the pages are cached
+      synchronized (enumerator) {
+        enumerator.lockStorage();
+        try {
+          Future<?> lookups = executor.submit(() -> {
+            for (int i = 0; i < KEYS; i++) {
+              assertEquals(ids[i], enumerator.tryEnumerate(key(i)));
+              assertEquals(key(i), enumerator.valueOf(ids[i]));
+            }
+            return null;
+          });
+          lookups.get(1, TimeUnit.MINUTES);
+        }
+        finally {
+          enumerator.unlockStorage();
+        }
+      }
+    }
+    finally {
+      executor.shutdown();
+      enumerator.close();
+    }
+  }
+
+  public void testInlineKeyValuesWhileValuesChange() throws Exception {
+    PersistentBTreeEnumerator<Integer> enumerator =
+      new PersistentBTreeEnumerator<>(new File(myDir, "inline"), new IntInlineKeyDescriptor(), 4096);
+    try {
+      enumerator.myOptimisticReads = true;
+      for (int i = 0; i < KEYS; i++) {
+        enumerator.putNonNegativeValue(i, value(i, 0));
+      }
+
+      AtomicBoolean stop = new AtomicBoolean();
+      List<Throwable> errors = new ArrayList<>();
+      Thread writer = new Thread(() -> {
+        try {
+          // values beyond the int range are stored in the key storage, not in the tree
+          for (int round = 1; round < 5 && !stop.get(); round++) {
+            for (int i = 0; i < KEYS; i++) {
+              enumerator.putNonNegativeValue(i, value(i, round));
+            }
+          }
+        }
+        catch (Throwable e) {
+          synchronized (errors) {
+            errors.add(e);
+          }
+        }
+      }, "writer");
+      writer.start();
+
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      try {
+        while (writer.isAlive() && errors.isEmpty()) {
+          int k = random.nextInt(KEYS);
+          long value = enumerator.getNonNegativeValue(k);
+          assertEquals(k, value % KEYS);
+          assertEquals(PersistentEnumeratorBase.NULL_ID, enumerator.getNonNegativeValue(KEYS + k));
+        }
+      }
+      finally {
+        stop.set(true);
+        writer.join();
+      }
+      assertTrue(errors.toString(), errors.isEmpty());
+    }
+    finally {
+      enumerator.close();
+    }
+  }
+
+  private PersistentBTreeEnumerator<String> createEnumerator(String name) throws IOException {
+    return new PersistentBTreeEnumerator<>(new File(myDir, name), EnumeratorStringDescriptor.INSTANCE, 4096);
+  }
+
+  private static long value(int key, int round) {
+    long base = round % 2 == 0 ? round : Integer.MAX_VALUE + (long)round;
+    return base * KEYS + key;
+  }
+
+  private static String key(int i) {
+    return "key" + i;
+  }
+
+  private static String absentKey(int i) {
+    return "absent" + i;
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class PersistentHashMapIncrementalCompactionTest extends TestCase {
+  private PersistentHashMap<String, String> myMap;
+  private File myFile;
+  private File myDataFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("persistent", "map");
+    myDataFile = new File(myFile.getParentFile(), myFile.getName() + PersistentHashMap.DATA_FILE_EXTENSION);
+    myMap = new PersistentHashMap<>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myMap.close();
+      File[] files = myFile.getParentFile().listFiles(file -> file.getName().startsWith(myFile.getName()));
+      if (files != null) {
+        for (File file : files) {
+          FileUtil.delete(file);
+        }
+      }
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testIncrementalCompactionWithConcurrentChanges() throws IOException {
+    final int stringsCount = 50;
+    Map<String, String> expected = new HashMap<>();
+    for (int i = 0; i < stringsCount; ++i) {
+      final String key = StringEnumeratorTest.createRandomString();
+      expected.put(key, key + "_value");
+      myMap.put(key, key + "_value");
+    }
+    List<String> keys = new ArrayList<>(expected.keySet());
+    for (int i = 0; i < stringsCount / 5; ++i) {
+      myMap.remove(keys.get(i));
+      expected.remove(keys.get(i));
+    }
+    assertTrue(myMap.getGarbageRatio() > 0);
+
+    int step = 0;
+    while (!myMap.compactIncrementally(7)) {
+      assertTrue(myMap.getCompactionProgress() >= 0);
+      // changes between batches go to the old storage and have to survive the switch
+      String changed = keys.get(stringsCount / 5 + step);
+      myMap.put(changed, changed + "_changed");
+      expected.put(changed, changed + "_changed");
+      String added = StringEnumeratorTest.createRandomString();
+      myMap.put(added, added + "_value");
+      expected.put(added, added + "_value");
+      ++step;
+    }
+    assertTrue(step > 0);
+    assertEquals(-1f, myMap.getCompactionProgress());
+    assertEquals(0, myMap.getGarbageSize());
+
+    myMap.close();
+    myMap = new PersistentHashMap<>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertEquals(expected.keySet(), new HashSet<>(myMap.getAllKeysWithExistingMapping()));
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+  }
+
+  public void testIncrementalCompactionCatchesUpWithChanges() throws IOException {
+    final int stringsCount = 200;
+    Map<String, String> expected = new HashMap<>();
+    for (int i = 0; i < stringsCount; ++i) {
+      final String key = StringEnumeratorTest.createRandomString();
+      expected.put(key, key + "_value");
+      myMap.put(key, key + "_value");
+    }
+    List<String> keys = new ArrayList<>(expected.keySet());
+
+    // all but one value of the snapshot are copied by the first step
+    assertFalse(myMap.compactIncrementally(stringsCount - 1));
+    assertTrue(myMap.getCompactionProgress() < 1);
+
+    // more changes than a batch, the same key changed several times, a key removed and added back
+    int steps = 0;
+    do {
+      for (int i = 0; i < 30; ++i) {
+        String changed = keys.get((steps * 30 + i) % stringsCount);
+        String value = changed + "_changed" + steps;
+        myMap.put(changed, value);
+        expected.put(changed, value);
+      }
+      myMap.remove(keys.get(steps));
+      expected.remove(keys.get(steps));
+      if (steps > 0) {
+        myMap.put(keys.get(steps - 1), "back");
+        expected.put(keys.get(steps - 1), "back");
+      }
+      ++steps;
+    }
+    while (!myMap.compactIncrementally(10));
+    assertTrue(steps > 1);
+    assertEquals(-1f, myMap.getCompactionProgress());
+    assertEquals(0, myMap.getGarbageSize());
+
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+    myMap.close();
+    myMap = new PersistentHashMap<>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertEquals(expected.keySet(), new HashSet<>(myMap.getAllKeysWithExistingMapping()));
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+  }
+
+  public void testLastStepIsBoundedUnderSteadyWrites() throws IOException {
+    final int stringsCount = 200;
+    final int batchSize = 10;
+    Map<String, String> expected = new HashMap<>();
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < stringsCount; ++i) {
+      final String key = StringEnumeratorTest.createRandomString();
+      keys.add(key);
+      expected.put(key, key + "_value");
+      myMap.put(key, key + "_value");
+    }
+
+    // every step is followed by more changes than it copies, the compaction never catches up on its own
+    int steps = 0;
+    int pending;
+    do {
+      for (int i = 0; i < 3 * batchSize; ++i) {
+        String changed = keys.get((steps * 3 * batchSize + i) % stringsCount);
+        String value = changed + "_changed" + steps;
+        myMap.put(changed, value);
+        expected.put(changed, value);
+      }
+      pending = myMap.getPendingCompactionChangesCount();
+      ++steps;
+      assertTrue("steps: " + steps, steps < 1000);
+    }
+    while (!myMap.compactIncrementally(batchSize));
+    assertTrue(pending <= batchSize);
+    assertEquals(0, myMap.getGarbageSize());
+
+    myMap.close();
+    myMap = new PersistentHashMap<>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+  }
+
+  public void testIncrementalCompactionWithConcurrentWrites() throws Exception {
+    final int stringsCount = 500;
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < stringsCount; ++i) {
+      final String key = StringEnumeratorTest.createRandomString();
+      keys.add(key);
+      myMap.put(key, key + "_value");
+    }
+
+    AtomicBoolean compacted = new AtomicBoolean();
+    Map<String, String> written = new ConcurrentHashMap<>();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<?> writer = executor.submit(() -> {
+      for (int i = 0; !compacted.get() || i < stringsCount; ++i) {
+        String key = keys.get(i % stringsCount);
+        String value = key + "_written" + i;
+        myMap.put(key, value);
+        written.put(key, value);
+      }
+      return null;
+    });
+
+    while (!myMap.compactIncrementally(10)) {
+      assertFalse(writer.isDone());
+    }
+    compacted.set(true);
+    writer.get(1, TimeUnit.MINUTES);
+    executor.shutdown();
+
+    myMap.close();
+    myMap = new PersistentHashMap<>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertEquals(stringsCount, written.size());
+    for (String key : keys) {
+      assertEquals(written.get(key), myMap.get(key));
+    }
+  }
+
+  public void testCancelledIncrementalCompactionKeepsValues() throws IOException {
+    Map<String, String> expected = new HashMap<>();
+    for (int i = 0; i < 100; ++i) {
+      final String key = StringEnumeratorTest.createRandomString();
+      expected.put(key, key + "_value");
+      myMap.put(key, key + "_value");
+    }
+
+    assertFalse(myMap.compactIncrementally(10));
+    String changed = expected.keySet().iterator().next();
+    myMap.put(changed, "changed");
+    expected.put(changed, "changed");
+
+    myMap.close();
+    assertFalse(new File(myDataFile.getPath() + ".new").exists());
+    myMap = new PersistentHashMap<>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertEquals(-1f, myMap.getCompactionProgress());
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+
+    // cancelled by a full compaction
+    assertFalse(myMap.compactIncrementally(10));
+    myMap.compact();
+    assertEquals(-1f, myMap.getCompactionProgress());
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+  }
+
+  public void testIncrementalCompactionOfInlineKeys() throws IOException {
+    File file = FileUtil.createTempFile("persistent", "map");
+    PersistentHashMap<Integer, String> map = new PersistentHashMap<>(file, EnumeratorIntegerDescriptor.INSTANCE, new EnumeratorStringDescriptor());
+    try {
+      Map<Integer, String> expected = new HashMap<>();
+      for (int i = 0; i < 100; ++i) {
+        map.put(i, "value" + i);
+        expected.put(i, "value" + i);
+      }
+      for (int i = 0; i < 100; i += 3) {
+        map.put(i, "changed" + i);
+        expected.put(i, "changed" + i);
+      }
+
+      int step = 0;
+      while (!map.compactIncrementally(10)) {
+        map.put(step, "step" + step);
+        expected.put(step, "step" + step);
+        map.remove(50 + step);
+        expected.remove(50 + step);
+        map.put(1000 + step, "added");
+        expected.put(1000 + step, "added");
+        ++step;
+      }
+      assertTrue(step > 0);
+      assertEquals(0, map.getGarbageSize());
+
+      map.close();
+      map = new PersistentHashMap<>(file, EnumeratorIntegerDescriptor.INSTANCE, new EnumeratorStringDescriptor());
+      assertEquals(expected.keySet(), new HashSet<>(map.getAllKeysWithExistingMapping()));
+      for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+        assertEquals(entry.getValue(), map.get(entry.getKey()));
+      }
+    }
+    finally {
+      map.close();
+      File[] files = file.getParentFile().listFiles(f -> f.getName().startsWith(file.getName()));
+      if (files != null) {
+        for (File f : files) {
+          FileUtil.delete(f);
+        }
+      }
+    }
+  }
+}
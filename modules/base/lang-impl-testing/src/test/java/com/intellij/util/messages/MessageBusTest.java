@@ -22,6 +22,7 @@ package com.intellij.util.messages;
 import com.intellij.mock.MockApplication;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.messages.impl.MessageBusFactory;
+import com.intellij.util.messages.impl.MessageBusImpl;
 import consulo.disposer.Disposable;
 import junit.framework.TestCase;
 
@@ -199,7 +200,37 @@ public class MessageBusTest extends TestCase {
                  "inside:t11:done",
                  "C2T1Handler:t12");
   }
-  
+
+  public void testSubscriberAddedAfterPublishing() {
+    final MessageBusConnection c1 = myBus.connect();
+    c1.subscribe(TOPIC1, new T1Handler("c1"));
+    myBus.syncPublisher(TOPIC1).t11();
+
+    final MessageBusConnection c2 = myBus.connect();
+    c2.subscribe(TOPIC1, new T1Handler("c2"));
+    myBus.syncPublisher(TOPIC1).t12();
+
+    c1.disconnect();
+    myBus.syncPublisher(TOPIC1).t11();
+    assertEvents("c1:t11", "c1:t12", "c2:t12", "c2:t11");
+  }
+
+  public void testTopicStatistics() {
+    MessageBusImpl bus = (MessageBusImpl)myBus;
+    bus.setCollectStatistics(true);
+    myBus.connect().subscribe(TOPIC1, new T1Handler("c1"));
+    myBus.connect().subscribe(TOPIC1, new T1Handler("c2"));
+    myBus.syncPublisher(TOPIC1).t11();
+    myBus.syncPublisher(TOPIC1).t12();
+    myBus.syncPublisher(TOPIC2).t21();
+
+    MessageBusImpl.TopicStatistics statistics = bus.getTopicStatistics().get(TOPIC1);
+    assertEquals(2, statistics.getPublishedMessages());
+    assertEquals(4, statistics.getHandlerInvocations());
+    assertEquals(1, bus.getTopicStatistics().get(TOPIC2).getPublishedMessages());
+    assertEquals(0, bus.getTopicStatistics().get(TOPIC2).getHandlerInvocations());
+  }
+
   private void assertEvents(String... expected) {
     String joinExpected = StringUtil.join(expected, "\n");
     String joinActual = StringUtil.join(myLog, "\n");
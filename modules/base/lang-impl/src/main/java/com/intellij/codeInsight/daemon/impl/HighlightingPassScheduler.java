@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon.impl;
+
+import com.intellij.concurrency.Job;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import consulo.logging.Logger;
+
+import javax.annotation.Nonnull;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs highlighting passes on a bounded number of workers, taking queued passes in {@link Lane} order:
+ * the visible part of the focused editor first, then the rest of the focused file, then all other editors.
+ * <p>
+ * A queued task is dropped without running when it or its session indicator gets canceled,
+ * so canceling a highlighting session cancels everything it scheduled.
+ * <p>
+ * Every {@link PassExecutorService}, i.e. every project, has its own scheduler.
+ */
+final class HighlightingPassScheduler {
+  private static final Logger LOG = Logger.getInstance(HighlightingPassScheduler.class);
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+  enum Lane {
+    FOCUSED_VISIBLE,
+    FOCUSED_FILE,
+    BACKGROUND
+  }
+
+  private final Executor myExecutor;
+  private final int myMaxWorkers;
+  private final PriorityBlockingQueue<Task> myQueue = new PriorityBlockingQueue<>();
+  private final AtomicInteger myWorkers = new AtomicInteger();
+  private final AtomicLong mySequence = new AtomicLong();
+
+  HighlightingPassScheduler(@Nonnull Executor executor, int maxWorkers) {
+    myExecutor = executor;
+    myMaxWorkers = Math.max(1, maxWorkers);
+  }
+
+  @Nonnull
+  Task schedule(@Nonnull Lane lane, @Nonnull ProgressIndicator sessionIndicator, @Nonnull Runnable runnable) {
+    Task task = new Task(lane, mySequence.getAndIncrement(), sessionIndicator, runnable);
+    myQueue.add(task);
+    startWorkerIfNeeded();
+    return task;
+  }
+
+  private void startWorkerIfNeeded() {
+    while (true) {
+      int workers = myWorkers.get();
+      if (workers >= myMaxWorkers) return;
+      if (myWorkers.compareAndSet(workers, workers + 1)) break;
+    }
+    myExecutor.execute(this::work);
+  }
+
+  private void work() {
+    while (true) {
+      Task task = myQueue.poll();
+      if (task == null) {
+        myWorkers.decrementAndGet();
+        // a task may have been added after poll() but before the decrement, when all workers still looked busy
+        if (myQueue.isEmpty()) return;
+        startWorkerIfNeeded();
+        return;
+      }
+      task.runOrSkip();
+    }
+  }
+
+  /**
+   * @return CPU time of the current thread in nanoseconds, or 0 if the JVM can't measure it
+   */
+  static long getCurrentThreadCpuTime() {
+    return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : 0;
+  }
+
+  final class Task implements Job<Void>, Comparable<Task> {
+    private final Lane myLane;
+    private final long mySequence;
+    private final ProgressIndicator mySessionIndicator;
+    private final Runnable myRunnable;
+    private final CountDownLatch myDone = new CountDownLatch(1);
+    private volatile boolean myCanceled;
+    private volatile Throwable myFailure;
+
+    private Task(@Nonnull Lane lane, long sequence, @Nonnull ProgressIndicator sessionIndicator, @Nonnull Runnable runnable) {
+      myLane = lane;
+      mySequence = sequence;
+      mySessionIndicator = sessionIndicator;
+      myRunnable = runnable;
+    }
+
+    private void runOrSkip() {
+      try {
+        if (myCanceled || mySessionIndicator.isCanceled()) return;
+        myRunnable.run();
+      }
+      catch (ProcessCanceledException ignored) {
+      }
+      catch (Throwable e) {
+        myFailure = e;
+        LOG.error(e);
+      }
+      finally {
+        myDone.countDown();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      myCanceled = true;
+      // not started yet: nobody else will complete it
+      if (myQueue.remove(this)) {
+        myDone.countDown();
+      }
+    }
+
+    @Override
+    public boolean isCanceled() {
+      return myCanceled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return myDone.getCount() == 0;
+    }
+
+    @Override
+    public void waitForCompletion(int millis) throws InterruptedException, ExecutionException, TimeoutException {
+      if (!myDone.await(millis, TimeUnit.MILLISECONDS)) {
+        throw new TimeoutException();
+      }
+      Throwable failure = myFailure;
+      if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+    }
+
+    @Override
+    public int compareTo(@Nonnull Task o) {
+      int c = myLane.compareTo(o.myLane);
+      return c != 0 ? c : Long.compare(mySequence, o.mySequence);
+    }
+
+    @Override
+    public String toString() {
+      return myLane + ": " + myRunnable;
+    }
+  }
+}
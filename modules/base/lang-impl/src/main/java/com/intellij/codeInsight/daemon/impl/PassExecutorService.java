@@ -4,9 +4,10 @@ package com.intellij.codeInsight.daemon.impl;
 
 import com.intellij.codeHighlighting.EditorBoundHighlightingPass;
 import com.intellij.codeHighlighting.HighlightingPass;
+import com.intellij.codeHighlighting.Pass;
 import com.intellij.codeHighlighting.TextEditorHighlightingPass;
 import com.intellij.concurrency.Job;
-import com.intellij.concurrency.JobLauncher;
+import com.intellij.concurrency.JobSchedulerImpl;
 import com.intellij.injected.editor.EditorWindow;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ex.ApplicationEx;
@@ -30,6 +31,7 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.Functions;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.MultiMap;
 import consulo.disposer.Disposable;
@@ -55,6 +57,9 @@ final class PassExecutorService implements Disposable {
   private static final boolean CHECK_CONSISTENCY = ApplicationManager.getApplication().isUnitTestMode();
 
   private final Map<ScheduledPass, Job<Void>> mySubmittedPasses = new ConcurrentHashMap<>();
+  // per project: lanes order the passes of this project's editors, a queue of another project never holds them off
+  private final HighlightingPassScheduler myScheduler =
+          new HighlightingPassScheduler(AppExecutorUtil.getAppExecutorService(), JobSchedulerImpl.getJobPoolParallelism());
   private final Project myProject;
   private volatile boolean isDisposed;
   private final AtomicInteger nextPassId = new AtomicInteger(100);
@@ -66,8 +71,6 @@ final class PassExecutorService implements Disposable {
   @Override
   public void dispose() {
     cancelAll(true);
-    // some workers could, although idle, still retain some thread references for some time causing leak hunter to frown
-    ForkJoinPool.commonPool().awaitQuiescence(1, TimeUnit.SECONDS);
     isDisposed = true;
   }
 
@@ -187,6 +190,11 @@ final class PassExecutorService implements Disposable {
 
     log(updateProgress, null, vFiles + " ----- starting " + threadsToStartCountdown.get(), freePasses);
 
+    Editor focusedEditor = FileEditorManager.getInstance(myProject).getSelectedTextEditor();
+    for (ScheduledPass scheduledPass : toBeSubmitted.values()) {
+      scheduledPass.myLane = getLane(scheduledPass, focusedEditor);
+    }
+
     for (ScheduledPass dependentPass : dependentPasses) {
       mySubmittedPasses.put(dependentPass, Job.nullJob());
     }
@@ -195,6 +203,22 @@ final class PassExecutorService implements Disposable {
     }
   }
 
+  @Nonnull
+  private static HighlightingPassScheduler.Lane getLane(@Nonnull ScheduledPass scheduledPass, Editor focusedEditor) {
+    FileEditor fileEditor = scheduledPass.myFileEditor;
+    if (focusedEditor == null || !(fileEditor instanceof TextEditor) || ((TextEditor)fileEditor).getEditor() != focusedEditor) {
+      return HighlightingPassScheduler.Lane.BACKGROUND;
+    }
+    switch (scheduledPass.myPass.getId()) {
+      case Pass.WHOLE_FILE_LOCAL_INSPECTIONS:
+      case Pass.EXTERNAL_TOOLS:
+      case Pass.WOLF:
+        return HighlightingPassScheduler.Lane.FOCUSED_FILE;
+      default:
+        return HighlightingPassScheduler.Lane.FOCUSED_VISIBLE;
+    }
+  }
+
   private void assertConsistency(List<? extends ScheduledPass> freePasses, Map<Pair<FileEditor, Integer>, ScheduledPass> toBeSubmitted, AtomicInteger threadsToStartCountdown) {
     assert threadsToStartCountdown.get() == toBeSubmitted.size();
     TIntObjectHashMap<Pair<ScheduledPass, Integer>> id2Visits = new TIntObjectHashMap<>();
@@ -350,18 +374,7 @@ final class PassExecutorService implements Disposable {
 
   private void submit(@Nonnull ScheduledPass pass) {
     if (!pass.myUpdateProgress.isCanceled()) {
-      Job<Void> job = JobLauncher.getInstance().submitToJobThread(pass, future -> {
-        try {
-          if (!future.isCancelled()) { // for canceled task .get() generates CancellationException which is expensive
-            future.get();
-          }
-        }
-        catch (CancellationException | InterruptedException ignored) {
-        }
-        catch (ExecutionException e) {
-          LOG.error(e.getCause());
-        }
-      });
+      Job<Void> job = myScheduler.schedule(pass.myLane, pass.myUpdateProgress, pass);
       mySubmittedPasses.put(pass, job);
     }
   }
@@ -375,6 +388,8 @@ final class PassExecutorService implements Disposable {
     private final List<ScheduledPass> mySuccessorsOnSubmit = new ArrayList<>();
     @Nonnull
     private final DaemonProgressIndicator myUpdateProgress;
+    // assigned once the whole pass graph is built, before the pass is submitted
+    private HighlightingPassScheduler.Lane myLane = HighlightingPassScheduler.Lane.BACKGROUND;
 
     private ScheduledPass(@Nonnull FileEditor fileEditor,
                           @Nonnull TextEditorHighlightingPass pass,
@@ -414,6 +429,7 @@ final class PassExecutorService implements Disposable {
         }
       }
 
+      long cpuStart = HighlightingPassScheduler.getCurrentThreadCpuTime();
       ProgressManager.getInstance().executeProcessUnderProgress(() -> {
         boolean success = ApplicationManagerEx.getApplicationEx().tryRunReadAction(() -> {
           try {
@@ -444,7 +460,7 @@ final class PassExecutorService implements Disposable {
         }
       }, myUpdateProgress);
 
-      log(myUpdateProgress, myPass, "Finished. ");
+      log(myUpdateProgress, myPass, "Finished. ", myLane, "cpu=" + (HighlightingPassScheduler.getCurrentThreadCpuTime() - cpuStart) / 1000000 + "ms");
 
       if (!myUpdateProgress.isCanceled()) {
         applyInformationToEditorsLater(myFileEditor, myPass, myUpdateProgress, myThreadsToStartCountdown, () -> {
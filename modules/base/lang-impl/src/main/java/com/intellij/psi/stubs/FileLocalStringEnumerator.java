@@ -9,12 +9,15 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.function.UnaryOperator;
 
 class FileLocalStringEnumerator implements AbstractStringEnumerator {
   private final TObjectIntHashMap<String> myEnumerates;
   private final ArrayList<String> myStrings = new ArrayList<>();
+  private LazyStrings myLazyStrings;
 
   FileLocalStringEnumerator(boolean forSavingStub) {
     myEnumerates = forSavingStub ? new TObjectIntHashMap<>() : null;
@@ -35,7 +38,8 @@ class FileLocalStringEnumerator implements AbstractStringEnumerator {
   @Override
   public String valueOf(int idx) {
     if (idx == 0) return null;
-    return myStrings.get(idx - 1);
+    LazyStrings lazyStrings = myLazyStrings;
+    return lazyStrings != null ? lazyStrings.get(idx - 1) : myStrings.get(idx - 1);
   }
 
   void write(@Nonnull DataOutput stream) throws IOException {
@@ -64,16 +68,62 @@ class FileLocalStringEnumerator implements AbstractStringEnumerator {
   public void force() {
   }
 
+  /**
+   * Reads the string table of a stub tree. Short ASCII strings, most of the names, are kept as bytes and decoded when a stub that
+   * refers to them is deserialized, so reading a stub tree doesn't decode and intern strings of stubs which are never accessed.
+   */
   static void readEnumeratedStrings(@Nonnull FileLocalStringEnumerator enumerator, @Nonnull DataInput stream, @Nonnull UnaryOperator<String> interner) throws IOException {
     final int numberOfStrings = DataInputOutputUtil.readINT(stream);
     byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
-    enumerator.myStrings.ensureCapacity(numberOfStrings);
+    String[] strings = new String[numberOfStrings];
+    int[] offsets = new int[numberOfStrings + 1];
+    byte[] bytes = new byte[numberOfStrings * 16];
+    int size = 0;
 
-    int i = 0;
-    while (i < numberOfStrings) {
-      String s = interner.apply(IOUtil.readUTFFast(buffer, stream));
-      enumerator.myStrings.add(s);
-      ++i;
+    for (int i = 0; i < numberOfStrings; i++) {
+      offsets[i] = size;
+      int header = 0xFF & (int)stream.readByte();
+      if (header == 0xFF) {
+        strings[i] = interner.apply(IOUtil.readUTFFast(header, buffer, stream));
+      }
+      else if (header == 0) {
+        strings[i] = "";
+      }
+      else {
+        if (size + header > bytes.length) {
+          bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + header));
+        }
+        stream.readFully(bytes, size, header);
+        size += header;
+      }
+    }
+    offsets[numberOfStrings] = size;
+    enumerator.myLazyStrings = new LazyStrings(strings, bytes, offsets, interner);
+  }
+
+  private static class LazyStrings {
+    private final String[] myStrings;
+    private final byte[] myBytes;
+    // bytes of the i-th string are in [myOffsets[i], myOffsets[i + 1]) unless it's decoded on reading
+    private final int[] myOffsets;
+    private final UnaryOperator<String> myInterner;
+
+    private LazyStrings(@Nonnull String[] strings, @Nonnull byte[] bytes, @Nonnull int[] offsets, @Nonnull UnaryOperator<String> interner) {
+      myStrings = strings;
+      myBytes = bytes;
+      myOffsets = offsets;
+      myInterner = interner;
+    }
+
+    @Nonnull
+    String get(int index) {
+      String string = myStrings[index];
+      if (string == null) {
+        int start = myOffsets[index];
+        // stubs are deserialized concurrently, a race only decodes the string twice
+        myStrings[index] = string = myInterner.apply(new String(myBytes, start, myOffsets[index + 1] - start, StandardCharsets.ISO_8859_1));
+      }
+      return string;
     }
   }
 }
@@ -24,7 +24,6 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.psi.impl.DebugUtil;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.io.DigestUtil;
-import com.intellij.util.io.UnsyncByteArrayInputStream;
 import consulo.logging.Logger;
 import org.jetbrains.annotations.TestOnly;
 
@@ -165,7 +164,7 @@ public class SerializedStubTree {
 
   @Nonnull
   Stub retrieveStubFromBytes(@Nonnull SerializationManagerEx serializationManager) throws SerializerNotFoundException {
-    return serializationManager.deserialize(new UnsyncByteArrayInputStream(myTreeBytes, 0, myTreeByteLength));
+    return serializationManager.deserialize(new StubTreeInputStream(myTreeBytes, myTreeByteLength));
   }
 
   @Override
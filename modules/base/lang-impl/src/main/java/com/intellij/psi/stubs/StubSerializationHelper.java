@@ -155,6 +155,7 @@ class StubSerializationHelper {
 
   @Nonnull
   Stub deserialize(@Nonnull InputStream stream) throws IOException, SerializerNotFoundException {
+    StubTreeInputStream treeStream = stream instanceof StubTreeInputStream ? (StubTreeInputStream)stream : null;
     FileLocalStringEnumerator storage = new FileLocalStringEnumerator(false);
     StubInputStream inputStream = new StubInputStream(stream, storage);
     IntEnumerator serializerLocalEnumerator = IntEnumerator.read(inputStream);
@@ -165,11 +166,11 @@ class StubSerializationHelper {
       Logger.getInstance(getClass()).error("Incorrect stub files count during deserialization:" + stubFilesCount);
     }
 
-    Stub baseStub = deserializeRoot(inputStream, storage, serializerLocalEnumerator);
+    Stub baseStub = deserializeRoot(inputStream, treeStream, storage, serializerLocalEnumerator);
     final List<PsiFileStub> stubs = new ArrayList<>(stubFilesCount);
     if (baseStub instanceof PsiFileStub) stubs.add((PsiFileStub)baseStub);
     for (int j = 1; j < stubFilesCount; j++) {
-      Stub deserialize = deserializeRoot(inputStream, storage, serializerLocalEnumerator);
+      Stub deserialize = deserializeRoot(inputStream, treeStream, storage, serializerLocalEnumerator);
       if (deserialize instanceof PsiFileStub) {
         final PsiFileStub fileStub = (PsiFileStub)deserialize;
         stubs.add(fileStub);
@@ -187,13 +188,16 @@ class StubSerializationHelper {
     return baseStub;
   }
 
-  private Stub deserializeRoot(StubInputStream inputStream, FileLocalStringEnumerator storage, IntEnumerator serializerLocalEnumerator) throws IOException, SerializerNotFoundException {
+  private Stub deserializeRoot(StubInputStream inputStream,
+                               @Nullable StubTreeInputStream treeStream,
+                               FileLocalStringEnumerator storage,
+                               IntEnumerator serializerLocalEnumerator) throws IOException, SerializerNotFoundException {
     ObjectStubSerializer<?, Stub> serializer = getClassById(DataInputOutputUtil.readINT(inputStream), null, serializerLocalEnumerator);
     ourRootStubSerializer.set(serializer);
     try {
       Stub stub = serializer.deserialize(inputStream, null);
       if (stub instanceof StubBase) {
-        deserializeStubList((StubBase)stub, serializer, inputStream, storage, serializerLocalEnumerator);
+        deserializeStubList((StubBase)stub, serializer, inputStream, treeStream, storage, serializerLocalEnumerator);
       }
       else {
         deserializeChildren(inputStream, stub, serializerLocalEnumerator);
@@ -219,8 +223,12 @@ class StubSerializationHelper {
     }
   }
 
-  private void deserializeStubList(StubBase<?> root, ObjectStubSerializer rootType, StubInputStream inputStream, FileLocalStringEnumerator storage, IntEnumerator serializerLocalEnumerator)
-          throws IOException, SerializerNotFoundException {
+  private void deserializeStubList(StubBase<?> root,
+                                   ObjectStubSerializer rootType,
+                                   StubInputStream inputStream,
+                                   @Nullable StubTreeInputStream treeStream,
+                                   FileLocalStringEnumerator storage,
+                                   IntEnumerator serializerLocalEnumerator) throws IOException, SerializerNotFoundException {
     int stubCount = DataInputOutputUtil.readINT(inputStream);
     LazyStubList stubList = new LazyStubList(stubCount, root, rootType);
 
@@ -262,8 +270,21 @@ class StubSerializationHelper {
         deserializeChildren(0);
       }
     }.deserializeRoot();
-    byte[] serializedStubs = readByteArray(inputStream);
-    stubList.setStubData(new LazyStubData(storage, parentsAndStarts, serializedStubs, allStarts));
+    LazyStubData data;
+    if (treeStream != null) {
+      // stubs are deserialized on demand right from the tree bytes, which are kept by SerializedStubTree anyway
+      int length = DataInputOutputUtil.readINT(inputStream);
+      int offset = treeStream.getPosition();
+      if (inputStream.skipBytes(length) != length) {
+        Logger.getInstance(getClass()).error("Serialized array length mismatch");
+      }
+      data = new LazyStubData(storage, parentsAndStarts, treeStream.getBytes(), offset, length, allStarts);
+    }
+    else {
+      byte[] serializedStubs = readByteArray(inputStream);
+      data = new LazyStubData(storage, parentsAndStarts, serializedStubs, 0, serializedStubs.length, allStarts);
+    }
+    stubList.setStubData(data);
   }
 
   private void serializeStubList(StubList stubList, DataOutput out, AbstractStringEnumerator storage, IntEnumerator serializerLocalEnumerator) throws IOException {
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Stream over the stored bytes of a stub tree. {@link StubSerializationHelper} reads serialized stubs lazily right from these bytes
+ * instead of copying them.
+ */
+final class StubTreeInputStream extends UnsyncByteArrayInputStream {
+  private final int myLength;
+
+  StubTreeInputStream(@Nonnull byte[] bytes, int length) {
+    super(bytes, 0, length);
+    myLength = length;
+  }
+
+  @Nonnull
+  byte[] getBytes() {
+    return myBuffer;
+  }
+
+  int getPosition() {
+    return myLength - available();
+  }
+}
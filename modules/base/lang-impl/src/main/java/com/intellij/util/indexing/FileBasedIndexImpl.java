@@ -56,6 +56,7 @@ import com.intellij.psi.search.EverythingGlobalScope;
 import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.psi.stubs.SerializationManagerEx;
 import com.intellij.util.*;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.concurrency.SequentialTaskExecutor;
 import com.intellij.util.containers.ContainerUtil;
@@ -146,6 +147,15 @@ public final class FileBasedIndexImpl extends FileBasedIndex {
   private final Set<Project> myProjectsBeingUpdated = ContainerUtil.newConcurrentSet();
   private final IndexAccessValidator myAccessValidator = new IndexAccessValidator();
 
+  // number of independently locked storages of every file based index, more than one allows concurrent updates of an index
+  private static final int INDEX_SHARD_COUNT = SystemProperties.getIntProperty("idea.indices.shards", 1);
+  // threads reading value containers of a multi-key query, the query thread included
+  private static final int QUERY_PARALLELISM =
+          SystemProperties.getIntProperty("idea.indices.query.parallelism", Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private final IndexQueryEngine myQueryEngine =
+          new IndexQueryEngine(AppExecutorUtil.createBoundedApplicationPoolExecutor("FileBasedIndex Query Pool", Math.max(1, QUERY_PARALLELISM - 1)), QUERY_PARALLELISM,
+                               ProgressManager::checkCanceled);
+
   private volatile boolean myInitialized;
 
   private Future<IndexConfiguration> myStateFuture;
@@ -344,7 +354,8 @@ public final class FileBasedIndexImpl extends FileBasedIndex {
                                              @Nonnull IndexConfiguration state,
                                              @Nonnull IndicesRegistrationResult registrationStatusSink) throws IOException {
     final ID<K, V> name = extension.getName();
-    final int version = extension.getVersion();
+    // keys are distributed by the shard count, so storages built with another shard count are rebuilt
+    final int version = extension.getVersion() + (INDEX_SHARD_COUNT > 1 ? INDEX_SHARD_COUNT << 24 : 0);
 
     final File versionFile = IndexInfrastructure.getVersionFile(name);
 
@@ -373,7 +384,7 @@ public final class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   private static <K, V> void initIndexStorage(@Nonnull FileBasedIndexExtension<K, V> extension, int version, @Nonnull IndexConfiguration state) throws IOException {
-    VfsAwareMapIndexStorage<K, V> storage = null;
+    VfsAwareIndexStorage<K, V> storage = null;
     final ID<K, V> name = extension.getName();
     boolean contentHashesEnumeratorOk = false;
 
@@ -384,8 +395,7 @@ public final class FileBasedIndexImpl extends FileBasedIndex {
           contentHashesEnumeratorOk = true;
         }
 
-        storage = new VfsAwareMapIndexStorage<>(IndexInfrastructure.getStorageFile(name), extension.getKeyDescriptor(), extension.getValueExternalizer(), extension.getCacheSize(),
-                                                extension.keyIsUniqueForIndexedFile(), extension.traceKeyHashToVirtualFileMapping());
+        storage = createIndexStorage(extension);
 
         final InputFilter inputFilter = extension.getInputFilter();
 
@@ -431,6 +441,40 @@ public final class FileBasedIndexImpl extends FileBasedIndex {
     }
   }
 
+  @Nonnull
+  private static <K, V> VfsAwareIndexStorage<K, V> createIndexStorage(@Nonnull FileBasedIndexExtension<K, V> extension) throws IOException {
+    File storageFile = IndexInfrastructure.getStorageFile(extension.getName());
+    if (INDEX_SHARD_COUNT <= 1) {
+      return createMapIndexStorage(extension, storageFile, extension.getCacheSize());
+    }
+
+    List<VfsAwareMapIndexStorage<K, V>> shards = new ArrayList<>(INDEX_SHARD_COUNT);
+    try {
+      for (int i = 0; i < INDEX_SHARD_COUNT; i++) {
+        File shardFile = new File(storageFile.getPath() + ".shard" + i);
+        shards.add(createMapIndexStorage(extension, shardFile, Math.max(1, extension.getCacheSize() / INDEX_SHARD_COUNT)));
+      }
+    }
+    catch (IOException | RuntimeException e) {
+      for (VfsAwareMapIndexStorage<K, V> shard : shards) {
+        try {
+          shard.close();
+        }
+        catch (Exception ignored) {
+        }
+      }
+      throw e;
+    }
+    return new VfsAwareShardedIndexStorage<>(shards, extension.getKeyDescriptor());
+  }
+
+  @Nonnull
+  private static <K, V> VfsAwareMapIndexStorage<K, V> createMapIndexStorage(@Nonnull FileBasedIndexExtension<K, V> extension, @Nonnull File storageFile, int cacheSize)
+          throws IOException {
+    return new VfsAwareMapIndexStorage<>(storageFile, extension.getKeyDescriptor(), extension.getValueExternalizer(), cacheSize, extension.keyIsUniqueForIndexedFile(),
+                                         extension.traceKeyHashToVirtualFileMapping());
+  }
+
   private static void saveRegisteredIndicesAndDropUnregisteredOnes(@Nonnull Collection<? extends ID<?, ?>> ids) {
     if (ApplicationManager.getApplication().isDisposed() || !IndexInfrastructure.hasIndices()) {
       return;
@@ -1098,7 +1142,7 @@ public final class FileBasedIndexImpl extends FileBasedIndex {
                                                              @Nonnull final GlobalSearchScope filter,
                                                              @Nullable final Condition<? super V> valueChecker,
                                                              @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
-    ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException> convertor = index -> InvertedIndexUtil.collectInputIdsContainingAllKeys(index, dataKeys, __ -> {
+    ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException> convertor = index -> myQueryEngine.collectInputIdsContainingAllKeys(index, dataKeys, index.getReadLock(), __ -> {
       ProgressManager.checkCanceled();
       return true;
     }, valueChecker, projectFilesFilter == null ? null : projectFilesFilter::containsFileId);
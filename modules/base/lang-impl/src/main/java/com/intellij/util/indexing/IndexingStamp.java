@@ -10,6 +10,7 @@ import com.intellij.psi.stubs.StubIndexKey;
 import com.intellij.util.SmartList;
 import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.indexing.containers.ChangeBufferingList;
 import com.intellij.util.io.DataInputOutputUtil;
 import consulo.util.collection.IntObjectMap;
 import gnu.trove.TObjectLongHashMap;
@@ -42,7 +43,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class IndexingStamp {
   private static final long INDEX_DATA_OUTDATED_STAMP = -2L;
 
-  private static final int VERSION = 15 + (SharedIndicesData.ourFileSharedIndicesEnabled ? 15 : 0) + (SharedIndicesData.DO_CHECKS ? 15 : 0);
+  private static final int VERSION = 15 + (SharedIndicesData.ourFileSharedIndicesEnabled ? 15 : 0) + (SharedIndicesData.DO_CHECKS ? 15 : 0) +
+                                     (ChangeBufferingList.COMPRESSED_ID_SETS ? 1 : 0);
   private static final ConcurrentMap<ID<?, ?>, IndexVersion> ourIndexIdToCreationStamp = ContainerUtil.newConcurrentMap();
   private static final long ourVfsCreationStamp = FSRecords.getCreationTimestamp();
 
@@ -56,6 +56,15 @@ public class MemoryIndexStorage<Key, Value> implements VfsAwareIndexStorage<Key,
     myIndexId = indexId;
   }
 
+  @Nonnull
+  public IndexStorage<Key, Value> getBackendStorage() {
+    return myBackendStorage;
+  }
+
+  public boolean isBufferingEnabled() {
+    return myBufferingEnabled;
+  }
+
   public void addBufferingStateListener(@Nonnull BufferingStateListener listener) {
     myListeners.add(listener);
   }
@@ -64,7 +64,19 @@ public class VfsAwareMapReduceIndex<Key, Value, Input> extends MapReduceIndex<Ke
                                 @Nonnull IndexStorage<Key, Value> storage,
                                 @Nullable SnapshotInputMappings<Key, Value, Input> snapshotInputMappings) throws IOException {
     this(extension, storage, snapshotInputMappings != null ? new SharedIntMapForwardIndex(extension, snapshotInputMappings.getInputIndexStorageFile(), true) : getForwardIndexMap(extension),
-         snapshotInputMappings != null ? snapshotInputMappings.getForwardIndexAccessor() : getForwardIndexAccessor(extension), snapshotInputMappings, null);
+         snapshotInputMappings != null ? snapshotInputMappings.getForwardIndexAccessor() : getForwardIndexAccessor(extension), snapshotInputMappings, createLock(storage));
+  }
+
+  @Nullable
+  private static ReadWriteLock createLock(@Nonnull IndexStorage<?, ?> storage) {
+    ShardedIndexStorage<?, ?> shardedStorage = getShardedBackendStorage(storage);
+    return shardedStorage != null ? new ShardedReadWriteLock(shardedStorage.getShardCount()) : null;
+  }
+
+  @Nullable
+  private static <Key, Value> ShardedIndexStorage<Key, Value> getShardedBackendStorage(@Nonnull IndexStorage<Key, Value> storage) {
+    IndexStorage<Key, Value> backend = storage instanceof MemoryIndexStorage ? ((MemoryIndexStorage<Key, Value>)storage).getBackendStorage() : storage;
+    return backend instanceof ShardedIndexStorage ? (ShardedIndexStorage<Key, Value>)backend : null;
   }
 
   public VfsAwareMapReduceIndex(@Nonnull IndexExtension<Key, Value, Input> extension,
@@ -152,6 +164,14 @@ public class VfsAwareMapReduceIndex<Key, Value, Input> extends MapReduceIndex<Ke
     }
   }
 
+  @Nullable
+  @Override
+  protected ShardedIndexStorage<Key, Value> getShardedStorageForUpdate() {
+    // buffered changes are kept in a map which is not thread-safe
+    if (myStorage instanceof MemoryIndexStorage && ((MemoryIndexStorage<Key, Value>)myStorage).isBufferingEnabled()) return null;
+    return getShardedBackendStorage(myStorage);
+  }
+
   @Override
   public void setIndexedStateForFile(int fileId, @Nonnull VirtualFile file) {
     IndexingStamp.setFileIndexedStateCurrent(fileId, (ID<?, ?>)myIndexId);
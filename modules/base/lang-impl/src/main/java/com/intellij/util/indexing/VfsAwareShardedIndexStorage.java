@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.Processor;
+import com.intellij.util.indexing.impl.ShardedIndexStorage;
+import com.intellij.util.io.KeyDescriptor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * {@link ShardedIndexStorage} of a file based index. Shards have disjoint key sets, so keys of all shards are processed one shard
+ * after another.
+ */
+public final class VfsAwareShardedIndexStorage<Key, Value> extends ShardedIndexStorage<Key, Value> implements VfsAwareIndexStorage<Key, Value> {
+  public VfsAwareShardedIndexStorage(@Nonnull List<? extends VfsAwareIndexStorage<Key, Value>> shards, @Nonnull KeyDescriptor<Key> keyDescriptor) {
+    super(shards, keyDescriptor);
+  }
+
+  @Override
+  public boolean processKeys(@Nonnull Processor<? super Key> processor, GlobalSearchScope scope, @Nullable IdFilter idFilter) throws StorageException {
+    for (int i = 0; i < getShardCount(); i++) {
+      if (!((VfsAwareIndexStorage<Key, Value>)getShard(i)).processKeys(processor, scope, idFilter)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -19,13 +19,17 @@ import com.intellij.openapi.application.AccessToken;
 import com.intellij.openapi.application.ex.ApplicationUtil;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.impl.CoreProgressManager;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentList;
 import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.concurrency.StripedReaderCounter;
 import org.jetbrains.annotations.TestOnly;
 
 import javax.annotation.Nonnull;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -43,6 +47,10 @@ import java.util.function.BooleanSupplier;
  * The elevator pitch explanation of the algorithm:<br>
  * Read lock: flips {@link Reader#readRequested} bit in its own thread local {@link Reader} structure and waits for writer to release its lock by checking {@link #writeRequested}.<br>
  * Write lock: sets global {@link #writeRequested} bit and waits for all readers (in global {@link #readers} list) to release their locks by checking {@link Reader#readRequested} for all readers.
+ * <br>
+ * In the striped readers mode (see {@link #ReadMostlyRWLock(boolean)}) readers aren't registered in {@link #readers}. Instead every reader
+ * also increments its stripe of {@link #readerCounts}, and the writer waits for all stripes to become zero, so the cost of
+ * a write doesn't depend on how many threads ever took the read lock. That's the mode for large pools and short-living threads.
  */
 public class ReadMostlyRWLock {
   public volatile Thread writeThread;
@@ -55,7 +63,25 @@ public class ReadMostlyRWLock {
 
   private volatile boolean writeSuspended;
 
+  private static final boolean STRIPED_READERS = SystemProperties.getBooleanProperty("idea.read.lock.striped.readers", false);
+  // number of readers which requested or obtained read access; null unless readers are striped
+  private final StripedReaderCounter readerCounts;
+  // readers parked in waitABit() while readers are striped
+  private final Set<Thread> blockedReaders;
+
   public ReadMostlyRWLock() {
+    this(STRIPED_READERS);
+  }
+
+  public ReadMostlyRWLock(boolean stripedReaders) {
+    if (stripedReaders) {
+      readerCounts = new StripedReaderCounter();
+      blockedReaders = ConcurrentHashMap.newKeySet();
+    }
+    else {
+      readerCounts = null;
+      blockedReaders = null;
+    }
   }
 
   // Each reader thread has instance of this struct in its thread local. it's also added to global "readers" list.
@@ -65,9 +91,11 @@ public class ReadMostlyRWLock {
     private volatile boolean readRequested; // this reader is requesting or obtained read access. Written by reader thread only, read by writer.
     private volatile boolean blocked;       // this reader is blocked waiting for the writer thread to release write lock. Written by reader thread only, read by writer.
     private boolean impatientReads; // true if should throw PCE on contented read lock
+    private final int countIndex;   // stripe of the thread in readerCounts
 
-    Reader(@Nonnull Thread readerThread) {
+    Reader(@Nonnull Thread readerThread, int countIndex) {
       thread = readerThread;
+      this.countIndex = countIndex;
     }
 
     @Override
@@ -76,12 +104,19 @@ public class ReadMostlyRWLock {
     }
   }
 
-  private final ThreadLocal<Reader> R = ThreadLocal.withInitial(() -> {
-    Reader status = new Reader(Thread.currentThread());
+  private final ThreadLocal<Reader> R = ThreadLocal.withInitial(this::createReader);
+
+  @Nonnull
+  private Reader createReader() {
+    Thread thread = Thread.currentThread();
+    if (readerCounts != null) {
+      return new Reader(thread, readerCounts.stripeOf(thread));
+    }
+    Reader status = new Reader(thread, -1);
     boolean added = readers.addIfAbsent(status);
     assert added : readers + "; " + Thread.currentThread();
     return status;
-  });
+  }
 
   @TestOnly
   void setWriteThread(@Nonnull Thread thread) {
@@ -141,11 +176,13 @@ public class ReadMostlyRWLock {
   private void waitABit(Reader status, int iteration) {
     if (iteration > SPIN_TO_WAIT_FOR_LOCK) {
       status.blocked = true;
+      if (blockedReaders != null) blockedReaders.add(status.thread);
       try {
         throwIfImpatient(status);
         LockSupport.parkNanos(this, 1_000_000);  // unparked by writeUnlock
       }
       finally {
+        if (blockedReaders != null) blockedReaders.remove(status.thread);
         status.blocked = false;
       }
     }
@@ -187,7 +224,7 @@ public class ReadMostlyRWLock {
   public void readUnlock() {
     checkReadThreadAccess();
     Reader status = R.get();
-    status.readRequested = false;
+    setReadRequested(status, false);
     if (writeRequested) {
       LockSupport.unpark(writeThread);  // parked by writeLock()
     }
@@ -202,15 +239,23 @@ public class ReadMostlyRWLock {
   private boolean tryReadLock(Reader status) {
     throwIfImpatient(status);
     if (!writeRequested) {
-      status.readRequested = true;
+      setReadRequested(status, true);
       if (!writeRequested) {
         return true;
       }
-      status.readRequested = false;
+      setReadRequested(status, false);
     }
     return false;
   }
 
+  // the counter of the stripe follows the readRequested bit, so nested read locks of the same thread are counted once, as in readers
+  private void setReadRequested(@Nonnull Reader status, boolean requested) {
+    if (readerCounts != null && status.readRequested != requested) {
+      readerCounts.add(status.countIndex, requested ? 1 : -1);
+    }
+    status.readRequested = requested;
+  }
+
   private static final int SPIN_TO_WAIT_FOR_LOCK = 100;
 
   public void writeIntentLock() {
@@ -283,6 +328,12 @@ public class ReadMostlyRWLock {
     checkWriteThreadAccess();
     writeAcquired = false;
     writeRequested = false;
+    if (blockedReaders != null) {
+      for (Thread reader : blockedReaders) {
+        LockSupport.unpark(reader); // parked by readLock()
+      }
+      return;
+    }
     List<Reader> dead = new ArrayList<>(readers.size());
     for (Reader reader : readers) {
       if (reader.blocked) {
@@ -308,6 +359,10 @@ public class ReadMostlyRWLock {
   }
 
   private boolean areAllReadersIdle() {
+    if (readerCounts != null) {
+      return !readerCounts.hasReaders();
+    }
+
     for (Reader reader : readers) {
       if (reader.readRequested) {
         return false;
@@ -264,6 +264,20 @@ public class EditorView implements TextDrawingCallback, Disposable, Dumpable, Hi
     myEditor.getSoftWrapModel().prepareToMapping();
     checkFontRenderContext(g.getFontRenderContext());
     myPainter.paint(g);
+    precomputeLayoutAroundVisibleArea();
+  }
+
+  private void precomputeLayoutAroundVisibleArea() {
+    if (myEditor.isPurePaintingMode() || myDocument.isInBulkUpdate()) return;
+    Rectangle visibleArea = myEditor.getScrollingModel().getVisibleArea();
+    if (visibleArea.height <= 0) return;
+    int startVisualLine = yToVisualLine(visibleArea.y);
+    int endVisualLine = yToVisualLine(visibleArea.y + visibleArea.height - 1);
+    // a screen above and below the visible area
+    int margin = endVisualLine - startVisualLine + 1;
+    int startLine = myDocument.getLineNumber(visualLineToOffset(startVisualLine - margin));
+    int endLine = myDocument.getLineNumber(visualLineToOffset(endVisualLine + margin + 1));
+    myTextLayoutCache.precomputeLayout(startLine, endLine);
   }
 
   public void repaintCarets() {
@@ -30,6 +30,7 @@ import java.text.Bidi;
 import java.util.List;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 /**
@@ -121,8 +122,10 @@ abstract class LineLayout {
     List<BidiRun> runs = createRuns(view, chars, -1);
     for (BidiRun run : runs) {
       for (Chunk chunk : run.getChunks(text, 0)) {
-        chunk.fragments = new ArrayList<>();
-        addFragments(run, chunk, chars, chunk.startOffset, chunk.endOffset, null, ffi);
+        FragmentList fragments = new FragmentList();
+        addFragments(run, fragments, chars, chunk.startOffset, chunk.endOffset, null, ffi);
+        assert !fragments.fragments.isEmpty();
+        chunk.fragments = fragments.fragments;
       }
     }
     return runs;
@@ -247,40 +250,62 @@ abstract class LineLayout {
     }
   }
 
-  private static void addFragments(BidiRun run, Chunk chunk, char[] text, int start, int end, @Nullable TabFragment tabFragment, FontFallbackIterator it) {
+  private static void addFragments(BidiRun run, FragmentSink fragments, char[] text, int start, int end, @Nullable TabFragment tabFragment, FontFallbackIterator it) {
     assert start < end;
     if (tabFragment == null) {
-      addFragmentsNoTabs(run, chunk, text, start, end, it);
+      addFragmentsNoTabs(run, fragments, text, start, end, it);
     }
     else {
       int last = start;
       for (int i = start; i < end; i++) {
         if (text[i] == '\t') {
           assert run.level == 0;
-          addFragmentsNoTabs(run, chunk, text, last, i, it);
-          chunk.fragments.add(tabFragment);
+          addFragmentsNoTabs(run, fragments, text, last, i, it);
+          fragments.addTab(tabFragment);
           last = i + 1;
         }
       }
-      addFragmentsNoTabs(run, chunk, text, last, end, it);
+      addFragmentsNoTabs(run, fragments, text, last, end, it);
     }
-    assert !chunk.fragments.isEmpty();
   }
 
-  private static void addFragmentsNoTabs(BidiRun run, Chunk chunk, char[] text, int start, int end, FontFallbackIterator it) {
+  private static void addFragmentsNoTabs(BidiRun run, FragmentSink fragments, char[] text, int start, int end, FontFallbackIterator it) {
     if (start < end) {
       it.start(text, start, end);
       while (!it.atEnd()) {
-        addTextFragmentIfNeeded(chunk, text, it.getStart(), it.getEnd(), it.getFontInfo(), run.isRtl());
+        addTextFragmentIfNeeded(fragments, text, it.getStart(), it.getEnd(), it.getFontInfo(), run.isRtl());
         it.advance();
       }
     }
   }
 
-  private static void addTextFragmentIfNeeded(Chunk chunk, char[] chars, int from, int to, FontInfo fontInfo, boolean isRtl) {
+  private static void addTextFragmentIfNeeded(FragmentSink fragments, char[] chars, int from, int to, FontInfo fontInfo, boolean isRtl) {
     if (to > from) {
       assert fontInfo != null;
-      chunk.fragments.add(TextFragmentFactory.createTextFragment(chars, from, to, isRtl, fontInfo));
+      fragments.addText(chars, from, to, isRtl, fontInfo);
+    }
+  }
+
+  /**
+   * Receives fragments of a chunk in logical order.
+   */
+  private interface FragmentSink {
+    void addTab(@Nonnull TabFragment fragment);
+
+    void addText(@Nonnull char[] chars, int start, int end, boolean isRtl, @Nonnull FontInfo fontInfo);
+  }
+
+  private static class FragmentList implements FragmentSink {
+    private final List<LineFragment> fragments = new ArrayList<>();
+
+    @Override
+    public void addTab(@Nonnull TabFragment fragment) {
+      fragments.add(fragment);
+    }
+
+    @Override
+    public void addText(@Nonnull char[] chars, int start, int end, boolean isRtl, @Nonnull FontInfo fontInfo) {
+      fragments.add(TextFragmentFactory.createTextFragment(chars, start, end, isRtl, fontInfo));
     }
   }
 
@@ -593,8 +618,24 @@ abstract class LineLayout {
       }
       if (fragments != null) return;
       assert isReal();
-      fragments = new ArrayList<>();
       int lineStartOffset = view.getEditor().getDocument().getLineStartOffset(line);
+      fragments = computeFragments(view, run, lineStartOffset);
+      view.getSizeManager().textLayoutPerformed(lineStartOffset + startOffset, lineStartOffset + endOffset);
+    }
+
+    @Nonnull
+    private List<LineFragment> computeFragments(@Nonnull EditorView view, BidiRun run, int lineStartOffset) {
+      FragmentList fragments = new FragmentList();
+      collectFragments(view, run, lineStartOffset, fragments);
+      assert !fragments.fragments.isEmpty();
+      return fragments.fragments;
+    }
+
+    /**
+     * Splits the chunk into fragments according to highlighting and font fallback. Reads editor state, so must be called in EDT,
+     * but doesn't modify the chunk.
+     */
+    private void collectFragments(@Nonnull EditorView view, BidiRun run, int lineStartOffset, @Nonnull FragmentSink fragments) {
       int start = lineStartOffset + startOffset;
       int end = lineStartOffset + endOffset;
       if (LOG.isDebugEnabled()) LOG.debug("Text layout for " + view.getEditor().getVirtualFile() + " (" + start + "-" + end + ")");
@@ -612,7 +653,7 @@ abstract class LineLayout {
         if (fontType != currentFontType || !color.equals(currentColor)) {
           int tokenStart = it.getStartOffset();
           if (tokenStart > currentStart) {
-            addFragments(run, this, chars, currentStart - start, tokenStart - start, view.getTabFragment(), ffi);
+            addFragments(run, fragments, chars, currentStart - start, tokenStart - start, view.getTabFragment(), ffi);
           }
           currentStart = tokenStart;
           currentColor = color;
@@ -621,10 +662,8 @@ abstract class LineLayout {
         it.advance();
       }
       if (end > currentStart) {
-        addFragments(run, this, chars, currentStart - start, end - start, view.getTabFragment(), ffi);
+        addFragments(run, fragments, chars, currentStart - start, end - start, view.getTabFragment(), ffi);
       }
-      view.getSizeManager().textLayoutPerformed(start, end);
-      assert !fragments.isEmpty();
     }
 
     private Chunk subChunk(EditorView view, BidiRun run, int line, int targetStartOffset, int targetEndOffset, @Nullable Runnable quickEvaluationListener) {
@@ -663,11 +702,84 @@ abstract class LineLayout {
       return true;
     }
 
+    int getLength() {
+      return endOffset - startOffset;
+    }
+
     void clearCache() {
       fragments = null;
     }
   }
 
+  /**
+   * Adds layouts to compute for the chunks of this line which aren't laid out yet. Must be called in EDT.
+   */
+  void collectChunksToLayOut(@Nonnull EditorView view, int line, @Nonnull List<? super ChunkLayout> result) {
+    Document document = view.getEditor().getDocument();
+    CharSequence text = document.getImmutableCharSequence();
+    int lineStartOffset = document.getLineStartOffset(line);
+    for (BidiRun run : getRunsInLogicalOrder()) {
+      for (Chunk chunk : run.getChunks(text, lineStartOffset)) {
+        if (chunk.fragments == null) {
+          result.add(new ChunkLayout(view, this, chunk, run, line, lineStartOffset));
+        }
+      }
+    }
+  }
+
+  /**
+   * Layout of a chunk computed apart from the chunk and applied to it later in EDT. Fragment boundaries and fonts depend on the editor
+   * state and are determined in EDT on creation, the glyph layout of text fragments doesn't and can be computed on any thread.
+   */
+  static class ChunkLayout implements FragmentSink {
+    final LineLayout lineLayout;
+    final Chunk chunk;
+    final int line;
+    private final int myLineStartOffset;
+    private final List<Supplier<LineFragment>> myPendingFragments = new ArrayList<>();
+    private volatile List<LineFragment> myFragments;
+
+    private ChunkLayout(@Nonnull EditorView view, LineLayout lineLayout, Chunk chunk, BidiRun run, int line, int lineStartOffset) {
+      this.lineLayout = lineLayout;
+      this.chunk = chunk;
+      this.line = line;
+      myLineStartOffset = lineStartOffset;
+      chunk.collectFragments(view, run, lineStartOffset, this);
+    }
+
+    @Override
+    public void addTab(@Nonnull TabFragment fragment) {
+      myPendingFragments.add(() -> fragment);
+    }
+
+    @Override
+    public void addText(@Nonnull char[] chars, int start, int end, boolean isRtl, @Nonnull FontInfo fontInfo) {
+      myPendingFragments.add(() -> TextFragmentFactory.createTextFragment(chars, start, end, isRtl, fontInfo));
+    }
+
+    /**
+     * Performs the glyph layout, doesn't access the editor.
+     */
+    void compute() {
+      List<LineFragment> fragments = new ArrayList<>(myPendingFragments.size());
+      for (Supplier<LineFragment> fragment : myPendingFragments) {
+        fragments.add(fragment.get());
+      }
+      assert !fragments.isEmpty();
+      myFragments = fragments;
+    }
+
+    /**
+     * @return false if the layout wasn't computed or the chunk got laid out meanwhile
+     */
+    boolean apply(@Nonnull EditorView view) {
+      if (myFragments == null || chunk.fragments != null) return false;
+      chunk.fragments = myFragments;
+      view.getSizeManager().textLayoutPerformed(myLineStartOffset + chunk.startOffset, myLineStartOffset + chunk.endOffset);
+      return true;
+    }
+  }
+
   private static class SyntheticChunk extends Chunk {
     private SyntheticChunk(int startOffset, int endOffset) {
       super(startOffset, endOffset);
@@ -15,65 +15,72 @@
  */
 package com.intellij.openapi.editor.impl.view;
 
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.diagnostic.Attachment;
+import com.intellij.openapi.editor.colors.EditorColorsScheme;
+import com.intellij.openapi.editor.highlighter.EditorHighlighter;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import consulo.disposer.Disposable;
-import consulo.disposer.Disposer;
 import consulo.logging.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.ex.PrioritizedDocumentListener;
 import com.intellij.openapi.editor.impl.EditorDocumentPriorities;
-import com.intellij.util.ui.update.Activatable;
-import com.intellij.util.ui.update.UiNotifyConnector;
+import org.jetbrains.annotations.TestOnly;
 import javax.annotation.Nonnull;
 
 import java.awt.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Editor text layout storage. Layout is stored on a per-logical-line basis, 
  * it's created lazily (when requested) and invalidated on document changes or when explicitly requested.
+ * <p>
+ * Laid out chunks of all editors share one application-wide LRU cache limited by the total length of their text.
+ * Glyph layout of the chunks around the visible area is done in background, so that scrolling doesn't have to.
  *
  * @see LineLayout
  */
 class TextLayoutCache implements PrioritizedDocumentListener, Disposable {
   private static final Logger LOG = Logger.getInstance(TextLayoutCache.class);
 
-  private static final int MAX_CHUNKS_IN_ACTIVE_EDITOR = 1000;
-  private static final int MAX_CHUNKS_IN_INACTIVE_EDITOR = 10;
+  private static final int MAX_CACHED_CHUNK_CHARACTERS = SystemProperties.getIntProperty("idea.editor.text.layout.cache.chars", 500_000);
+  private static final boolean PRECOMPUTE_LAYOUT = SystemProperties.getBooleanProperty("idea.editor.text.layout.precompute", true);
+  private static final int MAX_PRECOMPUTED_CHARACTERS = 64 * 1024;
+
+  private static final ExecutorService ourPrecomputationExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("TextLayoutCache Precomputation", 1);
+
+  // chunks of all editors in access order, mapped to the cache they belong to; accessed in EDT only, like the chunks themselves
+  private static final LinkedHashMap<LineLayout.Chunk, TextLayoutCache> ourLaidOutChunks = new LinkedHashMap<>(1000, 0.75f, true);
+  private static long ourLaidOutChunkCharacters;
+  private static long ourHits;
+  private static long ourMisses;
+  private static long ourEvictions;
 
   private final EditorView myView;
   private final Document myDocument;
   private final LineLayout myBidiNotRequiredMarker;
   private ArrayList<LineLayout> myLines = new ArrayList<>();
   private int myDocumentChangeOldEndLine;
-
-  @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
-  private LinkedHashMap<LineLayout.Chunk, Object> myLaidOutChunks =
-          new LinkedHashMap<LineLayout.Chunk, Object>(MAX_CHUNKS_IN_ACTIVE_EDITOR, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<LineLayout.Chunk, Object> eldest) {
-              if (size() > getChunkCacheSizeLimit()) {
-                if (LOG.isDebugEnabled()) LOG.debug("Clearing chunk for " + myView.getEditor().getVirtualFile());
-                eldest.getKey().clearCache();
-                return true;
-              }
-              return false;
-            }
-          };
+  // this editor's part of ourLaidOutChunks, so that disposal doesn't have to look through the chunks of all editors
+  private final Set<LineLayout.Chunk> myLaidOutChunks = new HashSet<>();
+  // incremented on every invalidation, which is what highlighting, color scheme and font changes end up with
+  private int myModificationCount;
+  private Precomputation myPrecomputation;
 
   TextLayoutCache(EditorView view) {
     myView = view;
     myDocument = view.getEditor().getDocument();
     myDocument.addDocumentListener(this, this);
     myBidiNotRequiredMarker = LineLayout.create(view, "", Font.PLAIN);
-    Disposer.register(this, new UiNotifyConnector(view.getEditor().getContentComponent(), new Activatable.Adapter() {
-      @Override
-      public void hideNotify() {
-        trimChunkCache();
-      }
-    }));
   }
 
   @Override
@@ -102,8 +109,13 @@ class TextLayoutCache implements PrioritizedDocumentListener, Disposable {
 
   @Override
   public void dispose() {
+    cancelPrecomputation();
     myLines = null;
-    myLaidOutChunks = null;
+    for (LineLayout.Chunk chunk : myLaidOutChunks) {
+      ourLaidOutChunks.remove(chunk);
+      ourLaidOutChunkCharacters -= chunk.getLength();
+    }
+    myLaidOutChunks.clear();
   }
 
   private int getAdjustedLineNumber(int offset) {
@@ -125,6 +137,8 @@ class TextLayoutCache implements PrioritizedDocumentListener, Disposable {
 
   private void invalidateLines(int startLine, int oldEndLine, int newEndLine, boolean textChanged, boolean bidiRequiredForNewText) {
     checkDisposed();
+    cancelPrecomputation();
+    myModificationCount++;
 
     if (textChanged) {
       LineLayout firstOldLine = startLine >= 0 && startLine < myLines.size() ? myLines.get(startLine) : null;
@@ -170,31 +184,165 @@ class TextLayoutCache implements PrioritizedDocumentListener, Disposable {
     return layout != null && layout != myBidiNotRequiredMarker;
   }
 
-  private int getChunkCacheSizeLimit() {
-    return myView.getEditor().getContentComponent().isShowing() ? MAX_CHUNKS_IN_ACTIVE_EDITOR : MAX_CHUNKS_IN_INACTIVE_EDITOR;
+  /**
+   * Schedules layout of the chunks of the given lines which aren't laid out yet. Fragments are determined in EDT right away, their glyph
+   * layout is done in background and applied in EDT unless the document, the highlighter, the color scheme or the layout were changed
+   * meanwhile.
+   */
+  void precomputeLayout(int startLine, int endLine) {
+    checkDisposed();
+    if (!PRECOMPUTE_LAYOUT || myPrecomputation != null) return;
+
+    List<LineLayout.ChunkLayout> chunks = new ArrayList<>();
+    int characters = 0;
+    for (int line = Math.max(startLine, 0); line <= endLine && line < myLines.size() && characters < MAX_PRECOMPUTED_CHARACTERS; line++) {
+      int size = chunks.size();
+      getLineLayout(line).collectChunksToLayOut(myView, line, chunks);
+      for (int i = size; i < chunks.size(); i++) {
+        characters += chunks.get(i).chunk.getLength();
+      }
+    }
+    if (chunks.isEmpty()) return;
+
+    Precomputation precomputation = new Precomputation(chunks);
+    myPrecomputation = precomputation;
+    precomputation.myFuture = ourPrecomputationExecutor.submit(precomputation);
+  }
+
+  private void applyPrecomputedLayout(@Nonnull Precomputation precomputation) {
+    if (myPrecomputation != precomputation) return;
+    myPrecomputation = null;
+    if (!precomputation.isUpToDate()) return;
+    for (LineLayout.ChunkLayout chunk : precomputation.myChunks) {
+      if (chunk.line < myLines.size() && myLines.get(chunk.line) == chunk.lineLayout && chunk.apply(myView)) {
+        addToChunkCache(chunk.chunk);
+      }
+    }
+  }
+
+  private void cancelPrecomputation() {
+    if (myPrecomputation != null) {
+      myPrecomputation.myCanceled = true;
+      myPrecomputation = null;
+    }
+  }
+
+  @TestOnly
+  boolean waitForPrecomputation(long timeoutMillis) throws ExecutionException, InterruptedException {
+    Precomputation precomputation = myPrecomputation;
+    if (precomputation == null) return false;
+    try {
+      precomputation.myFuture.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      return true;
+    }
+    catch (TimeoutException e) {
+      return false;
+    }
+  }
+
+  @TestOnly
+  boolean isLaidOut(@Nonnull LineLayout.Chunk chunk) {
+    return chunk.fragments != null && ourLaidOutChunks.get(chunk) == this && myLaidOutChunks.contains(chunk);
+  }
+
+  @TestOnly
+  int getLaidOutChunkCount() {
+    return myLaidOutChunks.size();
+  }
+
+  /**
+   * Glyph layout of chunks done in background, with the state it was started in.
+   */
+  private class Precomputation implements Runnable {
+    private final List<LineLayout.ChunkLayout> myChunks;
+    private final long myDocumentStamp = myDocument.getModificationStamp();
+    private final int myLayoutStamp = myModificationCount;
+    private final EditorHighlighter myHighlighter = myView.getEditor().getHighlighter();
+    private final EditorColorsScheme myScheme = myView.getEditor().getColorsScheme();
+    private volatile boolean myCanceled;
+    private Future<?> myFuture;
+
+    private Precomputation(@Nonnull List<LineLayout.ChunkLayout> chunks) {
+      myChunks = chunks;
+    }
+
+    @Override
+    public void run() {
+      for (LineLayout.ChunkLayout chunk : myChunks) {
+        if (myCanceled) return;
+        try {
+          chunk.compute();
+        }
+        catch (Throwable e) {
+          // glyph layout doesn't depend on editor state, so it's a bug; the rest of the chunks will be laid out on demand
+          LOG.error(e);
+          break;
+        }
+      }
+      if (!myCanceled) {
+        ApplicationManager.getApplication().invokeLater(() -> applyPrecomputedLayout(this), ModalityState.any());
+      }
+    }
+
+    // called in EDT
+    private boolean isUpToDate() {
+      return myLines != null &&
+             !myDocument.isInBulkUpdate() &&
+             myDocument.getModificationStamp() == myDocumentStamp &&
+             myModificationCount == myLayoutStamp &&
+             myView.getEditor().getHighlighter() == myHighlighter &&
+             myView.getEditor().getColorsScheme() == myScheme;
+    }
   }
 
   void onChunkAccess(LineLayout.Chunk chunk) {
-    myLaidOutChunks.put(chunk, null);
+    if (chunk.fragments == null) {
+      ourMisses++;
+    }
+    else {
+      ourHits++;
+    }
+    addToChunkCache(chunk);
+  }
+
+  private void addToChunkCache(LineLayout.Chunk chunk) {
+    if (ourLaidOutChunks.put(chunk, this) == null) {
+      myLaidOutChunks.add(chunk);
+      ourLaidOutChunkCharacters += chunk.getLength();
+      trimChunkCache();
+    }
   }
 
   private void removeChunksFromCache(LineLayout layout) {
-    layout.getChunksInLogicalOrder().forEach(myLaidOutChunks::remove);
-  }
-
-  private void trimChunkCache() {
-    int limit = getChunkCacheSizeLimit();
-    if (myLaidOutChunks.size() > limit) {
-      Iterator<LineLayout.Chunk> it = myLaidOutChunks.keySet().iterator();
-      while (myLaidOutChunks.size() > limit) {
-        LineLayout.Chunk chunk = it.next();
-        if (LOG.isDebugEnabled()) LOG.debug("Clearing chunk for " + myView.getEditor().getVirtualFile());
-        chunk.clearCache();
-        it.remove();
+    layout.getChunksInLogicalOrder().forEach(chunk -> {
+      if (ourLaidOutChunks.remove(chunk) != null) {
+        myLaidOutChunks.remove(chunk);
+        ourLaidOutChunkCharacters -= chunk.getLength();
       }
+    });
+  }
+
+  private static void trimChunkCache() {
+    Iterator<Map.Entry<LineLayout.Chunk, TextLayoutCache>> it = ourLaidOutChunks.entrySet().iterator();
+    while (ourLaidOutChunkCharacters > MAX_CACHED_CHUNK_CHARACTERS && ourLaidOutChunks.size() > 1) {
+      Map.Entry<LineLayout.Chunk, TextLayoutCache> eldest = it.next();
+      LineLayout.Chunk chunk = eldest.getKey();
+      if (LOG.isDebugEnabled()) LOG.debug("Clearing chunk for " + eldest.getValue().myView.getEditor().getVirtualFile() + "; " + getStatistics());
+      chunk.clearCache();
+      eldest.getValue().myLaidOutChunks.remove(chunk);
+      ourLaidOutChunkCharacters -= chunk.getLength();
+      ourEvictions++;
+      it.remove();
     }
   }
 
+  @Nonnull
+  static String getStatistics() {
+    long accesses = ourHits + ourMisses;
+    return "laid out chunks: " + ourLaidOutChunks.size() + " (" + ourLaidOutChunkCharacters + " of " + MAX_CACHED_CHUNK_CHARACTERS + " chars)" +
+           ", hit rate: " + (accesses == 0 ? 0 : ourHits * 100 / accesses) + "% of " + accesses + ", evictions: " + ourEvictions;
+  }
+
   private void checkDisposed() {
     if (myLines == null) myView.getEditor().throwDisposalError("Editor is already disposed");
   }
@@ -85,7 +85,8 @@ public class FileWatcher {
   FileWatcher(@Nonnull ManagingFS managingFS) {
     myManagingFS = managingFS;
     myNotificationSink = new MyFileWatcherNotificationSink();
-    myWatchers = new PluggableFileWatcher[] {new NativeFileWatcherImpl()}; //FIXME [VISTALL] this is dirty hack, due we don't allow change file watcher
+    //FIXME [VISTALL] this is dirty hack, due we don't allow change file watcher
+    myWatchers = new PluggableFileWatcher[] {NioFileWatcherImpl.isPreferred() ? new NioFileWatcherImpl() : new NativeFileWatcherImpl()};
 
     myFileWatcherExecutor.execute(() -> {
       try {
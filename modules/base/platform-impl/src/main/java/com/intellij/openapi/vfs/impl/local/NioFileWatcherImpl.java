@@ -0,0 +1,425 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl.local;
+
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationBundle;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.vfs.local.FileWatcherNotificationSink;
+import com.intellij.openapi.vfs.local.PluggableFileWatcher;
+import com.intellij.openapi.vfs.newvfs.ManagingFS;
+import com.intellij.util.SystemProperties;
+import consulo.logging.Logger;
+import org.jetbrains.annotations.TestOnly;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process file watcher on top of {@link WatchService}, used where the native {@code fsnotifier} can't run.
+ * <p>
+ * A watch service only watches single directories, so every directory under a recursive root gets its own watch key,
+ * including directories created later. Events are drained in batches until none comes within {@link #COALESCE_DELAY_MS},
+ * but for at most {@link #MAX_BATCH_DELAY_MS} and {@link #MAX_BATCH_PATHS} paths, so that a steady stream of events still gets
+ * reported; each changed path is reported once per batch. When a key overflows, or the system runs out of watches, the affected directories
+ * are reported as dirty recursively or as manual watch roots, so the refresh falls back to scanning just them.
+ *
+ * @see NativeFileWatcherImpl
+ */
+public class NioFileWatcherImpl extends PluggableFileWatcher {
+  private static final Logger LOG = Logger.getInstance(NioFileWatcherImpl.class);
+
+  private static final String PROPERTY_NIO_WATCHER = "idea.filewatcher.nio";
+  private static final long COALESCE_DELAY_MS = 20;
+  private static final long MAX_BATCH_DELAY_MS = 200;
+  private static final int MAX_BATCH_PATHS = 10_000;
+  private static final WatchEvent.Kind<?>[] EVENT_KINDS = {StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY};
+
+  private FileWatcherNotificationSink myNotificationSink;
+
+  private final Object myLock = new Object();
+  private WatchService myWatchService; // guarded by myLock
+  private Thread myWatchThread; // guarded by myLock
+  private final Map<WatchKey, WatchedDirectory> myKeys = new HashMap<>(); // guarded by myLock
+  private final Map<Path, WatchedDirectory> myDirectories = new HashMap<>(); // guarded by myLock
+
+  private final AtomicInteger mySettingRoots = new AtomicInteger(0);
+  private volatile boolean myIsShuttingDown;
+  private volatile List<String> myRecursiveWatchRoots = Collections.emptyList();
+  private volatile List<String> myFlatWatchRoots = Collections.emptyList();
+
+  private static final class WatchedDirectory {
+    private final Path myPath;
+    private final WatchKey myKey;
+    private boolean myRecursive;
+
+    private WatchedDirectory(Path path, WatchKey key, boolean recursive) {
+      myPath = path;
+      myKey = key;
+      myRecursive = recursive;
+    }
+  }
+
+  /**
+   * The watcher is used instead of the native one when {@code -Didea.filewatcher.nio=true} is set,
+   * or on Linux when {@code fsnotifier} is missing or can't be executed.
+   */
+  public static boolean isPreferred() {
+    String property = System.getProperty(PROPERTY_NIO_WATCHER);
+    if (property != null) return Boolean.parseBoolean(property);
+    if (!SystemInfo.isLinux) return false;
+    File executable = NativeFileWatcherImpl.getExecutable();
+    return executable == null || !executable.canExecute();
+  }
+
+  @Override
+  public void initialize(@Nonnull ManagingFS managingFS, @Nonnull FileWatcherNotificationSink notificationSink) {
+    initialize(notificationSink);
+  }
+
+  /**
+   * Same as {@link #initialize(ManagingFS, FileWatcherNotificationSink)}, the watcher doesn't use the managing file system.
+   */
+  public void initialize(@Nonnull FileWatcherNotificationSink notificationSink) {
+    myNotificationSink = notificationSink;
+
+    if (isDisabled()) {
+      LOG.info("NIO file watcher is disabled");
+      return;
+    }
+    try {
+      startupService();
+      LOG.info("NIO file watcher is operational.");
+    }
+    catch (IOException e) {
+      LOG.warn(e.getMessage());
+      myNotificationSink.notifyUserOnFailure(ApplicationBundle.message("watcher.failed.to.start"), null);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    myIsShuttingDown = true;
+    shutdownService();
+  }
+
+  @Override
+  public boolean isOperational() {
+    synchronized (myLock) {
+      return myWatchService != null;
+    }
+  }
+
+  @Override
+  public boolean isSettingRoots() {
+    return isOperational() && mySettingRoots.get() > 0;
+  }
+
+  @Override
+  public void setWatchRoots(@Nonnull List<String> recursive, @Nonnull List<String> flat) {
+    if (!isOperational()) return;
+
+    Application app = ApplicationManager.getApplication();
+    if (app != null && app.isDisposeInProgress()) {
+      recursive = flat = Collections.emptyList();
+    }
+
+    if (myRecursiveWatchRoots.equals(recursive) && myFlatWatchRoots.equals(flat)) {
+      return;
+    }
+
+    mySettingRoots.incrementAndGet();
+    try {
+      myRecursiveWatchRoots = recursive;
+      myFlatWatchRoots = flat;
+      myNotificationSink.notifyManualWatchRoots(registerRoots(recursive, flat));
+    }
+    finally {
+      mySettingRoots.decrementAndGet();
+    }
+  }
+
+  /**
+   * Subclasses should override this method if they want to use custom logic to disable their file watcher.
+   */
+  protected boolean isDisabled() {
+    if (SystemProperties.getBooleanProperty("idea.filewatcher.disabled", false)) return true;
+    Application app = ApplicationManager.getApplication();
+    return app != null && (app.isCommandLine() || app.isUnitTestMode());
+  }
+
+  /* internal stuff */
+
+  private void startupService() throws IOException {
+    synchronized (myLock) {
+      if (myIsShuttingDown || myWatchService != null) return;
+
+      WatchService watchService = FileSystems.getDefault().newWatchService();
+      Thread thread = new Thread(() -> pumpEvents(watchService), "File Watcher (NIO)");
+      thread.setDaemon(true);
+      myWatchService = watchService;
+      myWatchThread = thread;
+      thread.start();
+    }
+  }
+
+  private void shutdownService() {
+    Thread thread;
+    synchronized (myLock) {
+      WatchService watchService = myWatchService;
+      if (watchService == null) return;
+
+      thread = myWatchThread;
+      myWatchService = null;
+      myWatchThread = null;
+      myKeys.clear();
+      myDirectories.clear();
+      myRecursiveWatchRoots = Collections.emptyList();
+      myFlatWatchRoots = Collections.emptyList();
+      try {
+        watchService.close();
+      }
+      catch (IOException e) {
+        LOG.warn(e);
+      }
+    }
+    try {
+      thread.join(1000);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return roots which couldn't be watched
+   */
+  @Nonnull
+  private List<String> registerRoots(@Nonnull List<String> recursive, @Nonnull List<String> flat) {
+    List<String> unwatchable = new ArrayList<>();
+    synchronized (myLock) {
+      if (myWatchService == null) return unwatchable;
+
+      Set<Path> recursiveRoots = new HashSet<>();
+      for (String root : recursive) {
+        recursiveRoots.add(Paths.get(root));
+      }
+      Set<Path> flatRoots = new HashSet<>();
+      for (String root : flat) {
+        Path path = Paths.get(root);
+        // a flat root may be a file, then its parent is watched and the sink filters out the siblings
+        flatRoots.add(Files.isDirectory(path) ? path : path.getParent());
+      }
+
+      Set<Path> watched = new HashSet<>();
+      for (Path root : recursiveRoots) {
+        if (!Files.isDirectory(root) || !registerTree(root, watched)) {
+          unwatchable.add(root.toString());
+        }
+      }
+      for (Path root : flatRoots) {
+        if (root == null || watched.contains(root)) continue;
+        if (register(root, false) == null) {
+          unwatchable.add(root.toString());
+        }
+        else {
+          watched.add(root);
+        }
+      }
+
+      for (Iterator<WatchedDirectory> iterator = myDirectories.values().iterator(); iterator.hasNext(); ) {
+        WatchedDirectory directory = iterator.next();
+        if (!watched.contains(directory.myPath)) {
+          directory.myKey.cancel();
+          myKeys.remove(directory.myKey);
+          iterator.remove();
+        }
+      }
+    }
+    return unwatchable;
+  }
+
+  /**
+   * @return false if some directories of the tree couldn't be watched
+   */
+  private boolean registerTree(@Nonnull Path root, @Nonnull Set<Path> watched) {
+    boolean[] complete = {true};
+    try {
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          if (register(dir, true) == null) {
+            complete[0] = false;
+            return FileVisitResult.TERMINATE;
+          }
+          watched.add(dir);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+    }
+    return complete[0];
+  }
+
+  @Nullable
+  private WatchedDirectory register(@Nonnull Path dir, boolean recursive) {
+    WatchedDirectory directory = myDirectories.get(dir);
+    if (directory != null && directory.myKey.isValid()) {
+      directory.myRecursive = recursive;
+      return directory;
+    }
+
+    WatchKey key;
+    try {
+      key = dir.register(myWatchService, EVENT_KINDS);
+    }
+    catch (IOException e) {
+      // e.g. the inotify watch limit is reached; the caller reports the root as unwatchable
+      LOG.warn("Cannot watch " + dir + ": " + e.getMessage());
+      return null;
+    }
+    catch (ClosedWatchServiceException e) {
+      return null;
+    }
+
+    directory = new WatchedDirectory(dir, key, recursive);
+    myKeys.put(key, directory);
+    myDirectories.put(dir, directory);
+    return directory;
+  }
+
+  private void pumpEvents(@Nonnull WatchService watchService) {
+    Set<String> changed = new LinkedHashSet<>();
+    Set<String> createdOrDeleted = new LinkedHashSet<>();
+    Set<String> dirtyRecursive = new LinkedHashSet<>();
+
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        // collect everything that comes within the coalescing delay to report each path once, up to the batch limits
+        long flushTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_DELAY_MS);
+        do {
+          processKey(key, changed, createdOrDeleted, dirtyRecursive);
+          long remaining = flushTime - System.nanoTime();
+          if (remaining <= 0 || changed.size() + createdOrDeleted.size() + dirtyRecursive.size() >= MAX_BATCH_PATHS) break;
+          key = watchService.poll(Math.min(TimeUnit.MILLISECONDS.toNanos(COALESCE_DELAY_MS), remaining), TimeUnit.NANOSECONDS);
+        }
+        while (key != null);
+
+        for (String path : dirtyRecursive) {
+          myNotificationSink.notifyDirtyPathRecursive(path);
+        }
+        for (String path : createdOrDeleted) {
+          myNotificationSink.notifyPathCreatedOrDeleted(path);
+        }
+        for (String path : changed) {
+          if (!createdOrDeleted.contains(path)) {
+            myNotificationSink.notifyDirtyPath(path);
+          }
+        }
+        changed.clear();
+        createdOrDeleted.clear();
+        dirtyRecursive.clear();
+      }
+    }
+    catch (ClosedWatchServiceException | InterruptedException e) {
+      if (!myIsShuttingDown) LOG.info("NIO file watcher stopped");
+    }
+    catch (RuntimeException | Error e) {
+      LOG.error(e);
+      myNotificationSink.notifyUserOnFailure(ApplicationBundle.message("watcher.gave.up"), null);
+    }
+  }
+
+  private void processKey(@Nonnull WatchKey key, @Nonnull Set<String> changed, @Nonnull Set<String> createdOrDeleted, @Nonnull Set<String> dirtyRecursive) {
+    WatchedDirectory directory;
+    synchronized (myLock) {
+      directory = myKeys.get(key);
+    }
+    if (directory == null) {
+      key.cancel();
+      return;
+    }
+
+    for (WatchEvent<?> event : key.pollEvents()) {
+      WatchEvent.Kind<?> kind = event.kind();
+      if (kind == StandardWatchEventKinds.OVERFLOW) {
+        dirtyRecursive.add(directory.myPath.toString());
+        continue;
+      }
+
+      Path child = directory.myPath.resolve((Path)event.context());
+      String path = child.toString();
+      if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+        changed.add(path);
+      }
+      else {
+        createdOrDeleted.add(path);
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE && directory.myRecursive && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+          // the content created before the registration is covered by the recursive dirty path of the new directory
+          boolean complete;
+          synchronized (myLock) {
+            complete = myWatchService == null || registerTree(child, new HashSet<>());
+          }
+          if (!complete) {
+            LOG.warn("Changes under " + path + " are not watched until the next update of watch roots");
+          }
+        }
+      }
+    }
+
+    if (!key.reset()) {
+      synchronized (myLock) {
+        myKeys.remove(key);
+        myDirectories.remove(directory.myPath, directory);
+      }
+    }
+  }
+
+  @Override
+  @TestOnly
+  public void startup() throws IOException {
+    myIsShuttingDown = false;
+    startupService();
+  }
+
+  @Override
+  @TestOnly
+  public void shutdown() throws InterruptedException {
+    myIsShuttingDown = true;
+    shutdownService();
+  }
+}
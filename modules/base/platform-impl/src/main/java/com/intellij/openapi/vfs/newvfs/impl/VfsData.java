@@ -8,6 +8,8 @@ import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
 import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFSImpl;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.ArrayUtilRt;
 import com.intellij.util.BitUtil;
 import com.intellij.util.Functions;
@@ -288,6 +290,8 @@ public class VfsData {
 
   // non-final field accesses are synchronized on this instance, but this happens in VirtualDirectoryImpl
   static class DirectoryData {
+    private static final int MAX_ADOPTED_NAMES_IN_ARRAY = 8;
+    private static final CharSequence[] EMPTY_NAMES = new CharSequence[0];
     private static final AtomicFieldUpdater<DirectoryData, KeyFMap> MY_USER_MAP_UPDATER = AtomicFieldUpdater.forFieldOfType(DirectoryData.class, KeyFMap.class);
     @Nonnull
     volatile KeyFMap myUserMap = KeyFMap.EMPTY_MAP;
@@ -300,8 +304,13 @@ public class VfsData {
     @Nonnull
     volatile int[] myChildrenIds = ArrayUtilRt.EMPTY_INT_ARRAY; // guarded by this
 
-    // assigned under lock(this) only; accessed/modified map contents under lock(myAdoptedNames)
-    private volatile Set<CharSequence> myAdoptedNames;
+    /**
+     * null, or a {@link CharSequence}[] of a few names of a case-sensitive directory, or a {@link Set} of names otherwise.
+     * Most directories adopt just a couple of names, and an array takes several times less memory than a hash set.
+     * <p>
+     * Assigned under lock(this) only; the array is never modified in-place, the set contents are accessed/modified under lock(set)
+     */
+    private volatile Object myAdoptedNames;
 
     @Nonnull
     VirtualFileSystemEntry[] getFileChildren(@Nonnull VirtualDirectoryImpl parent) {
@@ -323,13 +332,29 @@ public class VfsData {
     }
 
     boolean isAdoptedName(@Nonnull CharSequence name) {
-      Set<CharSequence> adopted = myAdoptedNames;
+      Object adopted = myAdoptedNames;
       if (adopted == null) {
         return false;
       }
-      synchronized (adopted) {
-        return adopted.contains(name);
+      if (adopted instanceof CharSequence[]) {
+        return indexOf((CharSequence[])adopted, name) >= 0;
+      }
+      Set<CharSequence> set = asSet(adopted);
+      synchronized (set) {
+        return set.contains(name);
+      }
+    }
+
+    private static int indexOf(@Nonnull CharSequence[] names, @Nonnull CharSequence name) {
+      for (int i = 0; i < names.length; i++) {
+        if (StringUtil.equals(names[i], name)) return i;
       }
+      return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<CharSequence> asSet(@Nonnull Object adopted) {
+      return (Set<CharSequence>)adopted;
     }
 
     /**
@@ -339,13 +364,22 @@ public class VfsData {
      * Must be called in synchronized(VfsData)
      */
     void removeAdoptedName(@Nonnull CharSequence name) {
-      Set<CharSequence> adopted = myAdoptedNames;
+      Object adopted = myAdoptedNames;
       if (adopted == null) {
         return;
       }
-      synchronized (adopted) {
-        boolean removed = adopted.remove(name);
-        if (removed && adopted.isEmpty()) {
+      if (adopted instanceof CharSequence[]) {
+        CharSequence[] names = (CharSequence[])adopted;
+        int index = indexOf(names, name);
+        if (index >= 0) {
+          myAdoptedNames = names.length == 1 ? null : ArrayUtil.remove(names, index, CharSequence[]::new);
+        }
+        return;
+      }
+      Set<CharSequence> set = asSet(adopted);
+      synchronized (set) {
+        boolean removed = set.remove(name);
+        if (removed && set.isEmpty()) {
           myAdoptedNames = null;
         }
       }
@@ -355,11 +389,7 @@ public class VfsData {
      * Must be called in synchronized(VfsData)
      */
     void addAdoptedName(@Nonnull CharSequence name, boolean caseSensitive) {
-      Set<CharSequence> adopted = getOrCreateAdoptedNames(caseSensitive);
-      CharSequence sequence = ByteArrayCharSequence.convertToBytesIfPossible(name);
-      synchronized (adopted) {
-        adopted.add(sequence);
-      }
+      addAdoptedNames(Collections.singletonList(ByteArrayCharSequence.convertToBytesIfPossible(name)), caseSensitive);
     }
 
     /**
@@ -367,30 +397,51 @@ public class VfsData {
      * Must be called in synchronized(VfsData)
      */
     void addAdoptedNames(@Nonnull Collection<? extends CharSequence> names, boolean caseSensitive) {
-      Set<CharSequence> adopted = getOrCreateAdoptedNames(caseSensitive);
-      synchronized (adopted) {
-        adopted.addAll(names);
+      Object adopted = myAdoptedNames;
+      if (adopted == null && caseSensitive && names.size() <= MAX_ADOPTED_NAMES_IN_ARRAY) {
+        adopted = EMPTY_NAMES;
+      }
+      if (adopted instanceof CharSequence[]) {
+        CharSequence[] newNames = (CharSequence[])adopted;
+        for (CharSequence name : names) {
+          if (indexOf(newNames, name) < 0) {
+            newNames = ArrayUtil.append(newNames, name, CharSequence[]::new);
+          }
+        }
+        if (newNames.length <= MAX_ADOPTED_NAMES_IN_ARRAY) {
+          myAdoptedNames = newNames;
+          return;
+        }
+        adopted = createAdoptedNamesSet(true, Arrays.asList((CharSequence[])adopted));
+        myAdoptedNames = adopted;
+      }
+      else if (adopted == null) {
+        adopted = createAdoptedNamesSet(caseSensitive, Collections.emptyList());
+        myAdoptedNames = adopted;
+      }
+      Set<CharSequence> set = asSet(adopted);
+      synchronized (set) {
+        set.addAll(names);
       }
     }
 
-    /**
-     * Must be called in synchronized(VfsData)
-     */
     @Nonnull
-    private Set<CharSequence> getOrCreateAdoptedNames(boolean caseSensitive) {
-      Set<CharSequence> adopted = myAdoptedNames;
-      if (adopted == null) {
-        myAdoptedNames = adopted = new THashSet<>(0, caseSensitive ? CharSequenceHashingStrategy.CASE_SENSITIVE : CharSequenceHashingStrategy.CASE_INSENSITIVE);
-      }
-      return adopted;
+    private static Set<CharSequence> createAdoptedNamesSet(boolean caseSensitive, @Nonnull Collection<CharSequence> names) {
+      Set<CharSequence> set = new THashSet<>(names.size(), caseSensitive ? CharSequenceHashingStrategy.CASE_SENSITIVE : CharSequenceHashingStrategy.CASE_INSENSITIVE);
+      set.addAll(names);
+      return set;
     }
 
     @Nonnull
     List<String> getAdoptedNames() {
-      Set<CharSequence> adopted = myAdoptedNames;
+      Object adopted = myAdoptedNames;
       if (adopted == null) return Collections.emptyList();
-      synchronized (adopted) {
-        return ContainerUtil.map(adopted, Functions.TO_STRING());
+      if (adopted instanceof CharSequence[]) {
+        return ContainerUtil.map((CharSequence[])adopted, Functions.TO_STRING());
+      }
+      Set<CharSequence> set = asSet(adopted);
+      synchronized (set) {
+        return ContainerUtil.map(set, Functions.TO_STRING());
       }
     }
 
@@ -403,7 +454,7 @@ public class VfsData {
 
     @Override
     public String toString() {
-      return "DirectoryData{" + "myUserMap=" + myUserMap + ", myChildrenIds=" + Arrays.toString(myChildrenIds) + ", myAdoptedNames=" + myAdoptedNames + '}';
+      return "DirectoryData{" + "myUserMap=" + myUserMap + ", myChildrenIds=" + Arrays.toString(myChildrenIds) + ", myAdoptedNames=" + getAdoptedNames() + '}';
     }
   }
 
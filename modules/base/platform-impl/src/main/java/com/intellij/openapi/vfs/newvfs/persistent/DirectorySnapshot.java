@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.FileAttribute;
+import com.intellij.util.io.DataInputOutputUtil;
+import consulo.logging.Logger;
+import gnu.trove.TObjectHashingStrategy;
+
+import javax.annotation.Nonnull;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Remembers the timestamp, the number of children and the hash of children names of a local directory as they were
+ * when the refresh last listed it and found the persisted children up to date. While the directory timestamp and
+ * the persisted children still match, the directory content has the same names, so the refresh checks the known
+ * children instead of listing the directory.
+ * <p>
+ * With {@code vfs.refresh.directory.snapshots.verify.directories.only} the refresh doesn't check files of unchanged
+ * directories at all and only descends into subdirectories. Files modified in place are then left to the file watcher.
+ */
+final class DirectorySnapshot {
+  private static final Logger LOG = Logger.getInstance(DirectorySnapshot.class);
+
+  private static final FileAttribute SNAPSHOT_ATTRIBUTE = new FileAttribute("refresh.directory.snapshot", 1, true);
+
+  /**
+   * Directories modified this recently may still get changes within the same timestamp tick, so they aren't remembered.
+   */
+  private static final long RACY_INTERVAL_MS = 2000;
+
+  private DirectorySnapshot() {
+  }
+
+  static boolean isEnabled() {
+    return Registry.is("vfs.refresh.directory.snapshots");
+  }
+
+  static boolean isVerifyingDirectoriesOnly() {
+    return Registry.is("vfs.refresh.directory.snapshots.verify.directories.only");
+  }
+
+  /**
+   * @return true if the directory has the same timestamp as when it was remembered, and its persisted children are the remembered ones
+   */
+  static boolean isUnchanged(@Nonnull PersistentFS persistence,
+                             @Nonnull VirtualFile dir,
+                             long timeStamp,
+                             @Nonnull String[] persistedNames,
+                             @Nonnull TObjectHashingStrategy<String> strategy) {
+    try (DataInputStream stream = persistence.readAttribute(dir, SNAPSHOT_ATTRIBUTE)) {
+      if (stream == null) return false;
+      return DataInputOutputUtil.readTIME(stream) == timeStamp &&
+             DataInputOutputUtil.readINT(stream) == persistedNames.length &&
+             stream.readInt() == hashNames(persistedNames, strategy);
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+      return false;
+    }
+  }
+
+  /**
+   * Remembers the directory whose listing, started at {@code listingStart}, matched its persisted children.
+   */
+  static void remember(@Nonnull PersistentFS persistence,
+                       @Nonnull VirtualFile dir,
+                       long timeStamp,
+                       long listingStart,
+                       @Nonnull String[] persistedNames,
+                       @Nonnull TObjectHashingStrategy<String> strategy) {
+    if (timeStamp <= 0 || listingStart - timeStamp < RACY_INTERVAL_MS) return;
+
+    try (DataOutputStream stream = persistence.writeAttribute(dir, SNAPSHOT_ATTRIBUTE)) {
+      DataInputOutputUtil.writeTIME(stream, timeStamp);
+      DataInputOutputUtil.writeINT(stream, persistedNames.length);
+      stream.writeInt(hashNames(persistedNames, strategy));
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+    }
+  }
+
+  /**
+   * Doesn't depend on the order of names, as listings of the file system and the persisted children may come in different orders.
+   */
+  static int hashNames(@Nonnull String[] names, @Nonnull TObjectHashingStrategy<String> strategy) {
+    int hash = 0;
+    for (String name : names) {
+      int h = strategy.computeHashCode(name) * 0x9E3779B9;
+      hash += h ^ (h >>> 16);
+    }
+    return hash;
+  }
+}
@@ -40,7 +40,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @author max
@@ -58,6 +57,8 @@ public class FSRecords {
   private static final boolean useCompressionUtil = SystemProperties.getBooleanProperty("idea.use.lightweight.compression.for.vfs", false);
   private static final boolean useSmallAttrTable = SystemProperties.getBooleanProperty("idea.use.small.attr.table.for.vfs", true);
   private static final boolean ourStoreRootsSeparately = SystemProperties.getBooleanProperty("idea.store.roots.separately", false);
+  // map records.dat once and read int record fields without taking the lock, see MappedRecordsStorage
+  private static final boolean mappedRecords = SystemProperties.getBooleanProperty("idea.vfs.mapped.records", false);
 
   //TODO[anyone] when bumping the version, please delete `ourSymlinkTargetAttr_old` and use it's value for `ourSymlinkTargetAttr`
   private static final int VERSION = 54 +
@@ -106,9 +107,9 @@ public class FSRecords {
   private static final FileAttribute ourSymlinkTargetAttr = new FileAttribute("FsRecords.SYMLINK_TARGET_2");
   private static final FileAttribute ourSymlinkTargetAttr_old = new FileAttribute("FsRecords.SYMLINK_TARGET");
 
-  private static final ReentrantReadWriteLock lock;
-  private static final ReentrantReadWriteLock.ReadLock r;
-  private static final ReentrantReadWriteLock.WriteLock w;
+  private static final FSRecordsLock lock = FSRecordsLock.create();
+  // guards the global modification counters stored in the header, which are updated by writers of different files
+  private static final Object ourModCountLock = new Object();
 
   private static volatile int ourLocalModificationCount;
   private static volatile boolean ourIsDisposed;
@@ -120,14 +121,10 @@ public class FSRecords {
   static {
     //noinspection ConstantConditions
     assert HEADER_SIZE <= RECORD_SIZE;
-
-    lock = new ReentrantReadWriteLock();
-    r = lock.readLock();
-    w = lock.writeLock();
   }
 
   static void writeAttributesToRecord(int id, int parentId, @Nonnull FileAttributes attributes, @Nonnull String name) {
-    writeAndHandleErrors(() -> {
+    writeAndHandleErrors(id, () -> {
       setName(id, name);
 
       setTimestamp(id, attributes.lastModified);
@@ -158,7 +155,7 @@ public class FSRecords {
     private static PersistentStringEnumerator myNames;
     private static Storage myAttributes;
     private static RefCountingStorage myContents;
-    private static ResizeableMappedFile myRecords;
+    private static RecordsStorage myRecords;
     private static PersistentBTreeEnumerator<byte[]> myContentHashesEnumerator;
     private static File myRootsFile;
     private static final VfsDependentEnum<String> myAttributesList = new VfsDependentEnum<>("attrib", EnumeratorStringDescriptor.INSTANCE, 1);
@@ -166,18 +163,22 @@ public class FSRecords {
 
     private static volatile boolean myDirty;
     /**
-     * accessed under {@link #r}/{@link #w}
+     * accessed under {@link #lock}
      */
     private static ScheduledFuture<?> myFlushingFuture;
     /**
-     * accessed under {@link #r}/{@link #w}
+     * accessed under {@link #lock}
      */
     private static boolean myCorrupted;
 
-    private static final AttrPageAwareCapacityAllocationPolicy REASONABLY_SMALL = new AttrPageAwareCapacityAllocationPolicy();
+    private static final CapacityAllocationPolicy REASONABLY_SMALL = new ReasonablySmallCapacityAllocationPolicy(32);
+    /**
+     * Passed explicitly by writers appending a reference to a new attribute page, they may run concurrently with other writers.
+     */
+    private static final CapacityAllocationPolicy ATTR_PAGE_REFS = new ReasonablySmallCapacityAllocationPolicy(8);
 
     public static void connect() {
-      writeAndHandleErrors(() -> {
+      exclusiveAndHandleErrors(() -> {
         if (!ourInitialized) {
           init();
           setupFlushing();
@@ -286,7 +287,9 @@ public class FSRecords {
 
         boolean aligned = PagedFileStorage.BUFFER_SIZE % RECORD_SIZE == 0;
         if (!aligned) LOG.error("Buffer size " + PagedFileStorage.BUFFER_SIZE + " is not aligned for record size " + RECORD_SIZE);
-        myRecords = new ResizeableMappedFile(recordsFile, 20 * 1024, storageLockContext, PagedFileStorage.BUFFER_SIZE, aligned, IOUtil.BYTE_BUFFERS_USE_NATIVE_BYTE_ORDER);
+        myRecords = mappedRecords
+                    ? new MappedRecordsStorage(recordsFile, RECORD_SIZE, PagedFileStorage.BUFFER_SIZE / RECORD_SIZE, IOUtil.BYTE_BUFFERS_USE_NATIVE_BYTE_ORDER)
+                    : RecordsStorage.paged(recordsFile, 20 * 1024, storageLockContext, PagedFileStorage.BUFFER_SIZE, aligned, IOUtil.BYTE_BUFFERS_USE_NATIVE_BYTE_ORDER);
 
         boolean initial = myRecords.length() == 0;
 
@@ -421,10 +424,18 @@ public class FSRecords {
     // must not be run under write lock to avoid other clients wait for read lock
     private static void flush() {
       if (isDirty() && !HeavyProcessLatch.INSTANCE.isRunning()) {
-        readAndHandleErrors(() -> {
-          doForce();
-          return null;
-        });
+        try {
+          lock.lockAllForRead();
+          try {
+            doForce();
+          }
+          finally {
+            lock.unlockAllForRead();
+          }
+        }
+        catch (Throwable e) {
+          handleError(e);
+        }
       }
     }
 
@@ -496,7 +507,7 @@ public class FSRecords {
 
     // either called from FlushingDaemon thread under read lock, or from handleError under write lock
     private static void markClean() {
-      assert lock.isWriteLocked() || lock.getReadHoldCount() != 0;
+      assert lock.isWriteLocked() || lock.isReadLockedByCurrentThread();
       if (myDirty) {
         myDirty = false;
         // writing here under read lock is safe because no-one else read or write at this offset (except at startup)
@@ -514,30 +525,37 @@ public class FSRecords {
 
     @Contract("_->fail")
     private static void handleError(@Nonnull Throwable e) throws RuntimeException, Error {
-      assert lock.getReadHoldCount() == 0;
-      if (!ourIsDisposed) { // No need to forcibly mark VFS corrupted if it is already shut down
-        w.lock(); // lock manually to avoid handleError() recursive calls
+      // a failed write nested into another per-file write still holds the lock for read and can't acquire it exclusively,
+      // the outer action will get here with the rethrown exception
+      // a lock-free read racing with dispose() finds the storage closed before ourIsDisposed is set, the VFS isn't corrupted then
+      if (!ourIsDisposed && !lock.isReadLockedByCurrentThread() && !ExceptionUtil.causedBy(e, MappedRecordsStorage.StorageClosedException.class)) {
+        lock.lockExclusive(); // lock manually to avoid handleError() recursive calls
         try {
-          if (!myCorrupted) {
+          // No need to forcibly mark VFS corrupted if it has been shut down while waiting for the lock
+          if (!myCorrupted && !ourIsDisposed) {
             createBrokenMarkerFile(e);
             myCorrupted = true;
             doForce();
           }
         }
         finally {
-          w.unlock();
+          lock.unlockExclusive();
         }
       }
 
       ExceptionUtil.rethrow(e);
     }
 
-    private static class AttrPageAwareCapacityAllocationPolicy extends CapacityAllocationPolicy {
-      boolean myAttrPageRequested;
+    private static class ReasonablySmallCapacityAllocationPolicy extends CapacityAllocationPolicy {
+      private final int myMinCapacity;
+
+      private ReasonablySmallCapacityAllocationPolicy(int minCapacity) {
+        myMinCapacity = minCapacity;
+      }
 
       @Override
       public int calculateCapacity(int requiredLength) {   // 20% for growth
-        return Math.max(myAttrPageRequested ? 8 : 32, Math.min((int)(requiredLength * 1.2), (requiredLength / 1024 + 1) * 1024));
+        return Math.max(myMinCapacity, Math.min((int)(requiredLength * 1.2), (requiredLength / 1024 + 1) * 1024));
       }
     }
   }
@@ -550,11 +568,11 @@ public class FSRecords {
   }
 
   public static long getCreationTimestamp() {
-    return readAndHandleErrors(DbConnection::getTimestamp);
+    return readAndHandleErrors(FSRecordsLock.NO_FILE, DbConnection::getTimestamp);
   }
 
-  private static ResizeableMappedFile getRecords() {
-    ResizeableMappedFile records = DbConnection.myRecords;
+  private static RecordsStorage getRecords() {
+    RecordsStorage records = DbConnection.myRecords;
     assert records != null : "Vfs must be initialized";
     return records;
   }
@@ -577,7 +595,7 @@ public class FSRecords {
 
   // todo: Address  / capacity store in records table, size store with payload
   public static int createRecord() {
-    return writeAndHandleErrors(() -> {
+    return exclusiveAndHandleErrors(() -> {
       DbConnection.markDirty();
 
       final int free = DbConnection.getFreeRecord();
@@ -602,11 +620,12 @@ public class FSRecords {
   }
 
   public static int getMaxId() {
-    return readAndHandleErrors(() -> length() / RECORD_SIZE);
+    return readAndHandleErrors(FSRecordsLock.NO_FILE, () -> length() / RECORD_SIZE);
   }
 
   static void deleteRecordRecursively(int id) {
-    writeAndHandleErrors(() -> {
+    // touches the whole subtree, so the per-file locks are taken nested under the exclusive one
+    exclusiveAndHandleErrors(() -> {
       incModCount(id);
       if (lazyVfsDataCleaning) {
         markAsDeletedRecursively(id);
@@ -626,7 +645,7 @@ public class FSRecords {
   }
 
   private static void markAsDeleted(final int id) {
-    writeAndHandleErrors(() -> {
+    writeAndHandleErrors(id, () -> {
       DbConnection.markDirty();
       addToFreeRecordsList(id);
     });
@@ -641,7 +660,7 @@ public class FSRecords {
   }
 
   private static void deleteRecord(final int id) {
-    writeAndHandleErrors(() -> {
+    writeAndHandleErrors(id, () -> {
       DbConnection.markDirty();
       deleteContentAndAttributes(id);
 
@@ -694,7 +713,7 @@ public class FSRecords {
   @Nonnull
   @TestOnly
   static int[] listRoots() {
-    return readAndHandleErrors(() -> {
+    return readAndHandleErrors(ROOT_RECORD_ID, () -> {
       if (ourStoreRootsSeparately) {
         TIntArrayList result = new TIntArrayList();
 
@@ -728,12 +747,12 @@ public class FSRecords {
 
   @TestOnly
   static void force() {
-    writeAndHandleErrors(DbConnection::doForce);
+    exclusiveAndHandleErrors(DbConnection::doForce);
   }
 
   @TestOnly
   static boolean isDirty() {
-    return readAndHandleErrors(DbConnection::isDirty);
+    return readAndHandleErrors(FSRecordsLock.NO_FILE, DbConnection::isDirty);
   }
 
   private static void saveNameIdSequenceWithDeltas(int[] names, int[] ids, DataOutputStream output) throws IOException {
@@ -749,7 +768,7 @@ public class FSRecords {
   }
 
   static int findRootRecord(@Nonnull String rootUrl) {
-    return writeAndHandleErrors(() -> {
+    return exclusiveAndHandleErrors(() -> {
       if (ourStoreRootsSeparately) {
         try (@SuppressWarnings("ImplicitDefaultCharsetUsage") LineNumberReader stream = new LineNumberReader(new BufferedReader(new InputStreamReader(new FileInputStream(DbConnection.myRootsFile))))) {
           String str;
@@ -816,7 +835,7 @@ public class FSRecords {
   }
 
   static void deleteRootRecord(int id) {
-    writeAndHandleErrors(() -> {
+    exclusiveAndHandleErrors(() -> {
       DbConnection.markDirty();
       if (ourStoreRootsSeparately) {
         List<String> rootsThatLeft = new ArrayList<>();
@@ -874,7 +893,7 @@ public class FSRecords {
 
   @Nonnull
   static int[] list(int id) {
-    return readAndHandleErrors(() -> {
+    return readAndHandleErrors(id, () -> {
       try (final DataInputStream input = readAttribute(id, ourChildrenAttr)) {
         if (input == null) return ArrayUtilRt.EMPTY_INT_ARRAY;
         final int count = DataInputOutputUtil.readINT(input);
@@ -889,7 +908,7 @@ public class FSRecords {
   }
 
   static boolean mayHaveChildren(int id) {
-    return readAndHandleErrors(() -> {
+    return readAndHandleErrors(id, () -> {
       try (final DataInputStream input = readAttribute(id, ourChildrenAttr)) {
         if (input == null) return true;
         final int count = DataInputOutputUtil.readINT(input);
@@ -922,7 +941,7 @@ public class FSRecords {
   @Nonnull
   public static NameId[] listAll(int parentId) {
     assert parentId > 0 : parentId;
-    return readAndHandleErrors(() -> {
+    return readAndHandleErrors(parentId, () -> {
       try (final DataInputStream input = readAttribute(parentId, ourChildrenAttr)) {
         if (input == null) return NameId.EMPTY_ARRAY;
 
@@ -941,18 +960,19 @@ public class FSRecords {
   }
 
   static boolean wereChildrenAccessed(int id) {
-    return readAndHandleErrors(() -> findAttributePage(id, ourChildrenAttr, false) != 0);
+    return readAndHandleErrors(id, () -> findAttributePage(id, ourChildrenAttr, false) != 0);
   }
 
-  private static <T> T readAndHandleErrors(@Nonnull ThrowableComputable<T, ?> action) {
-    assert lock.getReadHoldCount() == 0; // otherwise DbConnection.handleError(e) (requires write lock) could fail
+  // fileId is the only record the action may modify, see FSRecordsLock
+  private static <T> T readAndHandleErrors(int fileId, @Nonnull ThrowableComputable<T, ?> action) {
+    assert !lock.isReadLockedByCurrentThread(); // otherwise DbConnection.handleError(e) (requires write lock) could fail
     try {
-      r.lock();
+      lock.lockRead(fileId);
       try {
         return action.compute();
       }
       finally {
-        r.unlock();
+        lock.unlockRead(fileId);
       }
     }
     catch (Throwable e) {
@@ -961,38 +981,72 @@ public class FSRecords {
     }
   }
 
-  private static <T> T writeAndHandleErrors(@Nonnull ThrowableComputable<T, ?> action) {
+  /**
+   * For actions which only read int fields of records (and may walk parent chains): without taking the lock if the records storage allows it.
+   */
+  private static <T> T readRecordFieldAndHandleErrors(int fileId, @Nonnull ThrowableComputable<T, ?> action) {
+    if (!getRecords().isLockFreeRead()) {
+      return readAndHandleErrors(fileId, action);
+    }
     try {
-      w.lock();
       return action.compute();
     }
     catch (Throwable e) {
       DbConnection.handleError(e);
       throw new RuntimeException(e);
     }
-    finally {
-      w.unlock();
-    }
   }
 
-  private static void writeAndHandleErrors(@Nonnull ThrowableRunnable<?> action) {
+  private static <T> T writeAndHandleErrors(int fileId, @Nonnull ThrowableComputable<T, ?> action) {
     try {
-      w.lock();
-      action.run();
+      lock.lockWrite(fileId);
+      try {
+        return action.compute();
+      }
+      finally {
+        lock.unlockWrite(fileId);
+      }
     }
     catch (Throwable e) {
       DbConnection.handleError(e);
       throw new RuntimeException(e);
     }
-    finally {
-      w.unlock();
+  }
+
+  private static void writeAndHandleErrors(int fileId, @Nonnull ThrowableRunnable<?> action) {
+    writeAndHandleErrors(fileId, () -> {
+      action.run();
+      return null;
+    });
+  }
+
+  private static <T> T exclusiveAndHandleErrors(@Nonnull ThrowableComputable<T, ?> action) {
+    try {
+      lock.lockExclusive();
+      try {
+        return action.compute();
+      }
+      finally {
+        lock.unlockExclusive();
+      }
+    }
+    catch (Throwable e) {
+      DbConnection.handleError(e);
+      throw new RuntimeException(e);
     }
   }
 
+  private static void exclusiveAndHandleErrors(@Nonnull ThrowableRunnable<?> action) {
+    exclusiveAndHandleErrors(() -> {
+      action.run();
+      return null;
+    });
+  }
+
   static void updateList(int id, @Nonnull int[] childIds) {
     assert id > 0 : id;
     Arrays.sort(childIds);
-    writeAndHandleErrors(() -> {
+    writeAndHandleErrors(id, () -> {
       DbConnection.markDirty();
       try (DataOutputStream record = writeAttribute(id, ourChildrenAttr)) {
         DataInputOutputUtil.writeINT(record, childIds.length);
@@ -1016,7 +1070,7 @@ public class FSRecords {
 
   @Nullable
   static String readSymlinkTarget(int id) {
-    return readAndHandleErrors(() -> {
+    return readAndHandleErrors(id, () -> {
       try (DataInputStream stream = readAttribute(id, ourSymlinkTargetAttr)) {
         if (stream != null) return StringUtil.nullize(IOUtil.readUTF(stream));
       }
@@ -1028,7 +1082,7 @@ public class FSRecords {
   }
 
   static void storeSymlinkTarget(int id, @Nullable String symlinkTarget) {
-    writeAndHandleErrors(() -> {
+    writeAndHandleErrors(id, () -> {
       DbConnection.markDirty();
       try (DataOutputStream stream = writeAttribute(id, ourSymlinkTargetAttr)) {
         IOUtil.writeUTF(stream, StringUtil.notNullize(symlinkTarget));
@@ -1037,17 +1091,21 @@ public class FSRecords {
   }
 
   private static void incModCount(int id) {
-    incLocalModCount();
-    final int count = doGetModCount() + 1;
-    getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+    synchronized (ourModCountLock) {
+      incLocalModCount();
+      final int count = doGetModCount() + 1;
+      getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
 
-    setModCount(id, count);
+      setModCount(id, count);
+    }
   }
 
   private static void incLocalModCount() {
-    DbConnection.markDirty();
-    //noinspection NonAtomicOperationOnVolatileField
-    ourLocalModificationCount++;
+    synchronized (ourModCountLock) {
+      DbConnection.markDirty();
+      //noinspection NonAtomicOperationOnVolatileField
+      ourLocalModificationCount++;
+    }
     CachedFileType.clearCache();
   }
 
@@ -1056,7 +1114,7 @@ public class FSRecords {
   }
 
   static int getModCount() {
-    return readAndHandleErrors(FSRecords::doGetModCount);
+    return readAndHandleErrors(FSRecordsLock.NO_FILE, FSRecords::doGetModCount);
   }
 
   private static int doGetModCount() {
@@ -1064,7 +1122,7 @@ public class FSRecords {
   }
 
   public static int getParent(int id) {
-    return readAndHandleErrors(() -> {
+    return readRecordFieldAndHandleErrors(id, () -> {
       final int parentId = getRecordInt(id, PARENT_OFFSET);
       if (parentId == id) {
         LOG.error("Cyclic parent child relations in the database. id = " + id);
@@ -1131,7 +1189,7 @@ public class FSRecords {
     }
 
     ParentFinder finder = new ParentFinder();
-    readAndHandleErrors(finder);
+    readRecordFieldAndHandleErrors(id, finder);
     return finder.findDescendantByIdPath();
   }
 
@@ -1141,14 +1199,14 @@ public class FSRecords {
       return;
     }
 
-    writeAndHandleErrors(() -> {
+    writeAndHandleErrors(id, () -> {
       incModCount(id);
       putRecordInt(id, PARENT_OFFSET, parentId);
     });
   }
 
   public static int getNameId(int id) {
-    return readAndHandleErrors(() -> doGetNameId(id));
+    return readRecordFieldAndHandleErrors(id, () -> doGetNameId(id));
   }
 
   private static int doGetNameId(int id) {
@@ -1156,7 +1214,7 @@ public class FSRecords {
   }
 
   public static int getNameId(@Nonnull String name) {
-    return readAndHandleErrors(() -> getNames().enumerate(name));
+    return readAndHandleErrors(FSRecordsLock.NO_FILE, () -> getNames().enumerate(name));
   }
 
   public static String getName(int id) {
@@ -1165,7 +1223,7 @@ public class FSRecords {
 
   @Nonnull
   static CharSequence getNameSequence(int id) {
-    return readAndHandleErrors(() -> doGetNameSequence(id));
+    return readAndHandleErrors(id, () -> doGetNameSequence(id));
   }
 
   @Nonnull
@@ -1175,7 +1233,7 @@ public class FSRecords {
   }
 
   public static String getNameByNameId(int nameId) {
-    return readAndHandleErrors(() -> doGetNameByNameId(nameId));
+    return readAndHandleErrors(FSRecordsLock.NO_FILE, () -> doGetNameByNameId(nameId));
   }
 
   private static String doGetNameByNameId(int nameId) throws IOException {
@@ -1183,7 +1241,7 @@ public class FSRecords {
   }
 
   static void setName(int id, @Nonnull String name) {
-    writeAndHandleErrors(() -> {
+    writeAndHandleErrors(id, () -> {
       incModCount(id);
       int nameId = getNames().enumerate(name);
       putRecordInt(id, NAME_OFFSET, nameId);
@@ -1191,7 +1249,7 @@ public class FSRecords {
   }
 
   static int getFlags(int id) {
-    return readAndHandleErrors(() -> doGetFlags(id));
+    return readRecordFieldAndHandleErrors(id, () -> doGetFlags(id));
   }
 
   private static int doGetFlags(int id) {
@@ -1199,7 +1257,7 @@ public class FSRecords {
   }
 
   static void setFlags(int id, int flags, final boolean markAsChange) {
-    writeAndHandleErrors(() -> {
+    writeAndHandleErrors(id, () -> {
       if (markAsChange) {
         incModCount(id);
       }
@@ -1208,12 +1266,12 @@ public class FSRecords {
   }
 
   static long getLength(int id) {
-    return readAndHandleErrors(() -> getRecords().getLong(getOffset(id, LENGTH_OFFSET)));
+    return readAndHandleErrors(id, () -> getRecords().getLong(getOffset(id, LENGTH_OFFSET)));
   }
 
   static void setLength(int id, long len) {
-    writeAndHandleErrors(() -> {
-      ResizeableMappedFile records = getRecords();
+    writeAndHandleErrors(id, () -> {
+      RecordsStorage records = getRecords();
       int lengthOffset = getOffset(id, LENGTH_OFFSET);
       if (records.getLong(lengthOffset) != len) {
         incModCount(id);
@@ -1223,13 +1281,13 @@ public class FSRecords {
   }
 
   static long getTimestamp(int id) {
-    return readAndHandleErrors(() -> getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET)));
+    return readAndHandleErrors(id, () -> getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET)));
   }
 
   static void setTimestamp(int id, long value) {
-    writeAndHandleErrors(() -> {
+    writeAndHandleErrors(id, () -> {
       int timeStampOffset = getOffset(id, TIMESTAMP_OFFSET);
-      ResizeableMappedFile records = getRecords();
+      RecordsStorage records = getRecords();
       if (records.getLong(timeStampOffset) != value) {
         incModCount(id);
         records.putLong(timeStampOffset, value);
@@ -1238,7 +1296,7 @@ public class FSRecords {
   }
 
   static int getModCount(int id) {
-    return readAndHandleErrors(() -> getRecordInt(id, MOD_COUNT_OFFSET));
+    return readRecordFieldAndHandleErrors(id, () -> getRecordInt(id, MOD_COUNT_OFFSET));
   }
 
   private static void setModCount(int id, int value) {
@@ -1275,7 +1333,7 @@ public class FSRecords {
 
   @Nullable
   static DataInputStream readContent(int fileId) {
-    int page = readAndHandleErrors(() -> {
+    int page = readAndHandleErrors(fileId, () -> {
       checkFileIsValid(fileId);
       return getContentRecordId(fileId);
     });
@@ -1316,7 +1374,7 @@ public class FSRecords {
 
   @Nullable
   public static DataInputStream readAttributeWithLock(int fileId, @Nonnull FileAttribute att) {
-    return readAndHandleErrors(() -> {
+    return readAndHandleErrors(fileId, () -> {
       try (DataInputStream stream = readAttribute(fileId, att)) {
         if (stream != null && att.isVersioned()) {
           try {
@@ -1426,7 +1484,7 @@ public class FSRecords {
     }
 
     if (toWrite) {
-      try (AbstractStorage.AppenderStream appender = storage.appendStream(recordId)) {
+      try (AbstractStorage.AppenderStream appender = storage.appendStream(recordId, DbConnection.ATTR_PAGE_REFS)) {
         if (bulkAttrReadSupport) {
           if (directoryRecord) {
             DataInputOutputUtil.writeINT(appender, DbConnection.RESERVED_ATTR_ID);
@@ -1437,12 +1495,8 @@ public class FSRecords {
         DataInputOutputUtil.writeINT(appender, encodedAttrId);
         int attrAddress = storage.createNewRecord();
         DataInputOutputUtil.writeINT(appender, inlineAttributes ? attrAddress + MAX_SMALL_ATTR_SIZE : attrAddress);
-        DbConnection.REASONABLY_SMALL.myAttrPageRequested = true;
         return attrAddress;
       }
-      finally {
-        DbConnection.REASONABLY_SMALL.myAttrPageRequested = false;
-      }
     }
 
     return 0;
@@ -1468,7 +1522,7 @@ public class FSRecords {
   }
 
   static int acquireFileContent(int fileId) {
-    return writeAndHandleErrors(() -> {
+    return writeAndHandleErrors(fileId, () -> {
       int record = getContentRecordId(fileId);
       if (record > 0) getContentStorage().acquireRecord(record);
       return record;
@@ -1476,11 +1530,11 @@ public class FSRecords {
   }
 
   static void releaseContent(int contentId) {
-    writeAndHandleErrors(() -> getContentStorage().releaseRecord(contentId, !WE_HAVE_CONTENT_HASHES));
+    writeAndHandleErrors(FSRecordsLock.NO_FILE, () -> getContentStorage().releaseRecord(contentId, !WE_HAVE_CONTENT_HASHES));
   }
 
   static int getContentId(int fileId) {
-    return readAndHandleErrors(() -> getContentRecordId(fileId));
+    return readRecordFieldAndHandleErrors(fileId, () -> getContentRecordId(fileId));
   }
 
   @Nonnull
@@ -1496,7 +1550,7 @@ public class FSRecords {
   }
 
   static int storeUnlinkedContent(byte[] bytes) {
-    return writeAndHandleErrors(() -> {
+    return writeAndHandleErrors(FSRecordsLock.NO_FILE, () -> {
       int recordId;
       if (WE_HAVE_CONTENT_HASHES) {
         recordId = findOrCreateContentRecord(bytes, 0, bytes.length);
@@ -1546,7 +1600,7 @@ public class FSRecords {
     }
 
     private void writeBytes(ByteArraySequence bytes) {
-      writeAndHandleErrors(() -> {
+      writeAndHandleErrors(myFileId, () -> {
         RefCountingStorage contentStorage = getContentStorage();
         checkFileIsValid(myFileId);
 
@@ -1555,7 +1609,7 @@ public class FSRecords {
         if (WE_HAVE_CONTENT_HASHES) {
           page = findOrCreateContentRecord(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
 
-          if (page < 0 || getContentId(myFileId) != page) {
+          if (page < 0 || getContentRecordId(myFileId) != page) {
             incModCount(myFileId);
             setContentRecordId(myFileId, page > 0 ? page : -page);
           }
@@ -1599,7 +1653,8 @@ public class FSRecords {
   private static int contents;
   private static int reuses;
 
-  private static int findOrCreateContentRecord(byte[] bytes, int offset, int length) throws IOException {
+  // shares the digest, the statistics and the hash -> content record id pairing between writers of different files
+  private static synchronized int findOrCreateContentRecord(byte[] bytes, int offset, int length) throws IOException {
     assert WE_HAVE_CONTENT_HASHES;
 
     long started = DUMP_STATISTICS ? System.nanoTime() : 0;
@@ -1650,7 +1705,7 @@ public class FSRecords {
     @Override
     public void close() throws IOException {
       super.close();
-      writeAndHandleErrors(() -> {
+      writeAndHandleErrors(myFileId, () -> {
         final BufferExposingByteArrayOutputStream _out = (BufferExposingByteArrayOutputStream)out;
 
         if (inlineAttributes && _out.size() < MAX_SMALL_ATTR_SIZE) {
@@ -1766,7 +1821,7 @@ public class FSRecords {
   }
 
   static void dispose() {
-    writeAndHandleErrors(() -> {
+    exclusiveAndHandleErrors(() -> {
       try {
         DbConnection.doForce();
         DbConnection.closeFiles();
@@ -1784,7 +1839,7 @@ public class FSRecords {
   static void checkSanity() {
     long t = System.currentTimeMillis();
 
-    int recordCount = readAndHandleErrors(() -> {
+    int recordCount = readAndHandleErrors(FSRecordsLock.NO_FILE, () -> {
       final int fileLength = length();
       assert fileLength % RECORD_SIZE == 0;
       return fileLength / RECORD_SIZE;
@@ -1796,7 +1851,7 @@ public class FSRecords {
       int flags = getFlags(id);
       LOG.assertTrue((flags & ~ALL_VALID_FLAGS) == 0, "Invalid flags: 0x" + Integer.toHexString(flags) + ", id: " + id);
       int currentId = id;
-      boolean isFreeRecord = readAndHandleErrors(() -> DbConnection.myFreeRecords.contains(currentId));
+      boolean isFreeRecord = readAndHandleErrors(FSRecordsLock.NO_FILE, () -> DbConnection.myFreeRecords.contains(currentId));
       if (BitUtil.isSet(flags, FREE_RECORD_FLAG)) {
         LOG.assertTrue(isFreeRecord, "Record, marked free, not in free list: " + id);
       }
@@ -1822,7 +1877,7 @@ public class FSRecords {
     CharSequence name = getNameSequence(id);
     LOG.assertTrue(parentId == 0 || name.length() != 0, "File with empty name found under " + getNameSequence(parentId) + ", id=" + id);
 
-    writeAndHandleErrors(() -> {
+    writeAndHandleErrors(id, () -> {
       checkContentsStorageSanity(id);
       checkAttributesStorageSanity(id, usedAttributeRecordIds, validAttributeIds);
     });
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.util.SystemProperties;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Concurrency policy of {@link FSRecords}.
+ * <p>
+ * {@link #global()} is the historical single read-write lock. {@link #striped(int)} splits it into a structure lock, taken exclusively
+ * only by operations that change the record table layout (record allocation, deletion, roots, connect / dispose), and a set of
+ * per-record-id stripes, so that reads and writes of unrelated files do not block each other.
+ * <p>
+ * Per-file operations must only lock the record they are passed; nested per-file calls for another id are allowed only under
+ * {@link #lockExclusive()}, otherwise stripes may be taken in different orders by different threads. Reads of single int fields of
+ * other records (parent chains, children name ids) are done under the stripe of the requested file only and may observe either
+ * the old or the new value of a concurrent write.
+ * <p>
+ * Enabled with {@code -Didea.vfs.lock.stripes=N}, N &gt; 1.
+ */
+abstract class FSRecordsLock {
+  /**
+   * Passed instead of a file id by operations which touch only internally synchronized storages or the header.
+   */
+  static final int NO_FILE = 0;
+
+  abstract void lockRead(int fileId);
+
+  abstract void unlockRead(int fileId);
+
+  abstract void lockWrite(int fileId);
+
+  abstract void unlockWrite(int fileId);
+
+  /**
+   * Excludes all writers, but not readers. Used by background flushing to mark the storage clean.
+   */
+  abstract void lockAllForRead();
+
+  abstract void unlockAllForRead();
+
+  /**
+   * Excludes everybody, used for structural modifications of the records table.
+   */
+  abstract void lockExclusive();
+
+  abstract void unlockExclusive();
+
+  /**
+   * @return true if some thread holds a write lock for any file or the exclusive lock
+   */
+  abstract boolean isWriteLocked();
+
+  /**
+   * @return true if the current thread holds a per-file or an "all for read" lock. Such thread can't call {@link #lockExclusive()}
+   * (read locks can't be upgraded) and must not take a per-file lock of another record, see the class javadoc
+   */
+  abstract boolean isReadLockedByCurrentThread();
+
+  @Nonnull
+  static FSRecordsLock create() {
+    int stripes = SystemProperties.getIntProperty("idea.vfs.lock.stripes", 0);
+    return stripes > 1 ? striped(stripes) : global();
+  }
+
+  @Nonnull
+  static FSRecordsLock global() {
+    return new Global();
+  }
+
+  @Nonnull
+  static FSRecordsLock striped(int stripeCount) {
+    return new Striped(stripeCount);
+  }
+
+  private static class Global extends FSRecordsLock {
+    private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock.ReadLock r = myLock.readLock();
+    private final ReentrantReadWriteLock.WriteLock w = myLock.writeLock();
+
+    @Override
+    void lockRead(int fileId) {
+      r.lock();
+    }
+
+    @Override
+    void unlockRead(int fileId) {
+      r.unlock();
+    }
+
+    @Override
+    void lockWrite(int fileId) {
+      w.lock();
+    }
+
+    @Override
+    void unlockWrite(int fileId) {
+      w.unlock();
+    }
+
+    @Override
+    void lockAllForRead() {
+      r.lock();
+    }
+
+    @Override
+    void unlockAllForRead() {
+      r.unlock();
+    }
+
+    @Override
+    void lockExclusive() {
+      w.lock();
+    }
+
+    @Override
+    void unlockExclusive() {
+      w.unlock();
+    }
+
+    @Override
+    boolean isWriteLocked() {
+      return myLock.isWriteLocked();
+    }
+
+    @Override
+    boolean isReadLockedByCurrentThread() {
+      return myLock.getReadHoldCount() != 0;
+    }
+  }
+
+  private static class Striped extends FSRecordsLock {
+    private final ReentrantReadWriteLock myStructureLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock[] myStripes;
+    private final int myMask;
+
+    private Striped(int stripeCount) {
+      int count = Integer.highestOneBit(stripeCount - 1) << 1;
+      myStripes = new ReentrantReadWriteLock[count];
+      for (int i = 0; i < count; i++) {
+        myStripes[i] = new ReentrantReadWriteLock();
+      }
+      myMask = count - 1;
+    }
+
+    @Nonnull
+    private ReentrantReadWriteLock stripe(int fileId) {
+      // neighbour records are usually siblings, spread them over different stripes
+      int h = fileId * 0x9E3779B9;
+      return myStripes[(h ^ (h >>> 16)) & myMask];
+    }
+
+    @Override
+    void lockRead(int fileId) {
+      myStructureLock.readLock().lock();
+      if (fileId != NO_FILE) stripe(fileId).readLock().lock();
+    }
+
+    @Override
+    void unlockRead(int fileId) {
+      if (fileId != NO_FILE) stripe(fileId).readLock().unlock();
+      myStructureLock.readLock().unlock();
+    }
+
+    @Override
+    void lockWrite(int fileId) {
+      myStructureLock.readLock().lock();
+      if (fileId != NO_FILE) stripe(fileId).writeLock().lock();
+    }
+
+    @Override
+    void unlockWrite(int fileId) {
+      if (fileId != NO_FILE) stripe(fileId).writeLock().unlock();
+      myStructureLock.readLock().unlock();
+    }
+
+    @Override
+    void lockAllForRead() {
+      myStructureLock.readLock().lock();
+      for (ReentrantReadWriteLock stripe : myStripes) {
+        stripe.readLock().lock();
+      }
+    }
+
+    @Override
+    void unlockAllForRead() {
+      for (int i = myStripes.length - 1; i >= 0; i--) {
+        myStripes[i].readLock().unlock();
+      }
+      myStructureLock.readLock().unlock();
+    }
+
+    @Override
+    void lockExclusive() {
+      myStructureLock.writeLock().lock();
+    }
+
+    @Override
+    void unlockExclusive() {
+      myStructureLock.writeLock().unlock();
+    }
+
+    @Override
+    boolean isWriteLocked() {
+      if (myStructureLock.isWriteLocked()) return true;
+      for (ReentrantReadWriteLock stripe : myStripes) {
+        if (stripe.isWriteLocked()) return true;
+      }
+      return false;
+    }
+
+    @Override
+    boolean isReadLockedByCurrentThread() {
+      // every per-file lock is taken together with the structure read lock, stripes are checked to catch unbalanced unlocks
+      if (myStructureLock.getReadHoldCount() != 0) return true;
+      for (ReentrantReadWriteLock stripe : myStripes) {
+        if (stripe.getReadHoldCount() != 0 || stripe.isWriteLockedByCurrentThread()) return true;
+      }
+      return false;
+    }
+  }
+}
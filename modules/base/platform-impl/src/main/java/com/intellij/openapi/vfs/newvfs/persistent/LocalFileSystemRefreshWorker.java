@@ -15,6 +15,7 @@ import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
 import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
 import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.Queue;
 import com.intellij.util.text.FilePathHashingStrategy;
 import gnu.trove.THashMap;
@@ -118,6 +119,7 @@ class LocalFileSystemRefreshWorker {
     final NewVirtualFileSystem fs;
     final PersistentFS persistence;
     final TObjectHashingStrategy<String> strategy;
+    final boolean useSnapshots = DirectorySnapshot.isEnabled();
     final BlockingQueue<NewVirtualFile> filesToBecomeDirty = new LinkedBlockingQueue<>();
 
     RefreshContext(@Nonnull NewVirtualFileSystem fs, @Nonnull PersistentFS persistence, @Nonnull TObjectHashingStrategy<String> strategy) {
@@ -159,7 +161,19 @@ class LocalFileSystemRefreshWorker {
       String[] persistedNames = result.getFirst();
       VirtualFile[] children = result.getSecond();
 
-      RefreshingFileVisitor refreshingFileVisitor = new RefreshingFileVisitor(dir, refreshContext, null, Arrays.asList(children));
+      long listingStart = System.currentTimeMillis();
+      long timeStamp = refreshContext.useSnapshots ? directoryTimeStamp(dir) : -1;
+      boolean unchanged = timeStamp > 0 && DirectorySnapshot.isUnchanged(refreshContext.persistence, dir, timeStamp, persistedNames, refreshContext.strategy);
+
+      RefreshingFileVisitor refreshingFileVisitor;
+      if (unchanged) {
+        // the names are the same, so only the known children are checked
+        List<VirtualFile> checkedChildren = DirectorySnapshot.isVerifyingDirectoriesOnly() ? ContainerUtil.filter(children, VirtualFile::isDirectory) : Arrays.asList(children);
+        refreshingFileVisitor = new RefreshingFileVisitor(dir, refreshContext, Collections.emptyList(), checkedChildren);
+      }
+      else {
+        refreshingFileVisitor = new RefreshingFileVisitor(dir, refreshContext, null, Arrays.asList(children));
+      }
       refreshingFileVisitor.visit(dir);
       if (myCancelled) {
         addAllEventsFrom(refreshingFileVisitor);
@@ -180,11 +194,23 @@ class LocalFileSystemRefreshWorker {
         return true;
       });
       if (hasEvents) {
+        if (timeStamp > 0 && !unchanged && !refreshingFileVisitor.myChildrenChanged && !myCancelled) {
+          DirectorySnapshot.remember(refreshContext.persistence, dir, timeStamp, listingStart, persistedNames, refreshContext.strategy);
+        }
         break;
       }
     }
   }
 
+  private static long directoryTimeStamp(@Nonnull VirtualDirectoryImpl dir) {
+    try {
+      return Files.getLastModifiedTime(Paths.get(dir.getPath())).toMillis();
+    }
+    catch (IOException | InvalidPathException e) {
+      return -1;
+    }
+  }
+
   static Pair<String[], VirtualFile[]> getDirectorySnapshot(@Nonnull PersistentFS persistence, @Nonnull VirtualDirectoryImpl dir) {
     return ReadAction.compute(() -> ApplicationManager.getApplication().isDisposed() ? null : pair(persistence.list(dir), dir.getChildren()));
   }
@@ -310,6 +336,7 @@ class LocalFileSystemRefreshWorker {
     private final VfsEventGenerationHelper myHelper = new VfsEventGenerationHelper();
     private final Map<String, VirtualFile> myPersistentChildren;
     private final Set<String> myChildrenWeAreInterested; // null - no limit
+    private boolean myChildrenChanged; // some children were created, deleted or changed their type
 
     private final NewVirtualFile myFileOrDir;
     private final RefreshContext myRefreshContext;
@@ -376,6 +403,7 @@ class LocalFileSystemRefreshWorker {
 
       if (child == null) { // new file is created
         VirtualFile parent = myFileOrDir.isDirectory() ? myFileOrDir : myFileOrDir.getParent();
+        myChildrenChanged = true;
 
         String symlinkTarget = isLink ? file.toRealPath().toString() : null;
         try {
@@ -401,6 +429,7 @@ class LocalFileSystemRefreshWorker {
       boolean oldIsSpecial = child.is(VFileProperty.SPECIAL);
 
       if (oldIsDirectory != isDirectory || oldIsSymlink != isLink || oldIsSpecial != isSpecial) { // symlink or directory or special changed
+        myChildrenChanged = true;
         myHelper.scheduleDeletion(child);
         VirtualFile parent = myFileOrDir.isDirectory() ? myFileOrDir : myFileOrDir.getParent();
         String symlinkTarget = isLink ? file.toRealPath().toString() : null;
@@ -488,6 +517,7 @@ class LocalFileSystemRefreshWorker {
     @Nonnull
     VfsEventGenerationHelper getHelper() {
       if (!myPersistentChildren.isEmpty()) {
+        myChildrenChanged = true;
         if (!myCancelled) {
           for (VirtualFile child : myPersistentChildren.values()) {
             myHelper.scheduleDeletion(child);
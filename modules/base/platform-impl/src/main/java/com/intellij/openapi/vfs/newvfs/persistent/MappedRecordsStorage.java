@@ -0,0 +1,285 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.util.TimeoutUtil;
+import com.intellij.util.concurrency.StripedReaderCounter;
+import consulo.logging.Logger;
+import consulo.util.lang.reflect.unsafe.UnsafeDelegate;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link RecordsStorage} which maps the whole records file once, in chunks holding a whole number of records, and never remaps them.
+ * <p>
+ * Writes of the same record are serialized by the caller, writes of different records may run concurrently (see
+ * {@link FSRecordsLock#striped(int)}); they touch disjoint bytes of the mapping, and growing the file is synchronized here.
+ * Int reads don't need any lock: chunks are only ever appended and published through a volatile array, every write is followed by
+ * an atomic update of the write fence and every read starts with a volatile load of it, so a reader observes either the old or
+ * the new value of an aligned int field. Long fields are not guaranteed to be 8-byte aligned inside a record, so their readers still
+ * have to hold the lock.
+ * <p>
+ * Since readers don't hold the lock, every read is counted in {@link #myReaderCounts}: {@link #close()}
+ * unpublishes the chunks and waits for the in-flight reads to complete before it unmaps them.
+ */
+final class MappedRecordsStorage implements RecordsStorage {
+  private static final Logger LOG = Logger.getInstance(MappedRecordsStorage.class);
+  private static final int MAX_FORCE_ATTEMPTS = 10;
+  private static final MappedByteBuffer[] NO_CHUNKS = new MappedByteBuffer[0];
+
+  private final File myFile;
+  private final int myChunkSize;
+  private final ByteOrder myByteOrder;
+
+  private volatile MappedByteBuffer[] myChunks;
+  private volatile long myLength;
+  private long myLastWrittenLength;
+  private volatile boolean myDirty;
+  // every write updates it after modifying the mapping, every lock-free read loads it first
+  private final AtomicInteger myWriteFence = new AtomicInteger();
+  // number of reads in progress
+  private final StripedReaderCounter myReaderCounts = new StripedReaderCounter();
+
+  MappedRecordsStorage(@Nonnull File file, int recordSize, int recordsPerChunk, boolean nativeBytesOrder) throws IOException {
+    myFile = file;
+    myChunkSize = recordSize * recordsPerChunk;
+    myByteOrder = nativeBytesOrder ? ByteOrder.nativeOrder() : ByteOrder.BIG_ENDIAN;
+    myLastWrittenLength = myLength = readLength();
+
+    int chunkCount = (int)Math.max(1, (myLength + myChunkSize - 1) / myChunkSize);
+    MappedByteBuffer[] chunks = new MappedByteBuffer[chunkCount];
+    for (int i = 0; i < chunkCount; i++) {
+      chunks[i] = map(i);
+    }
+    myChunks = chunks;
+  }
+
+  @Override
+  public int getInt(long index) {
+    int stripe = enterRead();
+    try {
+      return chunk(index).getInt(offsetInChunk(index));
+    }
+    finally {
+      myReaderCounts.add(stripe, -1);
+    }
+  }
+
+  @Override
+  public void putInt(long index, int value) {
+    ensureSize(index + 4);
+    chunk(index).putInt(offsetInChunk(index), value);
+    publish();
+  }
+
+  @Override
+  public long getLong(long index) {
+    int stripe = enterRead();
+    try {
+      return chunk(index).getLong(offsetInChunk(index));
+    }
+    finally {
+      myReaderCounts.add(stripe, -1);
+    }
+  }
+
+  @Override
+  public void putLong(long index, long value) {
+    ensureSize(index + 8);
+    chunk(index).putLong(offsetInChunk(index), value);
+    publish();
+  }
+
+  @Override
+  public void put(long index, @Nonnull byte[] src, int offset, int length) {
+    ensureSize(index + length);
+    while (length > 0) {
+      int offsetInChunk = offsetInChunk(index);
+      int len = Math.min(length, myChunkSize - offsetInChunk);
+      // duplicate to keep position of the shared buffer untouched for concurrent readers
+      ByteBuffer buffer = chunk(index).duplicate();
+      buffer.position(offsetInChunk);
+      buffer.put(src, offset, len);
+      index += len;
+      offset += len;
+      length -= len;
+    }
+    publish();
+  }
+
+  @Override
+  public long length() {
+    return myLength;
+  }
+
+  @Override
+  public boolean isLockFreeRead() {
+    return true;
+  }
+
+  @Override
+  public boolean isDirty() {
+    return myDirty;
+  }
+
+  @Override
+  public synchronized void force() {
+    if (!myDirty) return;
+    myDirty = false;
+
+    long length = myLength;
+    if (length != myLastWrittenLength) {
+      writeLength(length);
+      myLastWrittenLength = length;
+    }
+    for (MappedByteBuffer chunk : myChunks) {
+      for (int i = 0; i < MAX_FORCE_ATTEMPTS; i++) {
+        try {
+          chunk.force();
+          break;
+        }
+        catch (Throwable e) {
+          LOG.info(e);
+          TimeoutUtil.sleep(10);
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    force();
+    MappedByteBuffer[] chunks = myChunks;
+    myChunks = NO_CHUNKS;
+    // a read which has not seen NO_CHUNKS has been counted before the store above, wait for it to complete
+    while (myReaderCounts.hasReaders()) {
+      Thread.yield();
+    }
+    for (MappedByteBuffer chunk : chunks) {
+      if (!UnsafeDelegate.get().invokeCleaner(chunk)) {
+        LOG.error("Unmapping failed for: " + myFile);
+      }
+    }
+  }
+
+  private int enterRead() {
+    int stripe = myReaderCounts.stripeOf(Thread.currentThread());
+    myReaderCounts.add(stripe, 1);
+    //noinspection ResultOfMethodCallIgnored
+    myWriteFence.get();
+    return stripe;
+  }
+
+  @Nonnull
+  private MappedByteBuffer chunk(long index) {
+    MappedByteBuffer[] chunks = myChunks;
+    if (chunks == NO_CHUNKS) {
+      throw new StorageClosedException(myFile);
+    }
+    return chunks[(int)(index / myChunkSize)];
+  }
+
+  /**
+   * Thrown by a lock-free read which runs after {@link #close()} has started, i.e. while the VFS is being disposed:
+   * the storage isn't corrupted.
+   */
+  static final class StorageClosedException extends IllegalStateException {
+    private StorageClosedException(@Nonnull File file) {
+      super("Storage is closed: " + file);
+    }
+  }
+
+  private int offsetInChunk(long index) {
+    return (int)(index % myChunkSize);
+  }
+
+  private void publish() {
+    myDirty = true;
+    myWriteFence.incrementAndGet();
+  }
+
+  private void ensureSize(long size) {
+    if (size <= myLength) return;
+
+    synchronized (this) {
+      MappedByteBuffer[] chunks = myChunks;
+      if (chunks == NO_CHUNKS) {
+        throw new StorageClosedException(myFile);
+      }
+      int requiredChunks = (int)((size + myChunkSize - 1) / myChunkSize);
+      if (requiredChunks > chunks.length) {
+        MappedByteBuffer[] newChunks = Arrays.copyOf(chunks, requiredChunks);
+        try {
+          for (int i = chunks.length; i < requiredChunks; i++) {
+            newChunks[i] = map(i);
+          }
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        myChunks = newChunks;
+      }
+      myLength = Math.max(myLength, size);
+      myDirty = true;
+    }
+  }
+
+  @Nonnull
+  private MappedByteBuffer map(int chunkIndex) throws IOException {
+    // mapping beyond the end of file in READ_WRITE mode extends the file, the new part is zero filled
+    try (RandomAccessFile file = new RandomAccessFile(myFile, "rw"); FileChannel channel = file.getChannel()) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, (long)chunkIndex * myChunkSize, myChunkSize);
+      buffer.order(myByteOrder);
+      return buffer;
+    }
+  }
+
+  @Nonnull
+  private File getLengthFile() {
+    return new File(myFile.getPath() + ".len");
+  }
+
+  // same format as ResizeableMappedFile uses
+  private long readLength() {
+    try (DataInputStream stream = new DataInputStream(new FileInputStream(getLengthFile()))) {
+      return stream.readLong();
+    }
+    catch (FileNotFoundException ignore) {
+      return 0;
+    }
+    catch (IOException e) {
+      long realSize = myFile.length();
+      writeLength(realSize);
+      return realSize;
+    }
+  }
+
+  private void writeLength(long length) {
+    try (DataOutputStream stream = new DataOutputStream(new FileOutputStream(getLengthFile()))) {
+      stream.writeLong(length);
+    }
+    catch (IOException e) {
+      LOG.error(e);
+    }
+  }
+}
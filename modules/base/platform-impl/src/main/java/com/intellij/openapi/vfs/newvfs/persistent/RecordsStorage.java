@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.Forceable;
+import com.intellij.util.io.PagedFileStorage;
+import com.intellij.util.io.ResizeableMappedFile;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Backing file of the fixed size {@link FSRecords} records table ({@code records.dat}).
+ * <p>
+ * Both implementations keep the logical length in the same {@code .len} side file and use the same byte order, so the on-disk
+ * format does not depend on the chosen implementation.
+ */
+interface RecordsStorage extends Forceable {
+  int getInt(long index);
+
+  void putInt(long index, int value);
+
+  long getLong(long index);
+
+  void putLong(long index, long value);
+
+  void put(long index, @Nonnull byte[] src, int offset, int length);
+
+  long length();
+
+  /**
+   * @return true if {@link #getInt(long)} may be called without holding the {@link FSRecords} lock
+   */
+  boolean isLockFreeRead();
+
+  /**
+   * Called under the exclusive {@link FSRecords} lock, but lock-free readers may still be running, see {@link #isLockFreeRead()}
+   */
+  void close() throws IOException;
+
+  @Nonnull
+  static RecordsStorage paged(@Nonnull File file,
+                              int initialSize,
+                              @Nonnull PagedFileStorage.StorageLockContext lockContext,
+                              int pageSize,
+                              boolean valuesAreBufferAligned,
+                              boolean nativeBytesOrder) throws IOException {
+    ResizeableMappedFile records = new ResizeableMappedFile(file, initialSize, lockContext, pageSize, valuesAreBufferAligned, nativeBytesOrder);
+    return new RecordsStorage() {
+      @Override
+      public int getInt(long index) {
+        return records.getInt(index);
+      }
+
+      @Override
+      public void putInt(long index, int value) {
+        records.putInt(index, value);
+      }
+
+      @Override
+      public long getLong(long index) {
+        return records.getLong(index);
+      }
+
+      @Override
+      public void putLong(long index, long value) {
+        records.putLong(index, value);
+      }
+
+      @Override
+      public void put(long index, @Nonnull byte[] src, int offset, int length) {
+        records.put(index, src, offset, length);
+      }
+
+      @Override
+      public long length() {
+        return records.length();
+      }
+
+      @Override
+      public boolean isLockFreeRead() {
+        return false;
+      }
+
+      @Override
+      public void close() {
+        records.close();
+      }
+
+      @Override
+      public boolean isDirty() {
+        return records.isDirty();
+      }
+
+      @Override
+      public void force() {
+        records.force();
+      }
+    };
+  }
+}
@@ -149,7 +149,17 @@ public class RefreshWorker {
     String[] persistedNames = snapshot.getFirst();
     VirtualFile[] children = snapshot.getSecond();
 
-    String[] upToDateNames = VfsUtil.filterNames(fs.list(dir));
+    long listingStart = System.currentTimeMillis();
+    long timeStamp = -1;
+    if (fs instanceof LocalFileSystemBase && DirectorySnapshot.isEnabled()) {
+      FileAttributes dirAttributes = fs.getAttributes(dir);
+      timeStamp = dirAttributes != null ? dirAttributes.lastModified : -1;
+    }
+    boolean unchanged = timeStamp > 0 && DirectorySnapshot.isUnchanged(persistence, dir, timeStamp, persistedNames, strategy);
+    boolean verifyDirectoriesOnly = unchanged && DirectorySnapshot.isVerifyingDirectoriesOnly();
+
+    // the names of an unchanged directory are the persisted ones, so it isn't listed
+    String[] upToDateNames = unchanged ? persistedNames : VfsUtil.filterNames(fs.list(dir));
     Set<String> newNames = newTroveSet(strategy, upToDateNames);
     if (dir.allChildrenLoaded() && children.length < upToDateNames.length) {
       for (VirtualFile child : children) {
@@ -181,6 +191,7 @@ public class RefreshWorker {
     List<Pair<VirtualFile, FileAttributes>> updatedMap = new ArrayList<>(children.length);
     for (VirtualFile child : children) {
       checkCancelled(dir);
+      if (verifyDirectoriesOnly && !child.isDirectory()) continue;
       if (!deletedNames.contains(child.getName())) {
         updatedMap.add(pair(child, fs.getAttributes(child)));
       }
@@ -201,6 +212,7 @@ public class RefreshWorker {
       myHelper.scheduleCreation(dir, record.getName().toString(), record.getFileAttributes(), record.getSymLinkTarget(), () -> checkCancelled(dir));
     }
 
+    boolean childrenDeleted = false;
     for (Pair<VirtualFile, FileAttributes> pair : updatedMap) {
       NewVirtualFile child = (NewVirtualFile)pair.first;
       checkCancelled(child);
@@ -212,10 +224,17 @@ public class RefreshWorker {
       else {
         if (LOG.isTraceEnabled()) LOG.warn("[x] fs=" + fs + " dir=" + dir + " name=" + child.getName());
         myHelper.scheduleDeletion(child);
+        childrenDeleted = true;
       }
     }
 
-    return !isDirectoryChanged(persistence, dir, persistedNames, children);
+    if (isDirectoryChanged(persistence, dir, persistedNames, children)) {
+      return false;
+    }
+    if (timeStamp > 0 && !unchanged && newNames.isEmpty() && deletedNames.isEmpty() && !childrenDeleted) {
+      DirectorySnapshot.remember(persistence, dir, timeStamp, listingStart, persistedNames, strategy);
+    }
+    return true;
   }
 
   private boolean isDirectoryChanged(@Nonnull PersistentFS persistence, @Nonnull VirtualDirectoryImpl dir, @Nonnull String[] persistedNames, @Nonnull VirtualFile[] children) {
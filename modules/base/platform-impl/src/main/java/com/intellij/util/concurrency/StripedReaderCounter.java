@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.concurrency;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Number of readers in progress, split into stripes chosen by the reader thread, so that readers on different threads rarely
+ * update the same counter. A writer waits until {@link #hasReaders()} is false.
+ */
+public final class StripedReaderCounter {
+  // a counter per 128 bytes, so that counters of different stripes don't share a cache line
+  private static final int STRIDE = 16;
+
+  private final AtomicLongArray myCounts;
+  private final int myStripeMask;
+
+  public StripedReaderCounter() {
+    int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+    myStripeMask = stripes - 1;
+    myCounts = new AtomicLongArray(stripes * STRIDE);
+  }
+
+  /**
+   * @return the stripe of the thread, to be passed to {@link #add}
+   */
+  public int stripeOf(@Nonnull Thread thread) {
+    // thread ids are mostly sequential: multiplying by 2^64 / golden ratio mixes them into the high bits, which select the stripe
+    long id = thread.getId() * 0x9E3779B97F4A7C15L;
+    return ((int)(id >>> 32) & myStripeMask) * STRIDE;
+  }
+
+  public void add(int stripe, int delta) {
+    myCounts.addAndGet(stripe, delta);
+  }
+
+  public boolean hasReaders() {
+    for (int i = 0; i < myCounts.length(); i += STRIDE) {
+      if (myCounts.get(i) != 0) return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FSRecordsLockTest extends Assert {
+  private static final int FILE = 42;
+
+  @Test
+  public void testGlobalExclusion() throws Exception {
+    checkExclusion(FSRecordsLock.global());
+  }
+
+  @Test
+  public void testStripedExclusion() throws Exception {
+    checkExclusion(FSRecordsLock.striped(64));
+  }
+
+  @Test
+  public void testGlobalReentrancy() {
+    checkReentrancy(FSRecordsLock.global());
+  }
+
+  @Test
+  public void testStripedReentrancy() {
+    checkReentrancy(FSRecordsLock.striped(64));
+  }
+
+  @Test
+  public void testGlobalNoTornRecords() throws Exception {
+    checkNoTornRecords(FSRecordsLock.global());
+  }
+
+  @Test
+  public void testStripedNoTornRecords() throws Exception {
+    checkNoTornRecords(FSRecordsLock.striped(4));
+  }
+
+  @Test
+  public void testStripedReadersOfDifferentFilesDoNotBlockWriter() throws Exception {
+    FSRecordsLock lock = FSRecordsLock.striped(64);
+    lock.lockRead(FILE);
+    try {
+      // at least one of the next ids falls into another stripe
+      boolean acquired = false;
+      for (int id = FILE + 1; id < FILE + 1000 && !acquired; id++) {
+        acquired = tryLockWrite(lock, id);
+      }
+      assertTrue(acquired);
+    }
+    finally {
+      lock.unlockRead(FILE);
+    }
+  }
+
+  private static boolean tryLockWrite(FSRecordsLock lock, int fileId) {
+    Thread thread = new Thread(() -> {
+      lock.lockWrite(fileId);
+      lock.unlockWrite(fileId);
+    });
+    thread.setDaemon(true);
+    thread.start();
+    try {
+      thread.join(50);
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    return !thread.isAlive();
+  }
+
+  private static void checkExclusion(FSRecordsLock lock) throws Exception {
+    // a per-file write excludes readers and writers of the same file and the exclusive lock
+    lock.lockWrite(FILE);
+    assertTrue(lock.isWriteLocked());
+    CountDownLatch reader = startLocking(() -> lock.lockRead(FILE), () -> lock.unlockRead(FILE));
+    CountDownLatch writer = startLocking(() -> lock.lockWrite(FILE), () -> lock.unlockWrite(FILE));
+    CountDownLatch exclusive = startLocking(lock::lockExclusive, lock::unlockExclusive);
+    CountDownLatch allForRead = startLocking(lock::lockAllForRead, lock::unlockAllForRead);
+    assertBlocked(reader, writer, exclusive, allForRead);
+    lock.unlockWrite(FILE);
+    assertAcquired(reader, writer, exclusive, allForRead);
+    assertFalse(lock.isWriteLocked());
+
+    // the exclusive lock excludes everybody
+    lock.lockExclusive();
+    assertTrue(lock.isWriteLocked());
+    reader = startLocking(() -> lock.lockRead(FILE), () -> lock.unlockRead(FILE));
+    writer = startLocking(() -> lock.lockWrite(FILE + 1), () -> lock.unlockWrite(FILE + 1));
+    allForRead = startLocking(lock::lockAllForRead, lock::unlockAllForRead);
+    assertBlocked(reader, writer, allForRead);
+    lock.unlockExclusive();
+    assertAcquired(reader, writer, allForRead);
+
+    // "all for read" excludes writers of any file, but not readers
+    lock.lockAllForRead();
+    reader = startLocking(() -> lock.lockRead(FILE), () -> lock.unlockRead(FILE));
+    assertAcquired(reader);
+    writer = startLocking(() -> lock.lockWrite(FILE + 1), () -> lock.unlockWrite(FILE + 1));
+    exclusive = startLocking(lock::lockExclusive, lock::unlockExclusive);
+    assertBlocked(writer, exclusive);
+    lock.unlockAllForRead();
+    assertAcquired(writer, exclusive);
+    assertFalse(lock.isWriteLocked());
+  }
+
+  private static void checkReentrancy(FSRecordsLock lock) {
+    assertFalse(lock.isReadLockedByCurrentThread());
+
+    lock.lockRead(FILE);
+    assertTrue(lock.isReadLockedByCurrentThread());
+    lock.lockRead(FILE);
+    lock.unlockRead(FILE);
+    assertTrue(lock.isReadLockedByCurrentThread());
+    lock.unlockRead(FILE);
+    assertFalse(lock.isReadLockedByCurrentThread());
+
+    lock.lockWrite(FILE);
+    lock.lockWrite(FILE);
+    lock.lockRead(FILE);
+    assertTrue(lock.isReadLockedByCurrentThread());
+    lock.unlockRead(FILE);
+    lock.unlockWrite(FILE);
+    lock.unlockWrite(FILE);
+    assertFalse(lock.isReadLockedByCurrentThread());
+    assertFalse(lock.isWriteLocked());
+
+    // nested per-file calls for other ids are allowed under the exclusive lock
+    lock.lockExclusive();
+    lock.lockWrite(FILE);
+    lock.lockWrite(FILE + 1);
+    lock.lockRead(FILE + 2);
+    lock.unlockRead(FILE + 2);
+    lock.unlockWrite(FILE + 1);
+    lock.unlockWrite(FILE);
+    lock.lockExclusive();
+    lock.unlockExclusive();
+    assertFalse(lock.isReadLockedByCurrentThread());
+    lock.unlockExclusive();
+    assertFalse(lock.isWriteLocked());
+
+    lock.lockAllForRead();
+    assertTrue(lock.isReadLockedByCurrentThread());
+    lock.lockRead(FILE);
+    lock.unlockRead(FILE);
+    lock.unlockAllForRead();
+    assertFalse(lock.isReadLockedByCurrentThread());
+  }
+
+  private static void checkNoTornRecords(FSRecordsLock lock) throws Exception {
+    int threadCount = Math.max(4, Runtime.getRuntime().availableProcessors());
+    int operations = 20_000;
+    int files = 64;
+    // two fields per "record", a writer keeps them equal, a reader checks that it never observes them torn
+    int[] records = new int[files * 2];
+    AtomicInteger writes = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    List<Throwable> errors = new ArrayList<>();
+
+    for (int t = 0; t < threadCount; t++) {
+      Thread thread = new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+          start.await();
+          for (int i = 0; i < operations; i++) {
+            int fileId = 1 + random.nextInt(files - 1);
+            int op = random.nextInt(100);
+            if (op == 0) {
+              lock.lockExclusive();
+              try {
+                int before = sum(records);
+                Thread.yield();
+                if (before != sum(records)) {
+                  throw new AssertionError("record written under the exclusive lock");
+                }
+              }
+              finally {
+                lock.unlockExclusive();
+              }
+            }
+            else if (op < 30) {
+              lock.lockWrite(fileId);
+              try {
+                int value = records[fileId * 2] + 1;
+                records[fileId * 2] = value;
+                Thread.yield();
+                records[fileId * 2 + 1] = value;
+                writes.incrementAndGet();
+              }
+              finally {
+                lock.unlockWrite(fileId);
+              }
+            }
+            else {
+              lock.lockRead(fileId);
+              try {
+                int first = records[fileId * 2];
+                Thread.yield();
+                if (first != records[fileId * 2 + 1]) {
+                  throw new AssertionError("torn record " + fileId);
+                }
+              }
+              finally {
+                lock.unlockRead(fileId);
+              }
+            }
+          }
+        }
+        catch (Throwable e) {
+          synchronized (errors) {
+            errors.add(e);
+          }
+        }
+      }, "worker " + t);
+      threads.add(thread);
+      thread.start();
+    }
+
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(errors.toString(), errors.isEmpty());
+    lock.lockAllForRead();
+    try {
+      assertFalse(lock.isWriteLocked());
+      for (int fileId = 0; fileId < files; fileId++) {
+        assertEquals(records[fileId * 2], records[fileId * 2 + 1]);
+      }
+      // no lost updates
+      assertEquals(writes.get() * 2, sum(records));
+    }
+    finally {
+      lock.unlockAllForRead();
+    }
+  }
+
+  private static int sum(int[] records) {
+    int sum = 0;
+    for (int value : records) {
+      sum += value;
+    }
+    return sum;
+  }
+
+  private static CountDownLatch startLocking(Runnable lock, Runnable unlock) {
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread = new Thread(() -> {
+      lock.run();
+      try {
+        acquired.countDown();
+      }
+      finally {
+        unlock.run();
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    return acquired;
+  }
+
+  private static void assertBlocked(CountDownLatch... latches) throws InterruptedException {
+    for (CountDownLatch latch : latches) {
+      assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+    }
+  }
+
+  private static void assertAcquired(CountDownLatch... latches) throws InterruptedException {
+    for (CountDownLatch latch : latches) {
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+  }
+}
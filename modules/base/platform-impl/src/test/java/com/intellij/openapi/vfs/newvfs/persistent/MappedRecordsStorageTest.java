@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class MappedRecordsStorageTest extends Assert {
+  private static final int RECORD_SIZE = 16;
+  private static final int RECORDS_PER_CHUNK = 4;
+  private static final int CHUNK_SIZE = RECORD_SIZE * RECORDS_PER_CHUNK;
+
+  private File myDir;
+  private File myFile;
+
+  @Before
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("records", "test");
+    myFile = new File(myDir, "records.dat");
+  }
+
+  @After
+  public void tearDown() {
+    FileUtil.delete(myDir);
+  }
+
+  private MappedRecordsStorage open() throws IOException {
+    return new MappedRecordsStorage(myFile, RECORD_SIZE, RECORDS_PER_CHUNK, false);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    MappedRecordsStorage storage = open();
+    assertEquals(0, storage.length());
+    assertFalse(storage.isDirty());
+
+    storage.putInt(0, 42);
+    storage.putLong(4, Long.MAX_VALUE - 1);
+    // spans three chunks
+    byte[] bytes = new byte[CHUNK_SIZE * 2 + 7];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte)i;
+    }
+    storage.put(CHUNK_SIZE - 3, bytes, 0, bytes.length);
+    storage.putInt(CHUNK_SIZE * 10, -1);
+
+    assertTrue(storage.isDirty());
+    assertEquals(CHUNK_SIZE * 10 + 4, storage.length());
+    assertEquals(42, storage.getInt(0));
+    assertEquals(Long.MAX_VALUE - 1, storage.getLong(4));
+    assertEquals(-1, storage.getInt(CHUNK_SIZE * 10));
+    // never written space is zero filled
+    assertEquals(0, storage.getInt(CHUNK_SIZE * 9));
+    storage.close();
+
+    storage = open();
+    assertEquals(CHUNK_SIZE * 10 + 4, storage.length());
+    assertFalse(storage.isDirty());
+    assertEquals(42, storage.getInt(0));
+    assertEquals(Long.MAX_VALUE - 1, storage.getLong(4));
+    assertEquals(-1, storage.getInt(CHUNK_SIZE * 10));
+    for (int i = 0; i < bytes.length; i++) {
+      int index = CHUNK_SIZE - 3 + i;
+      assertEquals(bytes[i], (byte)(storage.getInt(index - index % 4) >>> (24 - index % 4 * 8)));
+    }
+    storage.close();
+  }
+
+  @Test
+  public void testClosedStorageFailsCleanly() throws IOException {
+    MappedRecordsStorage storage = open();
+    storage.putInt(0, 1);
+    storage.close();
+    try {
+      storage.getInt(0);
+      fail();
+    }
+    catch (MappedRecordsStorage.StorageClosedException ignore) {
+    }
+    try {
+      storage.putInt(CHUNK_SIZE * 100, 1);
+      fail();
+    }
+    catch (MappedRecordsStorage.StorageClosedException ignore) {
+    }
+    // closing twice is harmless
+    storage.close();
+  }
+
+  @Test
+  public void testConcurrentWritersAndLockFreeReaders() throws Exception {
+    int writerCount = 4;
+    int readerCount = 4;
+    int recordsPerWriter = 200;
+    int rounds = 50;
+    MappedRecordsStorage storage = open();
+    assertTrue(storage.isLockFreeRead());
+
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicBoolean writing = new AtomicBoolean(true);
+    List<Throwable> errors = new ArrayList<>();
+    List<Thread> writers = new ArrayList<>();
+    List<Thread> readers = new ArrayList<>();
+
+    for (int w = 0; w < writerCount; w++) {
+      int writer = w;
+      writers.add(new Thread(() -> {
+        try {
+          start.await();
+          // writers own interleaved records and grow the file concurrently
+          for (int round = 1; round <= rounds; round++) {
+            for (int i = 0; i < recordsPerWriter; i++) {
+              long record = (long)i * writerCount + writer;
+              storage.putInt(record * RECORD_SIZE, round);
+              storage.putInt(record * RECORD_SIZE + 4, round);
+            }
+          }
+        }
+        catch (Throwable e) {
+          addError(errors, e);
+        }
+      }));
+    }
+    for (int r = 0; r < readerCount; r++) {
+      readers.add(new Thread(() -> {
+        try {
+          start.await();
+          int[] lastSeen = new int[writerCount * recordsPerWriter];
+          while (writing.get()) {
+            long records = storage.length() / RECORD_SIZE;
+            for (int record = 0; record < records; record++) {
+              // fields of a record are written in order, a reader may only see the second one lagging behind
+              int second = storage.getInt((long)record * RECORD_SIZE + 4);
+              int first = storage.getInt((long)record * RECORD_SIZE);
+              if (first < second || first < lastSeen[record] || first > rounds) {
+                throw new AssertionError("record " + record + ": " + first + ", " + second + ", seen " + lastSeen[record]);
+              }
+              lastSeen[record] = first;
+            }
+          }
+        }
+        catch (Throwable e) {
+          addError(errors, e);
+        }
+      }));
+    }
+
+    writers.forEach(Thread::start);
+    readers.forEach(Thread::start);
+    start.countDown();
+    for (Thread thread : writers) {
+      thread.join();
+    }
+    writing.set(false);
+    for (Thread thread : readers) {
+      thread.join();
+    }
+    assertTrue(errors.toString(), errors.isEmpty());
+
+    assertEquals((long)writerCount * recordsPerWriter * RECORD_SIZE - RECORD_SIZE + 8, storage.length());
+    for (int record = 0; record < writerCount * recordsPerWriter; record++) {
+      assertEquals(rounds, storage.getInt((long)record * RECORD_SIZE));
+      assertEquals(rounds, storage.getInt((long)record * RECORD_SIZE + 4));
+    }
+    storage.close();
+  }
+
+  @Test
+  public void testCloseWaitsForLockFreeReaders() throws Exception {
+    MappedRecordsStorage storage = open();
+    for (int i = 0; i < 100; i++) {
+      storage.putInt((long)i * RECORD_SIZE, i);
+    }
+
+    CountDownLatch started = new CountDownLatch(4);
+    List<Throwable> errors = new ArrayList<>();
+    List<Thread> readers = new ArrayList<>();
+    for (int r = 0; r < 4; r++) {
+      readers.add(new Thread(() -> {
+        try {
+          //noinspection InfiniteLoopStatement
+          while (true) {
+            for (int i = 0; i < 100; i++) {
+              if (storage.getInt((long)i * RECORD_SIZE) != i) {
+                throw new AssertionError("record " + i);
+              }
+            }
+            started.countDown();
+          }
+        }
+        catch (MappedRecordsStorage.StorageClosedException ignore) {
+          // closed
+        }
+        catch (Throwable e) {
+          addError(errors, e);
+        }
+      }));
+    }
+    readers.forEach(Thread::start);
+    started.await();
+
+    // unmapping under running readers would crash the VM instead of failing the reads
+    storage.close();
+    for (Thread thread : readers) {
+      thread.join();
+    }
+    assertTrue(errors.toString(), errors.isEmpty());
+  }
+
+  private static void addError(List<Throwable> errors, Throwable e) {
+    synchronized (errors) {
+      errors.add(e);
+    }
+  }
+}
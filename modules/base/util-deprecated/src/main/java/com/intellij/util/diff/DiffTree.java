@@ -38,11 +38,14 @@ public class DiffTree<OT, NT> {
   private final CharSequence myNewText;
   private final int myOldTreeStart;
   private final int myNewTreeStart;
+  private final int myMaxNodesToCompare;
+  private int myComparedNodes;
 
   private DiffTree(@Nonnull FlyweightCapableTreeStructure<OT> oldTree,
                    @Nonnull FlyweightCapableTreeStructure<NT> newTree,
                    @Nonnull ShallowNodeComparator<OT, NT> comparator,
-                   @Nonnull CharSequence oldText) {
+                   @Nonnull CharSequence oldText,
+                   int maxNodesToCompare) {
     myOldTree = oldTree;
     myNewTree = newTree;
     myComparator = comparator;
@@ -50,6 +53,7 @@ public class DiffTree<OT, NT> {
     myOldTreeStart = oldTree.getStartOffset(oldTree.getRoot());
     myNewText = newTree.toString(newTree.getRoot());
     myNewTreeStart = newTree.getStartOffset(newTree.getRoot());
+    myMaxNodesToCompare = maxNodesToCompare;
   }
 
   public static <OT, NT> void diff(@Nonnull FlyweightCapableTreeStructure<OT> oldTree,
@@ -57,7 +61,21 @@ public class DiffTree<OT, NT> {
                                    @Nonnull ShallowNodeComparator<OT, NT> comparator,
                                    @Nonnull DiffTreeChangeBuilder<OT, NT> consumer,
                                    @Nonnull CharSequence oldText) {
-    final DiffTree<OT, NT> tree = new DiffTree<OT, NT>(oldTree, newTree, comparator, oldText);
+    diff(oldTree, newTree, comparator, consumer, oldText, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Same as {@link #diff(FlyweightCapableTreeStructure, FlyweightCapableTreeStructure, ShallowNodeComparator, DiffTreeChangeBuilder, CharSequence)},
+   * but after {@code maxNodesToCompare} child nodes have been compared, each remaining changed subtree is reported replaced as a whole
+   * instead of being diffed further. This bounds the cost of diffing trees which differ a lot, at the cost of a coarser change.
+   */
+  public static <OT, NT> void diff(@Nonnull FlyweightCapableTreeStructure<OT> oldTree,
+                                   @Nonnull FlyweightCapableTreeStructure<NT> newTree,
+                                   @Nonnull ShallowNodeComparator<OT, NT> comparator,
+                                   @Nonnull DiffTreeChangeBuilder<OT, NT> consumer,
+                                   @Nonnull CharSequence oldText,
+                                   int maxNodesToCompare) {
+    final DiffTree<OT, NT> tree = new DiffTree<OT, NT>(oldTree, newTree, comparator, oldText, maxNodesToCompare);
     tree.build(oldTree.getRoot(), newTree.getRoot(), 0, consumer);
   }
 
@@ -107,9 +125,11 @@ public class DiffTree<OT, NT> {
     final Ref<NT[]> newChildrenR = myNewChildrenLists.get(level);
     int newChildrenSize = myNewTree.getChildren(newNode, newChildrenR);
     final NT[] newChildren = newChildrenR.get();
+    myComparedNodes += oldChildrenSize + newChildrenSize;
 
     CompareResult result;
-    if (Math.abs(oldChildrenSize - newChildrenSize) > CHANGE_PARENT_VERSUS_CHILDREN_THRESHOLD) {
+    if (Math.abs(oldChildrenSize - newChildrenSize) > CHANGE_PARENT_VERSUS_CHILDREN_THRESHOLD ||
+        myComparedNodes > myMaxNodesToCompare && (oldChildrenSize != 0 || newChildrenSize != 0)) {
       consumer.nodeReplaced(oldNode, newNode);
       result = CompareResult.NOT_EQUAL;
     }
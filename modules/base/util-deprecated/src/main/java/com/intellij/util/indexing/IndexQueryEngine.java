@@ -0,0 +1,231 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.Condition;
+import com.intellij.util.containers.EmptyIntHashSet;
+import com.intellij.util.indexing.containers.RoaringIdSet;
+import gnu.trove.TIntHashSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Multi-key queries of an {@link InvertedIndex}: value containers of all keys are read in parallel, then intersected starting from
+ * the smallest one, and the query stops as soon as some key has no inputs or the intersection becomes empty.
+ * <p>
+ * The cancellation check is run on the caller thread for every container it reads or intersects and while it waits for the
+ * helpers; once it throws, the helpers stop taking new keys.
+ * <p>
+ * The caller has to hold the read lock of the index. Helper threads read containers only after acquiring the same read lock with
+ * {@code tryLock(0, TimeUnit.NANOSECONDS)}, which unlike {@link Lock#tryLock()} honors the queue of a {@code ReentrantReadWriteLock}:
+ * a helper that can't get the lock at once or would barge ahead of a queued writer leaves its share of keys to the caller. So the
+ * caller never waits for a thread that waits for the writer, and helpers don't delay a writer which already waits for the caller.
+ */
+public final class IndexQueryEngine {
+  // how long the caller waits for the helpers between cancellation checks
+  private static final long CANCELLATION_CHECK_INTERVAL_MS = 10;
+
+  private final Executor myExecutor;
+  private final int myParallelism;
+  private final Runnable myCancellationCheck;
+
+  /**
+   * @param parallelism       maximal number of threads reading the containers, including the caller thread; 1 disables parallel reads
+   * @param cancellationCheck throws {@link com.intellij.openapi.progress.ProcessCanceledException} if the query is cancelled
+   */
+  public IndexQueryEngine(@Nonnull Executor executor, int parallelism, @Nonnull Runnable cancellationCheck) {
+    myExecutor = executor;
+    myParallelism = Math.max(1, parallelism);
+    myCancellationCheck = cancellationCheck;
+  }
+
+  /**
+   * Same as {@link InvertedIndexUtil#collectInputIdsContainingAllKeys}, but keyChecker is called for all keys on the caller thread
+   * before the containers are read, and only the accepted keys can end the query early.
+   *
+   * @param readLock the read lock of the index held by the caller
+   */
+  @Nonnull
+  public <K, V, I> TIntHashSet collectInputIdsContainingAllKeys(@Nonnull InvertedIndex<? super K, V, I> index,
+                                                                @Nonnull Collection<? extends K> dataKeys,
+                                                                @Nonnull Lock readLock,
+                                                                @Nullable Condition<? super K> keyChecker,
+                                                                @Nullable Condition<? super V> valueChecker,
+                                                                @Nullable ValueContainer.IntPredicate idChecker) throws StorageException {
+    if (dataKeys.size() < 2 || myParallelism == 1) {
+      return InvertedIndexUtil.collectInputIdsContainingAllKeys(index, dataKeys, keyChecker, valueChecker, idChecker);
+    }
+
+    List<K> keys = new ArrayList<>(dataKeys.size());
+    for (K key : dataKeys) {
+      if (keyChecker == null || keyChecker.value(key)) keys.add(key);
+    }
+    if (keys.isEmpty()) return EmptyIntHashSet.INSTANCE;
+
+    Fetch<K, V> fetch = new Fetch<>(index, keys, myCancellationCheck);
+    int helpers = Math.min(myParallelism, keys.size()) - 1;
+    for (int i = 0; i < helpers; i++) {
+      try {
+        myExecutor.execute(() -> {
+          try {
+            if (!readLock.tryLock(0, TimeUnit.NANOSECONDS)) return;
+          }
+          catch (InterruptedException e) {
+            return; // the caller reads the rest
+          }
+          try {
+            fetch.readContainers(false);
+          }
+          finally {
+            readLock.unlock();
+          }
+        });
+      }
+      catch (RejectedExecutionException e) {
+        break; // the caller reads the rest
+      }
+    }
+    try {
+      fetch.readContainers(true);
+      fetch.waitForClaimedContainers();
+    }
+    finally {
+      fetch.stop();
+    }
+
+    if (fetch.myHasEmptyContainer) return EmptyIntHashSet.INSTANCE;
+
+    // intersection of the smallest containers first keeps intermediate results small
+    Integer[] order = new Integer[keys.size()];
+    for (int i = 0; i < order.length; i++) order[i] = i;
+    Arrays.sort(order, (o1, o2) -> Long.compare(fetch.myEstimatedSizes[o1], fetch.myEstimatedSizes[o2]));
+
+    RoaringIdSet mainIntersection = null;
+    for (int i : order) {
+      myCancellationCheck.run();
+      mainIntersection = InvertedIndexUtil.intersect(mainIntersection, fetch.myContainers[i], valueChecker, idChecker);
+      if (mainIntersection.isEmpty()) {
+        return EmptyIntHashSet.INSTANCE;
+      }
+    }
+    return mainIntersection == null ? EmptyIntHashSet.INSTANCE : InvertedIndexUtil.toIntHashSet(mainIntersection);
+  }
+
+  private static class Fetch<K, V> {
+    private final InvertedIndex<? super K, V, ?> myIndex;
+    private final List<K> myKeys;
+    private final Runnable myCancellationCheck;
+    private final ValueContainer<V>[] myContainers;
+    private final long[] myEstimatedSizes;
+    private final AtomicInteger myNextKey = new AtomicInteger();
+    private volatile boolean myHasEmptyContainer;
+    private volatile boolean myStopped;
+
+    // guarded by this
+    private int myCompletedCount;
+    private Throwable myError;
+
+    private Fetch(@Nonnull InvertedIndex<? super K, V, ?> index, @Nonnull List<K> keys, @Nonnull Runnable cancellationCheck) {
+      myIndex = index;
+      myKeys = keys;
+      myCancellationCheck = cancellationCheck;
+      //noinspection unchecked
+      myContainers = new ValueContainer[keys.size()];
+      myEstimatedSizes = new long[keys.size()];
+    }
+
+    private void readContainers(boolean callerThread) {
+      int keyIndex;
+      while (!myHasEmptyContainer && !myStopped) {
+        if (callerThread) myCancellationCheck.run();
+        if ((keyIndex = myNextKey.getAndIncrement()) >= myKeys.size()) break;
+
+        Throwable error = null;
+        try {
+          ValueContainer<V> container = myIndex.getData(myKeys.get(keyIndex));
+          myContainers[keyIndex] = container;
+          long estimatedSize = estimateSize(container);
+          myEstimatedSizes[keyIndex] = estimatedSize;
+          if (estimatedSize == 0) myHasEmptyContainer = true;
+        }
+        catch (Throwable e) {
+          error = e;
+        }
+        synchronized (this) {
+          if (error != null && myError == null) myError = error;
+          ++myCompletedCount;
+          notifyAll();
+        }
+      }
+    }
+
+    private void stop() {
+      myStopped = true;
+    }
+
+    private void waitForClaimedContainers() throws StorageException {
+      // no more keys can be claimed after that, so the containers being read are known
+      int claimed = Math.min(myNextKey.getAndSet(myKeys.size()), myKeys.size());
+      Throwable error;
+      boolean interrupted = false;
+      try {
+        while (true) {
+          synchronized (this) {
+            if (myCompletedCount >= claimed) {
+              error = myError;
+              break;
+            }
+            try {
+              wait(CANCELLATION_CHECK_INTERVAL_MS);
+            }
+            catch (InterruptedException e) {
+              interrupted = true; // the helpers hold the read lock and finish shortly
+            }
+          }
+          myCancellationCheck.run();
+        }
+      }
+      finally {
+        if (interrupted) Thread.currentThread().interrupt();
+      }
+
+      if (error instanceof StorageException) throw (StorageException)error;
+      if (error instanceof RuntimeException) throw (RuntimeException)error;
+      if (error instanceof Error) throw (Error)error;
+      if (error != null) throw new StorageException(error);
+    }
+
+    // upper bound of the number of inputs: sum of the input counts of all values
+    private static long estimateSize(@Nonnull ValueContainer<?> container) {
+      long size = 0;
+      for (ValueContainer.ValueIterator<?> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+        valueIt.next();
+        size += valueIt.getInputIdsIterator().size();
+      }
+      return size;
+    }
+  }
+}
@@ -17,6 +17,8 @@ package com.intellij.util.indexing;
 
 import com.intellij.openapi.util.Condition;
 import com.intellij.util.containers.EmptyIntHashSet;
+import com.intellij.util.indexing.containers.IntIdsIterator;
+import com.intellij.util.indexing.containers.RoaringIdSet;
 import gnu.trove.TIntHashSet;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -30,45 +32,70 @@ public class InvertedIndexUtil {
                                                                        @Nullable Condition<? super K> keyChecker,
                                                                        @Nullable Condition<? super V> valueChecker,
                                                                        @Nullable ValueContainer.IntPredicate idChecker) throws StorageException {
-    TIntHashSet mainIntersection = null;
+    RoaringIdSet mainIntersection = null;
 
     for (K dataKey : dataKeys) {
       if (keyChecker != null && !keyChecker.value(dataKey)) continue;
 
-      final TIntHashSet copy = new TIntHashSet();
-      final ValueContainer<V> container = index.getData(dataKey);
+      mainIntersection = intersect(mainIntersection, index.getData(dataKey), valueChecker, idChecker);
+      if (mainIntersection.isEmpty()) {
+        return EmptyIntHashSet.INSTANCE;
+      }
+    }
 
-      for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
-        final V value = valueIt.next();
-        if (valueChecker != null && !valueChecker.value(value)) {
-          continue;
-        }
+    return mainIntersection == null ? EmptyIntHashSet.INSTANCE : toIntHashSet(mainIntersection);
+  }
+
+  /**
+   * @return ids of the container values accepted by valueChecker which are also in mainIntersection or, when it is null,
+   * accepted by idChecker
+   */
+  @Nonnull
+  static <V> RoaringIdSet intersect(@Nullable RoaringIdSet mainIntersection,
+                                    @Nonnull ValueContainer<V> container,
+                                    @Nullable Condition<? super V> valueChecker,
+                                    @Nullable ValueContainer.IntPredicate idChecker) {
+    RoaringIdSet copy = new RoaringIdSet();
+
+    for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      final V value = valueIt.next();
+      if (valueChecker != null && !valueChecker.value(value)) {
+        continue;
+      }
 
-        ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator();
+      ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator();
+      RoaringIdSet compressedIds = RoaringIdSet.getBackingSet(iterator);
 
-        final ValueContainer.IntPredicate predicate;
-        if (mainIntersection == null || iterator.size() < mainIntersection.size() || (predicate = valueIt.getValueAssociationPredicate()) == null) {
-          while (iterator.hasNext()) {
-            final int id = iterator.next();
-            if (mainIntersection == null && (idChecker == null || idChecker.contains(id)) || mainIntersection != null && mainIntersection.contains(id)) {
-              copy.add(id);
-            }
+      final ValueContainer.IntPredicate predicate;
+      if (compressedIds != null && (mainIntersection != null || idChecker == null)) {
+        // large id sets are intersected / merged chunk by chunk
+        RoaringIdSet ids = mainIntersection != null ? RoaringIdSet.and(mainIntersection, compressedIds) : compressedIds;
+        copy = copy.isEmpty() ? (ids == compressedIds ? compressedIds.clone() : ids) : RoaringIdSet.or(copy, ids);
+      }
+      else if (mainIntersection == null || iterator.size() < mainIntersection.size() || (predicate = valueIt.getValueAssociationPredicate()) == null) {
+        while (iterator.hasNext()) {
+          final int id = iterator.next();
+          if (mainIntersection == null && (idChecker == null || idChecker.contains(id)) || mainIntersection != null && mainIntersection.contains(id)) {
+            copy.add(id);
           }
         }
-        else {
-          mainIntersection.forEach(id -> {
-            if (predicate.contains(id)) copy.add(id);
-            return true;
-          });
-        }
       }
-
-      mainIntersection = copy;
-      if (mainIntersection.isEmpty()) {
-        return EmptyIntHashSet.INSTANCE;
+      else {
+        for (IntIdsIterator mainIterator = mainIntersection.intIterator(); mainIterator.hasNext(); ) {
+          int id = mainIterator.next();
+          if (predicate.contains(id)) copy.add(id);
+        }
       }
     }
+    return copy;
+  }
 
-    return mainIntersection == null ? EmptyIntHashSet.INSTANCE : mainIntersection;
+  @Nonnull
+  static TIntHashSet toIntHashSet(@Nonnull RoaringIdSet ids) {
+    TIntHashSet result = new TIntHashSet(ids.size());
+    for (IntIdsIterator iterator = ids.intIterator(); iterator.hasNext(); ) {
+      result.add(iterator.next());
+    }
+    return result;
   }
 }
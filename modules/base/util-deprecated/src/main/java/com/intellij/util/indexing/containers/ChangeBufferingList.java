@@ -15,10 +15,14 @@
  */
 package com.intellij.util.indexing.containers;
 
+import com.intellij.util.SystemProperties;
 import com.intellij.util.indexing.impl.DebugAssertions;
 import com.intellij.util.indexing.ValueContainer;
 import gnu.trove.TIntProcedure;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
 import java.util.Arrays;
 
 import static com.intellij.util.indexing.impl.DebugAssertions.EXTRA_SANITY_CHECKS;
@@ -34,6 +38,8 @@ import static com.intellij.util.indexing.impl.DebugAssertions.EXTRA_SANITY_CHECK
  */
 public class ChangeBufferingList implements Cloneable {
   static final int MAX_FILES = 20000; // less than Short.MAX_VALUE
+  // sets of more than MAX_FILES ids are kept in RoaringIdSet instead of IdBitSet which size depends on the id range
+  public static final boolean COMPRESSED_ID_SETS = SystemProperties.getBooleanProperty("idea.indices.compressed.id.sets", true);
   //static final int MAX_FILES = 100;
   private volatile int[] changes;
   private short length;
@@ -46,13 +52,22 @@ public class ChangeBufferingList implements Cloneable {
   public ChangeBufferingList() { this(3); }
   public ChangeBufferingList(int length) {
     if (length > MAX_FILES) {
-      randomAccessContainer = new IdBitSet(length);
+      randomAccessContainer = COMPRESSED_ID_SETS ? new RoaringIdSet() : new IdBitSet(length);
     } else {
       changes = new int[length];
     }
     checkSet = EXTRA_SANITY_CHECKS ? new IdSet(length) : null;
   }
 
+  public ChangeBufferingList(@Nonnull RoaringIdSet set) {
+    randomAccessContainer = set;
+    if (EXTRA_SANITY_CHECKS) {
+      checkSet = new IdSet(set.size());
+      ValueContainer.IntIterator iterator = set.intIterator();
+      while (iterator.hasNext()) checkSet.add(iterator.next());
+    }
+  }
+
   static int[] calcMinMax(int[] set, int length) {
     int max = Integer.MIN_VALUE;
     int min = Integer.MAX_VALUE;
@@ -142,10 +157,10 @@ public class ChangeBufferingList implements Cloneable {
           }
         }
         else if (!hasRemovals) {
-          idSet = new IdBitSet(changes, length, 0);
+          idSet = COMPRESSED_ID_SETS ? new RoaringIdSet(changes, length) : new IdBitSet(changes, length, 0);
           copyChanges = false;
         } else {
-          idSet = new IdBitSet(calcMinMax(changes, length), 0);
+          idSet = COMPRESSED_ID_SETS ? new RoaringIdSet() : new IdBitSet(calcMinMax(changes, length), 0);
         }
       } else if (checkSet != null) {
         idSet = (RandomAccessIntContainer)randomAccessContainer.clone();
@@ -306,6 +321,17 @@ public class ChangeBufferingList implements Cloneable {
     return intIterator;
   }
 
+  /**
+   * @return ids in the compressed form if the list keeps more than {@link #MAX_FILES} of them so, the set is shared and must not
+   * be modified. Smaller sets, e.g. the ones shrunk by removals, are serialized as before
+   */
+  @Nullable
+  public RoaringIdSet getCompressedIdSet() {
+    if (randomAccessContainer == null) return null;
+    RandomAccessIntContainer intContainer = getRandomAccessContainer();
+    return intContainer instanceof RoaringIdSet && intContainer.size() > MAX_FILES ? (RoaringIdSet)intContainer : null;
+  }
+
   public IdSet getCheckSet() {
     return checkSet;
   }
@@ -0,0 +1,568 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.containers;
+
+import com.intellij.util.indexing.ValueContainer;
+import com.intellij.util.io.DataInputOutputUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressed set of positive ids in the spirit of roaring bitmaps: ids are split by their high 16 bits into chunks, every chunk keeps
+ * its low 16 bits either as a sorted char array (sparse chunk) or as a 65536 bit bitmap (dense chunk, more than 4096 ids).
+ * Unlike {@link IdBitSet} memory is proportional to the number of ids rather than to the id range, and
+ * {@link #and(RoaringIdSet, RoaringIdSet)} / {@link #or(RoaringIdSet, RoaringIdSet)} work chunk by chunk without probing every id.
+ * <p>
+ * Like other containers it is not thread safe: modifications are expected to be externally synchronized with reads.
+ */
+public class RoaringIdSet implements Cloneable, RandomAccessIntContainer {
+  private static final int ARRAY_MAX_SIZE = 4096;
+  private static final int BITMAP_WORDS = 1 << 10;
+  private static final int INITIAL_ARRAY_SIZE = 4;
+
+  private char[] myKeys;
+  // char[] with sorted low bits for sparse chunks or long[BITMAP_WORDS] for dense ones
+  private Object[] myChunks;
+  private int[] myChunkSizes;
+  private int myChunkCount;
+  private int mySize;
+
+  public RoaringIdSet() {
+    myKeys = new char[INITIAL_ARRAY_SIZE];
+    myChunks = new Object[INITIAL_ARRAY_SIZE];
+    myChunkSizes = new int[INITIAL_ARRAY_SIZE];
+  }
+
+  public RoaringIdSet(int[] set, int count) {
+    this();
+    for (int i = 0; i < count; ++i) add(set[i]);
+  }
+
+  public RoaringIdSet(RandomAccessIntContainer set) {
+    this();
+    ValueContainer.IntIterator iterator = set.intIterator();
+    while (iterator.hasNext()) {
+      add(iterator.next());
+    }
+  }
+
+  @Override
+  public int size() {
+    return mySize;
+  }
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  @Override
+  public boolean add(int value) {
+    assert value > 0;
+    char key = highBits(value);
+    int index;
+    if (myChunkCount > 0 && myKeys[myChunkCount - 1] == key) {
+      index = myChunkCount - 1; // most of the time ids are added in ascending order
+    }
+    else {
+      index = findChunk(key);
+      if (index < 0) {
+        index = -index - 1;
+        insertChunk(index, key, new char[INITIAL_ARRAY_SIZE], 0);
+      }
+    }
+
+    char low = lowBits(value);
+    Object chunk = myChunks[index];
+    int chunkSize = myChunkSizes[index];
+    if (chunk instanceof long[]) {
+      long[] bitmap = (long[])chunk;
+      long mask = 1L << low;
+      if ((bitmap[low >>> 6] & mask) != 0) return false;
+      bitmap[low >>> 6] |= mask;
+    }
+    else {
+      char[] array = (char[])chunk;
+      int pos = chunkSize > 0 && array[chunkSize - 1] < low ? -chunkSize - 1 : Arrays.binarySearch(array, 0, chunkSize, low);
+      if (pos >= 0) return false;
+      pos = -pos - 1;
+
+      if (chunkSize == ARRAY_MAX_SIZE) {
+        long[] bitmap = toBitmap(array, chunkSize);
+        bitmap[low >>> 6] |= 1L << low;
+        myChunks[index] = bitmap;
+      }
+      else {
+        if (chunkSize == array.length) {
+          char[] newArray = new char[Math.min(ARRAY_MAX_SIZE, chunkSize < 1024 ? chunkSize << 1 : chunkSize + chunkSize / 4)];
+          System.arraycopy(array, 0, newArray, 0, pos);
+          System.arraycopy(array, pos, newArray, pos + 1, chunkSize - pos);
+          array = newArray;
+          myChunks[index] = array;
+        }
+        else if (pos < chunkSize) {
+          System.arraycopy(array, pos, array, pos + 1, chunkSize - pos);
+        }
+        array[pos] = low;
+      }
+    }
+    myChunkSizes[index] = chunkSize + 1;
+    ++mySize;
+    return true;
+  }
+
+  @Override
+  public boolean remove(int value) {
+    if (value <= 0) return false;
+    int index = findChunk(highBits(value));
+    if (index < 0) return false;
+
+    char low = lowBits(value);
+    Object chunk = myChunks[index];
+    int chunkSize = myChunkSizes[index];
+    if (chunk instanceof long[]) {
+      long[] bitmap = (long[])chunk;
+      long mask = 1L << low;
+      if ((bitmap[low >>> 6] & mask) == 0) return false;
+      bitmap[low >>> 6] &= ~mask;
+      // convert back to array with a hysteresis, so that add / remove around the threshold don't convert the chunk every time
+      if (chunkSize - 1 <= ARRAY_MAX_SIZE / 2) {
+        myChunks[index] = toArray(bitmap, chunkSize - 1);
+      }
+    }
+    else {
+      char[] array = (char[])chunk;
+      int pos = Arrays.binarySearch(array, 0, chunkSize, low);
+      if (pos < 0) return false;
+      System.arraycopy(array, pos + 1, array, pos, chunkSize - pos - 1);
+    }
+
+    --mySize;
+    if (chunkSize == 1) {
+      removeChunk(index);
+    }
+    else {
+      myChunkSizes[index] = chunkSize - 1;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean contains(int value) {
+    if (value <= 0) return false;
+    int index = findChunk(highBits(value));
+    if (index < 0) return false;
+    return chunkContains(myChunks[index], myChunkSizes[index], lowBits(value));
+  }
+
+  private static boolean chunkContains(Object chunk, int chunkSize, char low) {
+    if (chunk instanceof long[]) {
+      return (((long[])chunk)[low >>> 6] & (1L << low)) != 0;
+    }
+    return Arrays.binarySearch((char[])chunk, 0, chunkSize, low) >= 0;
+  }
+
+  @Override
+  public IntIdsIterator intIterator() {
+    return new Iterator();
+  }
+
+  @Override
+  public ValueContainer.IntPredicate intPredicate() {
+    return this::contains;
+  }
+
+  @Override
+  public void compact() {
+    // chunks are kept compact by add / remove, compact() is called after every removal and has to be cheap
+  }
+
+  @Override
+  public RandomAccessIntContainer ensureContainerCapacity(int diff) {
+    return this;
+  }
+
+  @Override
+  public RoaringIdSet clone() {
+    try {
+      RoaringIdSet clone = (RoaringIdSet)super.clone();
+      clone.myKeys = myKeys.clone();
+      clone.myChunkSizes = myChunkSizes.clone();
+      clone.myChunks = new Object[myChunks.length];
+      for (int i = 0; i < myChunkCount; ++i) {
+        Object chunk = myChunks[i];
+        clone.myChunks[i] = chunk instanceof long[] ? ((long[])chunk).clone() : Arrays.copyOf((char[])chunk, myChunkSizes[i]);
+      }
+      return clone;
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return the set which ids are returned by the iterator or null if the iterator doesn't come from a {@link RoaringIdSet}.
+   * The set is shared, callers must not modify it.
+   */
+  @Nullable
+  public static RoaringIdSet getBackingSet(@Nonnull ValueContainer.IntIterator iterator) {
+    return iterator instanceof Iterator ? ((Iterator)iterator).getSet() : null;
+  }
+
+  @Nonnull
+  public static RoaringIdSet and(@Nonnull RoaringIdSet first, @Nonnull RoaringIdSet second) {
+    RoaringIdSet result = new RoaringIdSet();
+    int i = 0, j = 0;
+    while (i < first.myChunkCount && j < second.myChunkCount) {
+      char firstKey = first.myKeys[i];
+      char secondKey = second.myKeys[j];
+      if (firstKey < secondKey) {
+        ++i;
+      }
+      else if (firstKey > secondKey) {
+        ++j;
+      }
+      else {
+        result.appendChunk(firstKey, andChunks(first.myChunks[i], first.myChunkSizes[i], second.myChunks[j], second.myChunkSizes[j]));
+        ++i;
+        ++j;
+      }
+    }
+    return result;
+  }
+
+  @Nonnull
+  public static RoaringIdSet or(@Nonnull RoaringIdSet first, @Nonnull RoaringIdSet second) {
+    RoaringIdSet result = new RoaringIdSet();
+    int i = 0, j = 0;
+    while (i < first.myChunkCount || j < second.myChunkCount) {
+      if (j == second.myChunkCount || i < first.myChunkCount && first.myKeys[i] < second.myKeys[j]) {
+        result.appendChunk(first.myKeys[i], copyChunk(first.myChunks[i], first.myChunkSizes[i]));
+        ++i;
+      }
+      else if (i == first.myChunkCount || first.myKeys[i] > second.myKeys[j]) {
+        result.appendChunk(second.myKeys[j], copyChunk(second.myChunks[j], second.myChunkSizes[j]));
+        ++j;
+      }
+      else {
+        result.appendChunk(first.myKeys[i], orChunks(first.myChunks[i], first.myChunkSizes[i], second.myChunks[j], second.myChunkSizes[j]));
+        ++i;
+        ++j;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes the set chunk by chunk: sparse chunks as delta coded low bits, dense chunks as raw bitmaps, which take 1 bit per id
+   * instead of at least 1 byte of delta coding.
+   */
+  public void writeTo(@Nonnull DataOutput out) throws IOException {
+    DataInputOutputUtil.writeINT(out, myChunkCount);
+    for (int i = 0; i < myChunkCount; ++i) {
+      DataInputOutputUtil.writeINT(out, myKeys[i]);
+      int chunkSize = myChunkSizes[i];
+      DataInputOutputUtil.writeINT(out, chunkSize);
+      Object chunk = myChunks[i];
+      if (chunkSize > ARRAY_MAX_SIZE) {
+        long[] bitmap = chunk instanceof long[] ? (long[])chunk : toBitmap((char[])chunk, chunkSize);
+        for (long word : bitmap) out.writeLong(word);
+      }
+      else {
+        char[] array = chunk instanceof char[] ? (char[])chunk : toArray((long[])chunk, chunkSize);
+        int prev = 0;
+        for (int j = 0; j < chunkSize; ++j) {
+          DataInputOutputUtil.writeINT(out, array[j] - prev);
+          prev = array[j];
+        }
+      }
+    }
+  }
+
+  @Nonnull
+  public static RoaringIdSet readFrom(@Nonnull DataInput in) throws IOException {
+    RoaringIdSet set = new RoaringIdSet();
+    int chunkCount = DataInputOutputUtil.readINT(in);
+    for (int i = 0; i < chunkCount; ++i) {
+      char key = (char)DataInputOutputUtil.readINT(in);
+      int chunkSize = DataInputOutputUtil.readINT(in);
+      if (chunkSize > ARRAY_MAX_SIZE) {
+        long[] bitmap = new long[BITMAP_WORDS];
+        for (int j = 0; j < BITMAP_WORDS; ++j) bitmap[j] = in.readLong();
+        set.appendChunk(key, bitmap, chunkSize);
+      }
+      else {
+        char[] array = new char[chunkSize];
+        int prev = 0;
+        for (int j = 0; j < chunkSize; ++j) {
+          prev += DataInputOutputUtil.readINT(in);
+          array[j] = (char)prev;
+        }
+        set.appendChunk(key, array, chunkSize);
+      }
+    }
+    return set;
+  }
+
+  private static char highBits(int value) {
+    return (char)(value >>> 16);
+  }
+
+  private static char lowBits(int value) {
+    return (char)value;
+  }
+
+  private int findChunk(char key) {
+    return Arrays.binarySearch(myKeys, 0, myChunkCount, key);
+  }
+
+  private void insertChunk(int index, char key, Object chunk, int chunkSize) {
+    if (myChunkCount == myKeys.length) {
+      int newLength = myKeys.length << 1;
+      myKeys = Arrays.copyOf(myKeys, newLength);
+      myChunks = Arrays.copyOf(myChunks, newLength);
+      myChunkSizes = Arrays.copyOf(myChunkSizes, newLength);
+    }
+    if (index < myChunkCount) {
+      System.arraycopy(myKeys, index, myKeys, index + 1, myChunkCount - index);
+      System.arraycopy(myChunks, index, myChunks, index + 1, myChunkCount - index);
+      System.arraycopy(myChunkSizes, index, myChunkSizes, index + 1, myChunkCount - index);
+    }
+    myKeys[index] = key;
+    myChunks[index] = chunk;
+    myChunkSizes[index] = chunkSize;
+    ++myChunkCount;
+  }
+
+  private void removeChunk(int index) {
+    --myChunkCount;
+    System.arraycopy(myKeys, index + 1, myKeys, index, myChunkCount - index);
+    System.arraycopy(myChunks, index + 1, myChunks, index, myChunkCount - index);
+    System.arraycopy(myChunkSizes, index + 1, myChunkSizes, index, myChunkCount - index);
+    myChunks[myChunkCount] = null;
+  }
+
+  // chunks are appended in ascending key order by the set operations and deserialization
+  private void appendChunk(char key, Object chunk, int chunkSize) {
+    if (chunkSize == 0) return;
+    insertChunk(myChunkCount, key, chunk, chunkSize);
+    mySize += chunkSize;
+  }
+
+  private void appendChunk(char key, @Nullable Object chunk) {
+    if (chunk == null) return;
+    appendChunk(key, chunk, chunk instanceof long[] ? bitCount((long[])chunk) : ((char[])chunk).length);
+  }
+
+  @Nonnull
+  private static Object copyChunk(Object chunk, int chunkSize) {
+    return chunk instanceof long[] ? ((long[])chunk).clone() : Arrays.copyOf((char[])chunk, chunkSize);
+  }
+
+  // the result is either a bitmap or an array trimmed to its size, null for an empty result
+  @Nullable
+  private static Object andChunks(Object first, int firstSize, Object second, int secondSize) {
+    if (first instanceof long[] && second instanceof long[]) {
+      long[] firstBitmap = (long[])first;
+      long[] secondBitmap = (long[])second;
+      long[] result = new long[BITMAP_WORDS];
+      int size = 0;
+      for (int i = 0; i < BITMAP_WORDS; ++i) {
+        result[i] = firstBitmap[i] & secondBitmap[i];
+        size += Long.bitCount(result[i]);
+      }
+      if (size == 0) return null;
+      return size > ARRAY_MAX_SIZE ? result : toArray(result, size);
+    }
+
+    if (first instanceof long[] || second instanceof long[]) {
+      long[] bitmap = (long[])(first instanceof long[] ? first : second);
+      char[] array = (char[])(first instanceof long[] ? second : first);
+      int arraySize = first instanceof long[] ? secondSize : firstSize;
+      char[] result = new char[arraySize];
+      int size = 0;
+      for (int i = 0; i < arraySize; ++i) {
+        char low = array[i];
+        if ((bitmap[low >>> 6] & (1L << low)) != 0) result[size++] = low;
+      }
+      return size == 0 ? null : Arrays.copyOf(result, size);
+    }
+
+    char[] firstArray = (char[])first;
+    char[] secondArray = (char[])second;
+    char[] result = new char[Math.min(firstSize, secondSize)];
+    int size = 0;
+    int i = 0, j = 0;
+    while (i < firstSize && j < secondSize) {
+      char firstLow = firstArray[i];
+      char secondLow = secondArray[j];
+      if (firstLow < secondLow) {
+        ++i;
+      }
+      else if (firstLow > secondLow) {
+        ++j;
+      }
+      else {
+        result[size++] = firstLow;
+        ++i;
+        ++j;
+      }
+    }
+    return size == 0 ? null : Arrays.copyOf(result, size);
+  }
+
+  @Nonnull
+  private static Object orChunks(Object first, int firstSize, Object second, int secondSize) {
+    if (first instanceof long[] || second instanceof long[]) {
+      long[] result = first instanceof long[] ? ((long[])first).clone() : toBitmap((char[])first, firstSize);
+      if (second instanceof long[]) {
+        long[] secondBitmap = (long[])second;
+        for (int i = 0; i < BITMAP_WORDS; ++i) result[i] |= secondBitmap[i];
+      }
+      else {
+        char[] secondArray = (char[])second;
+        for (int i = 0; i < secondSize; ++i) result[secondArray[i] >>> 6] |= 1L << secondArray[i];
+      }
+      return result;
+    }
+
+    char[] firstArray = (char[])first;
+    char[] secondArray = (char[])second;
+    char[] result = new char[firstSize + secondSize];
+    int size = 0;
+    int i = 0, j = 0;
+    while (i < firstSize || j < secondSize) {
+      if (j == secondSize || i < firstSize && firstArray[i] < secondArray[j]) {
+        result[size++] = firstArray[i++];
+      }
+      else if (i == firstSize || firstArray[i] > secondArray[j]) {
+        result[size++] = secondArray[j++];
+      }
+      else {
+        result[size++] = firstArray[i++];
+        ++j;
+      }
+    }
+    return size > ARRAY_MAX_SIZE ? toBitmap(result, size) : Arrays.copyOf(result, size);
+  }
+
+  @Nonnull
+  private static long[] toBitmap(char[] array, int size) {
+    long[] bitmap = new long[BITMAP_WORDS];
+    for (int i = 0; i < size; ++i) {
+      bitmap[array[i] >>> 6] |= 1L << array[i];
+    }
+    return bitmap;
+  }
+
+  @Nonnull
+  private static char[] toArray(long[] bitmap, int size) {
+    char[] array = new char[size];
+    int pos = 0;
+    for (int i = 0; i < BITMAP_WORDS; ++i) {
+      long word = bitmap[i];
+      while (word != 0) {
+        array[pos++] = (char)((i << 6) + Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return array;
+  }
+
+  private static int bitCount(long[] bitmap) {
+    int count = 0;
+    for (long word : bitmap) count += Long.bitCount(word);
+    return count;
+  }
+
+  private class Iterator implements IntIdsIterator {
+    private int myChunk;
+    private int myPosition = -1; // index in an array chunk or bit in a bitmap chunk
+
+    Iterator() {
+      advance();
+    }
+
+    private RoaringIdSet getSet() {
+      return RoaringIdSet.this;
+    }
+
+    private void advance() {
+      while (myChunk < myChunkCount) {
+        Object chunk = myChunks[myChunk];
+        if (chunk instanceof long[]) {
+          int bit = nextSetBit((long[])chunk, myPosition + 1);
+          if (bit >= 0) {
+            myPosition = bit;
+            return;
+          }
+        }
+        else if (myPosition + 1 < myChunkSizes[myChunk]) {
+          ++myPosition;
+          return;
+        }
+        ++myChunk;
+        myPosition = -1;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myChunk < myChunkCount;
+    }
+
+    @Override
+    public int next() {
+      Object chunk = myChunks[myChunk];
+      int low = chunk instanceof long[] ? myPosition : ((char[])chunk)[myPosition];
+      int result = (myKeys[myChunk] << 16) | low;
+      advance();
+      return result;
+    }
+
+    @Override
+    public int size() {
+      return RoaringIdSet.this.size();
+    }
+
+    @Override
+    public boolean hasAscendingOrder() {
+      return true;
+    }
+
+    @Override
+    public IntIdsIterator createCopyInInitialState() {
+      return new Iterator();
+    }
+  }
+
+  private static int nextSetBit(long[] bitmap, int fromIndex) {
+    int wordIndex = fromIndex >>> 6;
+    if (wordIndex >= BITMAP_WORDS) return -1;
+    long word = bitmap[wordIndex] & (-1L << fromIndex);
+    while (true) {
+      if (word != 0) {
+        return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+      }
+      if (++wordIndex == BITMAP_WORDS) return -1;
+      word = bitmap[wordIndex];
+    }
+  }
+}
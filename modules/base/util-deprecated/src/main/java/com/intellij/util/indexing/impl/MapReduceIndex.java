@@ -35,6 +35,8 @@ import javax.annotation.Nullable;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
@@ -346,7 +348,21 @@ public abstract class MapReduceIndex<Key, Value, Input> implements InvertedIndex
     }
   };
 
+  /**
+   * @return storage which updates may be split by shards, or null if the whole index has to be locked for an update
+   */
+  @Nullable
+  protected ShardedIndexStorage<Key, Value> getShardedStorageForUpdate() {
+    return myStorage instanceof ShardedIndexStorage ? (ShardedIndexStorage<Key, Value>)myStorage : null;
+  }
+
   public void updateWithMap(@Nonnull AbstractUpdateData<Key, Value> updateData) throws StorageException {
+    ShardedIndexStorage<Key, Value> shardedStorage = myLock instanceof ShardedReadWriteLock ? getShardedStorageForUpdate() : null;
+    if (shardedStorage != null) {
+      updateShardsWithMap(updateData, shardedStorage, (ShardedReadWriteLock)myLock);
+      return;
+    }
+
     getWriteLock().lock();
     try {
       IndexId<?, ?> oldIndexId = DebugAssertions.DEBUG_INDEX_ID.get();
@@ -370,6 +386,113 @@ public abstract class MapReduceIndex<Key, Value, Input> implements InvertedIndex
     }
   }
 
+  // all under the update lock, which the whole index write lock excludes: the difference is computed and the forward index is
+  // updated under the forward index lock, the keys are updated shard by shard under the shard write locks
+  private void updateShardsWithMap(@Nonnull AbstractUpdateData<Key, Value> updateData,
+                                   @Nonnull ShardedIndexStorage<Key, Value> shardedStorage,
+                                   @Nonnull ShardedReadWriteLock lock) throws StorageException {
+    Lock inputLock = lock.getInputLock(updateData.getInputId());
+    inputLock.lock();
+    try {
+      Lock updateLock = lock.getUpdateLock();
+      updateLock.lock();
+      IndexId<?, ?> oldIndexId = DebugAssertions.DEBUG_INDEX_ID.get();
+      try {
+        DebugAssertions.DEBUG_INDEX_ID.set(myIndexId);
+        ShardUpdates<Key, Value> updates = new ShardUpdates<>(shardedStorage);
+        Lock forwardIndexLock = lock.getForwardIndexLock();
+        boolean hasDifference;
+        forwardIndexLock.lock();
+        try {
+          hasDifference = updateData.iterateKeys(updates.myAddedKeyProcessor, updates.myUpdatedKeyProcessor, updates.myRemovedKeyProcessor);
+        }
+        finally {
+          forwardIndexLock.unlock();
+        }
+        if (!hasDifference) return;
+
+        for (int shard = 0; shard < updates.myKeyUpdates.length; shard++) {
+          List<KeyUpdate<Key, Value>> keyUpdates = updates.myKeyUpdates[shard];
+          if (keyUpdates == null) continue;
+
+          Lock shardLock = lock.getShardWriteLock(shard);
+          shardLock.lock();
+          try {
+            for (KeyUpdate<Key, Value> update : keyUpdates) {
+              myModificationStamp.incrementAndGet();
+              if (update.myRemoveOldValues) myStorage.removeAllValues(update.myKey, update.myInputId);
+              if (update.myAddValue) myStorage.addValue(update.myKey, update.myInputId, update.myValue);
+            }
+          }
+          finally {
+            shardLock.unlock();
+          }
+        }
+
+        forwardIndexLock.lock();
+        try {
+          updateData.updateForwardIndex();
+        }
+        finally {
+          forwardIndexLock.unlock();
+        }
+      }
+      catch (ProcessCanceledException e) {
+        throw e;
+      }
+      catch (Throwable e) { // e.g. IOException, AssertionError
+        throw new StorageException(e);
+      }
+      finally {
+        DebugAssertions.DEBUG_INDEX_ID.set(oldIndexId);
+        updateLock.unlock();
+      }
+    }
+    finally {
+      inputLock.unlock();
+    }
+  }
+
+  private static class KeyUpdate<Key, Value> {
+    private final Key myKey;
+    private final Value myValue;
+    private final int myInputId;
+    private final boolean myRemoveOldValues;
+    private final boolean myAddValue;
+
+    private KeyUpdate(Key key, Value value, int inputId, boolean removeOldValues, boolean addValue) {
+      myKey = key;
+      myValue = value;
+      myInputId = inputId;
+      myRemoveOldValues = removeOldValues;
+      myAddValue = addValue;
+    }
+  }
+
+  private static class ShardUpdates<Key, Value> {
+    private final ShardedIndexStorage<Key, Value> myStorage;
+    private final List<KeyUpdate<Key, Value>>[] myKeyUpdates;
+
+    private final KeyValueUpdateProcessor<Key, Value> myAddedKeyProcessor = (key, value, inputId) -> add(new KeyUpdate<>(key, value, inputId, false, true));
+    private final KeyValueUpdateProcessor<Key, Value> myUpdatedKeyProcessor = (key, value, inputId) -> add(new KeyUpdate<>(key, value, inputId, true, true));
+    private final RemovedKeyProcessor<Key> myRemovedKeyProcessor = (key, inputId) -> add(new KeyUpdate<>(key, null, inputId, true, false));
+
+    private ShardUpdates(@Nonnull ShardedIndexStorage<Key, Value> storage) {
+      myStorage = storage;
+      //noinspection unchecked
+      myKeyUpdates = new List[storage.getShardCount()];
+    }
+
+    private void add(@Nonnull KeyUpdate<Key, Value> update) {
+      int shard = myStorage.getShardIndex(update.myKey);
+      List<KeyUpdate<Key, Value>> keyUpdates = myKeyUpdates[shard];
+      if (keyUpdates == null) {
+        myKeyUpdates[shard] = keyUpdates = new ArrayList<>();
+      }
+      keyUpdates.add(update);
+    }
+  }
+
   public static <Key, Value> void checkValuesHaveProperEqualsAndHashCode(@Nonnull Map<Key, Value> data, @Nonnull IndexId<Key, Value> indexId, @Nonnull DataExternalizer<Value> valueExternalizer) {
     if (DebugAssertions.DEBUG) {
       for (Map.Entry<Key, Value> e : data.entrySet()) {
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.impl;
+
+import com.intellij.util.indexing.StorageException;
+import com.intellij.util.indexing.ValueContainer;
+import com.intellij.util.io.KeyDescriptor;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index storage split into independent shards by key hash. Every key lives in exactly one shard, so reads and writes of a key are
+ * delegated to its shard, and keys of different shards can be updated concurrently under {@link ShardedReadWriteLock}, see
+ * {@link MapReduceIndex#updateWithMap}. Operations on the whole storage are applied to all shards.
+ */
+public class ShardedIndexStorage<Key, Value> implements IndexStorage<Key, Value> {
+  @Nonnull
+  private final List<? extends IndexStorage<Key, Value>> myShards;
+  @Nonnull
+  private final KeyDescriptor<Key> myKeyDescriptor;
+
+  public ShardedIndexStorage(@Nonnull List<? extends IndexStorage<Key, Value>> shards, @Nonnull KeyDescriptor<Key> keyDescriptor) {
+    myShards = new ArrayList<>(shards);
+    myKeyDescriptor = keyDescriptor;
+  }
+
+  public int getShardCount() {
+    return myShards.size();
+  }
+
+  public int getShardIndex(Key key) {
+    int hash = myKeyDescriptor.getHashCode(key);
+    hash ^= hash >>> 16; // key hashes often differ in high bits only, e.g. hashes of strings with a common suffix
+    return (hash & Integer.MAX_VALUE) % myShards.size();
+  }
+
+  @Nonnull
+  protected IndexStorage<Key, Value> getShard(int shard) {
+    return myShards.get(shard);
+  }
+
+  @Override
+  public void addValue(Key key, int inputId, Value value) throws StorageException {
+    getShard(getShardIndex(key)).addValue(key, inputId, value);
+  }
+
+  @Override
+  public void removeAllValues(@Nonnull Key key, int inputId) throws StorageException {
+    getShard(getShardIndex(key)).removeAllValues(key, inputId);
+  }
+
+  @Nonnull
+  @Override
+  public ValueContainer<Value> read(Key key) throws StorageException {
+    return getShard(getShardIndex(key)).read(key);
+  }
+
+  @Override
+  public void clear() throws StorageException {
+    StorageException exception = null;
+    for (IndexStorage<Key, Value> shard : myShards) {
+      try {
+        shard.clear();
+      }
+      catch (StorageException e) {
+        if (exception == null) exception = e;
+      }
+    }
+    if (exception != null) throw exception;
+  }
+
+  @Override
+  public void clearCaches() {
+    for (IndexStorage<Key, Value> shard : myShards) {
+      shard.clearCaches();
+    }
+  }
+
+  @Override
+  public void close() throws StorageException {
+    StorageException exception = null;
+    for (IndexStorage<Key, Value> shard : myShards) {
+      try {
+        shard.close();
+      }
+      catch (StorageException e) {
+        if (exception == null) exception = e;
+      }
+    }
+    if (exception != null) throw exception;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    for (IndexStorage<Key, Value> shard : myShards) {
+      shard.flush();
+    }
+  }
+}
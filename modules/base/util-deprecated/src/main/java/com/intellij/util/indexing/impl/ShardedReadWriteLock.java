@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.impl;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Lock of an index kept in a {@link ShardedIndexStorage}, so that updates of keys from different shards don't block each other.
+ * <ul>
+ * <li>{@link #writeLock()} is the write lock of the whole index: it is a plain {@link ReentrantReadWriteLock} write lock and excludes
+ * everything else, sharded updates included, e.g. clear, flush or the cleanup of stub indices sharing this lock.</li>
+ * <li>A sharded update holds {@link #getUpdateLock()}, the read lock of the same whole index lock, for its whole duration, and takes
+ * {@link #getForwardIndexLock()} to read and write the forward index and {@link #getShardWriteLock(int)} to update a shard, one lock
+ * at a time.</li>
+ * <li>{@link #readLock()} of queries takes the whole index read lock, then the forward index and all shard read locks, always in the
+ * same order, so queries see no shard being updated. As the read lock of {@link ReentrantReadWriteLock}, it doesn't support
+ * conditions.</li>
+ * </ul>
+ * Updates of the same input are serialized by {@link #getInputLock(int)}, since an update computes the difference with the previous
+ * data of the input and has to see the result of the previous update.
+ */
+public final class ShardedReadWriteLock implements ReadWriteLock {
+  private static final int INPUT_LOCK_COUNT = 64;
+
+  private final ReentrantReadWriteLock myIndexLock = new ReentrantReadWriteLock();
+  private final ReentrantReadWriteLock myForwardIndexLock = new ReentrantReadWriteLock();
+  private final ReentrantReadWriteLock[] myShardLocks;
+  private final Lock[] myInputLocks = new Lock[INPUT_LOCK_COUNT];
+  private final Lock myReadLock = new QueryLock();
+
+  public ShardedReadWriteLock(int shardCount) {
+    myShardLocks = new ReentrantReadWriteLock[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      myShardLocks[i] = new ReentrantReadWriteLock();
+    }
+    for (int i = 0; i < INPUT_LOCK_COUNT; i++) {
+      myInputLocks[i] = new ReentrantLock();
+    }
+  }
+
+  public int getShardCount() {
+    return myShardLocks.length;
+  }
+
+  @Nonnull
+  public Lock getUpdateLock() {
+    return myIndexLock.readLock();
+  }
+
+  @Nonnull
+  public Lock getForwardIndexLock() {
+    return myForwardIndexLock.writeLock();
+  }
+
+  @Nonnull
+  public Lock getShardWriteLock(int shard) {
+    return myShardLocks[shard].writeLock();
+  }
+
+  @Nonnull
+  public Lock getInputLock(int inputId) {
+    return myInputLocks[(inputId & Integer.MAX_VALUE) % INPUT_LOCK_COUNT];
+  }
+
+  @Nonnull
+  @Override
+  public Lock readLock() {
+    return myReadLock;
+  }
+
+  @Nonnull
+  @Override
+  public Lock writeLock() {
+    return myIndexLock.writeLock();
+  }
+
+  private class QueryLock implements Lock {
+    private int lockCount() {
+      return myShardLocks.length + 2;
+    }
+
+    private Lock lock(int index) {
+      if (index == 0) return myIndexLock.readLock();
+      if (index == 1) return myForwardIndexLock.readLock();
+      return myShardLocks[index - 2].readLock();
+    }
+
+    @Override
+    public void lock() {
+      for (int i = 0; i < lockCount(); i++) {
+        lock(i).lock();
+      }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+      for (int i = 0; i < lockCount(); i++) {
+        try {
+          lock(i).lockInterruptibly();
+        }
+        catch (InterruptedException e) {
+          unlockFirst(i);
+          throw e;
+        }
+      }
+    }
+
+    @Override
+    public boolean tryLock() {
+      for (int i = 0; i < lockCount(); i++) {
+        if (!lock(i).tryLock()) {
+          unlockFirst(i);
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean tryLock(long time, @Nonnull TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(time);
+      for (int i = 0; i < lockCount(); i++) {
+        boolean locked;
+        try {
+          locked = lock(i).tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e) {
+          unlockFirst(i);
+          throw e;
+        }
+        if (!locked) {
+          unlockFirst(i);
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void unlock() {
+      unlockFirst(lockCount());
+    }
+
+    private void unlockFirst(int count) {
+      for (int i = count - 1; i >= 0; i--) {
+        lock(i).unlock();
+      }
+    }
+
+    @Nonnull
+    @Override
+    public Condition newCondition() {
+      // the same as for ReentrantReadWriteLock.ReadLock: a read lock is not exclusive, so waiting for a condition under it is meaningless
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -22,6 +22,7 @@ import com.intellij.util.SmartList;
 import com.intellij.util.indexing.ValueContainer;
 import com.intellij.util.indexing.containers.ChangeBufferingList;
 import com.intellij.util.indexing.containers.IntIdsIterator;
+import com.intellij.util.indexing.containers.RoaringIdSet;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
 import gnu.trove.THashMap;
@@ -444,8 +445,18 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         DataInputOutputUtil.writeINT(out, (Integer)fileSetObject); // most common 90% case during index building
       }
       else {
-        // serialize positive file ids with delta encoding
         ChangeBufferingList originalInput = (ChangeBufferingList)fileSetObject;
+        RoaringIdSet compressedIds = originalInput.getCompressedIdSet();
+        if (compressedIds != null) {
+          // large sets are serialized chunk by chunk, zero delta can't start delta encoded ids and marks the format;
+          // IndexingStamp's common version includes COMPRESSED_ID_SETS, so that older builds don't read it
+          DataInputOutputUtil.writeINT(out, -compressedIds.size());
+          DataInputOutputUtil.writeINT(out, 0);
+          compressedIds.writeTo(out);
+          continue;
+        }
+
+        // serialize positive file ids with delta encoding
         IntIdsIterator intIterator = originalInput.sortedIntIterator();
         if (DebugAssertions.DEBUG) DebugAssertions.assertTrue(intIterator.hasAscendingOrder());
 
@@ -503,11 +514,17 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
           }
           else {
             idCountOrSingleValue = -idCountOrSingleValue;
+            int id = idCountOrSingleValue > 0 ? DataInputOutputUtil.readINT(stream) : 0;
+            if (idCountOrSingleValue > 0 && id == 0) {
+              readCompressedIds(stream, value, inputRemapping, mapping);
+              continue;
+            }
+
             ChangeBufferingList changeBufferingList = ensureFileSetCapacityForValue(value, idCountOrSingleValue);
             int prev = 0;
 
             for (int i = 0; i < idCountOrSingleValue; i++) {
-              final int id = DataInputOutputUtil.readINT(stream);
+              if (i > 0) id = DataInputOutputUtil.readINT(stream);
               int remappedInputId = inputRemapping.fun(prev + id);
               if (changeBufferingList != null) changeBufferingList.add(remappedInputId);
               else addValue(remappedInputId, value);
@@ -520,6 +537,25 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     }
   }
 
+  private void readCompressedIds(@Nonnull DataInputStream stream,
+                                 Value value,
+                                 @Nonnull IntIntFunction inputRemapping,
+                                 @Nullable FileId2ValueMapping<Value> mapping) throws IOException {
+    RoaringIdSet ids = RoaringIdSet.readFrom(stream);
+    if (inputRemapping == IntIntFunction.IDENTITY && mapping == null && getFileSetObject(value) == null) {
+      attachFileSetForNewValue(value, new ChangeBufferingList(ids)); // the set is adopted as is, without copying
+      return;
+    }
+
+    ChangeBufferingList changeBufferingList = ensureFileSetCapacityForValue(value, ids.size());
+    for (IntIdsIterator iterator = ids.intIterator(); iterator.hasNext(); ) {
+      int remappedInputId = inputRemapping.fun(iterator.next());
+      if (changeBufferingList != null) changeBufferingList.add(remappedInputId);
+      else addValue(remappedInputId, value);
+      if (mapping != null) mapping.associateFileIdToValue(remappedInputId, value);
+    }
+  }
+
   private static class SingleValueIterator implements IntIdsIterator {
     private final int myValue;
     private boolean myValueRead;
@@ -17,11 +17,14 @@ package com.intellij.util.io;
 
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.util.Processor;
+import com.intellij.util.ThreeState;
 import javax.annotation.Nonnull;
 
 import javax.annotation.Nullable;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
 
 public class AppendableStorageBackedByResizableMappedFile extends ResizeableMappedFile {
   private final MyDataIS myReadStream;
@@ -222,6 +225,106 @@ public class AppendableStorageBackedByResizableMappedFile extends ResizeableMapp
     return sameValue[0];
   }
 
+  /**
+   * Lock-free counterpart of {@link #checkBytesAreTheSame} for optimistic readers, the caller has to validate that no record was
+   * appended meanwhile. Flushing the append buffer may happen concurrently: it moves the same bytes to the file, advances the file
+   * length and only then resets the buffer position, so they are read in the opposite order.
+   *
+   * @return {@link ThreeState#UNSURE} if the record can't be read without the storage lock
+   */
+  @Nonnull
+  <Data> ThreeState checkBytesAreTheSameConcurrently(int addr, Data value, @Nonnull KeyDescriptor<Data> descriptor) throws IOException {
+    if (myCompressedAppendableFile != null) return ThreeState.UNSURE;
+
+    BufferExposingByteArrayOutputStream bos = new BufferExposingByteArrayOutputStream();
+    descriptor.save(new DataOutputStream(bos), value);
+    int size = bos.size();
+    byte[] expected = bos.getInternalBuffer();
+
+    int bufferPosition = myBufferPosition;
+    int fileLength = myFileLength;
+    if (fileLength <= addr) {
+      byte[] appendBuffer = myAppendBuffer;
+      int offset = addr - fileLength;
+      if (appendBuffer == null || offset + size > bufferPosition) return ThreeState.UNSURE;
+      return ThreeState.fromBoolean(equalBytes(expected, appendBuffer, offset, size));
+    }
+
+    if (addr + size > fileLength) return ThreeState.UNSURE;
+    byte[] actual = new byte[size];
+    if (!getPagedFileStorage().tryGetCached(addr, actual, 0, size)) return ThreeState.UNSURE;
+    return ThreeState.fromBoolean(equalBytes(expected, actual, 0, size));
+  }
+
+  /**
+   * Lock-free counterpart of {@link #read} for optimistic readers, {@code addr} has to be the validated start of a record.
+   * Records in the file are never changed and are read up to the file length only. A record in the append buffer is copied first
+   * as the buffer is reused once flushed, and deserialized only if no record was appended while it was copied, so that a torn copy
+   * can't make the descriptor allocate or read a garbage length.
+   *
+   * @param isValid whether no record was appended since the address was read
+   * @return null if the record can't be read without the storage lock
+   */
+  @Nullable
+  <Data> Data readConcurrently(int addr, @Nonnull KeyDescriptor<Data> descriptor, @Nonnull BooleanSupplier isValid) {
+    if (myCompressedAppendableFile != null) return null;
+
+    int bufferPosition = myBufferPosition;
+    int fileLength = myFileLength;
+    InputStream stream;
+    if (fileLength <= addr) {
+      byte[] appendBuffer = myAppendBuffer;
+      int offset = addr - fileLength;
+      if (appendBuffer == null || offset >= bufferPosition) return null;
+      byte[] record = Arrays.copyOfRange(appendBuffer, offset, bufferPosition);
+      if (!isValid.getAsBoolean()) return null;
+      stream = new UnsyncByteArrayInputStream(record);
+    }
+    else {
+      stream = new CachedPagesInputStream(addr, fileLength);
+    }
+
+    try {
+      return descriptor.read(new DataInputStream(stream));
+    }
+    catch (IOException | RuntimeException e) {
+      // a page is not cached or the record was read torn
+      return null;
+    }
+  }
+
+  private class CachedPagesInputStream extends InputStream {
+    private long myPosition;
+    private final long myLimit;
+
+    CachedPagesInputStream(long position, long limit) {
+      myPosition = position;
+      myLimit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+      if (myPosition >= myLimit) return -1;
+      len = (int)Math.min(len, myLimit - myPosition);
+      if (!getPagedFileStorage().tryGetCached(myPosition, b, off, len)) throw new IOException("Page is not cached");
+      myPosition += len;
+      return len;
+    }
+  }
+
+  private static boolean equalBytes(@Nonnull byte[] expected, @Nonnull byte[] actual, int offset, int size) {
+    for (int i = 0; i < size; i++) {
+      if (expected[i] != actual[offset + i]) return false;
+    }
+    return true;
+  }
+
   @Nonnull
   private OutputStream buildOldComparerStream(final int addr, final boolean[] sameValue) {
     OutputStream comparer;
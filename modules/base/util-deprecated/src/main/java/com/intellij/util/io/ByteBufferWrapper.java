@@ -19,6 +19,7 @@ import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public abstract class ByteBufferWrapper {
   protected final File myFile;
@@ -26,6 +27,13 @@ public abstract class ByteBufferWrapper {
   protected final long myLength;
   protected volatile boolean myDirty;
 
+  private static final AtomicIntegerFieldUpdater<ByteBufferWrapper> ourPinCountUpdater =
+          AtomicIntegerFieldUpdater.newUpdater(ByteBufferWrapper.class, "myPinCount");
+  // number of users which rely on the buffer not being disposed, -1 once the buffer is chosen for eviction
+  private volatile int myPinCount;
+  // set once the buffer is removed from the page cache, readers that pinned it after that must request the page again
+  private volatile boolean myReleased;
+
   protected ByteBufferWrapper(final File file, final long offset, final long length) {
     myFile = file;
     myPosition = offset;
@@ -45,6 +53,45 @@ public abstract class ByteBufferWrapper {
 
   public abstract ByteBuffer getBuffer() throws IOException;
 
+  /**
+   * @return false if the buffer is already evicted from the page cache and must be requested again
+   */
+  final boolean tryPin() {
+    while (true) {
+      int count = myPinCount;
+      if (count < 0) return false;
+      if (ourPinCountUpdater.compareAndSet(this, count, count + 1)) break;
+    }
+    if (myReleased) {
+      unpin();
+      return false;
+    }
+    return true;
+  }
+
+  final void unpin() {
+    ourPinCountUpdater.decrementAndGet(this);
+  }
+
+  final boolean isPinned() {
+    return myPinCount > 0;
+  }
+
+  final void markReleased() {
+    myReleased = true;
+  }
+
+  final boolean isReleased() {
+    return myReleased;
+  }
+
+  /**
+   * @return true if the buffer was not pinned and can't be pinned anymore
+   */
+  final boolean tryMarkEvicted() {
+    return ourPinCountUpdater.compareAndSet(this, 0, -1);
+  }
+
   public abstract void unmap();
 
   public abstract void flush();
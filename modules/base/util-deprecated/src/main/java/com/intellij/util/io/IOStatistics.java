@@ -2,13 +2,35 @@ package com.intellij.util.io;
 
 import consulo.logging.Logger;
 
+import java.util.concurrent.atomic.LongAdder;
+
 class IOStatistics {
   static final boolean DEBUG = System.getProperty("io.access.debug") != null;
   static final int MIN_IO_TIME_TO_REPORT = 100;
   static final Logger LOG = Logger.getInstance(IOStatistics.class);
   static final int KEYS_FACTOR_MASK = 0xFFFF;
 
+  static final LongAdder PAGE_CACHE_HITS = new LongAdder();
+  static final LongAdder PAGE_CACHE_MISSES = new LongAdder();
+  static final LongAdder PAGE_CACHE_EVICTIONS = new LongAdder();
+  private static final int PAGE_CACHE_REPORT_INTERVAL = 0x3FF;
+
   static void dump(String msg) {
     LOG.info(msg);
   }
+
+  static void pageCacheMiss() {
+    PAGE_CACHE_MISSES.increment();
+    if (DEBUG && (PAGE_CACHE_MISSES.sum() & PAGE_CACHE_REPORT_INTERVAL) == 0) {
+      dump(pageCacheStatistics());
+    }
+  }
+
+  static String pageCacheStatistics() {
+    long hits = PAGE_CACHE_HITS.sum();
+    long misses = PAGE_CACHE_MISSES.sum();
+    long total = hits + misses;
+    return "Page cache: hits=" + hits + ", misses=" + misses + ", evictions=" + PAGE_CACHE_EVICTIONS.sum() +
+           ", hit rate=" + (total == 0 ? 0 : hits * 100 / total) + "%";
+  }
 }
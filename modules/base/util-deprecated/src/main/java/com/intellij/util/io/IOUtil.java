@@ -130,7 +130,15 @@ public class IOUtil {
   }
 
   public static String readUTFFast(@Nonnull byte[] buffer, @Nonnull DataInput storage) throws IOException {
-    int len = 0xFF & (int)storage.readByte();
+    return readUTFFast(0xFF & (int)storage.readByte(), buffer, storage);
+  }
+
+  /**
+   * Reads the rest of a string written by {@link #writeUTFFast} after its first byte, the header. A header below 0xFF is the length
+   * of the string, followed by that many ASCII bytes, so such strings can be skipped or copied without decoding.
+   */
+  public static String readUTFFast(int header, @Nonnull byte[] buffer, @Nonnull DataInput storage) throws IOException {
+    int len = header;
     if (len == 0xFF) {
       String result = storage.readUTF();
       if (LONGER_THAN_64K_MARKER.equals(result)) {
@@ -4,6 +4,7 @@ package com.intellij.util.io;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.BitUtil;
 import com.intellij.util.ObjectUtil;
+import com.intellij.util.ThreeState;
 import gnu.trove.TIntIntHashMap;
 import javax.annotation.Nonnull;
 
@@ -205,6 +206,91 @@ public class IntToIntBtree {
     return true;
   }
 
+  /**
+   * Read-only lookup for optimistic readers which don't hold the storage lock, see {@link PagedFileStorage#tryPinCachedPage(long)}.
+   * Unlike {@link #get(int, int[])} it doesn't touch the traversal state and statistics shared with the writer.
+   * <p>
+   * The result is meaningful only if the tree was not modified meanwhile, which the caller has to validate; reading a page
+   * in the middle of a modification may also end up with a runtime exception.
+   *
+   * @return {@link ThreeState#UNSURE} if some page along the path is not cached, then the lookup has to be repeated under the lock
+   */
+  @Nonnull
+  ThreeState getConcurrently(int key, @Nonnull int[] result) {
+    if (key == 0) {
+      if (hasZeroKey) {
+        result[0] = zeroKeyValue;
+        return ThreeState.YES;
+      }
+      return ThreeState.NO;
+    }
+
+    int address = root.address;
+    if (address == UNDEFINED_ADDRESS) return ThreeState.NO;
+
+    PagedFileStorage pagedFileStorage = storage.getPagedFileStorage();
+    final int maxHeight = height + 1;
+    for (int searched = 0; searched < maxHeight; ++searched) {
+      ByteBufferWrapper wrapper = pagedFileStorage.tryPinCachedPage(address);
+      if (wrapper == null) return ThreeState.UNSURE;
+      try {
+        ByteBuffer buffer = wrapper.getCachedBuffer();
+        int pageStart = pagedFileStorage.getOffsetInPage(address);
+        if (pageStart + pageSize > buffer.limit()) return ThreeState.UNSURE;
+
+        int flagsAndLength = buffer.getInt(pageStart);
+        int flags = (flagsAndLength >> BtreePage.FLAGS_SHIFT) & 0xFF;
+        int childrenCount = (flagsAndLength >>> BtreePage.LENGTH_SHIFT) & BtreePage.LENGTH_MASK;
+        boolean indexLeaf = BitUtil.isSet(flags, BtreeIndexNodeView.INDEX_LEAF_MASK);
+        boolean hashedLeaf = BitUtil.isSet(flags, BtreeIndexNodeView.HASHED_LEAF_MASK);
+        int entriesStart = pageStart + (hashedLeaf ? metaDataLeafPageLength : BtreePage.RESERVED_META_PAGE_LEN);
+
+        int i = indexLeaf && hashedLeaf ? hashIndexConcurrently(buffer, entriesStart, key) : binarySearchConcurrently(buffer, entriesStart, childrenCount, key);
+        if (indexLeaf) {
+          if (i < 0) return ThreeState.NO;
+          result[0] = buffer.getInt(entriesStart + i * BtreeIndexNodeView.INTERIOR_SIZE);
+          return ThreeState.YES;
+        }
+        address = -buffer.getInt(entriesStart + (i < 0 ? -i - 1 : i + 1) * BtreeIndexNodeView.INTERIOR_SIZE);
+      }
+      finally {
+        wrapper.unpin();
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  private static int binarySearchConcurrently(@Nonnull ByteBuffer buffer, int entriesStart, int childrenCount, int key) {
+    return ObjectUtil.binarySearch(0, childrenCount, mid -> Integer.compare(keyAtConcurrently(buffer, entriesStart, mid), key));
+  }
+
+  // same probing as BtreeIndexNodeView.hashIndex()
+  private int hashIndexConcurrently(@Nonnull ByteBuffer buffer, int entriesStart, int key) {
+    final int length = hashPageCapacity;
+    int hash = key & 0x7fffffff;
+    int index = hash % length;
+    int keyAtIndex = keyAtConcurrently(buffer, entriesStart, index);
+
+    if (keyAtIndex != key && keyAtIndex != BtreeIndexNodeView.HASH_FREE) {
+      final int probe = 1 + (hash % (length - 2));
+      int total = 0;
+
+      do {
+        index -= probe;
+        if (index < 0) index += length;
+
+        keyAtIndex = keyAtConcurrently(buffer, entriesStart, index);
+        if (++total > length) throw new IllegalStateException("Index corrupted");
+      }
+      while (keyAtIndex != key && keyAtIndex != BtreeIndexNodeView.HASH_FREE);
+    }
+    return keyAtIndex == BtreeIndexNodeView.HASH_FREE ? -index - 1 : index;
+  }
+
+  private static int keyAtConcurrently(@Nonnull ByteBuffer buffer, int entriesStart, int i) {
+    return buffer.getInt(entriesStart + i * BtreeIndexNodeView.INTERIOR_SIZE + BtreeIndexNodeView.KEY_OFFSET);
+  }
+
   public void put(int key, int value) {
     if (key == 0) {
       hasZeroKey = true;
@@ -550,7 +636,8 @@ public class IntToIntBtree {
     }
 
     public boolean isValid() {
-      return myBufferWrapper.getCachedBuffer() == myBuffer;
+      // a released buffer may still be alive while optimistic readers use it, but it is not written out anymore
+      return myBufferWrapper.getCachedBuffer() == myBuffer && !myBufferWrapper.isReleased();
     }
 
     private static class HashLeafData {
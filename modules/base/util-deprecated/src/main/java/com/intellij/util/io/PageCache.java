@@ -0,0 +1,242 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.util.containers.hash.LinkedHashMap;
+
+import org.jetbrains.annotations.TestOnly;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Page key to buffer map of {@link PagedFileStorage.StorageLock} with the eviction policy.
+ * <p>
+ * {@link #get(int)} may be called from any thread. Modifications are serialized by the storage lock, which also accounts the size
+ * of the cached pages and disposes the evicted ones. Pinned buffers (see {@link ByteBufferWrapper#tryPin()}) are never chosen
+ * for eviction.
+ * <p>
+ * The policy is chosen with {@code -Didea.paged.storage.cache.policy=clock|lru}, CLOCK by default: its lookups don't take any lock,
+ * while every LRU lookup takes the lock of the map shared by all storages.
+ */
+abstract class PageCache {
+  @Nullable
+  abstract ByteBufferWrapper get(int key);
+
+  abstract void put(int key, @Nonnull ByteBufferWrapper wrapper);
+
+  @Nullable
+  abstract ByteBufferWrapper remove(int key);
+
+  /**
+   * Chooses the page to evict and marks its buffer evicted, so that it can't be pinned anymore. The page stays in the cache until
+   * {@link #remove(int)}.
+   *
+   * @return key of the page or null if there is nothing to evict
+   */
+  @Nullable
+  abstract Integer selectVictim();
+
+  @Nonnull
+  abstract Map<Integer, ByteBufferWrapper> snapshot();
+
+  @Nonnull
+  static PageCache create() {
+    return "lru".equals(System.getProperty("idea.paged.storage.cache.policy")) ? new Lru() : new Clock();
+  }
+
+  /**
+   * The historical access ordered map, every lookup takes a lock to update the order.
+   */
+  static final class Lru extends PageCache {
+    private final ReentrantLock myLock = new ReentrantLock();
+    private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments = new LinkedHashMap<>(10, 0.75f, true);
+
+    @Nullable
+    @Override
+    ByteBufferWrapper get(int key) {
+      myLock.lock();
+      try {
+        return mySegments.get(key);
+      }
+      finally {
+        myLock.unlock();
+      }
+    }
+
+    @Override
+    void put(int key, @Nonnull ByteBufferWrapper wrapper) {
+      myLock.lock();
+      try {
+        mySegments.put(key, wrapper);
+      }
+      finally {
+        myLock.unlock();
+      }
+    }
+
+    @Nullable
+    @Override
+    ByteBufferWrapper remove(int key) {
+      myLock.lock();
+      try {
+        return mySegments.remove(key);
+      }
+      finally {
+        myLock.unlock();
+      }
+    }
+
+    @Nullable
+    @Override
+    Integer selectVictim() {
+      myLock.lock();
+      try {
+        for (Map.Entry<Integer, ByteBufferWrapper> entry : mySegments.entrySet()) {
+          if (entry.getValue().tryMarkEvicted()) return entry.getKey();
+        }
+        return null;
+      }
+      finally {
+        myLock.unlock();
+      }
+    }
+
+    @Nonnull
+    @Override
+    Map<Integer, ByteBufferWrapper> snapshot() {
+      myLock.lock();
+      try {
+        return new HashMap<>(mySegments);
+      }
+      finally {
+        myLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * CLOCK (second chance) approximation of LRU: lookups only read a concurrent map and set the referenced bit of the page,
+   * the clock hand is moved by the evicting thread.
+   */
+  static final class Clock extends PageCache {
+    private static final class Page {
+      final int key;
+      final ByteBufferWrapper wrapper;
+      volatile boolean referenced = true;
+
+      Page(int key, ByteBufferWrapper wrapper) {
+        this.key = key;
+        this.wrapper = wrapper;
+      }
+    }
+
+    private final ConcurrentHashMap<Integer, Page> myPages = new ConcurrentHashMap<>();
+    // guarded by itself; may contain pages already removed from myPages, they are dropped when the hand reaches them
+    // or, since pages are removed without eviction below the size limit too, once they outnumber the live ones
+    private final ArrayDeque<Page> myClock = new ArrayDeque<>();
+    // number of pages in myClock removed from myPages, guarded by myClock
+    private int myDeadPages;
+
+    @Nullable
+    @Override
+    ByteBufferWrapper get(int key) {
+      Page page = myPages.get(key);
+      if (page == null) return null;
+      if (!page.referenced) page.referenced = true;
+      return page.wrapper;
+    }
+
+    @Override
+    void put(int key, @Nonnull ByteBufferWrapper wrapper) {
+      Page page = new Page(key, wrapper);
+      Page replaced = myPages.put(key, page);
+      synchronized (myClock) {
+        myClock.addLast(page);
+        if (replaced != null) pageRemoved();
+      }
+    }
+
+    @Nullable
+    @Override
+    ByteBufferWrapper remove(int key) {
+      Page page = myPages.remove(key);
+      if (page == null) return null;
+      synchronized (myClock) {
+        pageRemoved();
+      }
+      return page.wrapper;
+    }
+
+    // under myClock lock
+    private void pageRemoved() {
+      if (++myDeadPages > myClock.size() / 2) {
+        myClock.removeIf(page -> myPages.get(page.key) != page);
+        myDeadPages = 0;
+      }
+    }
+
+    @TestOnly
+    int getClockSize() {
+      synchronized (myClock) {
+        return myClock.size();
+      }
+    }
+
+    @Nullable
+    @Override
+    Integer selectVictim() {
+      synchronized (myClock) {
+        // every page gets at most one second chance, pinned ones may be skipped on both rounds
+        int attempts = 2 * myClock.size();
+        while (attempts-- > 0) {
+          Page page = myClock.pollFirst();
+          if (page == null) return null;
+          if (myPages.get(page.key) != page) {
+            if (myDeadPages > 0) myDeadPages--;
+            continue;
+          }
+
+          if (page.referenced || page.wrapper.isPinned()) {
+            page.referenced = false;
+            myClock.addLast(page);
+            continue;
+          }
+          if (page.wrapper.tryMarkEvicted()) {
+            return page.key;
+          }
+          myClock.addLast(page);
+        }
+        return null;
+      }
+    }
+
+    @Nonnull
+    @Override
+    Map<Integer, ByteBufferWrapper> snapshot() {
+      Map<Integer, ByteBufferWrapper> result = new HashMap<>();
+      for (Page page : myPages.values()) {
+        result.put(page.key, page.wrapper);
+      }
+      return result;
+    }
+  }
+}
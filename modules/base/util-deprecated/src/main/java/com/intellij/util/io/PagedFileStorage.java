@@ -6,7 +6,6 @@ import com.intellij.openapi.util.SystemInfo;
 import com.intellij.util.SystemProperties;
 import consulo.util.collection.ConcurrentIntObjectMap;
 import com.intellij.util.containers.ContainerUtil;
-import com.intellij.util.containers.hash.LinkedHashMap;
 import consulo.logging.Logger;
 
 import javax.annotation.Nonnull;
@@ -79,17 +78,9 @@ public class PagedFileStorage implements Forceable {
 
   private final StorageLockContext myStorageLockContext;
   private final boolean myNativeBytesOrder;
-  private int myLastPage = UNKNOWN_PAGE;
-  private int myLastPage2 = UNKNOWN_PAGE;
-  private int myLastPage3 = UNKNOWN_PAGE;
-  private ByteBufferWrapper myLastBuffer;
-  private ByteBufferWrapper myLastBuffer2;
-  private ByteBufferWrapper myLastBuffer3;
-  private int myLastChangeCount;
-  private int myLastChangeCount2;
-  private int myLastChangeCount3;
-  private int myStorageIndex;
-  private final Object myLastAccessedBufferCacheLock = new Object();
+  // replaced as a whole, so that lookups don't need a lock
+  private volatile LastAccessedPages myLastAccessedPages = LastAccessedPages.EMPTY;
+  private volatile int myStorageIndex;
 
   private final byte[] myTypedIOBuffer;
   private volatile boolean isDirty;
@@ -251,18 +242,24 @@ public class PagedFileStorage implements Forceable {
       int page_offset = (int)(i % myPageSize);
 
       int page_len = Math.min(l, myPageSize - page_offset);
-      final ByteBuffer buffer = getReadOnlyBuffer(page);
+      final ByteBufferWrapper wrapper = getPinnedBufferWrapper(page, false);
       try {
-        buffer.position(page_offset);
+        final ByteBuffer buffer = wrapper.getCachedBuffer();
+        try {
+          buffer.position(page_offset);
+        }
+        catch (IllegalArgumentException iae) {
+          throw new IllegalArgumentException("can't position buffer to offset " + page_offset + ", " +
+                                             "buffer.limit=" + buffer.limit() + ", " +
+                                             "page=" + page + ", " +
+                                             "file=" + myFile.getName() + ", " +
+                                             "file.length=" + length());
+        }
+        buffer.get(dst, o, page_len);
       }
-      catch (IllegalArgumentException iae) {
-        throw new IllegalArgumentException("can't position buffer to offset " + page_offset + ", " +
-                                           "buffer.limit=" + buffer.limit() + ", " +
-                                           "page=" + page + ", " +
-                                           "file=" + myFile.getName() + ", " +
-                                           "file.length=" + length());
+      finally {
+        wrapper.unpin();
       }
-      buffer.get(dst, o, page_len);
 
       l -= page_len;
       o += page_len;
@@ -280,14 +277,20 @@ public class PagedFileStorage implements Forceable {
       int page_offset = (int)(i % myPageSize);
 
       int page_len = Math.min(l, myPageSize - page_offset);
-      final ByteBuffer buffer = getBuffer(page);
+      final ByteBufferWrapper wrapper = getPinnedBufferWrapper(page, true);
       try {
-        buffer.position(page_offset);
+        final ByteBuffer buffer = wrapper.getCachedBuffer();
+        try {
+          buffer.position(page_offset);
+        }
+        catch (IllegalArgumentException iae) {
+          throw new IllegalArgumentException("can't position buffer to offset " + page_offset);
+        }
+        buffer.put(src, o, page_len);
       }
-      catch (IllegalArgumentException iae) {
-        throw new IllegalArgumentException("can't position buffer to offset " + page_offset);
+      finally {
+        wrapper.unpin();
       }
-      buffer.put(src, o, page_len);
 
       l -= page_len;
       o += page_len;
@@ -309,14 +312,7 @@ public class PagedFileStorage implements Forceable {
   private void unmapAll() {
     myStorageLockContext.myStorageLock.unmapBuffersForOwner(myStorageIndex, myStorageLockContext);
 
-    synchronized (myLastAccessedBufferCacheLock) {
-      myLastPage = UNKNOWN_PAGE;
-      myLastPage2 = UNKNOWN_PAGE;
-      myLastPage3 = UNKNOWN_PAGE;
-      myLastBuffer = null;
-      myLastBuffer2 = null;
-      myLastBuffer3 = null;
-    }
+    myLastAccessedPages = LastAccessedPages.EMPTY;
   }
 
   public void resize(long newSize) throws IOException {
@@ -380,29 +376,78 @@ public class PagedFileStorage implements Forceable {
     return getBufferWrapper(page, false).getCachedBuffer();
   }
 
-  private ByteBufferWrapper getBufferWrapper(long page, boolean modify) {
-    synchronized (myLastAccessedBufferCacheLock) {
-      if (myLastPage == page) {
-        ByteBuffer buf = myLastBuffer.getCachedBuffer();
-        if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount) {
-          if (modify) markDirty(myLastBuffer);
-          return myLastBuffer;
-        }
+  // bulk copies may take long enough for the page to be evicted by another thread meanwhile
+  @Nonnull
+  private ByteBufferWrapper getPinnedBufferWrapper(long page, boolean modify) {
+    while (true) {
+      ByteBufferWrapper wrapper = getBufferWrapper(page, modify);
+      if (wrapper.tryPin()) {
+        if (wrapper.getCachedBuffer() != null) return wrapper;
+        wrapper.unpin();
       }
-      else if (myLastPage2 == page) {
-        ByteBuffer buf = myLastBuffer2.getCachedBuffer();
-        if (buf != null && myLastChangeCount2 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
-          if (modify) markDirty(myLastBuffer2);
-          return myLastBuffer2;
-        }
+    }
+  }
+
+  /**
+   * Page lookup for optimistic readers which don't hold the storage lock: it never maps a page, so a page which is not cached
+   * at the moment is reported as missing and the caller has to retry under the lock. The buffer must be accessed with absolute
+   * reads or through a duplicate only, its position is shared.
+   *
+   * @return pinned buffer of the page containing the address or null
+   */
+  @Nullable
+  ByteBufferWrapper tryPinCachedPage(long address) {
+    long page = address / myPageSize;
+    int storageIndex = myStorageIndex;
+    if (storageIndex == -1 || page < 0 || page > MAX_PAGES_COUNT) return null;
+
+    ByteBufferWrapper wrapper = myLastAccessedPages.get(page, myStorageLockContext.myStorageLock.myMappingChangeCount);
+    if (wrapper == null) wrapper = myStorageLockContext.myStorageLock.mySegments.get(storageIndex | (int)page);
+    if (wrapper == null || !wrapper.tryPin()) return null;
+
+    ByteBuffer buffer = wrapper.getCachedBuffer();
+    // the byte order of a just mapped page is set by its first locked user
+    if (buffer == null || myNativeBytesOrder && buffer.order() != ourNativeByteOrder) {
+      wrapper.unpin();
+      return null;
+    }
+    IOStatistics.PAGE_CACHE_HITS.increment();
+    return wrapper;
+  }
+
+  /**
+   * Lock-free counterpart of {@link #get(long, byte[], int, int)}, see {@link #tryPinCachedPage(long)}.
+   *
+   * @return false if some of the pages are not cached, then the content of {@code dst} is undefined
+   */
+  boolean tryGetCached(long index, byte[] dst, int offset, int length) {
+    while (length > 0) {
+      int pageOffset = (int)(index % myPageSize);
+      int pageLength = Math.min(length, myPageSize - pageOffset);
+      ByteBufferWrapper wrapper = tryPinCachedPage(index);
+      if (wrapper == null) return false;
+      try {
+        ByteBuffer buffer = wrapper.getCachedBuffer().duplicate();
+        if (pageOffset + pageLength > buffer.limit()) return false;
+        buffer.position(pageOffset);
+        buffer.get(dst, offset, pageLength);
       }
-      else if (myLastPage3 == page) {
-        ByteBuffer buf = myLastBuffer3.getCachedBuffer();
-        if (buf != null && myLastChangeCount3 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
-          if (modify) markDirty(myLastBuffer3);
-          return myLastBuffer3;
-        }
+      finally {
+        wrapper.unpin();
       }
+      index += pageLength;
+      offset += pageLength;
+      length -= pageLength;
+    }
+    return true;
+  }
+
+  private ByteBufferWrapper getBufferWrapper(long page, boolean modify) {
+    ByteBufferWrapper lastBuffer = myLastAccessedPages.get(page, myStorageLockContext.myStorageLock.myMappingChangeCount);
+    if (lastBuffer != null) {
+      IOStatistics.PAGE_CACHE_HITS.increment();
+      if (modify) markDirty(lastBuffer);
+      return lastBuffer;
     }
 
     try {
@@ -411,6 +456,7 @@ public class PagedFileStorage implements Forceable {
       if (myStorageIndex == -1) {
         myStorageIndex = myStorageLockContext.myStorageLock.registerPagedFileStorage(this);
       }
+      int changeCount = myStorageLockContext.myStorageLock.myMappingChangeCount;
       ByteBufferWrapper byteBufferWrapper = myStorageLockContext.myStorageLock.get(myStorageIndex | (int)page); // TODO: long page
       if (modify) markDirty(byteBufferWrapper);
       ByteBuffer buf = byteBufferWrapper.getBuffer();
@@ -418,25 +464,8 @@ public class PagedFileStorage implements Forceable {
         buf.order(ourNativeByteOrder);
       }
 
-      synchronized (myLastAccessedBufferCacheLock) {
-        if (myLastPage != page) {
-          myLastPage3 = myLastPage2;
-          myLastBuffer3 = myLastBuffer2;
-          myLastChangeCount3 = myLastChangeCount2;
-
-          myLastPage2 = myLastPage;
-          myLastBuffer2 = myLastBuffer;
-          myLastChangeCount2 = myLastChangeCount;
-
-          myLastBuffer = byteBufferWrapper;
-          myLastPage = (int)page; // TODO long page
-        }
-        else {
-          myLastBuffer = byteBufferWrapper;
-        }
-
-        myLastChangeCount = myStorageLockContext.myStorageLock.myMappingChangeCount;
-      }
+      // concurrent updates may lose an entry, which only costs another lookup in the shared cache
+      myLastAccessedPages = myLastAccessedPages.with((int)page, byteBufferWrapper, changeCount); // TODO long page
 
       return byteBufferWrapper;
     }
@@ -471,15 +500,53 @@ public class PagedFileStorage implements Forceable {
     return isDirty;
   }
 
+  private static final class LastAccessedPages {
+    private static final LastAccessedPages EMPTY = new LastAccessedPages(UNKNOWN_PAGE, null, 0, null);
+
+    private final int myPage;
+    private final ByteBufferWrapper myBuffer;
+    private final int myChangeCount;
+    private final LastAccessedPages myPrevious;
+
+    private LastAccessedPages(int page, ByteBufferWrapper buffer, int changeCount, LastAccessedPages previous) {
+      myPage = page;
+      myBuffer = buffer;
+      myChangeCount = changeCount;
+      myPrevious = previous;
+    }
+
+    @Nullable
+    private ByteBufferWrapper get(long page, int changeCount) {
+      for (LastAccessedPages pages = this; pages != null; pages = pages.myPrevious) {
+        if (pages.myPage == page) {
+          return pages.myChangeCount == changeCount && pages.myBuffer.getCachedBuffer() != null ? pages.myBuffer : null;
+        }
+      }
+      return null;
+    }
+
+    @Nonnull
+    private LastAccessedPages with(int page, @Nonnull ByteBufferWrapper buffer, int changeCount) {
+      return new LastAccessedPages(page, buffer, changeCount, copyWithout(page, this, 2));
+    }
+
+    // keeps at most {@code count} most recent pages except the given one
+    @Nullable
+    private static LastAccessedPages copyWithout(int page, @Nullable LastAccessedPages pages, int count) {
+      while (pages != null && (pages.myPage == page || pages.myPage == UNKNOWN_PAGE)) pages = pages.myPrevious;
+      if (pages == null || count == 0) return null;
+      return new LastAccessedPages(pages.myPage, pages.myBuffer, pages.myChangeCount, copyWithout(page, pages.myPrevious, count - 1));
+    }
+  }
+
   public static class StorageLock {
     private static final int FILE_INDEX_MASK = 0xFFFF0000;
     private static final int FILE_INDEX_SHIFT = 16;
     public final StorageLockContext myDefaultStorageLockContext;
     private final ConcurrentIntObjectMap<PagedFileStorage> myIndex2Storage = ContainerUtil.createConcurrentIntObjectMap();
 
-    private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments;
-    private final ReentrantLock mySegmentsAccessLock = new ReentrantLock(); // protects map operations of mySegments, needed for LRU order, mySize and myMappingChangeCount
-    // todo avoid locking for access
+    private final PageCache mySegments = PageCache.create();
+    private final ReentrantLock mySegmentsAccessLock = new ReentrantLock(); // protects modifications of mySegments, mySize and myMappingChangeCount
 
     private final ReentrantLock mySegmentsAllocationLock = new ReentrantLock();
     private final ConcurrentLinkedQueue<ByteBufferWrapper> mySegmentsToRemove = new ConcurrentLinkedQueue<>();
@@ -495,25 +562,17 @@ public class PagedFileStorage implements Forceable {
       myDefaultStorageLockContext = new StorageLockContext(this, checkThreadAccess);
 
       mySizeLimit = UPPER_LIMIT;
-      mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f, true) {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBufferWrapper> eldest) {
-          return mySize > mySizeLimit;
-        }
+    }
 
-        @Nullable
-        @Override
-        public ByteBufferWrapper remove(Object key) {
-          // this method can be called after removeEldestEntry
-          ByteBufferWrapper wrapper = super.remove(key);
-          if (wrapper != null) {
-            ++myMappingChangeCount;
-            mySegmentsToRemove.offer(wrapper);
-            mySize -= wrapper.myLength;
-          }
-          return wrapper;
-        }
-      };
+    private void removeSegment(int key) {
+      assert mySegmentsAccessLock.isHeldByCurrentThread();
+      ByteBufferWrapper wrapper = mySegments.remove(key);
+      if (wrapper != null) {
+        ++myMappingChangeCount;
+        wrapper.markReleased();
+        mySegmentsToRemove.offer(wrapper);
+        mySize -= wrapper.myLength;
+      }
     }
 
     public void lock() {
@@ -540,28 +599,23 @@ public class PagedFileStorage implements Forceable {
       return myIndex2Storage.get(index);
     }
 
-    private ByteBufferWrapper get(Integer key) {
-      ByteBufferWrapper wrapper;
-      try {         // fast path
-        mySegmentsAccessLock.lock();
-        wrapper = mySegments.get(key);
-        if (wrapper != null) return wrapper;
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
+    private ByteBufferWrapper get(int key) {
+      // fast path
+      ByteBufferWrapper wrapper = mySegments.get(key);
+      if (wrapper != null) {
+        IOStatistics.PAGE_CACHE_HITS.increment();
+        return wrapper;
       }
 
       mySegmentsAllocationLock.lock();
       try {
         // check if anybody cared about our segment
-        mySegmentsAccessLock.lock();
-        try {
-          wrapper = mySegments.get(key);
-          if (wrapper != null) return wrapper;
-        }
-        finally {
-          mySegmentsAccessLock.unlock();
+        wrapper = mySegments.get(key);
+        if (wrapper != null) {
+          IOStatistics.PAGE_CACHE_HITS.increment();
+          return wrapper;
         }
+        IOStatistics.pageCacheMiss();
 
         long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
         wrapper = createValue(key);
@@ -597,19 +651,35 @@ public class PagedFileStorage implements Forceable {
       assert mySegmentsAllocationLock.isHeldByCurrentThread();
       Iterator<ByteBufferWrapper> iterator = mySegmentsToRemove.iterator();
       while (iterator.hasNext()) {
-        iterator.next().dispose();
+        ByteBufferWrapper wrapper = iterator.next();
+        if (!wrapper.tryMarkEvicted() && wrapper.isPinned()) {
+          // a lock-free reader still uses it: write the changes out, so that the page can be mapped again, and free it later
+          if (wrapper.isDirty()) wrapper.flush();
+          continue;
+        }
+        wrapper.dispose();
         iterator.remove();
       }
     }
 
-    private void ensureSize(long sizeLimit) {
+    /**
+     * @return false if the size limit can't be reached because the remaining pages are pinned
+     */
+    private boolean ensureSize(long sizeLimit) {
       assert mySegmentsAllocationLock.isHeldByCurrentThread();
 
+      boolean reached = true;
       try {
         mySegmentsAccessLock.lock();
         while (mySize > sizeLimit) {
           // we still have to drop something
-          mySegments.doRemoveEldestEntry();
+          Integer victim = mySegments.selectVictim();
+          if (victim == null) {
+            reached = false;
+            break;
+          }
+          removeSegment(victim);
+          IOStatistics.PAGE_CACHE_EVICTIONS.increment();
         }
       }
       finally {
@@ -617,10 +687,11 @@ public class PagedFileStorage implements Forceable {
       }
 
       disposeRemovedSegments();
+      return reached;
     }
 
     @Nonnull
-    private ByteBufferWrapper createValue(Integer key) {
+    private ByteBufferWrapper createValue(int key) {
       final int storageIndex = key & FILE_INDEX_MASK;
       PagedFileStorage owner = getRegisteredPagedFileStorageByIndex(storageIndex);
       assert owner != null : "No storage for index " + storageIndex;
@@ -654,9 +725,9 @@ public class PagedFileStorage implements Forceable {
             mySizeLimit -= owner.myPageSize;
           }
           long newSize = mySize - owner.myPageSize;
-          if (newSize < 0) {
+          if (newSize < 0 || !ensureSize(newSize)) {
             LOG.info("Currently allocated:" + mySize);
-            LOG.info("Mapping failed due to OOME. Current buffers: " + mySegments);
+            LOG.info("Mapping failed due to OOME. Current buffers: " + mySegments.snapshot());
             LOG.info(oome);
             try {
               Class<?> aClass = Class.forName("java.nio.Bits");
@@ -684,7 +755,7 @@ public class PagedFileStorage implements Forceable {
                                              wrapper.myLength +
                                              " block", e);
           }
-          ensureSize(newSize); // next try
+          // next try
         }
       }
     }
@@ -701,7 +772,7 @@ public class PagedFileStorage implements Forceable {
       try {
         checkThreadAccess(storageLockContext);
         Map<Integer, ByteBufferWrapper> mineBuffers = null;
-        for (Map.Entry<Integer, ByteBufferWrapper> entry : mySegments.entrySet()) {
+        for (Map.Entry<Integer, ByteBufferWrapper> entry : mySegments.snapshot().entrySet()) {
           if ((entry.getKey() & FILE_INDEX_MASK) == index) {
             if (mineBuffers == null) {
               mineBuffers = new TreeMap<>(Comparator.comparingInt(o -> o));
@@ -723,7 +794,7 @@ public class PagedFileStorage implements Forceable {
         mySegmentsAccessLock.lock();
         try {
           for (Integer key : buffers.keySet()) {
-            mySegments.remove(key);
+            removeSegment(key);
           }
         }
         finally {
@@ -768,7 +839,7 @@ public class PagedFileStorage implements Forceable {
     public void invalidateBuffer(int page) {
       mySegmentsAccessLock.lock();
       try {
-        mySegments.remove(page);
+        removeSegment(page);
       }
       finally {
         mySegmentsAccessLock.unlock();
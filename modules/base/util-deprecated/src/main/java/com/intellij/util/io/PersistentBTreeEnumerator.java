@@ -4,11 +4,13 @@ package com.intellij.util.io;
 import com.intellij.util.ArrayUtilRt;
 import com.intellij.util.Processor;
 import com.intellij.util.SystemProperties;
+import com.intellij.util.ThreeState;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.locks.StampedLock;
 
 // Assigns / store unique integral id for Data instances.
 // Btree stores mapping between integer hash code into integer that interpreted in following way:
@@ -16,6 +18,13 @@ import java.io.IOException;
 // When there is hash value collisions the value is negative and it is -address of collision list (keyAddress, nextCollisionAddress)+
 // It is possible to directly associate non-negative int or long with Data instances when Data is integral value and represent it's own hash code
 // e.g. Data are integers and hash code for them are values themselves
+//
+// With -Didea.btree.enumerator.optimistic.reads=true lookups of existing keys first try to proceed without the storage lock, which
+// is shared by all the storages of a StorageLockContext: they read only the pages which are cached at the moment (pinned, so that
+// they are not freed meanwhile) and validate an optimistic stamp of myOptimisticLock, which is taken for writing by every
+// modification of the tree, the collision lists or the key storage. If a page is not cached, the validation fails or the result is
+// otherwise uncertain, the lookup is repeated under the lock. Optimistic lookups and valueOf() don't synchronize on the enumerator,
+// the locked path of enumerateImpl() does.
 public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Data> {
   private static final int BTREE_PAGE_SIZE;
   private static final int DEFAULT_BTREE_PAGE_SIZE = 32768;
@@ -33,6 +42,9 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
 
   private static final int INTERNAL_PAGE_SIZE = ResizeableMappedFile.DEFAULT_ALLOCATION_ROUND_FACTOR;
 
+  private static final boolean ourOptimisticReads = SystemProperties.getBooleanProperty("idea.btree.enumerator.optimistic.reads", false);
+  private static final long OPTIMISTIC_READ_FAILED = Long.MIN_VALUE;
+
   private int myLogicalFileLength;
   private int myDataPageStart;
   private int myFirstPageStart;
@@ -46,6 +58,8 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
   private int myExistingKeysEnumerated;
 
   private IntToIntBtree myBTree;
+  private final StampedLock myOptimisticLock = new StampedLock();
+  boolean myOptimisticReads = ourOptimisticReads;
   private final boolean myInlineKeysNoMapping;
   private boolean myExternalKeysNoMapping;
 
@@ -163,13 +177,19 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
 
   @Override
   protected void doClose() throws IOException {
+    long stamp = myOptimisticLock.writeLock();
     try {
       super.doClose();
     }
     finally {
-      final IntToIntBtree tree = myBTree;
-      if (tree != null) {
-        tree.doClose();
+      try {
+        final IntToIntBtree tree = myBTree;
+        if (tree != null) {
+          tree.doClose();
+        }
+      }
+      finally {
+        myOptimisticLock.unlockWrite(stamp);
       }
     }
   }
@@ -280,6 +300,11 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
 
   long getNonNegativeValue(Data key) throws IOException {
     assert myInlineKeysNoMapping;
+    if (myOptimisticReads) {
+      long value = getNonNegativeValueOptimistically(key);
+      if (value != OPTIMISTIC_READ_FAILED) return value;
+    }
+
     try {
       lockStorage();
       final boolean hasMapping = myBTree.get(((InlineKeyDescriptor<Data>)myDataDescriptor).toInt(key), myResultBuf);
@@ -299,6 +324,29 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
     }
   }
 
+  private long getNonNegativeValueOptimistically(Data key) {
+    int intKey = ((InlineKeyDescriptor<Data>)myDataDescriptor).toInt(key);
+    long stamp = myOptimisticLock.tryOptimisticRead();
+    if (stamp == 0) return OPTIMISTIC_READ_FAILED;
+
+    try {
+      int[] result = new int[1];
+      ThreeState hasMapping = myBTree.getConcurrently(intKey, result);
+      if (hasMapping == ThreeState.UNSURE) return OPTIMISTIC_READ_FAILED;
+
+      long value = NULL_ID;
+      if (hasMapping == ThreeState.YES) {
+        value = result[0] >= 0 ? result[0] : getLongConcurrently(-result[0]);
+        if (value < 0) return OPTIMISTIC_READ_FAILED;
+      }
+      return myOptimisticLock.validate(stamp) ? value : OPTIMISTIC_READ_FAILED;
+    }
+    catch (RuntimeException e) {
+      // a torn read of a page being modified
+      return OPTIMISTIC_READ_FAILED;
+    }
+  }
+
   long keyIdToNonNegativeOffset(int value) {
     if (value >= 0) return value;
     return myStorage.getLong(-value);
@@ -307,8 +355,10 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
   void putNonNegativeValue(Data key, long value) throws IOException {
     assert value >= 0;
     assert myInlineKeysNoMapping;
+    long stamp = 0;
     try {
       lockStorage();
+      stamp = myOptimisticLock.writeLock();
 
       int intKey = ((InlineKeyDescriptor<Data>)myDataDescriptor).toInt(key);
 
@@ -338,6 +388,7 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
       throw exception;
     }
     finally {
+      if (stamp != 0) myOptimisticLock.unlockWrite(stamp);
       unlockStorage();
     }
   }
@@ -357,7 +408,99 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
   }
 
   @Override
-  protected synchronized int enumerateImpl(final Data value, final boolean onlyCheckForExisting, boolean saveNewValue) throws IOException {
+  protected int enumerateImpl(final Data value, final boolean onlyCheckForExisting, boolean saveNewValue) throws IOException {
+    if (myOptimisticReads && !saveNewValue) {
+      long id = tryEnumerateOptimistically(value);
+      // a missing key is added under the lock only
+      if (id != OPTIMISTIC_READ_FAILED && (id != NULL_ID || onlyCheckForExisting)) return (int)id;
+    }
+    synchronized (this) {
+      return doEnumerateImpl(value, onlyCheckForExisting, saveNewValue);
+    }
+  }
+
+  private long tryEnumerateOptimistically(final Data value) throws IOException {
+    final int valueHC = myDataDescriptor.getHashCode(value);
+    long stamp = myOptimisticLock.tryOptimisticRead();
+    if (stamp == 0) return OPTIMISTIC_READ_FAILED;
+
+    try {
+      int[] result = new int[1];
+      ThreeState hasMapping = myBTree.getConcurrently(valueHC, result);
+      if (hasMapping == ThreeState.UNSURE) return OPTIMISTIC_READ_FAILED;
+
+      long id = NULL_ID;
+      if (hasMapping == ThreeState.YES) {
+        id = myInlineKeysNoMapping ? result[0] : findKeyConcurrently(value, result[0]);
+      }
+      return myOptimisticLock.validate(stamp) ? id : OPTIMISTIC_READ_FAILED;
+    }
+    catch (RuntimeException e) {
+      // a torn read of a page being modified
+      return OPTIMISTIC_READ_FAILED;
+    }
+  }
+
+  // the same walk as in doEnumerateImpl(), without modifications
+  private long findKeyConcurrently(final Data value, int indexNodeValueAddress) throws IOException {
+    if (indexNodeValueAddress > 0) {
+      ThreeState found = isKeyAtIndexConcurrently(value, indexNodeValueAddress);
+      if (found == ThreeState.UNSURE) return OPTIMISTIC_READ_FAILED;
+      return found == ThreeState.YES ? indexNodeValueAddress : NULL_ID;
+    }
+    if (indexNodeValueAddress == 0) return NULL_ID;
+
+    int collisionAddress = -indexNodeValueAddress;
+    // the list can't be longer than the number of collisions unless it is being modified
+    for (int steps = myCollisions + 1; steps >= 0; --steps) {
+      long address = getIntConcurrently(collisionAddress);
+      if (address == OPTIMISTIC_READ_FAILED) return OPTIMISTIC_READ_FAILED;
+
+      ThreeState found = isKeyAtIndexConcurrently(value, (int)address);
+      if (found == ThreeState.UNSURE) return OPTIMISTIC_READ_FAILED;
+      if (found == ThreeState.YES) return address;
+
+      long newCollisionAddress = getIntConcurrently(collisionAddress + COLLISION_OFFSET);
+      if (newCollisionAddress == OPTIMISTIC_READ_FAILED) return OPTIMISTIC_READ_FAILED;
+      if (newCollisionAddress == 0) return NULL_ID;
+      collisionAddress = (int)newCollisionAddress;
+    }
+    return OPTIMISTIC_READ_FAILED;
+  }
+
+  @Nonnull
+  private ThreeState isKeyAtIndexConcurrently(final Data value, int idx) throws IOException {
+    long addr = myExternalKeysNoMapping ? idx - KEY_SHIFT : getIntConcurrently(idx);
+    if (addr == OPTIMISTIC_READ_FAILED) return ThreeState.UNSURE;
+    return isKeyAtAddressConcurrently(value, (int)addr);
+  }
+
+  // values of myStorage are buffer aligned, so that a value never crosses a page
+  private long getIntConcurrently(long address) {
+    PagedFileStorage pagedFileStorage = myStorage.getPagedFileStorage();
+    ByteBufferWrapper wrapper = pagedFileStorage.tryPinCachedPage(address);
+    if (wrapper == null) return OPTIMISTIC_READ_FAILED;
+    try {
+      return wrapper.getCachedBuffer().getInt(pagedFileStorage.getOffsetInPage(address));
+    }
+    finally {
+      wrapper.unpin();
+    }
+  }
+
+  private long getLongConcurrently(long address) {
+    PagedFileStorage pagedFileStorage = myStorage.getPagedFileStorage();
+    ByteBufferWrapper wrapper = pagedFileStorage.tryPinCachedPage(address);
+    if (wrapper == null) return OPTIMISTIC_READ_FAILED;
+    try {
+      return wrapper.getCachedBuffer().getLong(pagedFileStorage.getOffsetInPage(address));
+    }
+    finally {
+      wrapper.unpin();
+    }
+  }
+
+  private int doEnumerateImpl(final Data value, final boolean onlyCheckForExisting, boolean saveNewValue) throws IOException {
     try {
       lockStorage();
       if (IntToIntBtree.doDump) System.out.println(value);
@@ -411,52 +554,58 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
         }
       }
 
-      int newValueId = writeData(value, valueHC);
-      ++myValuesCount;
+      long stamp = myOptimisticLock.writeLock();
+      try {
+        int newValueId = writeData(value, valueHC);
+        ++myValuesCount;
 
-      if (IOStatistics.DEBUG && (myValuesCount & IOStatistics.KEYS_FACTOR_MASK) == 0) {
-        IOStatistics.dump("Index " + myFile + ", values " + myValuesCount + ", existing keys enumerated:" + myExistingKeysEnumerated + ", storage size:" + myStorage.length());
-        myBTree.dumpStatistics();
-      }
+        if (IOStatistics.DEBUG && (myValuesCount & IOStatistics.KEYS_FACTOR_MASK) == 0) {
+          IOStatistics.dump("Index " + myFile + ", values " + myValuesCount + ", existing keys enumerated:" + myExistingKeysEnumerated + ", storage size:" + myStorage.length());
+          myBTree.dumpStatistics();
+        }
 
-      if (collisionAddress != NULL_ID) {
-        if (hasExistingData) {
-          if (indexNodeValueAddress > 0) {
-            myBTree.put(valueHC, newValueId);
+        if (collisionAddress != NULL_ID) {
+          if (hasExistingData) {
+            if (indexNodeValueAddress > 0) {
+              myBTree.put(valueHC, newValueId);
+            }
+            else {
+              myStorage.putInt(collisionAddress, newValueId);
+            }
           }
           else {
-            myStorage.putInt(collisionAddress, newValueId);
+            if (indexNodeValueAddress > 0) {
+              // organize collision type reference
+              int duplicatedValueOff = nextDuplicatedValueRecord();
+              myBTree.put(valueHC, -duplicatedValueOff);
+
+              myStorage.putInt(duplicatedValueOff, indexNodeValueAddress); // we will set collision offset in next if
+              collisionAddress = duplicatedValueOff;
+              ++myCollisions;
+            }
+
+            ++myCollisions;
+            int duplicatedValueOff = nextDuplicatedValueRecord();
+            myStorage.putInt(collisionAddress + COLLISION_OFFSET, duplicatedValueOff);
+            myStorage.putInt(duplicatedValueOff, newValueId);
+            myStorage.putInt(duplicatedValueOff + COLLISION_OFFSET, 0);
           }
         }
         else {
-          if (indexNodeValueAddress > 0) {
-            // organize collision type reference
-            int duplicatedValueOff = nextDuplicatedValueRecord();
-            myBTree.put(valueHC, -duplicatedValueOff);
+          myBTree.put(valueHC, newValueId);
+        }
 
-            myStorage.putInt(duplicatedValueOff, indexNodeValueAddress); // we will set collision offset in next if
-            collisionAddress = duplicatedValueOff;
-            ++myCollisions;
+        if (IntToIntBtree.doSanityCheck) {
+          if (!myInlineKeysNoMapping) {
+            Data data = valueOf(newValueId);
+            IntToIntBtree.myAssert(myDataDescriptor.isEqual(value, data));
           }
-
-          ++myCollisions;
-          int duplicatedValueOff = nextDuplicatedValueRecord();
-          myStorage.putInt(collisionAddress + COLLISION_OFFSET, duplicatedValueOff);
-          myStorage.putInt(duplicatedValueOff, newValueId);
-          myStorage.putInt(duplicatedValueOff + COLLISION_OFFSET, 0);
         }
+        return newValueId;
       }
-      else {
-        myBTree.put(valueHC, newValueId);
-      }
-
-      if (IntToIntBtree.doSanityCheck) {
-        if (!myInlineKeysNoMapping) {
-          Data data = valueOf(newValueId);
-          IntToIntBtree.myAssert(myDataDescriptor.isEqual(value, data));
-        }
+      finally {
+        myOptimisticLock.unlockWrite(stamp);
       }
-      return newValueId;
     }
     catch (IllegalStateException e) {
       CorruptedException exception = new CorruptedException(myFile);
@@ -476,9 +625,31 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
   @Override
   public Data valueOf(int idx) throws IOException {
     assert !myInlineKeysNoMapping : "No valueOf for inline keys with no mapping option";
+    if (myOptimisticReads) {
+      Data value = valueOfOptimistically(idx);
+      if (value != null) return value;
+    }
     return super.valueOf(idx);
   }
 
+  @Nullable
+  private Data valueOfOptimistically(int idx) {
+    long stamp = myOptimisticLock.tryOptimisticRead();
+    if (stamp == 0) return null;
+
+    try {
+      long addr = myExternalKeysNoMapping ? idx - KEY_SHIFT : getIntConcurrently(idx);
+      // a torn address may point into the middle of a record, whose bytes would be deserialized as garbage lengths
+      if (addr == OPTIMISTIC_READ_FAILED || !myOptimisticLock.validate(stamp)) return null;
+      Data value = valueOfConcurrently((int)addr, () -> myOptimisticLock.validate(stamp));
+      return value != null && myOptimisticLock.validate(stamp) ? value : null;
+    }
+    catch (RuntimeException e) {
+      // a torn read of a page being modified
+      return null;
+    }
+  }
+
   private int nextDuplicatedValueRecord() {
     assert !myInlineKeysNoMapping;
     if (myDuplicatedValuesPageStart == -1 || myDuplicatedValuesPageOffset == INTERNAL_PAGE_SIZE) {
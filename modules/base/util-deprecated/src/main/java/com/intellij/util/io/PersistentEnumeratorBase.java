@@ -20,6 +20,7 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.Processor;
+import com.intellij.util.ThreeState;
 import com.intellij.util.containers.SLRUMap;
 import com.intellij.util.containers.ShareableKey;
 import consulo.logging.Logger;
@@ -34,6 +35,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.BooleanSupplier;
 
 /**
  * @author max
@@ -412,6 +414,33 @@ public abstract class PersistentEnumeratorBase<Data> implements DataEnumeratorEx
     return myDataDescriptor.isEqual(valueOf(idx), value);
   }
 
+  /**
+   * Lock-free counterpart of {@link #isKeyAtIndex} for optimistic readers, {@code addr} is the key storage address of the record.
+   *
+   * @return {@link ThreeState#UNSURE} if the check has to be repeated under the storage lock
+   */
+  @Nonnull
+  ThreeState isKeyAtAddressConcurrently(final Data value, final int addr) throws IOException {
+    if (myKeyStorage == null) return ThreeState.NO;
+
+    ThreeState sameBytes = myKeyStorage.checkBytesAreTheSameConcurrently(addr, value, myDataDescriptor);
+    // comparing deserialized values is left to the locked path
+    if (sameBytes == ThreeState.NO && !myAssumeDifferentSerializedBytesMeansObjectsInequality) return ThreeState.UNSURE;
+    return sameBytes;
+  }
+
+  /**
+   * Lock-free counterpart of {@link #valueOf} for optimistic readers, {@code addr} is the validated key storage address of the record.
+   *
+   * @param isValid whether no record was appended since the address was read, checked before the record bytes are deserialized
+   * @return null if the value has to be read under the storage lock
+   */
+  @Nullable
+  Data valueOfConcurrently(final int addr, @Nonnull BooleanSupplier isValid) {
+    if (myKeyStorage == null) return ((InlineKeyDescriptor<Data>)myDataDescriptor).fromInt(addr);
+    return myKeyStorage.readConcurrently(addr, myDataDescriptor, isValid);
+  }
+
   protected int writeData(final Data value, int hashCode) {
     try {
       markDirty(true);
@@ -8,8 +8,10 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.*;
+import com.intellij.util.concurrency.SequentialTaskExecutor;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NonNls;
 import javax.annotation.Nonnull;
 
@@ -19,7 +21,10 @@ import javax.annotation.Nullable;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author Eugene Zhuravlev
@@ -43,6 +48,12 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // directly in storage used for offset and in case of btree enumerator directly in btree leaf.
   private static final Logger LOG = Logger.getInstance(PersistentHashMap.class);
   private static final boolean myDoTrace = SystemProperties.getBooleanProperty("idea.trace.persistent.map", false);
+  private static final boolean ourBackgroundCompaction = SystemProperties.getBooleanProperty("idea.persistent.hash.map.background.compaction", false);
+  private static final int BACKGROUND_COMPACTION_BATCH_SIZE = SystemProperties.getIntProperty("idea.persistent.hash.map.background.compaction.batch", 1000);
+  // steps copying values changed during the compaction after which writers copy a share of the changed values themselves
+  private static final int MAX_CATCH_UP_STEPS = 16;
+  // values copied by a write once the catch-up steps are exhausted, more than the write adds so that the backlog shrinks under steady writes
+  private static final int WRITER_CATCH_UP_SHARE = 2;
   private static final int DEAD_KEY_NUMBER_MASK = 0xFFFFFFFF;
 
   private final File myStorageFile;
@@ -78,6 +89,10 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = false;
   private volatile boolean myBusyReading;
+  // guarded by myEnumerator
+  private IncrementalCompaction<Key> myIncrementalCompaction;
+  private volatile boolean myBackgroundCompactionRequested;
+  private volatile float myCompactionProgress = -1;
 
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
@@ -195,7 +210,12 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
       if (makesSenseToCompact()) {
-        compact();
+        if (ourBackgroundCompaction) {
+          myBackgroundCompactionRequested = true;
+        }
+        else {
+          compact();
+        }
       }
     }
     catch (IOException e) {
@@ -281,6 +301,22 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return (int)myLiveAndGarbageKeysCounter;
   }
 
+  /**
+   * @return estimated share of the value storage occupied by values of removed or overwritten keys, from 0 to 1
+   */
+  public double getGarbageRatio() {
+    synchronized (myEnumerator) {
+      long fileSize = myValueStorage.getSize();
+      if (fileSize == 0) return 0;
+      int liveKeys = (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK);
+      int deadKeys = (int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK);
+      if (liveKeys + deadKeys == 0) return 0;
+
+      long avgValueSize = fileSize / (liveKeys + deadKeys);
+      return Math.min(1, (double)(avgValueSize * deadKeys + myReadCompactionGarbageSize) / fileSize);
+    }
+  }
+
   public File getBaseFile() {
     return myEnumerator.myFile;
   }
@@ -329,6 +365,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public final void put(Key key, Value value) throws IOException {
     if (myIsReadOnly) throw new IncorrectOperationException();
     synchronized (myEnumerator) {
+      scheduleRequestedCompaction();
       try {
         doPut(key, value);
       }
@@ -336,6 +373,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         myEnumerator.markCorrupted();
         throw ex;
       }
+      catchUpIncrementalCompaction();
     }
   }
 
@@ -364,6 +402,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         }
         oldValueOffset = ((PersistentBTreeEnumerator<Key>)myEnumerator).getNonNegativeValue(key);
         ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonNegativeValue(key, newValueOffset);
+        valueChanged(key, -1);
       }
       else {
         final int id = enumerate(key);
@@ -373,6 +412,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         }
 
         oldValueOffset = readValueId(id);
+        valueChanged(key, id);
         updateValueId(id, newValueOffset, oldValueOffset, key, 0);
       }
 
@@ -411,6 +451,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public final void appendData(Key key, @Nonnull ValueDataAppender appender) throws IOException {
     if (myIsReadOnly) throw new IncorrectOperationException();
     synchronized (myEnumerator) {
+      scheduleRequestedCompaction();
       try {
         doAppendData(key, appender);
       }
@@ -418,6 +459,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         myEnumerator.markCorrupted();
         throw ex;
       }
+      catchUpIncrementalCompaction();
     }
   }
 
@@ -437,6 +479,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
       long headerRecord = myValueStorage.appendBytes(bytes.toByteArraySequence(), previousRecord);
 
+      valueChanged(key, id);
       if (myDirectlyStoreLongFileOffsetMode) {
         ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonNegativeValue(key, headerRecord);
       }
@@ -528,6 +571,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   @Override
   public final Value get(Key key) throws IOException {
     synchronized (myEnumerator) {
+      scheduleRequestedCompaction();
       myBusyReading = true;
       try {
         return doGet(key);
@@ -601,6 +645,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       try {
         myEnumerator.markDirty(true);
 
+        valueChanged(key, id);
         if (myDirectlyStoreLongFileOffsetMode) {
           ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonNegativeValue(key, newValueOffset);
         }
@@ -647,7 +692,9 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public final void remove(Key key) throws IOException {
     if (myIsReadOnly) throw new IncorrectOperationException();
     synchronized (myEnumerator) {
+      scheduleRequestedCompaction();
       doRemove(key);
+      catchUpIncrementalCompaction();
     }
   }
 
@@ -661,6 +708,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         assert !myIntMapping; // removal isn't supported
         record = ((PersistentBTreeEnumerator<Key>)myEnumerator).getNonNegativeValue(key);
         if (record != NULL_ADDR) {
+          valueChanged(key, -1);
           ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonNegativeValue(key, NULL_ADDR);
         }
       }
@@ -673,6 +721,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         myEnumerator.markDirty(true);
 
         record = readValueId(id);
+        valueChanged(key, id);
         updateValueId(id, NULL_ADDR, record, key, 0);
       }
       if (record != NULL_ADDR) {
@@ -727,6 +776,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     try {
       try {
         myAppendCacheFlusher.stop();
+        cancelIncrementalCompaction();
         try {
           myAppendCache.clear();
         }
@@ -771,6 +821,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public void compact() throws IOException {
     if (myIsReadOnly) throw new IncorrectOperationException();
     synchronized (myEnumerator) {
+      cancelIncrementalCompaction();
       force();
       LOG.info("Compacting " + myEnumerator.myFile.getPath());
       LOG.info("Live keys:" + (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK) +
@@ -817,35 +868,348 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         newStorage.dispose();
       }
 
-      myValueStorage.dispose();
+      replaceValueStorage(oldFiles, newPath);
+      LOG.info("Compacted " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newStorage.getSize() + " bytes in " + (System.currentTimeMillis() - now) + "ms.");
+    }
+  }
+
+  private void replaceValueStorage(@Nullable File[] oldFiles, @Nonnull String newPath) throws IOException {
+    final File oldDataFile = getDataFile(myEnumerator.myFile);
+    final String oldDataFileBaseName = oldDataFile.getName();
+    PersistentHashMapValueStorage.CreationTimeOptions options = myValueStorage.getOptions();
+
+    myValueStorage.dispose();
+
+    if (oldFiles != null) {
+      for (File f : oldFiles) {
+        assert FileUtil.deleteWithRenaming(f);
+      }
+    }
+
+    File newDataFile = new File(newPath);
+    final String newBaseName = newDataFile.getName();
+    final File[] newFiles = getFilesInDirectoryWithNameStartingWith(newDataFile, newBaseName);
+
+    if (newFiles != null) {
+      File parentFile = newDataFile.getParentFile();
+
+      // newFiles should get the same names as oldDataFiles
+      for (File f : newFiles) {
+        String nameAfterRename = StringUtil.replace(f.getName(), newBaseName, oldDataFileBaseName);
+        FileUtil.rename(f, new File(parentFile, nameAfterRename));
+      }
+    }
+
+    myValueStorage = PersistentHashMapValueStorage.create(oldDataFile.getPath(), options);
+    myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+    myEnumerator.putMetaData2(myLargeIndexWatermarkId);
+    if (myDoTrace) LOG.assertTrue(myEnumerator.isDirty());
+  }
+
+  private static class CompactionExecutorHolder {
+    // maps are compacted one at a time to not compete for disk with each other
+    private static final ExecutorService ourExecutor = SequentialTaskExecutor.createSequentialApplicationPoolExecutor("PersistentHashMap Compaction");
+  }
+
+  /**
+   * State of {@link #compactIncrementally(int)}. Live values of the start snapshot are copied in the order of their addresses, values
+   * of keys changed after the start are copied again from their current chains. The map keeps working with the old value storage until
+   * the last step, which copies at most one batch of values and then points all live keys into the new storage. If writers change more
+   * keys between steps than a step copies, after {@link #MAX_CATCH_UP_STEPS} steps every write copies a few changed values as well.
+   */
+  private static class IncrementalCompaction<Key> {
+    final PersistentHashMapValueStorage newStorage;
+    final String newPath;
+    final List<CompactionRecordInfo> infos;
+    final long sizeBefore;
+    final long started = System.currentTimeMillis();
+    int copied;
+    // record ids (inline keys for the directly stored offsets) of the snapshot whose values have been changed meanwhile
+    final TIntHashSet changedRecords = new TIntHashSet();
+    // keys changed since the last step, their current values are copied by the next one
+    final List<Key> pendingKeys = new ArrayList<>();
+    // current copies of the values of changed keys, by record id (inline key)
+    final Map<Integer, ChangedValue<Key>> changedValues = new HashMap<>();
+    int changedValuesCopied;
+    int catchUpSteps;
+    int batchSize;
+
+    IncrementalCompaction(@Nonnull PersistentHashMapValueStorage newStorage,
+                          @Nonnull String newPath,
+                          @Nonnull List<CompactionRecordInfo> infos,
+                          long sizeBefore) {
+      this.newStorage = newStorage;
+      this.newPath = newPath;
+      this.infos = infos;
+      this.sizeBefore = sizeBefore;
+    }
+  }
+
+  private static class ChangedValue<Key> {
+    final Key key;
+    final long valueAddress;
+    final long newValueAddress;
+
+    ChangedValue(@Nonnull Key key, long valueAddress, long newValueAddress) {
+      this.key = key;
+      this.valueAddress = valueAddress;
+      this.newValueAddress = newValueAddress;
+    }
+  }
+
+  /**
+   * Compacts the map in background: live values are copied by {@link #compactIncrementally(int)} in batches of
+   * {@code idea.persistent.hash.map.background.compaction.batch} keys, the map lock is released between batches.
+   */
+  public void scheduleBackgroundCompaction() {
+    if (myIsReadOnly) throw new IncorrectOperationException();
+    CompactionExecutorHolder.ourExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (isClosed()) return;
+        try {
+          if (!compactIncrementally(BACKGROUND_COMPACTION_BATCH_SIZE)) {
+            // let readers, writers and compaction of other maps proceed between batches
+            CompactionExecutorHolder.ourExecutor.execute(this);
+          }
+        }
+        catch (Throwable e) {
+          if (!isClosed()) LOG.error("Background compaction of " + myStorageFile + " failed", e);
+        }
+      }
+    });
+  }
+
+  // the constructor only requests the compaction, so that the compaction task can't observe a partially constructed map
+  private void scheduleRequestedCompaction() {
+    if (myBackgroundCompactionRequested) {
+      myBackgroundCompactionRequested = false;
+      scheduleBackgroundCompaction();
+    }
+  }
+
+  /**
+   * Copies next {@code batchSize} live values into the compacted value storage, starting the compaction if needed.
+   * Once the values of the start snapshot are copied, next calls copy values of keys changed meanwhile, and the call which has at most
+   * {@code batchSize} of them left switches the map to the compacted storage.
+   *
+   * @return true if the compaction is finished
+   */
+  public boolean compactIncrementally(int batchSize) throws IOException {
+    if (myIsReadOnly) throw new IncorrectOperationException();
+    synchronized (myEnumerator) {
+      if (isClosed()) return true;
+      IncrementalCompaction<Key> compaction = myIncrementalCompaction;
+      if (compaction == null) {
+        compaction = myIncrementalCompaction = startIncrementalCompaction();
+        myCompactionProgress = 0;
+      }
+      compaction.batchSize = batchSize;
+
+      try {
+        int end = Math.min(compaction.copied + batchSize, compaction.infos.size());
+        for (int i = compaction.copied; i < end; i++) {
+          CompactionRecordInfo info = compaction.infos.get(i);
+          if (compaction.changedRecords.contains(compactionRecordId(info))) continue;
+          PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(info.valueAddress);
+          info.newValueAddress = compaction.newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+        }
+        compaction.copied = end;
+        myCompactionProgress = compaction.infos.isEmpty() ? 1 : (float)end / compaction.infos.size();
+        if (end < compaction.infos.size()) return false;
+
+        // flush pending appends, they change value addresses
+        clearAppenderCaches();
+        if (compaction.pendingKeys.size() > batchSize) {
+          // past MAX_CATCH_UP_STEPS writers help in catchUpIncrementalCompaction()
+          compaction.catchUpSteps++;
+          copyChangedValues(compaction, batchSize);
+          return false;
+        }
+        finishIncrementalCompaction(compaction);
+        return true;
+      }
+      catch (IOException | RuntimeException e) {
+        cancelIncrementalCompaction();
+        throw e;
+      }
+    }
+  }
+
+  // called by writers, keeps the last step of a compaction which doesn't catch up on its own within one batch
+  private void catchUpIncrementalCompaction() {
+    IncrementalCompaction<Key> compaction = myIncrementalCompaction;
+    if (compaction == null || compaction.catchUpSteps < MAX_CATCH_UP_STEPS) return;
+    int excess = compaction.pendingKeys.size() - compaction.batchSize;
+    if (excess <= 0) return;
+    try {
+      copyChangedValues(compaction, Math.min(excess, WRITER_CATCH_UP_SHARE));
+    }
+    catch (IOException | RuntimeException e) {
+      cancelIncrementalCompaction();
+      LOG.error("Incremental compaction of " + myStorageFile + " failed", e);
+    }
+  }
+
+  @TestOnly
+  int getPendingCompactionChangesCount() {
+    synchronized (myEnumerator) {
+      IncrementalCompaction<Key> compaction = myIncrementalCompaction;
+      return compaction == null ? 0 : compaction.pendingKeys.size();
+    }
+  }
+
+  /**
+   * @return share of live values copied by the running incremental compaction, or -1 if it is not running
+   */
+  public float getCompactionProgress() {
+    return myCompactionProgress;
+  }
+
+  @Nonnull
+  private IncrementalCompaction<Key> startIncrementalCompaction() throws IOException {
+    force();
+    LOG.info("Compacting incrementally " + myEnumerator.myFile.getPath());
+
+    final File oldDataFile = getDataFile(myEnumerator.myFile);
+    final String newPath = oldDataFile.getPath() + ".new";
+    // leftovers of an interrupted compaction
+    deleteFilesStartingWith(new File(newPath));
+    final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath, myValueStorage.getOptions());
 
-      if (oldFiles != null) {
-        for (File f : oldFiles) {
-          assert FileUtil.deleteWithRenaming(f);
+    final List<CompactionRecordInfo> infos = new ArrayList<>(10000);
+    traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+      @Override
+      public boolean process(final int keyId) {
+        final long record = readValueId(keyId);
+        if (record != NULL_ADDR) {
+          infos.add(new CompactionRecordInfo(getCurrentKey(), record, keyId));
         }
+        return true;
       }
+    });
+    // sequential reads of the old storage
+    infos.sort((info, info2) -> Long.compare(info.valueAddress, info2.valueAddress));
+    // read-time compaction of chunks would move values of unchanged keys
+    myValueStorage.switchToCompactionMode(true);
+    return new IncrementalCompaction<>(newStorage, newPath, infos, myValueStorage.getSize());
+  }
+
+  private int compactionRecordId(@Nonnull CompactionRecordInfo info) {
+    return myDirectlyStoreLongFileOffsetMode ? info.key : info.address;
+  }
+
+  // called under the storage lock by every modification of a value address
+  private void valueChanged(@Nonnull Key key, int keyId) {
+    IncrementalCompaction<Key> compaction = myIncrementalCompaction;
+    if (compaction == null) return;
+    compaction.changedRecords.add(myDirectlyStoreLongFileOffsetMode ? ((InlineKeyDescriptor<Key>)myKeyDescriptor).toInt(key) : keyId);
+    compaction.pendingKeys.add(key);
+  }
+
+  private void copyChangedValues(@Nonnull IncrementalCompaction<Key> compaction, int count) throws IOException {
+    List<Key> pendingKeys = compaction.pendingKeys;
+    int start = Math.max(0, pendingKeys.size() - count);
+    myEnumerator.lockStorage();
+    try {
+      for (int i = pendingKeys.size() - 1; i >= start; i--) {
+        Key key = pendingKeys.remove(i);
+        int id;
+        long record;
+        if (myDirectlyStoreLongFileOffsetMode) {
+          id = ((InlineKeyDescriptor<Key>)myKeyDescriptor).toInt(key);
+          record = ((PersistentBTreeEnumerator<Key>)myEnumerator).getNonNegativeValue(key);
+        }
+        else {
+          id = tryEnumerate(key);
+          record = id == PersistentEnumeratorBase.NULL_ID ? NULL_ADDR : readValueId(id);
+        }
 
-      final long newSize = newStorage.getSize();
+        ChangedValue<Key> copy = compaction.changedValues.get(id);
+        if (record == NULL_ADDR) {
+          compaction.changedValues.remove(id);
+        }
+        else if (copy == null || copy.valueAddress != record) {
+          PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
+          long newRecord = compaction.newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+          compaction.changedValues.put(id, new ChangedValue<>(key, record, newRecord));
+          compaction.changedValuesCopied++;
+        }
+      }
+    }
+    finally {
+      myEnumerator.unlockStorage();
+    }
+  }
 
-      File newDataFile = new File(newPath);
-      final String newBaseName = newDataFile.getName();
-      final File[] newFiles = getFilesInDirectoryWithNameStartingWith(newDataFile, newBaseName);
+  private void finishIncrementalCompaction(@Nonnull IncrementalCompaction<Key> compaction) throws IOException {
+    copyChangedValues(compaction, compaction.pendingKeys.size());
 
-      if (newFiles != null) {
-        File parentFile = newDataFile.getParentFile();
+    myEnumerator.lockStorage();
+    try {
+      // from now on some of the values may point into the new storage
+      myEnumerator.markDirty(true);
+      myLiveAndGarbageKeysCounter = 0;
+      myReadCompactionGarbageSize = 0;
 
-        // newFiles should get the same names as oldDataFiles
-        for (File f : newFiles) {
-          String nameAfterRename = StringUtil.replace(f.getName(), newBaseName, oldDataFileBaseName);
-          FileUtil.rename(f, new File(parentFile, nameAfterRename));
+      for (CompactionRecordInfo info : compaction.infos) {
+        if (compaction.changedRecords.contains(compactionRecordId(info))) continue;
+        updateValueId(info.address, info.newValueAddress, info.valueAddress, null, info.key);
+        myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+      }
+      for (ChangedValue<Key> value : compaction.changedValues.values()) {
+        int id;
+        long record;
+        if (myDirectlyStoreLongFileOffsetMode) {
+          id = -1;
+          record = ((PersistentBTreeEnumerator<Key>)myEnumerator).getNonNegativeValue(value.key);
+        }
+        else {
+          id = tryEnumerate(value.key);
+          record = readValueId(id);
         }
+        // copies made under a record id the key had before its re-enumeration are outdated
+        if (record != value.valueAddress) continue;
+        updateValueId(id, value.newValueAddress, value.valueAddress, value.key,
+                      myDirectlyStoreLongFileOffsetMode ? ((InlineKeyDescriptor<Key>)myKeyDescriptor).toInt(value.key) : 0);
+        myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
       }
+    }
+    catch (IOException | RuntimeException e) {
+      myEnumerator.markCorrupted();
+      throw e;
+    }
+    finally {
+      myEnumerator.unlockStorage();
+    }
+
+    myIncrementalCompaction = null;
+    myCompactionProgress = -1;
+    compaction.newStorage.dispose();
+    // values appended meanwhile may have added files to the old storage, e.g. chunks of a compressed one outgrowing its first page
+    myValueStorage.force();
+    final File oldDataFile = getDataFile(myEnumerator.myFile);
+    final String newBaseName = new File(compaction.newPath).getName();
+    final File parentFile = oldDataFile.getParentFile();
+    final File[] oldFiles = parentFile != null ? parentFile.listFiles(
+      file -> file.getName().startsWith(oldDataFile.getName()) && !file.getName().startsWith(newBaseName)) : null;
+    replaceValueStorage(oldFiles, compaction.newPath);
+    LOG.info("Compacted incrementally " + myEnumerator.myFile.getPath() + ":" + compaction.sizeBefore + " bytes into " +
+             compaction.newStorage.getSize() + " bytes in " + (System.currentTimeMillis() - compaction.started) + "ms, " +
+             "values copied again after a change:" + compaction.changedValuesCopied);
+  }
 
-      myValueStorage = PersistentHashMapValueStorage.create(oldDataFile.getPath(), options);
-      LOG.info("Compacted " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize + " bytes in " + (System.currentTimeMillis() - now) + "ms.");
-      myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
-      myEnumerator.putMetaData2(myLargeIndexWatermarkId);
-      if (myDoTrace) LOG.assertTrue(myEnumerator.isDirty());
+  private void cancelIncrementalCompaction() {
+    IncrementalCompaction<Key> compaction = myIncrementalCompaction;
+    if (compaction == null) return;
+    myIncrementalCompaction = null;
+    myCompactionProgress = -1;
+    myValueStorage.switchFromCompactionMode();
+    try {
+      compaction.newStorage.dispose();
+    }
+    finally {
+      deleteFilesStartingWith(new File(compaction.newPath));
     }
   }
 
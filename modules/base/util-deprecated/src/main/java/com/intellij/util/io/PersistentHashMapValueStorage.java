@@ -33,6 +33,8 @@ public class PersistentHashMapValueStorage {
   private final CreationTimeOptions myOptions;
 
   private boolean myCompactionMode;
+  // the map keeps appending values while they are being copied by an incremental compaction
+  private boolean myAppendsInCompactionMode;
 
   private static final int CACHE_PROTECTED_QUEUE_SIZE = 10;
   private static final int CACHE_PROBATIONAL_QUEUE_SIZE = 20;
@@ -195,7 +197,7 @@ public class PersistentHashMapValueStorage {
   }
 
   private long doAppendBytes(byte[] data, int offset, int dataLength, long prevChunkAddress) throws IOException {
-    if (!allowedToCompactChunks()) throw new AssertionError();
+    if (myOptions.myReadOnly || myCompactionMode && !myAppendsInCompactionMode) throw new AssertionError();
     if (prevChunkAddress != 0 && myOptions.myHasNoChunks) throw new AssertionError();
     long result = mySize; // volatile read
     final FileAccessorCache.Handle<DataOutputStream> appender = myCompressedAppendableFile != null ? null : ourAppendersCache.get(myPath);
@@ -698,6 +700,14 @@ public class PersistentHashMapValueStorage {
   }
 
   void switchToCompactionMode() {
+    switchToCompactionMode(false);
+  }
+
+  /**
+   * @param appendsAllowed true if values are still appended while the storage is being compacted, then only chunks compaction
+   *                       on read, which moves values of unchanged keys, is disabled
+   */
+  void switchToCompactionMode(boolean appendsAllowed) {
     ourReadersCache.remove(myPath);
 
     ourRandomAccessFileCache.remove(myPath);
@@ -721,6 +731,17 @@ public class PersistentHashMapValueStorage {
     }
 
     myCompactionMode = true;
+    myAppendsInCompactionMode = appendsAllowed;
+  }
+
+  // for a cancelled incremental compaction of the map, which keeps using this storage
+  void switchFromCompactionMode() {
+    if (myCompactionModeReader != null) {
+      myCompactionModeReader.dispose();
+      myCompactionModeReader = null;
+    }
+    myCompactionMode = false;
+    myAppendsInCompactionMode = false;
   }
 
   public static PersistentHashMapValueStorage create(final String path, boolean readOnly) {
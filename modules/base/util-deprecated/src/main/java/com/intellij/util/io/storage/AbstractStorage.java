@@ -33,6 +33,7 @@ import consulo.logging.Logger;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.TestOnly;
 
+import javax.annotation.Nonnull;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
@@ -244,7 +245,14 @@ public abstract class AbstractStorage implements Disposable, Forceable {
   }
 
   public AppenderStream appendStream(int record) {
-    return new AppenderStream(record);
+    return new AppenderStream(record, myCapacityAllocationPolicy);
+  }
+
+  /**
+   * @param capacityAllocationPolicy used instead of the storage one if the record has to be reallocated on close
+   */
+  public AppenderStream appendStream(int record, @Nonnull CapacityAllocationPolicy capacityAllocationPolicy) {
+    return new AppenderStream(record, capacityAllocationPolicy);
   }
 
   public DataInputStream readStream(int record) throws IOException {
@@ -267,6 +275,10 @@ public abstract class AbstractStorage implements Disposable, Forceable {
   }
 
   protected void appendBytes(int record, ByteArraySequence bytes) throws IOException {
+    appendBytes(record, bytes, myCapacityAllocationPolicy);
+  }
+
+  protected void appendBytes(int record, ByteArraySequence bytes, @Nonnull CapacityAllocationPolicy capacityAllocationPolicy) throws IOException {
     final int delta = bytes.getLength();
     if (delta == 0) return;
 
@@ -279,10 +291,10 @@ public abstract class AbstractStorage implements Disposable, Forceable {
           final byte[] newbytes = new byte[newSize];
           System.arraycopy(readBytes(record), 0, newbytes, 0, oldSize);
           System.arraycopy(bytes.getBytes(), bytes.getOffset(), newbytes, oldSize, delta);
-          writeBytes(record, new ByteArraySequence(newbytes), false);
+          writeBytes(record, new ByteArraySequence(newbytes), capacityAllocationPolicy);
         }
         else {
-          writeBytes(record, bytes, false);
+          writeBytes(record, bytes, capacityAllocationPolicy);
         }
       }
       else {
@@ -294,6 +306,10 @@ public abstract class AbstractStorage implements Disposable, Forceable {
   }
 
   public void writeBytes(int record, ByteArraySequence bytes, boolean fixedSize) throws IOException {
+    writeBytes(record, bytes, fixedSize ? CapacityAllocationPolicy.FIXED : myCapacityAllocationPolicy);
+  }
+
+  private void writeBytes(int record, ByteArraySequence bytes, @Nonnull CapacityAllocationPolicy capacityAllocationPolicy) throws IOException {
     synchronized (myLock) {
       final int requiredLength = bytes.getLength();
       final int currentCapacity = myRecordsTable.getCapacity(record);
@@ -310,7 +326,7 @@ public abstract class AbstractStorage implements Disposable, Forceable {
       else {
         myDataTable.reclaimSpace(currentCapacity);
 
-        int newCapacity = fixedSize ? requiredLength:myCapacityAllocationPolicy.calculateCapacity(requiredLength);
+        int newCapacity = capacityAllocationPolicy.calculateCapacity(requiredLength);
         if (newCapacity < requiredLength) newCapacity = requiredLength;
         address = myDataTable.allocateSpace(newCapacity);
         myRecordsTable.setAddress(record, address);
@@ -392,17 +408,20 @@ public abstract class AbstractStorage implements Disposable, Forceable {
 
   public class AppenderStream extends DataOutputStream {
     private final int myRecordId;
+    @Nonnull
+    private final CapacityAllocationPolicy myCapacityAllocationPolicy;
 
-    private AppenderStream(int recordId) {
+    private AppenderStream(int recordId, @Nonnull CapacityAllocationPolicy capacityAllocationPolicy) {
       super(new BufferExposingByteArrayOutputStream());
       myRecordId = recordId;
+      myCapacityAllocationPolicy = capacityAllocationPolicy;
     }
 
     @Override
     public void close() throws IOException {
       super.close();
       final BufferExposingByteArrayOutputStream _out = (BufferExposingByteArrayOutputStream)out;
-      appendBytes(myRecordId, new ByteArraySequence(_out.getInternalBuffer(), 0, _out.size()));
+      appendBytes(myRecordId, new ByteArraySequence(_out.getInternalBuffer(), 0, _out.size()), myCapacityAllocationPolicy);
     }
   }
 }
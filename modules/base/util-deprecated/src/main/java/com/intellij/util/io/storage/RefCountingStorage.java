@@ -133,7 +133,7 @@ public class RefCountingStorage extends AbstractStorage {
   }
 
   @Override
-  protected void appendBytes(int record, ByteArraySequence bytes) throws IOException {
+  protected void appendBytes(int record, ByteArraySequence bytes, @Nonnull CapacityAllocationPolicy capacityAllocationPolicy) throws IOException {
     throw new IncorrectOperationException("Appending is not supported");
   }
 
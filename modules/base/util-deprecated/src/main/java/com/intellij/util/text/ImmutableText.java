@@ -66,6 +66,14 @@ final class ImmutableText extends ImmutableCharSequence implements CharArrayExte
    */
   private static final int BLOCK_MASK = ~(BLOCK_SIZE - 1);
 
+  /**
+   * Texts longer than this are created already split into leaves of {@link #LARGE_LEAF_SIZE} characters.
+   * Each leaf is stored in 8 bits if possible independently of the others, and the first modification of such a text doesn't have
+   * to split a huge leaf into millions of {@link #BLOCK_SIZE} blocks.
+   */
+  private static final int LARGE_TEXT_LENGTH = 1 << 20;
+  private static final int LARGE_LEAF_SIZE = 1 << 13;
+
   private final Node myNode;
 
   private ImmutableText(Node node) {
@@ -85,7 +93,20 @@ final class ImmutableText extends ImmutableCharSequence implements CharArrayExte
   }
 
   private static ImmutableText valueOf(@Nonnull CharSequence str) {
-    return new ImmutableText(createLeafNode(str));
+    int length = str.length();
+    return new ImmutableText(length > LARGE_TEXT_LENGTH ? createLargeNode(str, 0, length) : createLeafNode(str));
+  }
+
+  private static Node createLargeNode(@Nonnull CharSequence str, int start, int end) {
+    int length = end - start;
+    if (length <= LARGE_LEAF_SIZE) {
+      char[] chars = CharArrayUtil.fromSequence(str, start, end);
+      byte[] bytes = toBytesIfPossible(new CharArrayCharSequence(chars));
+      return bytes != null ? new Leaf8BitNode(bytes) : new WideLeafNode(chars);
+    }
+    // Splits on a leaf boundary.
+    int half = ((length + LARGE_LEAF_SIZE) >> 1) & ~(LARGE_LEAF_SIZE - 1);
+    return new CompositeNode(createLargeNode(str, start, start + half), createLargeNode(str, start + half, end));
   }
 
   private static LeafNode createLeafNode(@Nonnull CharSequence str) {
@@ -252,6 +252,21 @@ public class DiffTreeTest extends TestCase {
     performTest(r1, r2, "REPLACED: 3 to 5");
   }
 
+  public void testBoundedDiffReplacesSubtree() throws Exception {
+    Node r1 = new Node(0,0, new Node(1,0, new Node(2,0), new Node(3,1), new Node(4,2)));
+    Node r2 = new Node(0,0, new Node(1,0, new Node(2,0), new Node(3,1, new Node(6,1)), new Node(4,2)));
+
+    performBoundedTest(r1, r2, 2, "REPLACED: 1 to 1");
+    performBoundedTest(r1, r2, 8, "REPLACED: 3 to 3");
+    performBoundedTest(r1, r2, 100, "INSERTED to 3: 6 at 0");
+  }
+
+  private static void performBoundedTest(final Node r1, final Node r2, int maxNodesToCompare, final String... expected) {
+    final DiffBuilder result = new DiffBuilder();
+    DiffTree.diff(new TreeStructure(r1), new TreeStructure(r2), new NodeComparator(), result, r1.toString(), maxNodesToCompare);
+    assertEquals(Arrays.asList(expected), result.getEvents());
+  }
+
   private static void performTest(final Node r1, final Node r2, final String... expected) {
     final DiffBuilder result = new DiffBuilder();
     DiffTree.diff(new TreeStructure(r1), new TreeStructure(r2), new NodeComparator(), result, r1.toString());
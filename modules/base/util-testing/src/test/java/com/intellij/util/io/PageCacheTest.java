@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+public class PageCacheTest extends TestCase {
+  public void testLruEvictsLeastRecentlyUsed() {
+    PageCache cache = new PageCache.Lru();
+    put(cache, 1, 2, 3);
+    cache.get(1);
+
+    assertEquals(Integer.valueOf(2), cache.selectVictim());
+  }
+
+  public void testLruSkipsPinnedPages() {
+    checkSkipsPinnedPages(new PageCache.Lru());
+  }
+
+  public void testClockSkipsPinnedPages() {
+    checkSkipsPinnedPages(new PageCache.Clock());
+  }
+
+  public void testClockGivesSecondChance() {
+    PageCache cache = new PageCache.Clock();
+    put(cache, 1, 2, 3);
+
+    // all the pages are referenced when put: the first round clears the bits, the second one takes the oldest page
+    assertEquals(Integer.valueOf(1), cache.selectVictim());
+    cache.remove(1);
+
+    // the hand is at 2 now, but it was referenced again
+    cache.get(2);
+    assertEquals(Integer.valueOf(3), cache.selectVictim());
+    cache.remove(3);
+
+    assertEquals(Integer.valueOf(2), cache.selectVictim());
+  }
+
+  public void testClockSkipsRemovedPages() {
+    PageCache cache = new PageCache.Clock();
+    put(cache, 1, 2);
+    cache.remove(1);
+
+    assertEquals(Integer.valueOf(2), cache.selectVictim());
+    cache.remove(2);
+    assertNull(cache.selectVictim());
+  }
+
+  public void testClockDropsRemovedPagesWithoutEviction() {
+    PageCache.Clock cache = new PageCache.Clock();
+    put(cache, 1, 2, 3);
+
+    // pages are removed below the size limit too, e.g. on resize and close, with no victim selected
+    for (int i = 0; i < 10_000; i++) {
+      int key = 100 + i % 10;
+      cache.put(key, new TestWrapper());
+      cache.remove(key);
+    }
+    // re-putting a page replaces it
+    for (int i = 0; i < 10_000; i++) {
+      cache.put(1, new TestWrapper());
+    }
+
+    assertTrue(String.valueOf(cache.getClockSize()), cache.getClockSize() <= 2 * 3 + 1);
+    assertEquals(3, cache.snapshot().size());
+  }
+
+  public void testPinFailsOnEvictedWrapper() {
+    ByteBufferWrapper wrapper = new TestWrapper();
+    assertTrue(wrapper.tryMarkEvicted());
+
+    assertFalse(wrapper.tryPin());
+    assertFalse(wrapper.isPinned());
+  }
+
+  public void testPinFailsOnReleasedWrapper() {
+    ByteBufferWrapper wrapper = new TestWrapper();
+    wrapper.markReleased();
+
+    assertFalse(wrapper.tryPin());
+    assertFalse(wrapper.isPinned());
+    // nobody holds the wrapper, so it can still be disposed
+    assertTrue(wrapper.tryMarkEvicted());
+  }
+
+  public void testPinnedWrapperIsNotEvicted() {
+    ByteBufferWrapper wrapper = new TestWrapper();
+    assertTrue(wrapper.tryPin());
+    assertFalse(wrapper.tryMarkEvicted());
+
+    wrapper.unpin();
+    assertTrue(wrapper.tryMarkEvicted());
+  }
+
+  private static void checkSkipsPinnedPages(PageCache cache) {
+    put(cache, 1, 2);
+    ByteBufferWrapper first = cache.get(1);
+    ByteBufferWrapper second = cache.get(2);
+    assertTrue(first.tryPin());
+
+    assertEquals(Integer.valueOf(2), cache.selectVictim());
+    assertFalse(second.tryPin());
+    cache.remove(2);
+
+    assertNull(cache.selectVictim());
+
+    first.unpin();
+    assertEquals(Integer.valueOf(1), cache.selectVictim());
+  }
+
+  private static void put(PageCache cache, int... keys) {
+    for (int key : keys) {
+      cache.put(key, new TestWrapper());
+    }
+  }
+
+  private static class TestWrapper extends ByteBufferWrapper {
+    TestWrapper() {
+      super(new File("page"), 0, 1);
+    }
+
+    @Override
+    public ByteBuffer getCachedBuffer() {
+      return null;
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+      return null;
+    }
+
+    @Override
+    public void unmap() {
+    }
+
+    @Override
+    public void flush() {
+    }
+  }
+}
@@ -20,6 +20,7 @@ import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -84,6 +85,89 @@ public class PagedFileStorageTest extends TestCase {
     }
   }
 
+  public void testBulkAccessAcrossPages() throws IOException {
+    lock.lock();
+    try {
+      checkBulkAccessAcrossPages(s);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void testBulkAccessAcrossPagesWithLruPageCache() throws IOException {
+    String property = "idea.paged.storage.cache.policy";
+    String oldValue = System.setProperty(property, "lru");
+    PagedFileStorage.StorageLock lruLock;
+    try {
+      lruLock = new PagedFileStorage.StorageLock();
+    }
+    finally {
+      if (oldValue == null) System.clearProperty(property);
+      else System.setProperty(property, oldValue);
+    }
+
+    File file = FileUtil.createTempFile("lru-storage", ".tmp");
+    lruLock.lock();
+    try {
+      PagedFileStorage storage = new PagedFileStorage(file, lruLock, 4096, false);
+      checkBulkAccessAcrossPages(storage);
+      storage.close();
+    } finally {
+      lruLock.unlock();
+      FileUtil.delete(file);
+    }
+  }
+
+  public void testReleasedPinnedPageIsDisposedAfterUnpin() throws IOException {
+    File file = FileUtil.createTempFile("pinned-storage", ".tmp");
+    lock.lock();
+    try {
+      PagedFileStorage storage = new PagedFileStorage(file, lock, 4096, false);
+      storage.resize(4096 + 100);
+      storage.put(4100, (byte)42);
+
+      ByteBufferWrapper wrapper = storage.tryPinCachedPage(4100);
+      assertNotNull(wrapper);
+
+      // resizing releases the last page, a lock-free reader still holds it
+      storage.resize(3 * 4096);
+      assertTrue(wrapper.isReleased());
+      assertFalse(wrapper.tryPin());
+      ByteBuffer buffer = wrapper.getCachedBuffer();
+      assertNotNull(buffer);
+      assertEquals(42, buffer.get(4));
+
+      wrapper.unpin();
+      // the next page mapping disposes the removed segments
+      storage.resize(4 * 4096);
+      assertNull(wrapper.getCachedBuffer());
+      assertEquals(42, storage.get(4100));
+      storage.close();
+    } finally {
+      lock.unlock();
+      FileUtil.delete(file);
+    }
+  }
+
+  private static void checkBulkAccessAcrossPages(PagedFileStorage storage) throws IOException {
+    int size = 100000;
+    storage.resize(size);
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte)(i * 31);
+    }
+    storage.put(0, data, 0, size);
+
+    byte[] read = new byte[10000];
+    for (int offset = 0; offset + read.length <= size; offset += 7777) {
+      storage.get(offset, read, 0, read.length);
+      for (int i = 0; i < read.length; i++) {
+        assertEquals(data[offset + i], read[i]);
+      }
+      assertEquals(data[offset], storage.get(offset));
+    }
+  }
+
   public void _testResizeableMappedFile() throws Exception {
     lock.lock();
     try {
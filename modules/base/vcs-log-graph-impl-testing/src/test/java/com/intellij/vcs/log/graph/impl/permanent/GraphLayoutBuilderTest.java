@@ -18,14 +18,22 @@ package com.intellij.vcs.log.graph.impl.permanent;
 
 import com.intellij.vcs.log.graph.AbstractTestWithTwoTextFile;
 import com.intellij.vcs.log.graph.GraphCommit;
+import com.intellij.vcs.log.graph.api.EdgeFilter;
 import com.intellij.vcs.log.graph.api.GraphLayout;
+import com.intellij.vcs.log.graph.api.LinearGraph;
+import com.intellij.vcs.log.graph.api.elements.GraphEdge;
+import com.intellij.vcs.log.graph.api.elements.GraphNode;
 import com.intellij.vcs.log.graph.impl.CommitIdManager;
+import com.intellij.vcs.log.graph.parser.SimpleCommit;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 
 import static com.intellij.vcs.log.graph.GraphStrUtils.permanentGraphLayoutModelToStr;
 import static org.junit.Assert.assertEquals;
@@ -81,6 +89,72 @@ public abstract class GraphLayoutBuilderTest<CommitId> extends AbstractTestWithT
     doTest("headsOrder");
   }
 
+  @Test
+  public void largeGraphLayoutIsSameAsGeneric() {
+    int commitsCount = 150_000;
+    Random random = new Random(42);
+    List<GraphCommit<Integer>> commits = new ArrayList<>(commitsCount);
+    for (int i = 0; i < commitsCount; i++) {
+      List<Integer> parents = new ArrayList<>();
+      parents.add(random.nextInt(10) == 0 ? i + 2 + random.nextInt(30) : i + 1);
+      if (random.nextInt(10) == 0) parents.add(i + 2 + random.nextInt(100));
+      commits.add(new SimpleCommit<>(i, parents, commitsCount - i));
+    }
+    PermanentLinearGraphImpl graph = PermanentLinearGraphBuilder.newInstance(commits).build();
+
+    // the order of heads decides which head a node shared by several heads is laid out with
+    List<Comparator<Integer>> comparators = new ArrayList<>();
+    comparators.add(Comparator.naturalOrder());
+    comparators.add(Comparator.reverseOrder());
+    comparators.add(Comparator.comparingInt(node -> Integer.reverse(node)));
+    for (Comparator<Integer> comparator : comparators) {
+      GraphLayout layout = GraphLayoutBuilder.build(graph, comparator);
+      GraphLayout genericLayout = GraphLayoutBuilder.build(new DelegatingLinearGraph(graph), comparator);
+
+      assertEquals(genericLayout.getHeadNodeIndex(), layout.getHeadNodeIndex());
+      for (int i = 0; i < graph.nodesCount(); i++) {
+        assertEquals(genericLayout.getLayoutIndex(i), layout.getLayoutIndex(i));
+        assertEquals(genericLayout.getOneOfHeadNodeIndex(i), layout.getOneOfHeadNodeIndex(i));
+      }
+    }
+  }
+
+  private static class DelegatingLinearGraph implements LinearGraph {
+    @Nonnull private final LinearGraph myDelegate;
+
+    private DelegatingLinearGraph(@Nonnull LinearGraph delegate) {
+      myDelegate = delegate;
+    }
+
+    @Override
+    public int nodesCount() {
+      return myDelegate.nodesCount();
+    }
+
+    @Nonnull
+    @Override
+    public List<GraphEdge> getAdjacentEdges(int nodeIndex, @Nonnull EdgeFilter filter) {
+      return myDelegate.getAdjacentEdges(nodeIndex, filter);
+    }
+
+    @Nonnull
+    @Override
+    public GraphNode getGraphNode(int nodeIndex) {
+      return myDelegate.getGraphNode(nodeIndex);
+    }
+
+    @Override
+    public int getNodeId(int nodeIndex) {
+      return myDelegate.getNodeId(nodeIndex);
+    }
+
+    @Nullable
+    @Override
+    public Integer getNodeIndex(int nodeId) {
+      return myDelegate.getNodeIndex(nodeId);
+    }
+  }
+
   public static class StringTest extends GraphLayoutBuilderTest<String> {
     @Override
     protected CommitIdManager<String> getCommitIdManager() {
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.graph.impl.permanent;
+
+import com.intellij.vcs.log.graph.GraphColorManager;
+import com.intellij.vcs.log.graph.GraphCommit;
+import com.intellij.vcs.log.graph.api.EdgeFilter;
+import com.intellij.vcs.log.graph.impl.facade.PermanentGraphImpl;
+import com.intellij.vcs.log.graph.parser.SimpleCommit;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PermanentGraphSnapshotTest {
+  private static final int COMMITS_COUNT = 2000;
+  private static final int NEW_COMMITS_COUNT = 300;
+
+  @Test
+  public void restoredGraphIsSameAsBuilt() throws IOException {
+    List<GraphCommit<Integer>> commits = generateCommits();
+    PermanentGraphImpl<Integer> graph = PermanentGraphImpl.newInstance(commits, new ColorManager(false), Collections.emptySet());
+
+    PermanentGraphSnapshot snapshot = PermanentGraphSnapshot.read(write(graph, 42));
+    assertNotNull(snapshot);
+    PermanentGraphImpl<Integer> restored = PermanentGraphImpl.newInstance(commits, new ColorManager(false), Collections.emptySet(), snapshot);
+    assertNotNull(restored);
+
+    assertFalse(graph.getPermanentCommitsInfo().getNotLoadedCommits().isEmpty());
+    assertEquals(graph.getPermanentCommitsInfo().getNotLoadedCommits(), restored.getPermanentCommitsInfo().getNotLoadedCommits());
+    assertEquals(toStr(graph.getAllCommits()), toStr(restored.getAllCommits()));
+    assertSameLayout(graph, restored);
+  }
+
+  @Test
+  public void layoutIsRebuiltWhenHeadsOrderChanges() throws IOException {
+    List<GraphCommit<Integer>> commits = generateCommits();
+    PermanentGraphImpl<Integer> graph = PermanentGraphImpl.newInstance(commits, new ColorManager(false), Collections.emptySet());
+
+    PermanentGraphSnapshot snapshot = PermanentGraphSnapshot.read(write(graph, 42));
+    assertNotNull(snapshot);
+    PermanentGraphImpl<Integer> restored = PermanentGraphImpl.newInstance(commits, new ColorManager(true), Collections.emptySet(), snapshot);
+    assertNotNull(restored);
+
+    PermanentGraphImpl<Integer> expected = PermanentGraphImpl.newInstance(commits, new ColorManager(true), Collections.emptySet());
+    assertNotEquals(graph.getPermanentGraphLayout().getHeadNodeIndex(), expected.getPermanentGraphLayout().getHeadNodeIndex());
+    assertSameLayout(expected, restored);
+  }
+
+  @Test
+  public void snapshotOfOtherCommitsIsNotRead() throws IOException {
+    List<GraphCommit<Integer>> commits = generateCommits();
+    PermanentGraphImpl<Integer> graph = PermanentGraphImpl.newInstance(commits, new ColorManager(false), Collections.emptySet());
+    long fingerprint = PermanentGraphSnapshot.fingerprint(commits);
+
+    List<GraphCommit<Integer>> otherCommits = new ArrayList<>(commits);
+    GraphCommit<Integer> last = otherCommits.remove(otherCommits.size() - 1);
+    otherCommits.add(new SimpleCommit<>(last.getId(), Collections.emptyList(), last.getTimestamp()));
+    assertNotEquals(fingerprint, PermanentGraphSnapshot.fingerprint(otherCommits));
+
+    PermanentGraphSnapshot snapshot = PermanentGraphSnapshot.read(write(graph, fingerprint));
+    assertNotNull(snapshot);
+    assertNull(PermanentGraphImpl.newInstance(otherCommits, new ColorManager(false), Collections.emptySet(), snapshot));
+  }
+
+  @Test
+  public void newCommitsAreAddedToRestoredGraph() throws IOException {
+    List<GraphCommit<Integer>> commits = generateCommits();
+    List<GraphCommit<Integer>> oldCommits = commits.subList(NEW_COMMITS_COUNT, commits.size());
+    PermanentGraphImpl<Integer> oldGraph = PermanentGraphImpl.newInstance(oldCommits, new ColorManager(false), Collections.emptySet());
+
+    PermanentGraphSnapshot snapshot = PermanentGraphSnapshot.read(write(oldGraph, PermanentGraphSnapshot.fingerprint(oldCommits)));
+    assertNotNull(snapshot);
+    PermanentGraphImpl<Integer> restored = PermanentGraphImpl.newInstance(commits, new ColorManager(false), Collections.emptySet(), snapshot);
+    assertNotNull(restored);
+
+    PermanentGraphImpl<Integer> expected = PermanentGraphImpl.newInstance(commits, new ColorManager(false), Collections.emptySet());
+    assertEquals(expected.getPermanentCommitsInfo().getNotLoadedCommits(), restored.getPermanentCommitsInfo().getNotLoadedCommits());
+    for (int i = 0; i < commits.size(); i++) {
+      assertEquals(expected.getLinearGraph().getAdjacentEdges(i, EdgeFilter.ALL),
+                   restored.getLinearGraph().getAdjacentEdges(i, EdgeFilter.ALL));
+    }
+    assertEquals(toStr(expected.getAllCommits()), toStr(restored.getAllCommits()));
+    assertSameLayout(expected, restored);
+  }
+
+  @Test
+  public void newCommitsWithParentsNotInGraphAreNotAdded() throws IOException {
+    List<GraphCommit<Integer>> commits = new ArrayList<>(generateCommits());
+    List<GraphCommit<Integer>> oldCommits = new ArrayList<>(commits.subList(NEW_COMMITS_COUNT, commits.size()));
+    PermanentGraphImpl<Integer> oldGraph = PermanentGraphImpl.newInstance(oldCommits, new ColorManager(false), Collections.emptySet());
+    commits.set(0, new SimpleCommit<>(0, Collections.singletonList(COMMITS_COUNT + 1000), COMMITS_COUNT));
+
+    PermanentGraphSnapshot snapshot = PermanentGraphSnapshot.read(write(oldGraph, PermanentGraphSnapshot.fingerprint(oldCommits)));
+    assertNotNull(snapshot);
+    assertNull(PermanentGraphImpl.newInstance(commits, new ColorManager(false), Collections.emptySet(), snapshot));
+  }
+
+  @Test(expected = IOException.class)
+  public void truncatedSnapshotIsReported() throws IOException {
+    PermanentGraphImpl<Integer> graph = PermanentGraphImpl.newInstance(generateCommits(), new ColorManager(false), Collections.emptySet());
+    ByteBuffer buffer = write(graph, 42);
+    buffer.limit(buffer.limit() - 1);
+    PermanentGraphSnapshot.read(buffer);
+  }
+
+  private static void assertSameLayout(PermanentGraphImpl<Integer> expected, PermanentGraphImpl<Integer> actual) {
+    GraphLayoutImpl expectedLayout = expected.getPermanentGraphLayout();
+    GraphLayoutImpl actualLayout = actual.getPermanentGraphLayout();
+    assertEquals(expectedLayout.getHeadNodeIndex(), actualLayout.getHeadNodeIndex());
+    for (int i = 0; i < expected.getLinearGraph().nodesCount(); i++) {
+      assertEquals(expectedLayout.getLayoutIndex(i), actualLayout.getLayoutIndex(i));
+      assertEquals(expectedLayout.getOneOfHeadNodeIndex(i), actualLayout.getOneOfHeadNodeIndex(i));
+    }
+  }
+
+  private static ByteBuffer write(PermanentGraphImpl<Integer> graph, long fingerprint) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      PermanentGraphSnapshot.write(out, fingerprint, graph);
+    }
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  private static List<String> toStr(List<GraphCommit<Integer>> commits) {
+    List<String> result = new ArrayList<>();
+    for (GraphCommit<Integer> commit : commits) {
+      result.add(commit.getId() + " " + commit.getParents() + " " + commit.getTimestamp());
+    }
+    return result;
+  }
+
+  // parents of the last commits point past the end of the list, and become not loaded commits
+  private static List<GraphCommit<Integer>> generateCommits() {
+    Random random = new Random(42);
+    List<GraphCommit<Integer>> commits = new ArrayList<>(COMMITS_COUNT);
+    for (int i = 0; i < COMMITS_COUNT; i++) {
+      List<Integer> parents = new ArrayList<>();
+      parents.add(random.nextInt(10) == 0 ? i + 2 + random.nextInt(30) : i + 1);
+      if (random.nextInt(10) == 0) parents.add(i + 2 + random.nextInt(100));
+      commits.add(new SimpleCommit<>(i, parents, COMMITS_COUNT - i));
+    }
+    return commits;
+  }
+
+  private static class ColorManager implements GraphColorManager<Integer> {
+    private final boolean myReversed;
+
+    private ColorManager(boolean reversed) {
+      myReversed = reversed;
+    }
+
+    @Override
+    public int getColorOfBranch(Integer headCommit) {
+      return 0;
+    }
+
+    @Override
+    public int getColorOfFragment(Integer headCommit, int magicIndex) {
+      return 0;
+    }
+
+    @Override
+    public int compareHeads(Integer head1, Integer head2) {
+      return myReversed ? Integer.compare(head1, head2) : Integer.compare(head2, head1);
+    }
+  }
+}
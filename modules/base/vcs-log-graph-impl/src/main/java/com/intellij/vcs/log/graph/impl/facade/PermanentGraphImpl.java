@@ -19,6 +19,7 @@ package com.intellij.vcs.log.graph.impl.facade;
 
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.util.Condition;
 import com.intellij.util.Consumer;
 import com.intellij.util.Function;
@@ -52,17 +53,64 @@ public class PermanentGraphImpl<CommitId> implements PermanentGraph<CommitId>, P
     final PermanentCommitsInfoImpl<CommitId> commitIdPermanentCommitsInfo =
       PermanentCommitsInfoImpl.newInstance(graphCommits, idsGenerator.getNotLoadedCommits());
 
-    GraphLayoutImpl permanentGraphLayout = GraphLayoutBuilder.build(linearGraph, new Comparator<Integer>() {
+    GraphLayoutImpl permanentGraphLayout =
+      GraphLayoutBuilder.build(linearGraph, createHeadsComparator(commitIdPermanentCommitsInfo, graphColorManager));
+
+    return new PermanentGraphImpl<>(linearGraph, permanentGraphLayout, commitIdPermanentCommitsInfo, graphColorManager,
+                                    branchesCommitId);
+  }
+
+  /**
+   * Restores the graph of the commits from a snapshot taken for the same commits or for the bottom part of them,
+   * see {@link PermanentGraphSnapshot#restoreLinearGraph}.
+   * The stored layout is reused unless new commits were added, or the heads are ordered differently now,
+   * e.g. because the branches have changed.
+   *
+   * @return null if the snapshot was taken for other commits
+   */
+  @Nullable
+  public static PermanentGraphImpl<Integer> newInstance(@Nonnull List<? extends GraphCommit<Integer>> graphCommits,
+                                                        @Nonnull GraphColorManager<Integer> graphColorManager,
+                                                        @Nonnull Set<Integer> branchesCommitId,
+                                                        @Nonnull PermanentGraphSnapshot snapshot) {
+    PermanentLinearGraphImpl linearGraph = snapshot.restoreLinearGraph(graphCommits);
+    if (linearGraph == null) return null;
+    PermanentCommitsInfoImpl<Integer> commitsInfo = PermanentCommitsInfoImpl.newInstance(graphCommits, snapshot.getNotLoadedCommits());
+    Comparator<Integer> headsComparator = createHeadsComparator(commitsInfo, graphColorManager);
+
+    GraphLayoutImpl layout = snapshot.getLayout();
+    if (linearGraph != snapshot.getLinearGraph() || !isOrderedBy(layout.getHeadNodeIndex(), headsComparator)) {
+      layout = GraphLayoutBuilder.build(linearGraph, headsComparator);
+    }
+
+    return new PermanentGraphImpl<>(linearGraph, layout, commitsInfo, graphColorManager, branchesCommitId);
+  }
+
+  private static boolean isOrderedBy(@Nonnull List<Integer> heads, @Nonnull Comparator<Integer> headsComparator) {
+    try {
+      // heads are sorted in the order of node indexes first, the same way GraphLayoutBuilder finds them
+      return ContainerUtil.sorted(ContainerUtil.sorted(heads), headsComparator).equals(heads);
+    }
+    catch (ProcessCanceledException pce) {
+      throw pce;
+    }
+    catch (Exception e) {
+      // the layout is rebuilt then, and GraphLayoutBuilder reports the comparator flaw
+      return false;
+    }
+  }
+
+  @Nonnull
+  private static <CommitId> Comparator<Integer> createHeadsComparator(@Nonnull final PermanentCommitsInfoImpl<CommitId> permanentCommitsInfo,
+                                                                     @Nonnull final GraphColorManager<CommitId> graphColorManager) {
+    return new Comparator<Integer>() {
       @Override
       public int compare(@Nonnull Integer nodeIndex1, @Nonnull Integer nodeIndex2) {
-        CommitId commitId1 = commitIdPermanentCommitsInfo.getCommitId(nodeIndex1);
-        CommitId commitId2 = commitIdPermanentCommitsInfo.getCommitId(nodeIndex2);
+        CommitId commitId1 = permanentCommitsInfo.getCommitId(nodeIndex1);
+        CommitId commitId2 = permanentCommitsInfo.getCommitId(nodeIndex2);
         return graphColorManager.compareHeads(commitId2, commitId1);
       }
-    });
-
-    return new PermanentGraphImpl<>(linearGraph, permanentGraphLayout, commitIdPermanentCommitsInfo, graphColorManager,
-                                    branchesCommitId);
+    };
   }
 
   @Nonnull
@@ -24,8 +24,11 @@ import com.intellij.vcs.log.graph.utils.DfsUtil;
 import javax.annotation.Nonnull;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static com.intellij.vcs.log.graph.utils.LinearGraphUtils.getDownNodes;
 import static com.intellij.vcs.log.graph.utils.LinearGraphUtils.getUpNodes;
@@ -34,14 +37,14 @@ public class GraphLayoutBuilder {
 
   private static final Logger LOG = Logger.getInstance(GraphLayoutBuilder.class);
 
+  /**
+   * Layouts of graphs with fewer nodes are built in the calling thread only.
+   */
+  private static final int PARALLEL_THRESHOLD = 100_000;
+
   @Nonnull
   public static GraphLayoutImpl build(@Nonnull LinearGraph graph, @Nonnull Comparator<Integer> headNodeIndexComparator) {
-    List<Integer> heads = new ArrayList<>();
-    for (int i = 0; i < graph.nodesCount(); i++) {
-      if (getUpNodes(graph, i).size() == 0) {
-        heads.add(i);
-      }
-    }
+    List<Integer> heads = findHeads(graph);
     try {
       heads = ContainerUtil.sorted(heads, headNodeIndexComparator);
     }
@@ -52,10 +55,92 @@ public class GraphLayoutBuilder {
       // protection against possible comparator flaws
       LOG.error(e);
     }
+    if (graph instanceof PermanentLinearGraphImpl && graph.nodesCount() >= PARALLEL_THRESHOLD) {
+      return buildInParallel((PermanentLinearGraphImpl)graph, heads);
+    }
     GraphLayoutBuilder builder = new GraphLayoutBuilder(graph, heads);
     return builder.build();
   }
 
+  /**
+   * Same as {@link #build()}. The dfs of a head visits exactly the nodes which no head before it reaches, so the nodes are first given
+   * to the first head reaching them, in one pass in node order: down nodes of the permanent graph come after their up nodes.
+   * Then the heads number their own nodes in parallel, and the numbers are shifted by the layout indexes taken by the heads before.
+   */
+  @Nonnull
+  private static GraphLayoutImpl buildInParallel(@Nonnull PermanentLinearGraphImpl graph, @Nonnull List<Integer> heads) {
+    int[] owners = new int[graph.nodesCount()];
+    Arrays.fill(owners, Integer.MAX_VALUE);
+    for (int i = 0; i < heads.size(); i++) {
+      owners[heads.get(i)] = i;
+    }
+    for (int nodeIndex = 0; nodeIndex < owners.length; nodeIndex++) {
+      int owner = owners[nodeIndex];
+      graph.forEachDownNode(nodeIndex, childNodeIndex -> {
+        if (owner < owners[childNodeIndex]) owners[childNodeIndex] = owner;
+      });
+    }
+
+    int[] layoutIndex = new int[owners.length];
+    int[] layoutIndexCount = new int[heads.size()];
+    IntStream.range(0, heads.size()).parallel().forEach(i -> layoutIndexCount[i] = layoutOwnNodes(graph, heads.get(i), i, owners, layoutIndex));
+
+    int[] startLayoutIndexForHead = new int[heads.size()];
+    int currentLayoutIndex = 1;
+    for (int i = 0; i < heads.size(); i++) {
+      startLayoutIndexForHead[i] = currentLayoutIndex;
+      currentLayoutIndex += layoutIndexCount[i];
+    }
+    IntStream.range(0, layoutIndex.length).parallel().forEach(nodeIndex -> {
+      int owner = owners[nodeIndex];
+      if (owner != Integer.MAX_VALUE) layoutIndex[nodeIndex] += startLayoutIndexForHead[owner] - 1;
+    });
+    return new GraphLayoutImpl(layoutIndex, heads, startLayoutIndexForHead);
+  }
+
+  /**
+   * The dfs of {@link #build()} for one head, over the nodes it owns only, with layout indexes starting from 1.
+   *
+   * @return the count of layout indexes taken
+   */
+  private static int layoutOwnNodes(@Nonnull PermanentLinearGraphImpl graph, int headNodeIndex, int owner, @Nonnull int[] owners, @Nonnull int[] layoutIndex) {
+    int[] currentLayoutIndex = {1};
+    new DfsUtil().nodeDfsIterator(headNodeIndex, currentNode -> {
+      boolean firstVisit = layoutIndex[currentNode] == 0;
+      if (firstVisit) layoutIndex[currentNode] = currentLayoutIndex[0];
+
+      int childWithoutLayoutIndex = graph.findDownNode(currentNode, childNodeIndex -> owners[childNodeIndex] == owner && layoutIndex[childNodeIndex] == 0);
+      if (childWithoutLayoutIndex == -1) {
+        if (firstVisit) currentLayoutIndex[0]++;
+
+        return DfsUtil.NextNode.NODE_NOT_FOUND;
+      }
+      return childWithoutLayoutIndex;
+    });
+    return currentLayoutIndex[0] - 1;
+  }
+
+  @Nonnull
+  private static List<Integer> findHeads(@Nonnull LinearGraph graph) {
+    if (!(graph instanceof PermanentLinearGraphImpl)) {
+      List<Integer> heads = new ArrayList<>();
+      for (int i = 0; i < graph.nodesCount(); i++) {
+        if (getUpNodes(graph, i).size() == 0) {
+          heads.add(i);
+        }
+      }
+      return heads;
+    }
+
+    // the permanent graph is immutable and answers without creating edges, so large graphs are scanned by all cores
+    PermanentLinearGraphImpl permanentGraph = (PermanentLinearGraphImpl)graph;
+    IntStream nodes = IntStream.range(0, graph.nodesCount());
+    if (graph.nodesCount() >= PARALLEL_THRESHOLD) {
+      nodes = nodes.parallel();
+    }
+    return nodes.filter(i -> !permanentGraph.hasUpNodes(i)).boxed().collect(Collectors.toList());
+  }
+
   @Nonnull
   private final LinearGraph myGraph;
   @Nonnull
@@ -79,6 +164,18 @@ public class GraphLayoutBuilder {
     myStartLayoutIndexForHead = new int[headNodeIndex.size()];
   }
 
+  private int findChildWithoutLayoutIndex(int nodeIndex) {
+    if (myGraph instanceof PermanentLinearGraphImpl) {
+      return ((PermanentLinearGraphImpl)myGraph).findDownNode(nodeIndex, childNodeIndex -> myLayoutIndex[childNodeIndex] == 0);
+    }
+    for (int childNodeIndex : getDownNodes(myGraph, nodeIndex)) {
+      if (myLayoutIndex[childNodeIndex] == 0) {
+        return childNodeIndex;
+      }
+    }
+    return -1;
+  }
+
   private void dfs(int nodeIndex) {
     myDfsUtil.nodeDfsIterator(nodeIndex, new DfsUtil.NextNode() {
       @Override
@@ -86,13 +183,7 @@ public class GraphLayoutBuilder {
         boolean firstVisit = myLayoutIndex[currentNode] == 0;
         if (firstVisit) myLayoutIndex[currentNode] = currentLayoutIndex;
 
-        int childWithoutLayoutIndex = -1;
-        for (int childNodeIndex : getDownNodes(myGraph, currentNode)) {
-          if (myLayoutIndex[childNodeIndex] == 0) {
-            childWithoutLayoutIndex = childNodeIndex;
-            break;
-          }
-        }
+        int childWithoutLayoutIndex = findChildWithoutLayoutIndex(currentNode);
 
         if (childWithoutLayoutIndex == -1) {
           if (firstVisit) currentLayoutIndex++;
@@ -32,7 +32,11 @@ public class GraphLayoutImpl implements GraphLayout {
   private final int[] myStartLayoutIndexForHead;
 
   public GraphLayoutImpl(@Nonnull int[] layoutIndex, @Nonnull List<Integer> headNodeIndex, @Nonnull int[] startLayoutIndexForHead) {
-    myLayoutIndex = CompressedIntList.newInstance(layoutIndex);
+    this(CompressedIntList.newInstance(layoutIndex), headNodeIndex, startLayoutIndexForHead);
+  }
+
+  /*package*/ GraphLayoutImpl(@Nonnull IntList layoutIndex, @Nonnull List<Integer> headNodeIndex, @Nonnull int[] startLayoutIndexForHead) {
+    myLayoutIndex = layoutIndex;
     myHeadNodeIndex = headNodeIndex;
     myStartLayoutIndexForHead = startLayoutIndexForHead;
   }
@@ -56,6 +60,11 @@ public class GraphLayoutImpl implements GraphLayout {
     return myHeadNodeIndex;
   }
 
+  @Nonnull
+  /*package*/ int[] getStartLayoutIndexForHead() {
+    return myStartLayoutIndexForHead;
+  }
+
   private int getHeadOrder(int layoutIndex) {
     int a = 0;
     int b = myStartLayoutIndexForHead.length - 1;
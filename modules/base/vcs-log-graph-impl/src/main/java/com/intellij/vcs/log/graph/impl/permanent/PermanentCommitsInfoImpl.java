@@ -132,6 +132,11 @@ public class PermanentCommitsInfoImpl<CommitId> implements PermanentCommitsInfo<
     return myTimestampGetter;
   }
 
+  @Nonnull
+  /*package*/ Map<Integer, CommitId> getNotLoadedCommits() {
+    return myNotLoadCommits;
+  }
+
   // todo optimize with special map
   @Override
   public int getNodeId(@Nonnull CommitId commitId) {
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.graph.impl.permanent;
+
+import com.intellij.vcs.log.graph.GraphCommit;
+import com.intellij.vcs.log.graph.impl.facade.PermanentGraphImpl;
+import com.intellij.vcs.log.graph.utils.Flags;
+import com.intellij.vcs.log.graph.utils.IntList;
+import com.intellij.vcs.log.graph.utils.impl.BitSetFlags;
+import com.intellij.vcs.log.graph.utils.impl.IntBufferList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * Serialized form of a {@link PermanentLinearGraphImpl}, its {@link GraphLayoutImpl} and the ids of not loaded commits,
+ * built for a list of commits with integer ids.
+ * <p>
+ * Together with the same list of commits a snapshot restores a {@link PermanentGraphImpl} without rebuilding it,
+ * see {@link PermanentGraphImpl#newInstance(List, com.intellij.vcs.log.graph.GraphColorManager, Set, PermanentGraphSnapshot)}.
+ * New commits on top of that list are added to the restored graph. Whether the snapshot belongs to the commits is decided by the
+ * {@link #fingerprint} of the bottom part of them.
+ * <p>
+ * The edges and layout indexes of a read snapshot stay in the buffer, which is usually a mapped file, and are not copied.
+ */
+public class PermanentGraphSnapshot {
+  public static final int VERSION = 1;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  @Nonnull
+  private final PermanentLinearGraphImpl myLinearGraph;
+  @Nonnull
+  private final GraphLayoutImpl myLayout;
+  @Nonnull
+  private final Map<Integer, Integer> myNotLoadedCommits;
+  private final long myFingerprint;
+
+  private PermanentGraphSnapshot(@Nonnull PermanentLinearGraphImpl linearGraph,
+                                 @Nonnull GraphLayoutImpl layout,
+                                 @Nonnull Map<Integer, Integer> notLoadedCommits,
+                                 long fingerprint) {
+    myLinearGraph = linearGraph;
+    myLayout = layout;
+    myNotLoadedCommits = notLoadedCommits;
+    myFingerprint = fingerprint;
+  }
+
+  @Nonnull
+  public PermanentLinearGraphImpl getLinearGraph() {
+    return myLinearGraph;
+  }
+
+  @Nonnull
+  public GraphLayoutImpl getLayout() {
+    return myLayout;
+  }
+
+  @Nonnull
+  public Map<Integer, Integer> getNotLoadedCommits() {
+    return myNotLoadedCommits;
+  }
+
+  /**
+   * @return the linear graph of the snapshot if it was taken for these commits, the linear graph of the snapshot with the new commits
+   * added if it was taken for the bottom part of them, or null otherwise
+   */
+  @Nullable
+  public PermanentLinearGraphImpl restoreLinearGraph(@Nonnull List<? extends GraphCommit<Integer>> commits) {
+    int newCommitsCount = commits.size() - myLinearGraph.nodesCount();
+    if (newCommitsCount < 0 || fingerprint(commits.subList(newCommitsCount, commits.size())) != myFingerprint) return null;
+    if (newCommitsCount == 0) return myLinearGraph;
+    return PermanentLinearGraphBuilder.addCommitsOnTop(myLinearGraph, commits);
+  }
+
+  /**
+   * Hash of the commit ids and their parents in the order of the list, which is all the linear graph depends on.
+   */
+  public static long fingerprint(@Nonnull List<? extends GraphCommit<Integer>> commits) {
+    long hash = mix(FNV_OFFSET_BASIS, commits.size());
+    for (GraphCommit<Integer> commit : commits) {
+      hash = mix(hash, commit.getId());
+      List<Integer> parents = commit.getParents();
+      hash = mix(hash, parents.size());
+      for (int parent : parents) {
+        hash = mix(hash, parent);
+      }
+    }
+    return hash;
+  }
+
+  private static long mix(long hash, int value) {
+    return (hash ^ value) * FNV_PRIME;
+  }
+
+  public static void write(@Nonnull DataOutput out, long fingerprint, @Nonnull PermanentGraphImpl<Integer> graph) throws IOException {
+    PermanentLinearGraphImpl linearGraph = graph.getLinearGraph();
+    GraphLayoutImpl layout = graph.getPermanentGraphLayout();
+    Map<Integer, Integer> notLoadedCommits = graph.getPermanentCommitsInfo().getNotLoadedCommits();
+    int nodesCount = linearGraph.nodesCount();
+    IntList longEdges = linearGraph.getLongEdges();
+    List<Integer> heads = layout.getHeadNodeIndex();
+
+    out.writeInt(VERSION);
+    out.writeLong(fingerprint);
+    out.writeInt(nodesCount);
+    out.writeInt(longEdges.size());
+    out.writeInt(heads.size());
+    out.writeInt(notLoadedCommits.size());
+
+    Flags simpleNodes = linearGraph.getSimpleNodes();
+    for (int word = 0; word < flagWordsCount(nodesCount); word++) {
+      int bits = 0;
+      for (int bit = 0; bit < Integer.SIZE && word * Integer.SIZE + bit < nodesCount; bit++) {
+        if (simpleNodes.get(word * Integer.SIZE + bit)) bits |= 1 << bit;
+      }
+      out.writeInt(bits);
+    }
+    writeInts(out, linearGraph.getNodeToEdgeIndex());
+    writeInts(out, longEdges);
+    for (int i = 0; i < nodesCount; i++) {
+      out.writeInt(layout.getLayoutIndex(i));
+    }
+    for (int head : heads) {
+      out.writeInt(head);
+    }
+    for (int startLayoutIndex : layout.getStartLayoutIndexForHead()) {
+      out.writeInt(startLayoutIndex);
+    }
+    for (Map.Entry<Integer, Integer> entry : notLoadedCommits.entrySet()) {
+      out.writeInt(entry.getKey());
+      out.writeInt(entry.getValue());
+    }
+  }
+
+  private static void writeInts(@Nonnull DataOutput out, @Nonnull IntList list) throws IOException {
+    for (int i = 0; i < list.size(); i++) {
+      out.writeInt(list.get(i));
+    }
+  }
+
+  /**
+   * @return the snapshot stored in the buffer, or null if it was written by another version; the buffer must not change while
+   * the snapshot or graphs restored from it are used
+   * @throws IOException if the buffer does not contain a well-formed snapshot
+   */
+  @Nullable
+  public static PermanentGraphSnapshot read(@Nonnull ByteBuffer buffer) throws IOException {
+    try {
+      if (buffer.getInt() != VERSION) return null;
+      long fingerprint = buffer.getLong();
+
+      int nodesCount = readCount(buffer);
+      int longEdgesCount = readCount(buffer);
+      int headsCount = readCount(buffer);
+      int notLoadedCount = readCount(buffer);
+
+      IntBuffer ints = buffer.slice().asIntBuffer();
+      long expectedInts = (long)flagWordsCount(nodesCount) + (nodesCount + 1) + longEdgesCount + nodesCount + 2L * headsCount + 2L * notLoadedCount;
+      if (ints.remaining() != expectedInts) {
+        throw new IOException("Expected " + expectedInts + " values in the graph snapshot, found " + ints.remaining());
+      }
+
+      Flags simpleNodes = new BitSetFlags(nodesCount);
+      for (int word = 0; word < flagWordsCount(nodesCount); word++) {
+        int bits = ints.get();
+        for (int bit = 0; bit < Integer.SIZE && word * Integer.SIZE + bit < nodesCount; bit++) {
+          if ((bits & (1 << bit)) != 0) simpleNodes.set(word * Integer.SIZE + bit, true);
+        }
+      }
+      IntList nodeToEdgeIndex = mapInts(ints, nodesCount + 1);
+      IntList longEdges = mapInts(ints, longEdgesCount);
+      IntList layoutIndex = mapInts(ints, nodesCount);
+      List<Integer> heads = new ArrayList<>(headsCount);
+      for (int i = 0; i < headsCount; i++) {
+        heads.add(ints.get());
+      }
+      int[] startLayoutIndexForHead = readInts(ints, headsCount);
+      Map<Integer, Integer> notLoadedCommits = new HashMap<>();
+      for (int i = 0; i < notLoadedCount; i++) {
+        notLoadedCommits.put(ints.get(), ints.get());
+      }
+
+      return new PermanentGraphSnapshot(new PermanentLinearGraphImpl(simpleNodes, nodeToEdgeIndex, longEdges),
+                                        new GraphLayoutImpl(layoutIndex, heads, startLayoutIndexForHead), notLoadedCommits, fingerprint);
+    }
+    catch (BufferUnderflowException e) {
+      throw new IOException("Graph snapshot is truncated", e);
+    }
+  }
+
+  private static int readCount(@Nonnull ByteBuffer buffer) throws IOException {
+    int count = buffer.getInt();
+    if (count < 0) throw new IOException("Negative count in the graph snapshot: " + count);
+    return count;
+  }
+
+  @Nonnull
+  private static IntList mapInts(@Nonnull IntBuffer buffer, int count) {
+    IntBuffer ints = buffer.slice();
+    ints.limit(count);
+    buffer.position(buffer.position() + count);
+    return new IntBufferList(ints);
+  }
+
+  @Nonnull
+  private static int[] readInts(@Nonnull IntBuffer buffer, int count) {
+    int[] result = new int[count];
+    buffer.get(result);
+    return result;
+  }
+
+  private static int flagWordsCount(int nodesCount) {
+    return (nodesCount + Integer.SIZE - 1) / Integer.SIZE;
+  }
+}
@@ -21,6 +21,7 @@ import com.intellij.util.SmartList;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.vcs.log.graph.GraphCommit;
 import com.intellij.vcs.log.graph.utils.Flags;
+import com.intellij.vcs.log.graph.utils.IntList;
 import com.intellij.vcs.log.graph.utils.impl.BitSetFlags;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -82,6 +83,86 @@ public class PermanentLinearGraphBuilder<CommitId> {
     return new PermanentLinearGraphBuilder<>(graphCommits, simpleNodes, longEdgesCount);
   }
 
+  /**
+   * Builds the same graph as {@link #build(NotNullFunction)} for commits made of new commits followed by the commits of the graph,
+   * reusing the edges of the graph: they keep their order and only move by the count of new commits.
+   *
+   * @return null if a new commit has a parent which is neither a new commit after it nor a commit of the graph
+   */
+  @Nullable
+  public static <CommitId> PermanentLinearGraphImpl addCommitsOnTop(@Nonnull PermanentLinearGraphImpl graph,
+                                                                    @Nonnull List<? extends GraphCommit<CommitId>> graphCommits) {
+    graphCommits = fixDuplicateParentCommits(graphCommits);
+    int newCommitsCount = graphCommits.size() - graph.nodesCount();
+    int nodesCount = graphCommits.size();
+
+    Map<CommitId, Integer> parentNodes = new HashMap<>();
+    for (int nodeIndex = 0; nodeIndex < newCommitsCount; nodeIndex++) {
+      parentNodes.put(graphCommits.get(nodeIndex).getId(), nodeIndex);
+    }
+    Set<CommitId> parentsToFind = new HashSet<>();
+    for (int nodeIndex = 0; nodeIndex < newCommitsCount; nodeIndex++) {
+      for (CommitId parent : graphCommits.get(nodeIndex).getParents()) {
+        if (!parentNodes.containsKey(parent)) parentsToFind.add(parent);
+      }
+    }
+    // parents of new commits are mostly the top commits of the graph, which are found without mapping all the commits
+    for (int nodeIndex = newCommitsCount; nodeIndex < nodesCount && !parentsToFind.isEmpty(); nodeIndex++) {
+      CommitId commitId = graphCommits.get(nodeIndex).getId();
+      if (parentsToFind.remove(commitId)) parentNodes.put(commitId, nodeIndex);
+    }
+    if (!parentsToFind.isEmpty()) return null;
+
+    Flags simpleNodes = new BitSetFlags(nodesCount);
+    Map<Integer, List<Integer>> upNodesOfParents = new HashMap<>();
+    for (int nodeIndex = 0; nodeIndex < newCommitsCount; nodeIndex++) {
+      List<CommitId> parents = graphCommits.get(nodeIndex).getParents();
+      if (parents.size() == 1 && parents.get(0).equals(nextCommitHashIndex(graphCommits, nodeIndex))) {
+        simpleNodes.set(nodeIndex, true);
+        continue;
+      }
+      for (CommitId parent : parents) {
+        int parentNodeIndex = parentNodes.get(parent);
+        if (parentNodeIndex <= nodeIndex) return null;
+        upNodesOfParents.computeIfAbsent(parentNodeIndex, k -> new SmartList<>()).add(nodeIndex);
+      }
+    }
+    Flags graphSimpleNodes = graph.getSimpleNodes();
+    for (int nodeIndex = 0; nodeIndex < graph.nodesCount(); nodeIndex++) {
+      if (graphSimpleNodes.get(nodeIndex)) simpleNodes.set(newCommitsCount + nodeIndex, true);
+    }
+
+    IntList graphNodeToEdgeIndex = graph.getNodeToEdgeIndex();
+    IntList graphLongEdges = graph.getLongEdges();
+    int[] nodeToEdgeIndex = new int[nodesCount + 1];
+    int[] longEdges = new int[graphLongEdges.size() + 2 * upNodesOfParents.values().stream().mapToInt(List::size).sum()];
+    int edgeIndex = 0;
+    for (int nodeIndex = 0; nodeIndex < nodesCount; nodeIndex++) {
+      // up nodes first, and new commits are above all commits of the graph
+      for (int upNodeIndex : upNodesOfParents.getOrDefault(nodeIndex, Collections.emptyList())) {
+        longEdges[edgeIndex++] = upNodeIndex;
+      }
+      if (nodeIndex < newCommitsCount) {
+        if (!simpleNodes.get(nodeIndex)) {
+          for (CommitId parent : graphCommits.get(nodeIndex).getParents()) {
+            longEdges[edgeIndex++] = parentNodes.get(parent);
+          }
+        }
+      }
+      else {
+        int graphNodeIndex = nodeIndex - newCommitsCount;
+        for (int i = graphNodeToEdgeIndex.get(graphNodeIndex); i < graphNodeToEdgeIndex.get(graphNodeIndex + 1); i++) {
+          int adjacentNode = graphLongEdges.get(i);
+          // not loaded commits keep their ids
+          longEdges[edgeIndex++] = adjacentNode < 0 ? adjacentNode : adjacentNode + newCommitsCount;
+        }
+      }
+      nodeToEdgeIndex[nodeIndex + 1] = edgeIndex;
+    }
+
+    return new PermanentLinearGraphImpl(simpleNodes, nodeToEdgeIndex, longEdges);
+  }
+
   @Nullable
   private static <CommitId> CommitId nextCommitHashIndex(List<? extends GraphCommit<CommitId>> commits, int nodeIndex) {
     if (nodeIndex < commits.size() - 1) return commits.get(nodeIndex + 1).getId();
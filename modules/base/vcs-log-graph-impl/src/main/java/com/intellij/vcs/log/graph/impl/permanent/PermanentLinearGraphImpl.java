@@ -30,6 +30,8 @@ import javax.annotation.Nonnull;
 import org.jetbrains.annotations.TestOnly;
 
 import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
 
 import static com.intellij.vcs.log.graph.api.elements.GraphEdgeType.USUAL;
 
@@ -41,9 +43,13 @@ public class PermanentLinearGraphImpl implements LinearGraph {
   private final IntList myLongEdges;
 
   /*package*/ PermanentLinearGraphImpl(Flags simpleNodes, int[] nodeToEdgeIndex, int[] longEdges) {
+    this(simpleNodes, CompressedIntList.newInstance(nodeToEdgeIndex), CompressedIntList.newInstance(longEdges));
+  }
+
+  /*package*/ PermanentLinearGraphImpl(Flags simpleNodes, IntList nodeToEdgeIndex, IntList longEdges) {
     mySimpleNodes = simpleNodes;
-    myNodeToEdgeIndex = CompressedIntList.newInstance(nodeToEdgeIndex);
-    myLongEdges = CompressedIntList.newInstance(longEdges);
+    myNodeToEdgeIndex = nodeToEdgeIndex;
+    myLongEdges = longEdges;
   }
 
   @TestOnly
@@ -51,6 +57,21 @@ public class PermanentLinearGraphImpl implements LinearGraph {
     this(new BitSetFlags(0), new int[0], new int[0]);
   }
 
+  @Nonnull
+  /*package*/ Flags getSimpleNodes() {
+    return mySimpleNodes;
+  }
+
+  @Nonnull
+  /*package*/ IntList getNodeToEdgeIndex() {
+    return myNodeToEdgeIndex;
+  }
+
+  @Nonnull
+  /*package*/ IntList getLongEdges() {
+    return myLongEdges;
+  }
+
   @Override
   public int nodesCount() {
     return mySimpleNodes.size();
@@ -81,6 +102,45 @@ public class PermanentLinearGraphImpl implements LinearGraph {
     return result;
   }
 
+  /**
+   * Same as a non-empty {@link EdgeFilter#NORMAL_UP} list of {@link #getAdjacentEdges}, without creating the edges.
+   */
+  boolean hasUpNodes(int nodeIndex) {
+    if (nodeIndex != 0 && mySimpleNodes.get(nodeIndex - 1)) return true;
+
+    for (int i = myNodeToEdgeIndex.get(nodeIndex); i < myNodeToEdgeIndex.get(nodeIndex + 1); i++) {
+      int adjacentNode = myLongEdges.get(i);
+      if (adjacentNode >= 0 && adjacentNode < nodeIndex) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the first of {@link EdgeFilter#NORMAL_DOWN} adjacent nodes, in the order of {@link #getAdjacentEdges}, accepted by the condition,
+   * or -1; no edges are created
+   */
+  int findDownNode(int nodeIndex, @Nonnull IntPredicate condition) {
+    for (int i = myNodeToEdgeIndex.get(nodeIndex); i < myNodeToEdgeIndex.get(nodeIndex + 1); i++) {
+      int adjacentNode = myLongEdges.get(i);
+      if (adjacentNode > nodeIndex && condition.test(adjacentNode)) return adjacentNode;
+    }
+
+    if (mySimpleNodes.get(nodeIndex) && condition.test(nodeIndex + 1)) return nodeIndex + 1;
+    return -1;
+  }
+
+  /**
+   * Passes all {@link EdgeFilter#NORMAL_DOWN} adjacent nodes to the consumer, in the order of {@link #getAdjacentEdges}; no edges are created
+   */
+  void forEachDownNode(int nodeIndex, @Nonnull IntConsumer consumer) {
+    for (int i = myNodeToEdgeIndex.get(nodeIndex); i < myNodeToEdgeIndex.get(nodeIndex + 1); i++) {
+      int adjacentNode = myLongEdges.get(i);
+      if (adjacentNode > nodeIndex) consumer.accept(adjacentNode);
+    }
+
+    if (mySimpleNodes.get(nodeIndex)) consumer.accept(nodeIndex + 1);
+  }
+
   @Nonnull
   @Override
   public GraphNode getGraphNode(int nodeIndex) {
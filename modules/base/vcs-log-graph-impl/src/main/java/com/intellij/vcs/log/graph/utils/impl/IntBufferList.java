@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.graph.utils.impl;
+
+import com.intellij.vcs.log.graph.utils.IntList;
+import javax.annotation.Nonnull;
+
+import java.nio.IntBuffer;
+
+/**
+ * Reads the values of a buffer in place, e.g. of a mapped file, without copying them to the heap.
+ */
+public class IntBufferList implements IntList {
+  @Nonnull
+  private final IntBuffer myBuffer;
+
+  // the buffer is read with absolute gets only, so it may be shared by threads
+  public IntBufferList(@Nonnull IntBuffer buffer) {
+    myBuffer = buffer;
+  }
+
+  @Override
+  public int size() {
+    return myBuffer.limit();
+  }
+
+  @Override
+  public int get(int index) {
+    return myBuffer.get(index);
+  }
+}
@@ -23,9 +23,11 @@ import com.intellij.vcs.log.graph.GraphColorManagerImpl;
 import com.intellij.vcs.log.graph.GraphCommit;
 import com.intellij.vcs.log.graph.PermanentGraph;
 import com.intellij.vcs.log.graph.impl.facade.PermanentGraphImpl;
+import com.intellij.vcs.log.graph.impl.permanent.PermanentGraphSnapshot;
 import com.intellij.vcs.log.util.StopWatch;
 import gnu.trove.TIntHashSet;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import java.util.*;
 
@@ -49,6 +51,20 @@ public class DataPack extends DataPackBase {
                         @Nonnull Map<VirtualFile, VcsLogProvider> providers,
                         @Nonnull final VcsLogStorage hashMap,
                         boolean full) {
+    return build(commits, refs, providers, hashMap, null, full);
+  }
+
+  /**
+   * @param graphCache if not null, the permanent graph of a full log is taken from it when it was stored for the same commits,
+   *                   or for the same commits without the new ones on top, and is stored there in background otherwise
+   */
+  @Nonnull
+  static DataPack build(@Nonnull List<? extends GraphCommit<Integer>> commits,
+                        @Nonnull Map<VirtualFile, CompressedRefs> refs,
+                        @Nonnull Map<VirtualFile, VcsLogProvider> providers,
+                        @Nonnull final VcsLogStorage hashMap,
+                        @Nullable PermanentGraphCache graphCache,
+                        boolean full) {
     RefsModel refsModel;
     PermanentGraph<Integer> permanentGraph;
     if (commits.isEmpty()) {
@@ -61,14 +77,46 @@ public class DataPack extends DataPackBase {
       GraphColorManagerImpl colorManager = new GraphColorManagerImpl(refsModel, hashGetter, getRefManagerMap(providers));
       Set<Integer> branches = getBranchCommitHashIndexes(refsModel.getBranches(), hashMap);
 
-      StopWatch sw = StopWatch.start("building graph");
-      permanentGraph = PermanentGraphImpl.newInstance(commits, colorManager, branches);
-      sw.report();
+      if (graphCache != null && full) {
+        permanentGraph = buildWithCache(commits, colorManager, branches, graphCache);
+      }
+      else {
+        StopWatch sw = StopWatch.start("building graph");
+        permanentGraph = PermanentGraphImpl.newInstance(commits, colorManager, branches);
+        sw.report();
+      }
     }
 
     return new DataPack(refsModel, permanentGraph, providers, full);
   }
 
+  @Nonnull
+  private static PermanentGraph<Integer> buildWithCache(@Nonnull List<? extends GraphCommit<Integer>> commits,
+                                                        @Nonnull GraphColorManagerImpl colorManager,
+                                                        @Nonnull Set<Integer> branches,
+                                                        @Nonnull PermanentGraphCache graphCache) {
+    StopWatch sw = StopWatch.start("reading cached graph");
+    PermanentGraphSnapshot snapshot = graphCache.load();
+    if (snapshot != null) {
+      PermanentGraphImpl<Integer> permanentGraph = PermanentGraphImpl.newInstance(commits, colorManager, branches, snapshot);
+      if (permanentGraph != null) {
+        sw.report();
+        // new commits were added to the stored graph
+        if (snapshot.getLinearGraph().nodesCount() != commits.size()) {
+          graphCache.saveLater(PermanentGraphSnapshot.fingerprint(commits), permanentGraph);
+        }
+        return permanentGraph;
+      }
+    }
+
+    sw = StopWatch.start("building graph");
+    PermanentGraphImpl<Integer> permanentGraph = PermanentGraphImpl.newInstance(commits, colorManager, branches);
+    sw.report();
+
+    graphCache.saveLater(PermanentGraphSnapshot.fingerprint(commits), permanentGraph);
+    return permanentGraph;
+  }
+
   @Nonnull
   public static Function<Integer, Hash> createHashGetter(@Nonnull final VcsLogStorage hashMap) {
     return commitIndex -> {
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013-2026 consulo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.data;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.vcs.log.graph.impl.facade.PermanentGraphImpl;
+import com.intellij.vcs.log.graph.impl.permanent.PermanentGraphSnapshot;
+import com.intellij.vcs.log.util.PersistentUtil;
+import com.intellij.vcs.log.util.SequentialLimitedLifoExecutor;
+import com.intellij.vcs.log.util.StopWatch;
+import consulo.disposer.Disposable;
+import consulo.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Keeps the last full permanent graph of the log in a file, so that after a restart the graph of an unchanged repository
+ * is read back by mapping that file instead of being built again, and the graph of a repository with new commits is built
+ * from it by adding them. Graphs are written in background, and a graph which is replaced by a newer one before its turn
+ * comes is not written at all.
+ * <p>
+ * The edges and layout indexes of a loaded graph are read from the mapping as long as the graph is used, and the mapping is
+ * released by the garbage collector after that. A new graph is written to another file which then replaces the mapped one,
+ * so a loaded graph keeps reading the old contents; where a mapped file cannot be replaced, the new graph is not stored.
+ */
+public class PermanentGraphCache {
+  private static final Logger LOG = Logger.getInstance(PermanentGraphCache.class);
+  @Nonnull
+  private static final String GRAPH_STORAGE = "graph";
+
+  @Nonnull
+  private final File myFile;
+  @Nonnull
+  private final SequentialLimitedLifoExecutor<SaveTask> myWriter;
+
+  public PermanentGraphCache(@Nonnull String logId, @Nonnull Disposable parentDisposable) {
+    myFile = PersistentUtil.getStorageFile(GRAPH_STORAGE, logId, PermanentGraphSnapshot.VERSION);
+    // only the newest graph is worth writing
+    myWriter = new SequentialLimitedLifoExecutor<>(parentDisposable, 0, task -> save(task.myFingerprint, task.myGraph));
+  }
+
+  public static boolean isEnabled() {
+    return Registry.is("vcs.log.graph.cache");
+  }
+
+  /**
+   * @return the stored snapshot, for the commits of the last stored graph
+   */
+  @Nullable
+  public PermanentGraphSnapshot load() {
+    if (!myFile.exists()) return null;
+
+    try (FileChannel channel = FileChannel.open(myFile.toPath(), StandardOpenOption.READ)) {
+      // the mapping stays valid after the channel is closed, and is never unmapped explicitly as the graph may still read from it
+      return PermanentGraphSnapshot.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+    catch (IOException e) {
+      LOG.warn("Could not read graph cache " + myFile, e);
+      FileUtil.delete(myFile);
+      return null;
+    }
+  }
+
+  /**
+   * Schedules writing the graph, which is immutable, in background.
+   */
+  public void saveLater(long fingerprint, @Nonnull PermanentGraphImpl<Integer> graph) {
+    myWriter.queue(new SaveTask(fingerprint, graph));
+  }
+
+  void save(long fingerprint, @Nonnull PermanentGraphImpl<Integer> graph) {
+    StopWatch sw = StopWatch.start("writing cached graph");
+    File tempFile = new File(myFile.getPath() + ".tmp");
+    try {
+      FileUtil.createParentDirs(tempFile);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        PermanentGraphSnapshot.write(out, fingerprint, graph);
+      }
+      Files.move(tempFile.toPath(), myFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      sw.report();
+    }
+    catch (IOException e) {
+      LOG.warn("Could not write graph cache " + myFile, e);
+      FileUtil.delete(tempFile);
+    }
+  }
+
+  private static class SaveTask {
+    private final long myFingerprint;
+    @Nonnull
+    private final PermanentGraphImpl<Integer> myGraph;
+
+    private SaveTask(long fingerprint, @Nonnull PermanentGraphImpl<Integer> graph) {
+      myFingerprint = fingerprint;
+      myGraph = graph;
+    }
+  }
+}
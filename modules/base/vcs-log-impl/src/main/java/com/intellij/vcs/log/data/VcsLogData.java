@@ -110,10 +110,15 @@ public class VcsLogData implements Disposable, VcsLogDataProvider {
     VcsLogProgress progress = new VcsLogProgress();
     Disposer.register(this, progress);
 
+    PermanentGraphCache graphCache = null;
     VcsLogCachesInvalidator invalidator = CachesInvalidator.EP_NAME.findExtension(VcsLogCachesInvalidator.class);
     if (invalidator.isValid()) {
       myHashMap = createLogHashMap();
       myIndex = new VcsLogPersistentIndex(myProject, myHashMap, progress, logProviders, myFatalErrorsConsumer, this);
+      // commit indexes of the cached graph are only meaningful while the persistent hashes storage keeps them
+      if (myHashMap instanceof VcsLogStorageImpl && PermanentGraphCache.isEnabled()) {
+        graphCache = new PermanentGraphCache(PersistentUtil.calcLogId(myProject, logProviders), this);
+      }
     }
     else {
       // this is not recoverable
@@ -131,8 +136,9 @@ public class VcsLogData implements Disposable, VcsLogDataProvider {
     myMiniDetailsGetter = new MiniDetailsGetter(myHashMap, logProviders, myTopCommitsDetailsCache, myIndex, this);
     myDetailsGetter = new CommitDetailsGetter(myHashMap, logProviders, myIndex, this);
 
-    myRefresher = new VcsLogRefresherImpl(myProject, myHashMap, myLogProviders, myUserRegistry, myIndex, progress, myTopCommitsDetailsCache,
-                                          this::fireDataPackChangeEvent, FAILING_EXCEPTION_HANDLER, RECENT_COMMITS_COUNT);
+    myRefresher = new VcsLogRefresherImpl(myProject, myHashMap, myLogProviders, myUserRegistry, myIndex, progress, graphCache,
+                                          myTopCommitsDetailsCache, this::fireDataPackChangeEvent, FAILING_EXCEPTION_HANDLER,
+                                          RECENT_COMMITS_COUNT);
 
     myContainingBranchesGetter = new ContainingBranchesGetter(this, this);
   }
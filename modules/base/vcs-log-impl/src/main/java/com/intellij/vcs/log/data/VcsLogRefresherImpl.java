@@ -46,6 +46,11 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
 
   private static final Logger LOG = Logger.getInstance(VcsLogRefresherImpl.class);
 
+  /**
+   * When the full log has more commits, a data pack of this many top commits is shown while the graph of the full log is being built.
+   */
+  private static final int PARTIAL_COMMIT_COUNT = 100_000;
+
   @Nonnull
   private final Project myProject;
   @Nonnull
@@ -62,9 +67,13 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
   private final Consumer<Exception> myExceptionHandler;
   @Nonnull
   private final VcsLogProgress myProgress;
+  @Nullable
+  private final PermanentGraphCache myGraphCache;
 
   private final int myRecentCommitCount;
 
+  @Nonnull
+  private final Consumer<DataPack> myDataPackUpdateHandler;
   @Nonnull
   private final SingleTaskController<RefreshRequest, DataPack> mySingleTaskController;
 
@@ -77,6 +86,7 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
                              @Nonnull VcsUserRegistryImpl userRegistry,
                              @Nonnull VcsLogIndex index,
                              @Nonnull VcsLogProgress progress,
+                             @Nullable PermanentGraphCache graphCache,
                              @Nonnull TopCommitsCache topCommitsDetailsCache,
                              @Nonnull Consumer<DataPack> dataPackUpdateHandler,
                              @Nonnull Consumer<Exception> exceptionHandler,
@@ -90,11 +100,13 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
     myExceptionHandler = exceptionHandler;
     myRecentCommitCount = recentCommitsCount;
     myProgress = progress;
+    myGraphCache = graphCache;
 
-    mySingleTaskController = new SingleTaskController<RefreshRequest, DataPack>(dataPack -> {
+    myDataPackUpdateHandler = dataPack -> {
       myDataPack = dataPack;
       dataPackUpdateHandler.consume(dataPack);
-    }) {
+    };
+    mySingleTaskController = new SingleTaskController<RefreshRequest, DataPack>(myDataPackUpdateHandler) {
       @Override
       protected void startNewBackgroundTask() {
         VcsLogRefresherImpl.this.startNewBackgroundTask(new MyRefreshTask(myDataPack));
@@ -270,7 +282,7 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
               commitCount *= 5;
             }
             else {
-              return DataPack.build(joinedFullLog, allNewRefs, myProviders, myHashMap, true);
+              return DataPack.build(joinedFullLog, allNewRefs, myProviders, myHashMap, myGraphCache, true);
             }
           }
           // couldn't join => need to reload everything; if 5000 commits is still not enough, it's worth reporting:
@@ -353,11 +365,26 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
       StopWatch sw = StopWatch.start("full log reload");
       LogInfo logInfo = readFullLogFromVcs();
       List<? extends GraphCommit<Integer>> graphCommits = multiRepoJoin(logInfo.getCommits());
-      DataPack dataPack = DataPack.build(graphCommits, logInfo.getRefs(), myProviders, myHashMap, true);
+      if (graphCommits.size() > PARTIAL_COMMIT_COUNT && !myDataPack.isFull()) {
+        publishTopCommits(graphCommits, logInfo.getRefs());
+      }
+      DataPack dataPack = DataPack.build(graphCommits, logInfo.getRefs(), myProviders, myHashMap, myGraphCache, true);
       sw.report();
       return dataPack;
     }
 
+    /**
+     * Shows the top commits of a large log instead of the first block, until the graph of the full log is built.
+     * The joined log is sorted topologically, so its top commits make a graph of their own, as the first block does.
+     */
+    private void publishTopCommits(@Nonnull List<? extends GraphCommit<Integer>> graphCommits,
+                                   @Nonnull Map<VirtualFile, CompressedRefs> refs) {
+      StopWatch sw = StopWatch.start("building graph of top commits");
+      List<? extends GraphCommit<Integer>> topCommits = graphCommits.subList(0, PARTIAL_COMMIT_COUNT);
+      myDataPackUpdateHandler.consume(DataPack.build(topCommits, refs, myProviders, myHashMap, false));
+      sw.report();
+    }
+
     @Nonnull
     private LogInfo readFullLogFromVcs() throws VcsException {
       final StopWatch sw = StopWatch.start("read full log from VCS");